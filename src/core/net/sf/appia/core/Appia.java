@@ -53,11 +53,19 @@ public class Appia {
   protected Vector<EventScheduler> eventSchedulers=new Vector<EventScheduler>();
   protected TimerManager timerManager=null;
   protected Thread thread = null;
-  protected int nEvents=0;
   private ThreadFactory threadFactory;  
-  private boolean running = true;
+  private volatile boolean running = true;
   private String managementMBeanID;
   
+  // kernel threading mode
+  private boolean multiThreaded=false;
+  private int schedulerThreads=0;
+  private boolean started=false;
+  private WakeupStrategy wakeupStrategy=new MonitorWakeupStrategy();
+  private final SchedulerWorker mainWorker=new SchedulerWorker(this,wakeupStrategy.newInstance());
+  private final Vector<SchedulerWorker> workers=new Vector<SchedulerWorker>();
+  private int nextWorker=0;
+  
   /**
    * Default constructor.
    * <br>
@@ -66,6 +74,7 @@ public class Appia {
   public Appia() {
       threadFactory = new AppiaThreadFactory();
       timerManager=new TimerManager(threadFactory);
+      workers.addElement(mainWorker);
   }
 
   /**
@@ -76,6 +85,7 @@ public class Appia {
   public Appia(ThreadFactory thf) {
       threadFactory = thf;
       timerManager=new TimerManager(threadFactory);
+      workers.addElement(mainWorker);
   }
   
   public TimerManager instanceGetTimerManager() {
@@ -91,85 +101,186 @@ public class Appia {
     this.timerManager.start();
   }
 
+  /**
+   * Selects the threading mode of this <i>Appia</i> instance.
+   * <br>
+   * In the default single-threaded mode all
+   * {@link net.sf.appia.core.EventScheduler EventSchedulers} are run by the thread
+   * that calls {@link #instanceRun()}.
+   * In multi-threaded mode each EventScheduler is run by its own thread, or, if
+   * {@link #instanceSetSchedulerThreads(int)} was used, the EventSchedulers are
+   * distributed among that number of threads.
+   * <br>
+   * Channels that share sessions must use the same EventScheduler, and therefore
+   * are always run by the same thread.
+   * <br>
+   * <b>It must be called before {@link #instanceRun()}.</b>
+   *
+   * @param multiThreaded true to run the EventSchedulers in several threads.
+   */
+  public synchronized void instanceSetMultiThreaded(boolean multiThreaded) {
+    if (started)
+      throw new AppiaError("Unable to change the threading mode of a running Appia instance");
+    this.multiThreaded=multiThreaded;
+  }
+  
+  public synchronized boolean instanceIsMultiThreaded() {
+    return multiThreaded;
+  }
+  
+  /**
+   * Sets the maximum number of threads used to run the
+   * {@link net.sf.appia.core.EventScheduler EventSchedulers} in multi-threaded mode.
+   * <br>
+   * The default value, 0, uses one thread for each EventScheduler.
+   * <br>
+   * <b>It must be called before {@link #instanceRun()}.</b>
+   *
+   * @param schedulerThreads maximum number of threads, or 0 for no limit.
+   */
+  public synchronized void instanceSetSchedulerThreads(int schedulerThreads) {
+    if (started)
+      throw new AppiaError("Unable to change the number of threads of a running Appia instance");
+    if (schedulerThreads < 0)
+      throw new IllegalArgumentException("Number of scheduler threads must not be negative");
+    this.schedulerThreads=schedulerThreads;
+  }
+  
+  public synchronized int instanceGetSchedulerThreads() {
+    return schedulerThreads;
+  }
+  
+  /**
+   * Sets the strategy used by the threads that run the
+   * {@link net.sf.appia.core.EventScheduler EventSchedulers} to wait for events.
+   * <br>
+   * The given strategy is used as a prototype: each thread gets its own instance from
+   * {@link net.sf.appia.core.WakeupStrategy#newInstance()}.
+   * The default is {@link net.sf.appia.core.MonitorWakeupStrategy}.
+   * <br>
+   * <b>It must be called before {@link #instanceRun()}.</b>
+   *
+   * @param wakeupStrategy the strategy prototype.
+   * @see net.sf.appia.core.ParkingWakeupStrategy
+   */
+  public synchronized void instanceSetWakeupStrategy(WakeupStrategy wakeupStrategy) {
+    if (started)
+      throw new AppiaError("Unable to change the wakeup strategy of a running Appia instance");
+    this.wakeupStrategy=wakeupStrategy;
+    mainWorker.setWakeupStrategy(wakeupStrategy.newInstance());
+  }
+  
+  public synchronized WakeupStrategy instanceGetWakeupStrategy() {
+    return wakeupStrategy;
+  }
+  
   public void instanceInsertEventScheduler(EventScheduler eventScheduler) {
-    if ( ! eventSchedulers.contains(eventScheduler) )
+    synchronized (this) {
+      if (eventSchedulers.contains(eventScheduler))
+        return;
       eventSchedulers.addElement(eventScheduler);
+      if (!started || !multiThreaded) {
+        mainWorker.addScheduler(eventScheduler);
+        return;
+      }
+    }
+    // a new EventScheduler on a running multi-threaded instance
+    assignWorker(eventScheduler).insertedEvent();
   }
 
   public void instanceRemoveEventScheduler(EventScheduler eventScheduler) {
-    eventSchedulers.removeElement(eventScheduler);
+    synchronized (this) {
+      eventSchedulers.removeElement(eventScheduler);
+      for (int i=0 ; i < workers.size() ; i++) {
+        if (workers.elementAt(i).removeScheduler(eventScheduler))
+          return;
+      }
+    }
   }
 
   public void instanceInsertListenRequest(ExternalEvent descriptor) {}
   
   public void instanceRemoveListenRequest(ExternalEvent descriptor) {}
 
-  public synchronized void instanceInsertedEvent() {
-      notify();
-      nEvents++;
+  /**
+   * Signals the thread running the given EventScheduler that an
+   * {@link net.sf.appia.core.Event Event} was inserted from another thread.
+   */
+  void instanceInsertedEvent(EventScheduler eventScheduler) {
+    final SchedulerWorker worker=eventScheduler.getWorker();
+    if (worker != null)
+      worker.insertedEvent();
   }
   
+  /**
+   * Gets the thread that called {@link #instanceRun()}.
+   * <br>
+   * In multi-threaded mode each {@link net.sf.appia.core.EventScheduler EventScheduler}
+   * may run on a different thread, given by
+   * {@link net.sf.appia.core.EventScheduler#getSchedulerThread()}.
+   */
   public Thread instanceGetAppiaThread() {
     return thread;
   }
 
+  boolean isRunning() {
+    return running;
+  }
+
   public void instanceRun() {
     // Starting associated TimerManager
     timerManager.start();
 
     //some final initializations
-    int i;
     thread = Thread.currentThread();
-    for (i=0 ; i < eventSchedulers.size() ; i++) {
-      final EventScheduler es=eventSchedulers.elementAt(i);
-      es.start();
-    }
-    
-    i=0;
-    boolean consumedEvent;
-    EventScheduler es;
     
-    while (true) {	
-      try {
-        es=eventSchedulers.elementAt(i);
-      } catch (ArrayIndexOutOfBoundsException e) {
-        es=null;
-      }
-      
-      if ( es != null )
-        consumedEvent=es.consumeEvent();
-      else
-        consumedEvent=false;
-      
-      synchronized (this) {
-    	  if ( consumedEvent )
-    		  nEvents--;
-    	  
-    	  while ( running && nEvents == 0 ) {
-    		  try {
-    			  wait();
-    		  } catch (InterruptedException e) {}
-    	  }        
-        
-    	if(!running)
-    		break;    		
-      }
-      
-      i++;
-      if ( i >= eventSchedulers.size() ) {
-        i=0;
-        //so other threads can run
-        // Thread.yield();
+    final EventScheduler[] schedulers;
+    synchronized (this) {
+      started=true;
+      schedulers=mainWorker.getSchedulers();
+      if (multiThreaded) {
+        // the first EventScheduler stays with the calling thread
+        for (int i=1 ; i < schedulers.length ; i++) {
+          mainWorker.removeScheduler(schedulers[i]);
+          assignWorker(schedulers[i]);
+        }
       }
     }
+    mainWorker.setThread(thread);
+    
+    for (int i=0 ; i < schedulers.length ; i++)
+      schedulers[i].start();
+    
+    mainWorker.run();
+  }
 
+  /**
+   * Assigns an EventScheduler to a worker thread, creating it if needed.
+   */
+  private synchronized SchedulerWorker assignWorker(EventScheduler eventScheduler) {
+    SchedulerWorker worker;
+    if ((schedulerThreads == 0) || (workers.size() < schedulerThreads)) {
+      worker=new SchedulerWorker(this,wakeupStrategy.newInstance());
+      worker.addScheduler(eventScheduler);
+      final Thread t=threadFactory.newThread(worker);
+      t.setName("Appia Scheduler Thread "+workers.size());
+      worker.setThread(t);
+      workers.addElement(worker);
+      t.start();
+    } else {
+      worker=workers.elementAt(nextWorker);
+      worker.addScheduler(eventScheduler);
+      nextWorker=(nextWorker+1) % workers.size();
+    }
+    return worker;
   }
 
   public void instanceStop() {
       synchronized (this) {
       	running = false;
       	timerManager.stop();
-//      	instanceGetAppiaThread().interrupt();
+      	for (int i=0 ; i < workers.size() ; i++)
+      	  workers.elementAt(i).wakeup();
   	}
   }
   
@@ -249,15 +360,16 @@ public class Appia {
   }
   
   /**
-   * Method used by any {@link net.sf.appia.core.EventScheduler EventScheduler} to signal
-   * that a new {@link net.sf.appia.core.Event Event} has been inserted.
+   * Method used to signal that a new {@link net.sf.appia.core.Event Event} has been inserted.
    * <br>
-   * The <i>Appia</i> keeps track of how many events exist in all the
-   * {@link net.sf.appia.core.EventScheduler EventSchedulers}, and if none exist it simply
-   * waits idle.
+   * The threads running the {@link net.sf.appia.core.EventScheduler EventSchedulers} wait
+   * idle when no events exist. This method wakes all of them, so that they look for new events.
+   * {@link net.sf.appia.core.EventScheduler EventSchedulers} signal only the thread that runs them.
    */
   public static void insertedEvent() {
-    appia.instanceInsertedEvent();
+    final Vector<EventScheduler> list=appia.eventSchedulers;
+    for (int i=0 ; i < list.size() ; i++)
+      appia.instanceInsertedEvent(list.elementAt(i));
   }
   
   /**
@@ -267,6 +379,22 @@ public class Appia {
   public static Thread getAppiaThread() {
       return appia.thread;
   }
+  
+  /**
+   * Selects the threading mode of the default <i>Appia</i> instance.
+   * @see #instanceSetMultiThreaded(boolean)
+   */
+  public static void setMultiThreaded(boolean multiThreaded) {
+      appia.instanceSetMultiThreaded(multiThreaded);
+  }
+  
+  /**
+   * Sets the maximum number of scheduler threads of the default <i>Appia</i> instance.
+   * @see #instanceSetSchedulerThreads(int)
+   */
+  public static void setSchedulerThreads(int schedulerThreads) {
+      appia.instanceSetSchedulerThreads(schedulerThreads);
+  }
 
   public synchronized ThreadFactory getThreadFactory() {
       return threadFactory;
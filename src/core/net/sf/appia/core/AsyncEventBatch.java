@@ -0,0 +1,106 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+import net.sf.appia.core.memoryManager.MemoryManager;
+
+/**
+ * Collects events produced by a thread other than the
+ * {@link net.sf.appia.core.EventScheduler EventScheduler} threads, for instance
+ * the reader of a socket, and inserts them together.
+ * <br>
+ * Each event is initialized as with {@link Event#asyncGo(Channel, int)} when it
+ * is added, but it only enters its channel on {@link #flush()}, or when the batch
+ * is full. Consecutive events of the same EventScheduler are inserted with a
+ * single wakeup of its thread.
+ * <br>
+ * If a channel has a memory manager above the threshold, the events already
+ * in the batch are flushed and {@link #add(Event, Channel, int)} blocks, like
+ * {@link Event#asyncGo(Channel, int)}.
+ * <br>
+ * A batch must only be used by one thread.
+ */
+public class AsyncEventBatch {
+
+  private final Event[] events;
+  private int count=0;
+
+  /**
+   * Creates a batch.
+   * @param capacity maximum number of events held before they are flushed
+   */
+  public AsyncEventBatch(int capacity) {
+    events=new Event[Math.max(1,capacity)];
+  }
+
+  /**
+   * Adds an Event to the batch.
+   * <br>
+   * <b><u>NOTE</u>: the Event must not be <i>initialized</i>.</b>
+   *
+   * @param event the Event
+   * @param channel the {@link net.sf.appia.core.Channel Channel} of the Event
+   * @param dir the {@link net.sf.appia.core.Direction Direction} of the Event
+   * @throws AppiaEventException if the Event could not be initialized or the channel is closed
+   */
+  public void add(Event event, Channel channel, int dir) throws AppiaEventException {
+    event.initAsync(channel,dir,"AsyncEventBatch.add");
+
+    final MemoryManager mm=channel.getMemoryManager();
+    if (AppiaConfig.QUOTA_ON && mm != null && mm.aboveThreshold(dir)) {
+      flush();
+      try {
+        mm.synchronizedAboveThreshold(dir);
+      } catch (InterruptedException e) {
+        throw new AppiaEventException("Unable to insert event asynchronously",e);
+      }
+    }
+
+    channel.waitAlive(event);
+    events[count++]=event;
+    if (count == events.length)
+      flush();
+  }
+
+  /**
+   * Inserts all the events of the batch in their channels.
+   */
+  public void flush() {
+    int from=0;
+    while (from < count) {
+      final EventScheduler scheduler=events[from].getChannel().getEventScheduler();
+      int to=from+1;
+      while ((to < count) && (events[to].getChannel().getEventScheduler() == scheduler))
+        to++;
+      scheduler.insertAll(events,from,to);
+      from=to;
+    }
+    for (int i=0 ; i < count ; i++)
+      events[i]=null;
+    count=0;
+  }
+
+  /**
+   * Gets the number of events waiting in the batch.
+   */
+  public int size() {
+    return count;
+  }
+}
@@ -20,7 +20,6 @@
  
 package net.sf.appia.core;
 
-import java.util.Hashtable;
 import java.util.concurrent.ThreadFactory;
 
 import net.sf.appia.core.events.channel.ChannelClose;
@@ -31,6 +30,7 @@ import net.sf.appia.core.events.channel.PeriodicTimer;
 import net.sf.appia.core.events.channel.Timer;
 import net.sf.appia.core.memoryManager.MemoryManager;
 import net.sf.appia.core.message.DefaultMessageFactory;
+import net.sf.appia.core.message.HeaderStats;
 import net.sf.appia.core.message.MessageFactory;
 import net.sf.appia.management.ManagedSession;
 import net.sf.appia.management.SensorSession;
@@ -78,7 +78,11 @@ public class Channel {
     
   String channelID;
   private QoS qos;
-  private Hashtable eventsRoutes=null;
+  // routes indexed by event type, see QoS.getEventType(Class)
+  private volatile ChannelEventRoute[] eventsRoutes=null;
+  // first session index for [event type][source session index*2 + direction]
+  private volatile int[][] firstHops=null;
+  private int lastSourceIndex=0;
   
   private EventScheduler eventScheduler;
   private TimerManager timerManager;
@@ -86,9 +90,13 @@ public class Channel {
   private boolean alive=false;
   private boolean started=false;
   
-  private MemoryManager memoryManager=null;
+  private volatile MemoryManager memoryManager=null;
   
   private JMXConfiguration jmxConfiguration = null;
+  
+  private long timerCoalescing = 0;
+  
+  private HeaderStats headerStats = null;
 
   // Factories
   private MessageFactory messageFactory = new DefaultMessageFactory();
@@ -117,6 +125,8 @@ public class Channel {
     timerManager=(eventScheduler.getAppiaInstance()).instanceGetTimerManager();
     threadFactory = eventScheduler.getAppiaInstance().getThreadFactory();
     this.jmxConfiguration = jmxConfig;
+    if (HeaderStats.isEnabled())
+      headerStats = new HeaderStats(this);
   }
   
     /* new methods added */
@@ -140,6 +150,8 @@ public class Channel {
     threadFactory = eventScheduler.getAppiaInstance().getThreadFactory();
     this.memoryManager = memoryManager;
     this.jmxConfiguration = jmxConfig;
+    if (HeaderStats.isEnabled())
+      headerStats = new HeaderStats(this);
   }
   
   /**
@@ -151,7 +163,9 @@ public class Channel {
   
   /**
    * sets the memory manager of this Channel.
-   * If the paramater is null, the channel doesn't have a Memory Manager
+   * If the paramater is null, the channel doesn't have a Memory Manager.
+   * It may be changed while the channel is running; messages already in the
+   * channel stay bound to the memory manager they were created with.
    * @param newMemoryManager the new MemoryManager
    */
   public void setMemoryManager(MemoryManager newMemoryManager) {
@@ -179,6 +193,41 @@ public class Channel {
       this.messageFactory = messageFactory;
   }
 
+  /**
+   * Enables the coalescing of the {@link net.sf.appia.core.events.channel.PeriodicTimer PeriodicTimers}
+   * requested in this Channel.
+   * <br>
+   * Periods are rounded to a multiple of the given granularity, and periodic timers of channels
+   * with the same {@link net.sf.appia.core.EventScheduler EventScheduler} and the same rounded
+   * period are notified together, without cloning the timer event in each period.
+   * Sessions must not keep references to the notifications of coalesced timers.
+   * <br>
+   * Only timers requested after this call are coalesced.
+   *
+   * @param granularity the granularity in milliseconds, or 0 to disable coalescing.
+   */
+  public void setTimerCoalescing(long granularity) {
+    if (granularity < 0)
+      throw new IllegalArgumentException("Timer coalescing granularity must not be negative");
+    this.timerCoalescing = granularity;
+  }
+  
+  /**
+   * Gets the granularity of the coalescing of periodic timers.
+   * @return the granularity in milliseconds, or 0 if coalescing is disabled.
+   */
+  public long getTimerCoalescing() {
+    return timerCoalescing;
+  }
+  
+  /**
+   * Gets the counters of the header bytes pushed and popped by each layer.
+   * @return the counters, or null if {@link HeaderStats} was not enabled when the channel was created.
+   */
+  public HeaderStats getHeaderStats() {
+    return headerStats;
+  }
+  
   /**
    * Get the Channel ID
    * @return the Channel ID
@@ -205,28 +254,20 @@ public class Channel {
    * {@link net.sf.appia.core.AppiaEventException#UNWANTEDEVENT UNWANTEDEVENT}
    */
   public ChannelEventRoute getEventRoute(Event event) throws AppiaEventException {
-    if (eventsRoutes == null)
+    final ChannelEventRoute[] routes=eventsRoutes;
+    if (routes == null)
       throw new AppiaEventException(AppiaEventException.CLOSEDCHANNEL,"Channel Not Started");
     
-    ChannelEventRoute channelRoute=(ChannelEventRoute)eventsRoutes.get(event.getClass());
-    
-    if (channelRoute==null) {
-      
-      //verifies if there is a route for a superclass of
-      //the event received
-      for ( Class c = event.getClass().getSuperclass() ;
-      (c != null) && (channelRoute == null) ;
-      c = c.getSuperclass() ) {
-        channelRoute = (ChannelEventRoute)eventsRoutes.get(c);
-      }
-      
-      if ( channelRoute != null ) {
-        eventsRoutes.put(event.getClass(),channelRoute);
-      } else {
-        throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT,"Unwanted Event '"+event.getClass().getName()
-                +"' on Channel '"+this.channelID+"'.");
-      }
+    // the event type is cached in the event, and copied to its clones
+    if (event.routeQoS != qos) {
+      event.routeType=qos.getEventType(event.getClass());
+      event.routeQoS=qos;
     }
+    
+    final ChannelEventRoute channelRoute=(event.routeType < 0) ? null : routes[event.routeType];
+    if (channelRoute == null)
+      throw new AppiaEventException(AppiaEventException.UNWANTEDEVENT,"Unwanted Event '"+event.getClass().getName()
+              +"' on Channel '"+this.channelID+"'.");
     return channelRoute;
   }
   
@@ -245,23 +286,49 @@ public class Channel {
   public int getFirstSession(ChannelEventRoute channelRoute, int dir, Session source)
   throws AppiaEventException {
     
-    final Session[] route=channelRoute.getRoute();
+    final int s=getSessionIndex(source);
+    final int[][] hops=firstHops;
+    final int type=channelRoute.getEventTypeId();
+    
+    if ((hops != null) && (type >= 0) && (type < hops.length) && (eventsRoutes[type] == channelRoute))
+      return hops[type][(s << 1) | ((dir == Direction.UP) ? 0 : 1)];
     
+    return computeFirstSession(channelRoute.getRoute(),dir,s);
+  }
+  
+  /**
+   * Gets the position of a Session in the stack, or the stack size if the Session is null.
+   */
+  private int getSessionIndex(Session source) throws AppiaEventException {
+    if (source == null)
+      return sessions.length;
+    
+    // usually the same session creates several events in a row
+    final int hint=lastSourceIndex;
+    if ((hint < sessions.length) && (sessions[hint] == source))
+      return hint;
+    
+    int i;
+    for(i=sessions.length-1 ; (i >= 0) && (sessions[i] != source) ; i--);
+    
+    if (i < 0)
+      throw new AppiaEventException(AppiaEventException.UNKNOWNSESSION,"Session not memeber of Channel");
+    
+    lastSourceIndex=i;
+    return i;
+  }
+  
+  private int computeFirstSession(Session[] route, int dir, int source) {
     int i,index;
     
-    if (source == null) {
+    if (source == sessions.length) {
       if (dir == Direction.UP)
         return 0;
       else
         return route.length-1;
     }
     
-    for(i=sessions.length-1 ; (i >= 0) && (sessions[i] != source) ; i--);
-    
-    if (i < 0)
-      throw new AppiaEventException(AppiaEventException.UNKNOWNSESSION,"Session not memeber of Channel");
-    
-    i+=dir;
+    i=source+dir;
     index=-1;
     while ( (i >= 0) && (i < sessions.length) && (index < 0) ) {
       for(index=route.length-1 ; (index >= 0) && (route[index] != sessions[i]) ; index--);
@@ -376,8 +443,11 @@ public class Channel {
     
     makeEventsRoutes();
     
+    if (headerStats != null)
+      HeaderStats.register(headerStats);
+    
     try {
-      if (Thread.currentThread() == eventScheduler.getAppiaInstance().instanceGetAppiaThread())
+      if (Thread.currentThread() == eventScheduler.getSchedulerThread())
     	(new ChannelInit(this)).go();
       else
         (new ChannelInit()).asyncGo(this,Direction.UP);
@@ -415,7 +485,7 @@ public class Channel {
     	}
       if (alive) {
         try {
-          if (Thread.currentThread() == eventScheduler.getAppiaInstance().instanceGetAppiaThread())
+          if (Thread.currentThread() == eventScheduler.getSchedulerThread())
         	(new ChannelClose(this)).go();
           else
             (new ChannelClose()).asyncGo(this,Direction.DOWN);
@@ -447,6 +517,18 @@ public class Channel {
    * if the Channel is closed
    */
   protected void insertEvent(Event event) throws AppiaEventException {
+    waitAlive(event);
+    eventScheduler.insert(event);
+  }
+  
+  /**
+   * Waits until the Channel is alive, before inserting an Event.
+   *
+   * @throws AppiaEventException with type
+   * {@link net.sf.appia.core.AppiaEventException#CLOSEDCHANNEL CLOSEDCHANNEL}
+   * if the Channel is closed
+   */
+  void waitAlive(Event event) throws AppiaEventException {
     synchronized (this) {
       if (!alive && !(event instanceof ChannelInit)) {
         if (started) {
@@ -462,8 +544,6 @@ public class Channel {
         }
       }
     }
-    
-    eventScheduler.insert(event);
   }
   
   private void createUnboundedSessions() {
@@ -476,13 +556,30 @@ public class Channel {
     }
   }
   
+  /**
+   * Creates the routes, indexed by the event type assigned by the QoS, and the
+   * table of the first Session visited by each event type, for each source Session
+   * and direction.
+   */
   private void makeEventsRoutes() {
     final QoSEventRoute[] qosRoutes=qos.getEventsRoutes();
-    eventsRoutes=new Hashtable();
+    final ChannelEventRoute[] routes=new ChannelEventRoute[qosRoutes.length];
+    final int[][] hops=new int[qosRoutes.length][2*(sessions.length+1)];
     
     for (int i=0 ; i < qosRoutes.length ; i++) {
-      eventsRoutes.put(qosRoutes[i].getEventType(),qosRoutes[i].makeChannelRoute(this));
+      routes[qosRoutes[i].getEventTypeId()]=qosRoutes[i].makeChannelRoute(this);
     }
+    
+    for (int type=0 ; type < routes.length ; type++) {
+      final Session[] route=routes[type].getRoute();
+      for (int s=0 ; s <= sessions.length ; s++) {
+        hops[type][s << 1]=computeFirstSession(route,Direction.UP,s);
+        hops[type][(s << 1) | 1]=computeFirstSession(route,Direction.DOWN,s);
+      }
+    }
+    
+    firstHops=hops;
+    eventsRoutes=routes;
   }
   
   
@@ -515,7 +612,10 @@ public class Channel {
     
     // ChannelClose
     if ( event instanceof ChannelClose ) {
-      eventsRoutes.clear();
+      // no more events are accepted
+      eventsRoutes=new ChannelEventRoute[eventsRoutes.length];
+      if (headerStats != null)
+        HeaderStats.unregister(headerStats);
       return;
     }
     
@@ -527,7 +627,10 @@ public class Channel {
     
     // PeriodicTimer
     if ( event instanceof PeriodicTimer ) {
-      timerManager.handlePeriodicTimer((PeriodicTimer)event);
+      if (timerCoalescing > 0)
+        eventScheduler.getTimerCoalescer().handlePeriodicTimer((PeriodicTimer)event,timerCoalescing,timerManager);
+      else
+        timerManager.handlePeriodicTimer((PeriodicTimer)event);
       return;
     }
     
@@ -41,6 +41,7 @@ public class ChannelEventRoute {
   private Channel channel;
   private QoSEventRoute qosRoute;
   private Class eventType;
+  private int eventTypeId;
   private Session[] sessions;
 
   private boolean[] waypoints;
@@ -58,6 +59,7 @@ public class ChannelEventRoute {
     this.channel=channel;
     this.qosRoute=qosRoute;
     eventType=this.qosRoute.getEventType();
+    eventTypeId=this.qosRoute.getEventTypeId();
     sessions=this.channel.sessions;
     waypoints=this.qosRoute.waypoints;
 
@@ -95,4 +97,12 @@ public class ChannelEventRoute {
   public Class getEventType() {
     return eventType;
   }
+
+  /**
+   * Get the event type assigned by the {@link net.sf.appia.core.QoS QoS} to the route.
+   * @return the index of the route in the Channel routes
+   */
+  public int getEventTypeId() {
+    return eventTypeId;
+  }
 }
\ No newline at end of file
@@ -70,6 +70,16 @@ public class Event {
   
   private int priority = DEFAULT_PRIORITY;
   
+  /** True while the event is in the queues of an EventScheduler. */
+  boolean queued = false;
+  
+  // event type of the class in routeQoS, see Channel.getEventRoute(Event)
+  QoS routeQoS = null;
+  int routeType = -1;
+  
+  // entry of a timer requested to a TimingWheelTimerManager, copied to its clones
+  Object timerHandle = null;
+  
   /**
    * Create an uninitialized <i>Event</i>.
    * <br>
@@ -263,9 +273,9 @@ public class Event {
     // TODO: does this have any effect on performance ???
     // If so it can be commented.
     if (appiaThread == null)
-      appiaThread=eventScheduler.getAppiaInstance().instanceGetAppiaThread();
+      appiaThread=eventScheduler.getSchedulerThread();
     if (Thread.currentThread() != appiaThread)
-      throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \"go\" called from outside the Appia thread");
+      throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \"go\" called from outside the EventScheduler thread");
     
     eventScheduler.insert(this);
   }
@@ -297,7 +307,7 @@ public class Event {
     currentSession = -1;
     
     eventScheduler = channel.getEventScheduler();
-    appiaThread=eventScheduler.getAppiaInstance().instanceGetAppiaThread();
+    appiaThread=eventScheduler.getSchedulerThread();
     
     isInitiated = true;
   }
@@ -322,6 +332,7 @@ public class Event {
     e.isInitiated = false;
     e.src = null;
     e.sourceSet = false;
+    e.queued = false;
     
     return e;
   }
@@ -343,7 +354,7 @@ public class Event {
    * <br>
    * <b><u>IMPORTANT</u>:</b> This call could block, if the channel is full
    * of events and a memory manager is being used. This method cannot be
-   * called from the Appia thread it self.
+   * called from the thread that runs the channel's EventScheduler.
    *
    * @param channel the {@link net.sf.appia.core.Channel Channel} of the Event
    * @param dir the {@link net.sf.appia.core.Direction Direction} of the Event
@@ -353,15 +364,7 @@ public class Event {
   public final void asyncGo(Channel channel, int dir)
   throws AppiaEventException {
     
-    this.channel=channel;
-    this.dir=dir;
-    src=null;
-    sourceSet=true;
-    
-    init();
-    
-    if (Thread.currentThread() == appiaThread)
-      throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \"asyncGo\" called from within Appia thread");
+    initAsync(channel,dir,"asyncGo");
     
     // blocks if there are too many events in the channel from the application
     // This is used only if there is a memory manager in the channel
@@ -379,6 +382,53 @@ public class Event {
     channel.insertEvent(this);
   }
   
+  /**
+   * Inserts the Event in the given Channel, like
+   * {@link #asyncGo(Channel, int)}, but never blocks.
+   * <br>
+   * If the channel has a memory manager and it is above the threshold for the
+   * given direction, the Event is not inserted and false is returned. The
+   * caller may retry later.
+   *
+   * @param channel the {@link net.sf.appia.core.Channel Channel} of the Event
+   * @param dir the {@link net.sf.appia.core.Direction Direction} of the Event
+   * @return true if the Event was inserted, false if the channel is full
+   * @throws AppiaEventException
+   * @see net.sf.appia.core.memoryManager.MemoryManager#aboveThreshold(int)
+   */
+  public final boolean tryAsyncGo(Channel channel, int dir)
+  throws AppiaEventException {
+    
+    final MemoryManager mm = channel.getMemoryManager();
+    if (AppiaConfig.QUOTA_ON && mm != null && mm.aboveThreshold(dir))
+      return false;
+    
+    initAsync(channel,dir,"tryAsyncGo");
+    
+    channel.insertEvent(this);
+    return true;
+  }
+  
+  /**
+   * Initializes the Event to be inserted in the Channel by a thread other
+   * than the one running the channel's EventScheduler.
+   *
+   * @param method name of the calling method, for the error message
+   */
+  void initAsync(Channel channel, int dir, String method)
+  throws AppiaEventException {
+    
+    this.channel=channel;
+    this.dir=dir;
+    src=null;
+    sourceSet=true;
+    
+    init();
+    
+    if (Thread.currentThread() == appiaThread)
+      throw new AppiaEventException(AppiaEventException.WRONGTHREAD,"Method \""+method+"\" called from within the EventScheduler thread");
+  }
+  
   private Object schedulerData=null;
 
   /**
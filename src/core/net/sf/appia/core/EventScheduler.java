@@ -19,6 +19,8 @@
  */
  package net.sf.appia.core;
 
+import net.sf.appia.core.message.HeaderStats;
+
 /*
  * Change Log: 
  * 
@@ -49,6 +51,9 @@ public class EventScheduler {
   private Channel currentChannel=null;
   private Session currentSession=null;
   
+  private volatile SchedulerWorker worker=null;
+  private TimerCoalescer timerCoalescer=null;
+  
   public EventScheduler() {
     appia=Appia.appia;
     appia.instanceInsertEventScheduler(this);
@@ -60,8 +65,10 @@ public class EventScheduler {
   }
   
   public void insert(Event event) {
+    final boolean inSchedulerThread=(Thread.currentThread() == getSchedulerThread());
+    event.queued=true;
     if (
-        (Thread.currentThread() == appia.instanceGetAppiaThread()) &&
+        inSchedulerThread &&
         (currentSession != null) &&
         (event.getChannel() == currentChannel) &&
         ((event.currentSession() == currentSession) || (event.getSourceSession() == currentSession))
@@ -96,33 +103,67 @@ public class EventScheduler {
       }
     } else { // inserting on a different channel, etc
     	synchronized (this) {
-    		event.setSchedulerData(null);
-    		if(waitingTail == null || event.getPriority() <= waitingTail.getPriority()){
-    			if (waitingHead == null)
-    				waitingHead=event;
-    			else {
-    				waitingTail.setSchedulerData(event);
-    			}
-    			waitingTail=event;
-    		}
-    		else if(event.getPriority() > waitingHead.getPriority()){
-    			event.setSchedulerData(waitingHead);
-    			waitingHead = event;    			
-    		} else {
-    			// start in the second
-    			Event previous = waitingHead, current = (Event) waitingHead.getSchedulerData();
-    			//while(current != null && event.getPriority() <= current.getPriority()){
-    			while(event.getPriority() <= current.getPriority()){
-    				previous = current;
-    				current = (Event) current.getSchedulerData();
-    			}
-    			event.setSchedulerData(current);
-    			previous.setSchedulerData(event);
-    		}
+    		insertWaiting(event);
     	}
     }
     
-    appia.instanceInsertedEvent();
+    if (!inSchedulerThread)
+      appia.instanceInsertedEvent(this);
+  }
+  
+  /**
+   * Inserts a sequence of events, signalling the scheduler thread only once.
+   * <br>
+   * It is used by {@link AsyncEventBatch} and must be called by a thread
+   * other than the scheduler's.
+   *
+   * @param events the events
+   * @param from index of the first event
+   * @param to index after the last event
+   */
+  void insertAll(Event[] events, int from, int to) {
+    if (Thread.currentThread() == getSchedulerThread()) {
+      for (int i=from ; i < to ; i++)
+        insert(events[i]);
+      return;
+    }
+    synchronized (this) {
+      for (int i=from ; i < to ; i++) {
+        events[i].queued=true;
+        insertWaiting(events[i]);
+      }
+    }
+    appia.instanceInsertedEvent(this);
+  }
+  
+  /*
+   * Inserts an event in the waiting list, sorted by priority.
+   * Must be called with the lock held.
+   */
+  private void insertWaiting(Event event) {
+	  event.setSchedulerData(null);
+	  if(waitingTail == null || event.getPriority() <= waitingTail.getPriority()){
+		  if (waitingHead == null)
+			  waitingHead=event;
+		  else {
+			  waitingTail.setSchedulerData(event);
+		  }
+		  waitingTail=event;
+	  }
+	  else if(event.getPriority() > waitingHead.getPriority()){
+		  event.setSchedulerData(waitingHead);
+		  waitingHead = event;    			
+	  } else {
+		  // start in the second
+		  Event previous = waitingHead, current = (Event) waitingHead.getSchedulerData();
+		  //while(current != null && event.getPriority() <= current.getPriority()){
+		  while(event.getPriority() <= current.getPriority()){
+			  previous = current;
+			  current = (Event) current.getSchedulerData();
+		  }
+		  event.setSchedulerData(current);
+		  previous.setSchedulerData(event);
+	  }
   }
   
   public boolean consumeEvent() {
@@ -156,17 +197,24 @@ public class EventScheduler {
             consumed=false;
           }
         }
+        if (consumed && (event instanceof SchedulerTask)) {
+          ((SchedulerTask) event).run();
+          return true;
+        }
       }
     }
     
     if (consumed) {
       event.setSchedulerData(null);
+      event.queued=false;
       session=event.popSession();
       
       if (session != null) {
         currentSession=session;
         currentDirection=event.getDir();
         currentChannel=event.getChannel();
+        if (HeaderStats.isEnabled())
+          HeaderStats.setScheduler(this);
         
         mainLast=null;
         
@@ -193,10 +241,63 @@ public class EventScheduler {
   public Session getHandelingSession() {
     return currentSession;
   }
+  
+  /**
+   * Gets the channel of the event being handled by {@link #getHandelingSession()}.
+   * It must only be called from the scheduler thread.
+   */
+  public Channel getHandelingChannel() {
+    return currentChannel;
+  }
 
   public Appia getAppiaInstance() {
     return appia;
   }
+  
+  /**
+   * Gets the thread that runs this EventScheduler.
+   * <br>
+   * In single-threaded mode it is the <i>Appia</i> thread. In multi-threaded mode
+   * each EventScheduler may have its own thread.
+   * It returns null if <i>Appia</i> was not started yet.
+   *
+   * @return the thread running this EventScheduler
+   * @see net.sf.appia.core.Appia#instanceSetMultiThreaded(boolean)
+   */
+  public Thread getSchedulerThread() {
+    final SchedulerWorker w=worker;
+    return (w == null) ? null : w.getThread();
+  }
+  
+  /**
+   * Inserts a task to be executed by the scheduler thread.
+   * It may be called by any thread.
+   */
+  void insertTask(SchedulerTask task) {
+    synchronized (this) {
+      insertWaiting(task);
+    }
+    if (Thread.currentThread() != getSchedulerThread())
+      appia.instanceInsertedEvent(this);
+  }
+  
+  /**
+   * Gets the coalescer of the periodic timers of the channels of this scheduler.
+   * It must only be called from the scheduler thread.
+   */
+  TimerCoalescer getTimerCoalescer() {
+    if (timerCoalescer == null)
+      timerCoalescer=new TimerCoalescer(this);
+    return timerCoalescer;
+  }
+  
+  SchedulerWorker getWorker() {
+    return worker;
+  }
+  
+  void setWorker(SchedulerWorker worker) {
+    this.worker=worker;
+  }
 
   public void start() {}
   public void stop() {}
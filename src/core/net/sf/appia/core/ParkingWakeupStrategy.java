@@ -0,0 +1,100 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link net.sf.appia.core.WakeupStrategy WakeupStrategy} that does not use monitors.
+ * <br>
+ * Inserting threads set an atomic flag, and only unpark the scheduler thread if
+ * the flag was not already set. The idle scheduler thread may first busy-spin for a
+ * bounded number of iterations, which lowers the wakeup latency at the expense of CPU,
+ * and then parks.
+ *
+ * @see java.util.concurrent.locks.LockSupport
+ */
+public class ParkingWakeupStrategy implements WakeupStrategy {
+
+  private final int spins;
+  private final AtomicBoolean signalled=new AtomicBoolean(false);
+  private volatile Thread waiter=null;
+
+  /**
+   * Creates a strategy that parks immediately.
+   */
+  public ParkingWakeupStrategy() {
+    this(0);
+  }
+
+  /**
+   * Creates a strategy that spins before parking.
+   *
+   * @param spins number of iterations to spin before parking.
+   */
+  public ParkingWakeupStrategy(int spins) {
+    if (spins < 0)
+      throw new IllegalArgumentException("Number of spins must not be negative");
+    this.spins=spins;
+  }
+
+  public void signal() {
+    // avoids the atomic operation when the scheduler thread was already signalled
+    if (signalled.get() || !signalled.compareAndSet(false,true))
+      return;
+    final Thread t=waiter;
+    if (t != null)
+      LockSupport.unpark(t);
+  }
+
+  public void await() {
+    for (int i=0 ; i < spins ; i++) {
+      if (signalled.get()) {
+        signalled.set(false);
+        return;
+      }
+    }
+
+    waiter=Thread.currentThread();
+    while (!signalled.get())
+      LockSupport.park(this);
+    waiter=null;
+    signalled.set(false);
+  }
+
+  public void wakeup() {
+    signalled.set(true);
+    final Thread t=waiter;
+    if (t != null)
+      LockSupport.unpark(t);
+  }
+
+  public WakeupStrategy newInstance() {
+    return new ParkingWakeupStrategy(spins);
+  }
+
+  /**
+   * Gets the number of iterations spent spinning before parking.
+   */
+  public int getSpins() {
+    return spins;
+  }
+}
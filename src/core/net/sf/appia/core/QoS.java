@@ -34,8 +34,10 @@
 
 package net.sf.appia.core;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.sf.appia.core.memoryManager.*;
 import net.sf.appia.management.jmx.JMXConfiguration;
@@ -57,6 +59,10 @@ public class QoS {
   protected Class[][] eventsAccepted=null;
   private Class[] eventsProvided=null;
   
+  // event type of each routed event class, and of the classes already resolved
+  private HashMap<Class,Integer> eventTypes=null;
+  private final ConcurrentHashMap<Class,Integer> resolvedTypes=new ConcurrentHashMap<Class,Integer>();
+  
   public QoS(String id, Layer[] layers) throws AppiaInvalidQoSException {
     this.layers=layers;
     this.qosID=id;
@@ -196,6 +202,7 @@ public class QoS {
     
     //creates QoSEventRoute for all events
     eventsRoutes=new QoSEventRoute[all.size()];
+    eventTypes=new HashMap<Class,Integer>();
     
     final Iterator iter=all.iterator();
     
@@ -203,7 +210,35 @@ public class QoS {
       final Class eventType=(Class)iter.next();
       
       eventsRoutes[i]=new QoSEventRoute(this,eventType);
+      eventsRoutes[i].typeId=i;
+      eventTypes.put(eventType,Integer.valueOf(i));
     }
+    resolvedTypes.clear();
+  }
+  
+  /**
+   * Gets the event type of an {@link net.sf.appia.core.Event Event} class.
+   * <br>
+   * The event type is the index, in {@link #getEventsRoutes()}, of the route of the
+   * class or of its nearest superclass that has a route. It is assigned when the QoS
+   * is created, and the result of the superclass walk is cached.
+   *
+   * @param eventClass the class of the Event
+   * @return the event type, or -1 if the QoS has no route for the class
+   */
+  int getEventType(Class eventClass) {
+    final Integer cached=resolvedTypes.get(eventClass);
+    if (cached != null)
+      return cached.intValue();
+    
+    Integer type=null;
+    for (Class c=eventClass ; (c != null) && (type == null) ; c=c.getSuperclass())
+      type=eventTypes.get(c);
+    if (type == null)
+      type=Integer.valueOf(-1);
+    
+    resolvedTypes.put(eventClass,type);
+    return type.intValue();
   }
   
   public QoSEventRoute[] getEventsRoutes() {
@@ -41,6 +41,9 @@ public class QoSEventRoute {
   //private Layer[] layers;
 
   protected boolean[] waypoints;
+  
+  // index in the routes of the QoS
+  int typeId=-1;
 
   public QoSEventRoute(QoS qos, Class eventType) {
     this.eventType=eventType;
@@ -66,6 +69,14 @@ public class QoSEventRoute {
     return eventType;
   }
 
+  /**
+   * Gets the event type assigned by the {@link net.sf.appia.core.QoS QoS} to this route.
+   * @return the index of the route in {@link net.sf.appia.core.QoS#getEventsRoutes()}
+   */
+  public int getEventTypeId() {
+    return typeId;
+  }
+
   public ChannelEventRoute makeChannelRoute(Channel channel) {
     return new ChannelEventRoute(channel,this);
   }
@@ -0,0 +1,37 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+/**
+ * Work to be executed by the thread of an {@link net.sf.appia.core.EventScheduler EventScheduler}.
+ * <br>
+ * Tasks are inserted in the scheduler like external events, but they do not go
+ * through any channel: the scheduler simply calls {@link #run()} when it removes
+ * them from its queue.
+ *
+ * @see net.sf.appia.core.EventScheduler#insertTask(SchedulerTask)
+ */
+abstract class SchedulerTask extends Event {
+
+  /**
+   * Executes the task in the scheduler thread.
+   */
+  abstract void run();
+}
@@ -0,0 +1,118 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+/**
+ * Runs a group of {@link net.sf.appia.core.EventScheduler EventSchedulers}
+ * on a single thread.
+ * <br>
+ * The worker calls {@link net.sf.appia.core.EventScheduler#consumeEvent consumeEvent()}
+ * on each of its schedulers in round-robin, and waits idle, using its
+ * {@link net.sf.appia.core.WakeupStrategy WakeupStrategy}, when a complete
+ * round did not consume any event.
+ * <br>
+ * In the default single-threaded mode <i>Appia</i> uses only one worker, running
+ * on the thread that called {@link net.sf.appia.core.Appia#instanceRun instanceRun()}.
+ *
+ * @see net.sf.appia.core.Appia
+ */
+final class SchedulerWorker implements Runnable {
+
+  private final Appia appia;
+
+  // copy-on-write, so that the worker thread can iterate without locking
+  private volatile EventScheduler[] schedulers=new EventScheduler[0];
+  private volatile Thread thread=null;
+
+  private volatile WakeupStrategy wakeupStrategy;
+
+  SchedulerWorker(Appia appia, WakeupStrategy wakeupStrategy) {
+    this.appia=appia;
+    this.wakeupStrategy=wakeupStrategy;
+  }
+
+  synchronized void addScheduler(EventScheduler eventScheduler) {
+    final EventScheduler[] aux=new EventScheduler[schedulers.length+1];
+    System.arraycopy(schedulers,0,aux,0,schedulers.length);
+    aux[schedulers.length]=eventScheduler;
+    eventScheduler.setWorker(this);
+    schedulers=aux;
+  }
+
+  synchronized boolean removeScheduler(EventScheduler eventScheduler) {
+    int i;
+    for (i=0 ; (i < schedulers.length) && (schedulers[i] != eventScheduler) ; i++);
+    if (i == schedulers.length)
+      return false;
+
+    final EventScheduler[] aux=new EventScheduler[schedulers.length-1];
+    System.arraycopy(schedulers,0,aux,0,i);
+    System.arraycopy(schedulers,i+1,aux,i,aux.length-i);
+    schedulers=aux;
+    return true;
+  }
+
+  EventScheduler[] getSchedulers() {
+    return schedulers;
+  }
+
+  Thread getThread() {
+    return thread;
+  }
+
+  void setThread(Thread thread) {
+    this.thread=thread;
+  }
+
+  void setWakeupStrategy(WakeupStrategy wakeupStrategy) {
+    this.wakeupStrategy=wakeupStrategy;
+  }
+
+  /**
+   * Signals the worker that an event was inserted in one of its schedulers.
+   * <br>
+   * It is only needed when the event is inserted by a thread other than the worker's.
+   */
+  void insertedEvent() {
+    wakeupStrategy.signal();
+  }
+
+  /**
+   * Wakes the worker so that it notices that <i>Appia</i> was stopped.
+   */
+  void wakeup() {
+    wakeupStrategy.wakeup();
+  }
+
+  public void run() {
+    while (appia.isRunning()) {
+      final EventScheduler[] list=schedulers;
+      boolean consumed=false;
+
+      for (int i=0 ; i < list.length ; i++) {
+        if (list[i].consumeEvent())
+          consumed=true;
+      }
+
+      if (!consumed)
+        wakeupStrategy.await();
+    }
+  }
+}
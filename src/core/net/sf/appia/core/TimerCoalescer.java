@@ -0,0 +1,228 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sf.appia.core.events.channel.PeriodicTimer;
+import net.sf.appia.core.events.channel.Timer;
+
+/**
+ * Coalesces the {@link net.sf.appia.core.events.channel.PeriodicTimer PeriodicTimers}
+ * of the channels that share an {@link net.sf.appia.core.EventScheduler EventScheduler}.
+ * <br>
+ * Periodic timers with the same period, after rounding it to the granularity of the channel,
+ * belong to the same group. The {@link net.sf.appia.core.TimerManager TimerManager} only
+ * keeps one timer per group, and each expiration inserts a single task in the scheduler,
+ * which then notifies all the timers of the group.
+ * <br>
+ * The notification reuses the timer event of each subscriber, unless it is still queued
+ * from the previous period, so sessions must not keep references to the notifications
+ * of coalesced timers.
+ * <br>
+ * Except for {@link #expired}, all methods are called from the scheduler thread.
+ *
+ * @see net.sf.appia.core.Channel#setTimerCoalescing(long)
+ */
+final class TimerCoalescer {
+
+  /**
+   * A periodic timer of a session.
+   */
+  private static final class Subscription {
+    final String id;
+    final PeriodicTimer event;
+    final Channel channel;
+    final int dir;
+    final long since;
+    Group group;
+    Subscription sameId;
+
+    Subscription(PeriodicTimer event, Channel channel, int dir, long since) {
+      this.id=event.timerID;
+      this.event=event;
+      this.channel=channel;
+      this.dir=dir;
+      this.since=since;
+    }
+  }
+
+  /**
+   * Timers with the same period. The group is also the task that notifies them.
+   */
+  final class Group extends SchedulerTask {
+    final String id;
+    final long period;
+    private final ArrayList<Subscription> subscriptions=new ArrayList<Subscription>();
+    private final AtomicBoolean pending=new AtomicBoolean(false);
+
+    Group(long period) {
+      this.period=period;
+      this.id="TimerCoalescer@"+System.identityHashCode(TimerCoalescer.this)+":"+period;
+      setPriority(Timer.DEFAULT_TIMER_PRIORITY);
+    }
+
+    /**
+     * Called by the timer thread when the period expires.
+     * If the previous task is still queued, this expiration is merged with it.
+     */
+    void expired() {
+      if (pending.compareAndSet(false,true))
+        eventScheduler.insertTask(this);
+    }
+
+    void run() {
+      pending.set(false);
+      final long now=timerManager.currentTimeMillis();
+      for (int i=subscriptions.size()-1 ; i >= 0 ; i--) {
+        final Subscription s=subscriptions.get(i);
+        // the group phase is not the subscriber's, so do not notify it too early
+        if (now-s.since >= period/2)
+          notifySubscriber(s);
+      }
+    }
+  }
+
+  private final EventScheduler eventScheduler;
+  private final HashMap<Long,Group> groups=new HashMap<Long,Group>();
+  private final HashMap<String,Subscription> subscriptions=new HashMap<String,Subscription>();
+  private TimerManager timerManager=null;
+
+  TimerCoalescer(EventScheduler eventScheduler) {
+    this.eventScheduler=eventScheduler;
+  }
+
+  /**
+   * Receives a periodic timer request from a channel.
+   *
+   * @param timer the request
+   * @param granularity the coalescing granularity of the channel, in milliseconds
+   * @param tm the timer manager of the channel
+   */
+  void handlePeriodicTimer(PeriodicTimer timer, long granularity, TimerManager tm) {
+    final int q=timer.getQualifierMode();
+    if (q == EventQualifier.ON)
+      subscribe(timer,granularity,tm);
+    else if (q == EventQualifier.OFF) {
+      // the timer may have been requested before coalescing was enabled
+      if (!unsubscribe(timer.timerID))
+        tm.handlePeriodicTimer(timer);
+    }
+  }
+
+  private void subscribe(PeriodicTimer timer, long granularity, TimerManager tm) {
+    if (timerManager == null)
+      timerManager=tm;
+
+    final PeriodicTimer event;
+    try {
+      event=(PeriodicTimer) timer.cloneEvent();
+    } catch (CloneNotSupportedException e) {
+      throw new AppiaError("TimerCoalescer: CloneNotSupportedException ");
+    }
+    final Subscription s=new Subscription(event,timer.getChannel(),
+        Direction.invert(timer.getDir()),timerManager.currentTimeMillis());
+
+    long period=((timer.getPeriod()+granularity/2)/granularity)*granularity;
+    if (period < granularity)
+      period=granularity;
+    final Long key=Long.valueOf(period);
+    Group g=groups.get(key);
+    if (g == null) {
+      g=new Group(period);
+      groups.put(key,g);
+      timerManager.scheduleGroup(g);
+    }
+    s.group=g;
+    g.subscriptions.add(s);
+
+    s.sameId=subscriptions.get(s.id);
+    subscriptions.put(s.id,s);
+  }
+
+  /**
+   * Cancels the oldest timer with the given ID.
+   *
+   * @return false if there is no coalesced timer with that ID
+   */
+  private boolean unsubscribe(String timerID) {
+    Subscription s=subscriptions.get(timerID);
+    if (s == null)
+      return false;
+
+    // the oldest is the last of the chain
+    Subscription prev=null;
+    while (s.sameId != null) {
+      prev=s;
+      s=s.sameId;
+    }
+    if (prev == null)
+      subscriptions.remove(timerID);
+    else
+      prev.sameId=null;
+    remove(s);
+    return true;
+  }
+
+  private void remove(Subscription s) {
+    final Group g=s.group;
+    g.subscriptions.remove(s);
+    if (g.subscriptions.isEmpty()) {
+      groups.remove(Long.valueOf(g.period));
+      timerManager.cancelGroup(g);
+    }
+  }
+
+  private void removeExpired(Subscription s) {
+    Subscription prev=null;
+    for (Subscription aux=subscriptions.get(s.id) ; (aux != null) && (aux != s) ; aux=aux.sameId)
+      prev=aux;
+    if (prev == null) {
+      if (s.sameId == null)
+        subscriptions.remove(s.id);
+      else
+        subscriptions.put(s.id,s.sameId);
+    } else
+      prev.sameId=s.sameId;
+    remove(s);
+  }
+
+  private void notifySubscriber(Subscription s) {
+    PeriodicTimer event=s.event;
+    try {
+      if (((Event) event).queued)
+        event=(PeriodicTimer) event.cloneEvent();
+
+      event.setQualifierMode(EventQualifier.NOTIFY);
+      event.setChannel(s.channel);
+      event.setDir(s.dir);
+      event.setSourceSession(null);
+      event.init();
+      eventScheduler.insert(event);
+    } catch (AppiaEventException e) {
+      // the channel was closed
+      removeExpired(s);
+    } catch (CloneNotSupportedException e) {
+      throw new AppiaError("TimerCoalescer: CloneNotSupportedException ");
+    }
+  }
+}
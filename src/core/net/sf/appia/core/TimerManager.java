@@ -53,6 +53,7 @@ public class TimerManager implements Runnable, TimeProvider {
     public long time;
     public long period;
     public ChannelEvent event;
+    public TimerCoalescer.Group group;
     public MyTimer next;
     
     public MyTimer(String timerID, long time, long period, ChannelEvent event) {
@@ -61,6 +62,11 @@ public class TimerManager implements Runnable, TimeProvider {
       this.period=period;
       this.event=event;
     }
+    
+    public MyTimer(TimerCoalescer.Group group, long time) {
+      this(group.id,time,group.period,null);
+      this.group=group;
+    }
   }
   
   private boolean alive=false;
@@ -239,11 +245,40 @@ public class TimerManager implements Runnable, TimeProvider {
     }
   }
   
+  /**
+   * Receives a group of coalesced periodic timers to manage.
+   * <br>
+   * When the period expires the group is notified, instead of sending an event.
+   *
+   * @param group the group
+   * @see net.sf.appia.core.TimerCoalescer
+   */
+  void scheduleGroup(TimerCoalescer.Group group) {
+    clock.sync();
+    insert(new MyTimer(group,currentTimeMillis()+group.period));
+    thread.interrupt();
+  }
+  
+  /**
+   * Stops managing a group of coalesced periodic timers.
+   *
+   * @param group the group
+   */
+  void cancelGroup(TimerCoalescer.Group group) {
+    remove(group.id);
+    thread.interrupt();
+  }
+  
   /** Start execution of the manager thread.
    * @see java.lang.Thread#start
    */  
   public void start() {
-    setAlive(true);
+    synchronized (this) {
+      // Appia starts its timer manager, even if it was already started when set
+      if (alive)
+        return;
+      alive=true;
+    }
     thread.start();
   }
   
@@ -298,6 +333,13 @@ public class TimerManager implements Runnable, TimeProvider {
         
         ChannelEvent event;
         
+        if (timer.group != null) {
+          timer.group.expired();
+          timer.time=now+timer.period;
+          insert(timer);
+          continue;
+        }
+        
         try {
           if (timer.period > 0) {
             event=(PeriodicTimer)timer.event.cloneEvent();
@@ -0,0 +1,531 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.appia.core.events.channel.ChannelEvent;
+import net.sf.appia.core.events.channel.PeriodicTimer;
+import net.sf.appia.core.events.channel.Timer;
+
+/**
+ * <I>Appia</I> timers manager based on a hierarchical timing wheel.
+ * <br>
+ * Timers are kept in a wheel of {@link #LEVELS} levels with {@link #SLOTS} slots each.
+ * A slot of level <i>l</i> covers 64<sup>l</sup> ticks. Inserting and cancelling a timer
+ * are O(1): entries are kept in doubly linked lists in the slots, and the timer ID is
+ * mapped with a hash table to its entries. When the lower level wraps around, the
+ * entries of the next slot of the upper level are cascaded down.
+ * <br>
+ * The entries of timers with the same ID are kept in a binary heap ordered by the time
+ * they expire, so that inserting and cancelling one of them is O(log n) in their number.
+ * <br>
+ * A cancel request removes the timer with the same ID that expires first, as in
+ * {@link net.sf.appia.core.TimerManager TimerManager}. If the request is the requested
+ * timer itself with qualifier OFF, or a clone of it, and that timer is still pending,
+ * it is removed instead, without a search.
+ * <br>
+ * Unlike {@link net.sf.appia.core.TimerManager TimerManager}, requests do not interrupt
+ * the timer thread. It is only notified when the new timer expires before the time
+ * it was going to wake up.
+ * <br>
+ * It is installed with {@link net.sf.appia.core.Appia#setTimerManager(TimerManager)}
+ * before any channel is created.
+ *
+ * @see net.sf.appia.core.events.channel.Timer
+ * @see net.sf.appia.core.events.channel.PeriodicTimer
+ */
+public class TimingWheelTimerManager extends TimerManager {
+
+  /** Number of bits of the slot index in each level. */
+  private static final int SLOT_BITS=6;
+  /** Number of slots of each level. */
+  public static final int SLOTS=1 << SLOT_BITS;
+  /** Number of levels of the wheel. */
+  public static final int LEVELS=5;
+
+  private static final int SLOT_MASK=SLOTS-1;
+  private static final long MAX_TICKS=(1L << (SLOT_BITS*LEVELS))-1;
+
+  /**
+   * A pending timer.
+   */
+  private static final class Entry {
+    final String id;
+    final long period;
+    final ChannelEvent event;
+    final TimerCoalescer.Group group;
+    long deadline;
+
+    // slot list
+    Entry prev, next;
+    int level=-1, slot;
+    // position in the heap of the timers with the same ID, and order of insertion
+    int sameIdIndex;
+    long seq;
+    // not expired nor cancelled
+    boolean pending=false;
+
+    Entry(String id, long deadline, long period, ChannelEvent event, TimerCoalescer.Group group) {
+      this.id=id;
+      this.deadline=deadline;
+      this.period=period;
+      this.event=event;
+      this.group=group;
+    }
+  }
+
+  private final long tickNanos;
+  private final long startNanos=System.nanoTime();
+
+  /**
+   * The timers with an ID, in a heap where the first to expire is at the root.
+   * Timers that expire at the same tick are ordered by insertion.
+   */
+  private static final class SameId {
+    Entry[] heap=new Entry[1];
+    int size=0;
+
+    void add(Entry e) {
+      if (size == heap.length) {
+        final Entry[] a=new Entry[size*2];
+        System.arraycopy(heap,0,a,0,size);
+        heap=a;
+      }
+      up(e,size++);
+    }
+
+    void remove(Entry e) {
+      final int i=e.sameIdIndex;
+      final Entry last=heap[--size];
+      heap[size]=null;
+      if (last != e) {
+        down(last,i);
+        if (heap[i] == last)
+          up(last,i);
+      }
+    }
+
+    private static boolean before(Entry a, Entry b) {
+      return (a.deadline < b.deadline) || ((a.deadline == b.deadline) && (a.seq < b.seq));
+    }
+
+    private void up(Entry e, int i) {
+      while (i > 0) {
+        final int parent=(i-1) >>> 1;
+        if (!before(e,heap[parent]))
+          break;
+        set(heap[parent],i);
+        i=parent;
+      }
+      set(e,i);
+    }
+
+    private void down(Entry e, int i) {
+      int child;
+      while ((child=2*i+1) < size) {
+        if ((child+1 < size) && before(heap[child+1],heap[child]))
+          child++;
+        if (!before(heap[child],e))
+          break;
+        set(heap[child],i);
+        i=child;
+      }
+      set(e,i);
+    }
+
+    private void set(Entry e, int i) {
+      heap[i]=e;
+      e.sameIdIndex=i;
+    }
+  }
+
+  private final Entry[][] wheel=new Entry[LEVELS][SLOTS];
+  private final HashMap<String,SameId> timers=new HashMap<String,SameId>();
+  private int size=0;
+  private long seq=0;
+
+  // the tick being processed, all previous ticks have expired
+  private long currentTick=0;
+  // the tick at which the thread will wake up, if sleeping
+  private long wakeTick=Long.MAX_VALUE;
+  private boolean alive=false;
+
+  /**
+   * Creates a new timing wheel with a resolution of 1 millisecond.
+   */
+  public TimingWheelTimerManager(ThreadFactory thf) {
+    this(thf,1);
+  }
+
+  /**
+   * Creates a new timing wheel.
+   *
+   * @param thf the factory of the timer thread.
+   * @param tickMillis the resolution of the wheel, in milliseconds.
+   */
+  public TimingWheelTimerManager(ThreadFactory thf, long tickMillis) {
+    super(thf);
+    if (tickMillis <= 0)
+      throw new IllegalArgumentException("Tick must be positive");
+    tickNanos=tickMillis*1000000L;
+  }
+
+  private long nowTick() {
+    return (System.nanoTime()-startNanos)/tickNanos;
+  }
+
+  private long toTicks(long millis) {
+    return (millis*1000000L+tickNanos-1)/tickNanos;
+  }
+
+  /**
+   * Places an entry in its slot. Must be called with the lock held.
+   */
+  private void schedule(Entry e) {
+    long delta=e.deadline-currentTick;
+    if (delta < 0) {
+      delta=0;
+      e.deadline=currentTick;
+    }
+    if (delta > MAX_TICKS)
+      delta=MAX_TICKS;
+
+    int level=0;
+    while (delta >= (1L << (SLOT_BITS*(level+1))))
+      level++;
+    // entries too far away are cascaded again when their slot is reached
+    final long tick=(e.deadline-currentTick > MAX_TICKS) ? currentTick+MAX_TICKS : e.deadline;
+    final int slot=(int) ((tick >>> (SLOT_BITS*level)) & SLOT_MASK);
+
+    e.level=level;
+    e.slot=slot;
+    e.prev=null;
+    e.next=wheel[level][slot];
+    if (e.next != null)
+      e.next.prev=e;
+    wheel[level][slot]=e;
+  }
+
+  private void unschedule(Entry e) {
+    if (e.level < 0)
+      return;
+    if (e.prev == null)
+      wheel[e.level][e.slot]=e.next;
+    else
+      e.prev.next=e.next;
+    if (e.next != null)
+      e.next.prev=e.prev;
+    e.prev=e.next=null;
+    e.level=-1;
+  }
+
+  /**
+   * Adds an entry to the timers of its ID. Must be called with the lock held.
+   */
+  private void link(Entry e) {
+    SameId list=timers.get(e.id);
+    if (list == null) {
+      list=new SameId();
+      timers.put(e.id,list);
+    }
+    e.seq=seq++;
+    list.add(e);
+  }
+
+  private void unlink(Entry e) {
+    final SameId list=timers.get(e.id);
+    list.remove(e);
+    if (list.size == 0)
+      timers.remove(e.id);
+  }
+
+  private synchronized void insert(Entry e) {
+    link(e);
+    e.pending=true;
+    size++;
+
+    schedule(e);
+    if (e.deadline < wakeTick)
+      notify();
+  }
+
+  /**
+   * Cancels the timer with the given ID that expires first.
+   */
+  private synchronized void remove(String timerID) {
+    final SameId list=timers.get(timerID);
+    if (list != null)
+      removeEntry(list.heap[0]);
+  }
+
+  /**
+   * Cancels the timer of the given handle if it is still pending, or else,
+   * as a request without a handle, the timer with its ID that expires first.
+   */
+  private synchronized void remove(Entry e) {
+    if (e.pending)
+      removeEntry(e);
+    else
+      remove(e.id);
+  }
+
+  private void removeEntry(Entry e) {
+    unlink(e);
+    e.pending=false;
+    unschedule(e);
+    size--;
+  }
+
+  /**
+   * Moves the entries of a slot to the lower levels.
+   */
+  private void cascade(int level) {
+    final int slot=(int) ((currentTick >>> (SLOT_BITS*level)) & SLOT_MASK);
+    Entry e=wheel[level][slot];
+    wheel[level][slot]=null;
+    while (e != null) {
+      final Entry next=e.next;
+      e.level=-1;
+      schedule(e);
+      e=next;
+    }
+  }
+
+  /**
+   * Advances the wheel up to the given tick and returns the expired timers,
+   * linked through the <i>next</i> field.
+   */
+  private synchronized Entry advance(long now) {
+    Entry expired=null;
+
+    while (currentTick <= now) {
+      if (size == 0) {
+        currentTick=now+1;
+        break;
+      }
+
+      final int slot=(int) (currentTick & SLOT_MASK);
+      if (slot == 0) {
+        for (int level=1 ; level < LEVELS ; level++) {
+          cascade(level);
+          if (((currentTick >>> (SLOT_BITS*level)) & SLOT_MASK) != 0)
+            break;
+        }
+      }
+
+      Entry e=wheel[0][slot];
+      wheel[0][slot]=null;
+      while (e != null) {
+        final Entry next=e.next;
+        e.level=-1;
+        if (e.deadline > currentTick) {
+          // cascaded too early, because it was too far away
+          schedule(e);
+        } else {
+          if (e.period > 0) {
+            e.deadline=now+toTicks(e.period);
+            // keeps the heap of the ID in order
+            unlink(e);
+            link(e);
+            schedule(e);
+            // a copy is fired, the entry stays in the wheel
+            final Entry copy=new Entry(e.id,0,e.period,e.event,e.group);
+            copy.next=expired;
+            expired=copy;
+          } else {
+            removeEntry(e);
+            e.next=expired;
+            expired=e;
+          }
+        }
+        e=next;
+      }
+
+      currentTick++;
+    }
+    return expired;
+  }
+
+  /**
+   * Waits until the next occupied slot of the lower level, or the next cascade.
+   */
+  private synchronized void goToSleep() {
+    if (!alive)
+      return;
+
+    if (size == 0) {
+      wakeTick=Long.MAX_VALUE;
+      try {
+        wait();
+      } catch (InterruptedException e) {}
+      wakeTick=Long.MAX_VALUE;
+      return;
+    }
+
+    long target=currentTick;
+    final long limit=(currentTick | SLOT_MASK)+1;
+    while ((target < limit) && (wheel[0][(int) (target & SLOT_MASK)] == null))
+      target++;
+
+    wakeTick=target;
+    final long sleep=(target*tickNanos)-(System.nanoTime()-startNanos);
+    if (sleep > 0) {
+      try {
+        wait(sleep/1000000L,(int) (sleep%1000000L));
+      } catch (InterruptedException e) {}
+    }
+    wakeTick=Long.MAX_VALUE;
+  }
+
+  private synchronized boolean isRunning() {
+    return alive;
+  }
+
+  /**
+   * Receives a timer to manage.
+   * @param timer The timer to manage.
+   * @see net.sf.appia.core.events.channel.Timer
+   */
+  public void handleTimerRequest(Timer timer) {
+    final int q=timer.getQualifierMode();
+
+    if (q == EventQualifier.ON) {
+      final long deadline;
+      synchronized (this) {
+        deadline=Math.max(nowTick(),currentTick)+toTicks(timer.getTimeout());
+      }
+      final Entry e=new Entry(timer.timerID,deadline,0,timer,null);
+      ((Event) timer).timerHandle=e;
+      insert(e);
+    } else if (q == EventQualifier.OFF) {
+      final Object handle=((Event) timer).timerHandle;
+      if ((handle instanceof Entry) && ((Entry) handle).id.equals(timer.timerID))
+        remove((Entry) handle);
+      else
+        remove(timer.timerID);
+    }
+  }
+
+  /**
+   * Receives a periodic timer to manage.
+   * @param timer The periodic timer to manage.
+   * @see net.sf.appia.core.events.channel.PeriodicTimer
+   */
+  public void handlePeriodicTimer(PeriodicTimer timer) {
+    final int q=timer.getQualifierMode();
+
+    if (q == EventQualifier.ON) {
+      final long period=timer.getPeriod();
+      final long deadline;
+      synchronized (this) {
+        deadline=Math.max(nowTick(),currentTick)+toTicks(period);
+      }
+      final Entry e=new Entry(timer.timerID,deadline,period,timer,null);
+      ((Event) timer).timerHandle=e;
+      insert(e);
+    } else if (q == EventQualifier.OFF) {
+      final Object handle=((Event) timer).timerHandle;
+      if ((handle instanceof Entry) && ((Entry) handle).id.equals(timer.timerID))
+        remove((Entry) handle);
+      else
+        remove(timer.timerID);
+    }
+  }
+
+  void scheduleGroup(TimerCoalescer.Group group) {
+    final long deadline;
+    synchronized (this) {
+      deadline=Math.max(nowTick(),currentTick)+toTicks(group.period);
+    }
+    insert(new Entry(group.id,deadline,group.period,null,group));
+  }
+
+  void cancelGroup(TimerCoalescer.Group group) {
+    remove(group.id);
+  }
+
+  /**
+   * Gets the number of pending timers.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /** Start execution of the manager thread.
+   * @see java.lang.Thread#start
+   */
+  public void start() {
+    synchronized (this) {
+      if (alive)
+        return;
+      alive=true;
+    }
+    super.start();
+  }
+
+  /** Stops execution of the manager thread.
+   */
+  public synchronized void stop() {
+    alive=false;
+    notify();
+  }
+
+  /** The code executed by the manager thread.
+   * @see java.lang.Thread#run
+   */
+  public void run() {
+    while (isRunning()) {
+      Entry e=advance(nowTick());
+
+      while (e != null) {
+        final Entry next=e.next;
+        e.next=null;
+        fire(e);
+        e=next;
+      }
+
+      goToSleep();
+    }
+  }
+
+  private void fire(Entry timer) {
+    if (timer.group != null) {
+      timer.group.expired();
+      return;
+    }
+
+    ChannelEvent event;
+    try {
+      if (timer.period > 0)
+        event=(PeriodicTimer) timer.event.cloneEvent();
+      else
+        event=timer.event;
+
+      event.setQualifierMode(EventQualifier.NOTIFY);
+      event.asyncGo(event.getChannel(),Direction.invert(event.getDir()));
+    } catch (AppiaEventException e) {
+      //e.printStackTrace();
+    } catch (CloneNotSupportedException e) {
+      throw new AppiaError("TimingWheelTimerManager: CloneNotSupportedException ");
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core;
+
+/**
+ * Strategy used by the threads that run the
+ * {@link net.sf.appia.core.EventScheduler EventSchedulers} to wait idle
+ * when there are no events, and to be woken up when new events are inserted.
+ * <br>
+ * Each scheduler thread has its own instance, obtained from the strategy given to
+ * {@link net.sf.appia.core.Appia#instanceSetWakeupStrategy(WakeupStrategy)}
+ * through {@link #newInstance()}.
+ *
+ * @see net.sf.appia.core.MonitorWakeupStrategy
+ * @see net.sf.appia.core.ParkingWakeupStrategy
+ */
+public interface WakeupStrategy {
+
+  /**
+   * Signals that an event was inserted by a thread other than the scheduler thread.
+   * <br>
+   * It is called for every event inserted from other threads, so it should be cheap
+   * when the scheduler thread is not idle.
+   */
+  public void signal();
+
+  /**
+   * Called by the scheduler thread when it found no events.
+   * <br>
+   * Returns after a {@link #signal()} or a {@link #wakeup()} that happened after the
+   * previous return of this method. It may also return spuriously.
+   */
+  public void await();
+
+  /**
+   * Unconditionally wakes the scheduler thread, for instance when <i>Appia</i> is stopped.
+   */
+  public void wakeup();
+
+  /**
+   * Creates a new strategy, with the same configuration, for another scheduler thread.
+   *
+   * @return a new strategy instance
+   */
+  public WakeupStrategy newInstance();
+}
@@ -42,7 +42,7 @@ public class Timer extends ChannelEvent {
      * Defines the default timer priority. The default for simple events is 127, so these kind
      * of events have more priority and are dispatched before others.
      */
-    protected static final int DEFAULT_TIMER_PRIORITY=200;
+    public static final int DEFAULT_TIMER_PRIORITY=200;
     
   /**
    * The timer unique Identification.
@@ -21,12 +21,19 @@ package net.sf.appia.core.memoryManager;
 
 import java.io.*;
 import java.security.InvalidParameterException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.appia.core.*;
 
 /**
  * This class is used by the events and a {@link net.sf.appia.core.Channel} to stabilish a
  * maximum number of bytes used by {@link net.sf.appia.core.message.Message messages} that a channel can hold.
+ * <br>
+ * The accounting done by {@link #malloc(int)} and {@link #free(int)} is lock-free.
+ * For each direction there is a high watermark (the threshold) and a low watermark.
+ * Once the used memory reaches the high watermark, the direction stays above the
+ * threshold until the used memory drops to the low watermark. Only the threads
+ * blocked in {@link #synchronizedAboveThreshold(int)} use a lock.
  *
  * @see Channel
  * @see net.sf.appia.core.message.Message
@@ -41,21 +48,33 @@ public class MemoryManager {
 	/*
 	 * contains the maximum size in bytes that this memory manager can hold
 	 */
-	private int maxSize;
+	private volatile int maxSize;
 	/*
 	 * contains the size of allocated memory
 	 */
-	private int currentSize;
+	private final AtomicInteger currentSize = new AtomicInteger(0);
 	/*
-	 * contains a tolerance margin
+	 * contains a tolerance margin (high watermark) and the level where
+	 * blocked events are released (low watermark)
 	 */
-	private int upthreshold;
-	private int downthreshold;
+	private volatile int upthreshold;
+	private volatile int downthreshold;
+	private volatile int uplow;
+	private volatile int downlow;
+	/*
+	 * true while a direction is between the high and the low watermarks,
+	 * after reaching the high watermark
+	 */
+	private volatile boolean upBlocked = false;
+	private volatile boolean downBlocked = false;
 	
 	private Object downMutex = new Object(), upMutex = new Object();
+	private final AtomicInteger upWaiters = new AtomicInteger(0);
+	private final AtomicInteger downWaiters = new AtomicInteger(0);
 	
 	/**
 	 * Constructor of the class.
+	 * The low watermarks are 90% of the thresholds.
 	 *
 	 * @param id Identifier of the memory manager.
 	 * @param size Max number of bytes. It must be a positive integer.
@@ -63,14 +82,27 @@ public class MemoryManager {
 	 * @param downth Tolerance margin of the Memory Manager (in bytes) for events going DOWN.
 	 */
 	public MemoryManager(String id, int size, int upth, int downth) {
+		this(id, size, upth, (int) (upth*NOTIFY_THRESHOLD), downth, (int) (downth*NOTIFY_THRESHOLD));
+	} // end of constructor
+	
+	/**
+	 * Constructor of the class, with explicit low watermarks.
+	 *
+	 * @param id Identifier of the memory manager.
+	 * @param size Max number of bytes. It must be a positive integer.
+	 * @param upth High watermark (in bytes) for events going UP.
+	 * @param uplow Low watermark (in bytes) for events going UP.
+	 * @param downth High watermark (in bytes) for events going DOWN.
+	 * @param downlow Low watermark (in bytes) for events going DOWN.
+	 */
+	public MemoryManager(String id, int size, int upth, int uplow, int downth, int downlow) {
 		mmID = id;
 		if (size <= 0) 
 			maxSize = 0;
 		else
 			maxSize = size;
-		currentSize = 0;
-		setThreshold(upth, Direction.UP);
-		setThreshold(downth,Direction.DOWN);
+		setWatermarks(upth, uplow, Direction.UP);
+		setWatermarks(downth, downlow, Direction.DOWN);
 		if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
 			debugOutput.println("MemoryManager: new memory manager created! (size = "+maxSize+") "+
 					"ID = "+mmID);
@@ -79,14 +111,17 @@ public class MemoryManager {
 	/**
 	 * Verifies if the channel is above the water mark specified 
 	 * by the user in the constructor.
+	 * After reaching the threshold, it remains above until the amount
+	 * of memory drops to the low watermark.
 	 * @return true if the amount of memory reached the threshold.
 	 */
 	public boolean aboveThreshold(int direction) throws InvalidParameterException {
+		final int used = currentSize.get();
 		if(direction == Direction.UP){
-			return currentSize >= upthreshold;
+			return upBlocked || used >= upthreshold;
 		}
 		else if(direction == Direction.DOWN){
-			return currentSize >= downthreshold;
+			return downBlocked || used >= downthreshold;
 		}
 		else
 			throw new InvalidParameterException("Direction must be UP or DOWN in aboveThreshold");
@@ -105,13 +140,24 @@ public class MemoryManager {
 		boolean above = aboveThreshold(direction);
 		if(above){
 			Object sync = null;
-			if(direction == Direction.UP)
+			AtomicInteger waiters = null;
+			if(direction == Direction.UP){
 				sync = upMutex;
-			else
+				waiters = upWaiters;
+			}
+			else{
 				sync = downMutex;
+				waiters = downWaiters;
+			}
 			synchronized (sync) {
-				while(above = aboveThreshold(direction)){
-					sync.wait();
+				// announce the waiter before checking again, free() reads it after releasing
+				waiters.incrementAndGet();
+				try {
+					while(above = aboveThreshold(direction)){
+						sync.wait();
+					}
+				} finally {
+					waiters.decrementAndGet();
 				}
 			}
 		}
@@ -133,27 +179,56 @@ public class MemoryManager {
 			throw new InvalidParameterException("Direction must be UP or DOWN in getThreshold.");
 	}
 	
+	/**
+	 * Gets the value of the specified low watermark.
+	 * @return the value of the specified low watermark.
+	 */
+	public int getLowThreshold(int direction) throws InvalidParameterException {
+		if(direction == Direction.UP){
+			return uplow;
+		}
+		else if(direction == Direction.DOWN){
+			return downlow;
+		}
+		else
+			throw new InvalidParameterException("Direction must be UP or DOWN in getLowThreshold.");
+	}
+	
 	/**
 	 * Sets the threshold for this memory manager.
+	 * The low watermark is set to 90% of the threshold.
 	 *
 	 * newThreshold must be between 0 and getMaxSize()
 	 * @param newThreshold the new threshold.
 	 */
 	public void setThreshold(int newThreshold, int direction) throws InvalidParameterException {
-		if (newThreshold <= 0 || newThreshold > maxSize)
-			throw new InvalidParameterException("Invalid threshold on setThreshold.");
+		setWatermarks(newThreshold, (int) (newThreshold*NOTIFY_THRESHOLD), direction);
+	}
+	
+	/**
+	 * Sets the high and low watermarks for this memory manager.
+	 *
+	 * high must be between 0 and getMaxSize(), and low must be between 0 and high.
+	 * @param high the new threshold.
+	 * @param low the level where events blocked by the threshold are released.
+	 */
+	public void setWatermarks(int high, int low, int direction) throws InvalidParameterException {
+		if (high <= 0 || high > maxSize)
+			throw new InvalidParameterException("Invalid threshold on setWatermarks.");
+		if (low < 0 || low > high)
+			throw new InvalidParameterException("Invalid low watermark on setWatermarks.");
 		
-		else{
-			if(direction == Direction.UP){
-				upthreshold = newThreshold;
-			}
-			else if(direction == Direction.DOWN){
-				downthreshold = newThreshold;
-			}
-			else
-				throw new InvalidParameterException("Direction must be UP or DOWN in setThreshold.");
-			
+		if(direction == Direction.UP){
+			uplow = low;
+			upthreshold = high;
+		}
+		else if(direction == Direction.DOWN){
+			downlow = low;
+			downthreshold = high;
 		}
+		else
+			throw new InvalidParameterException("Direction must be UP or DOWN in setWatermarks.");
+		release(currentSize.get());
 	}
 	
 	/**
@@ -172,7 +247,7 @@ public class MemoryManager {
 	 * @param newSize the new size of the memory (in bytes).
 	 */
 	public void setMaxSize(int newSize) throws AppiaWrongSizeException {
-		if ((newSize <= 0) || (newSize < currentSize)) 
+		if ((newSize <= 0) || (newSize < currentSize.get())) 
 			throw new AppiaWrongSizeException("Could not set size of "+mmID+" to "+newSize);
 		maxSize = newSize;
 	} // end of method setMaxSize
@@ -188,7 +263,7 @@ public class MemoryManager {
 	 * Gets the amount of memory (in bytes) occupied in the memory manager.
 	 */
 	public int used() {
-		return currentSize;
+		return currentSize.get();
 	}
 	
 	/**
@@ -199,17 +274,30 @@ public class MemoryManager {
 	public boolean malloc(int nBytes) {
 		if (nBytes <= 0)
 			return true;
-		if ((currentSize + nBytes) > maxSize) {
-			if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
-				debugOutput.println("MemoryManager: "+mmID+": malloc of "+nBytes+
-						" bytes FAILED! current size = "+currentSize);
-			return false;
+		int current, next;
+		do {
+			current = currentSize.get();
+			next = current + nBytes;
+			if (next > maxSize || next < 0) {
+				if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
+					debugOutput.println("MemoryManager: "+mmID+": malloc of "+nBytes+
+							" bytes FAILED! current size = "+current);
+				return false;
+			}
+		} while (!currentSize.compareAndSet(current, next));
+		
+		if ((next >= upthreshold && !upBlocked) || (next >= downthreshold && !downBlocked)) {
+			if (next >= upthreshold)
+				upBlocked = true;
+			if (next >= downthreshold)
+				downBlocked = true;
+			// a concurrent free may have dropped to the low watermark before the flags were set
+			release(currentSize.get());
 		}
-		currentSize += nBytes;
 		
 		if (AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
 			debugOutput.println("MemoryManager: "+mmID+": malloc of "+nBytes+
-					" bytes done! current size = "+currentSize);
+					" bytes done! current size = "+next);
 		return true;
 	} // end of method malloc
 	
@@ -221,23 +309,40 @@ public class MemoryManager {
 		if (nBytes == 0)
 			return;
 		
-		if (nBytes < 0 || currentSize == 0) { 
-			if(AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
-				debugOutput.println("MemoryManager: "+mmID+": free error: state is nBytes="+nBytes+" and "+
-						"currentSize="+currentSize);
-			return;
-		}
-		
-		currentSize -= Math.min(nBytes,currentSize);
+		int current, next;
+		do {
+			current = currentSize.get();
+			if (nBytes < 0 || current == 0) { 
+				if(AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
+					debugOutput.println("MemoryManager: "+mmID+": free error: state is nBytes="+nBytes+" and "+
+							"currentSize="+current);
+				return;
+			}
+			next = current - Math.min(nBytes,current);
+		} while (!currentSize.compareAndSet(current, next));
 		
-		if(currentSize <= (downthreshold*NOTIFY_THRESHOLD))
-			synchronized (downMutex) { downMutex.notifyAll(); }
-		if(currentSize <= (upthreshold*NOTIFY_THRESHOLD))
-			synchronized (upMutex) { upMutex.notifyAll(); }
+		release(next);
 		
 		if(AppiaConfig.MM_DEBUG_ON && debugOutput!=null)
 			debugOutput.println("MemoryManager: "+mmID+
-					": free done (nBytes = "+nBytes+"). current size = "+currentSize);
+					": free done (nBytes = "+nBytes+"). current size = "+next);
 	} // end of method free
 	
+	/*
+	 * Clears the directions that dropped to the low watermark and wakes up
+	 * the threads waiting on them, if any.
+	 */
+	private void release(int used) {
+		if (upBlocked && used <= uplow) {
+			upBlocked = false;
+			if (upWaiters.get() > 0)
+				synchronized (upMutex) { upMutex.notifyAll(); }
+		}
+		if (downBlocked && used <= downlow) {
+			downBlocked = false;
+			if (downWaiters.get() > 0)
+				synchronized (downMutex) { downMutex.notifyAll(); }
+		}
+	}
+	
 } // end of class
@@ -0,0 +1,46 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+/**
+ * This interface defines a pool of byte arrays used by messages to store headers.
+ * <br>
+ * An array is returned to the pool when the last message that references its
+ * block discards it. The pool may refuse arrays it does not manage.
+ * 
+ * @see PooledMessageFactory
+ */
+public interface BufferPool {
+
+    /**
+     * Gets an array with at least the given length.
+     * @param length the minimum length of the array.
+     * @return the array.
+     */
+    public byte[] acquire(int length);
+
+    /**
+     * Returns an array to the pool. The array must not be used after this call.
+     * @param buf the array.
+     */
+    public void release(byte[] buf);
+
+}
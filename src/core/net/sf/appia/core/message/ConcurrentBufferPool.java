@@ -0,0 +1,95 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link BufferPool} of arrays of a single size, that may be shared by
+ * several threads.
+ * <br>
+ * Unlike {@link ThreadLocalBufferPool}, an array may be acquired by one thread
+ * and released by another, for instance when a transport receives into arrays
+ * that are released by the {@link net.sf.appia.core.EventScheduler EventScheduler}
+ * that handles the messages. Arrays of other sizes are not pooled.
+ */
+public class ConcurrentBufferPool implements BufferPool {
+
+    /** Default number of arrays kept by the pool. */
+    public static final int DEFAULT_MAX_BUFFERS = 256;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Creates a pool that keeps up to {@link #DEFAULT_MAX_BUFFERS} arrays.
+     * @param bufferSize the length of the arrays.
+     */
+    public ConcurrentBufferPool(int bufferSize) {
+        this(bufferSize, DEFAULT_MAX_BUFFERS);
+    }
+
+    /**
+     * Creates a pool.
+     * @param bufferSize the length of the arrays.
+     * @param maxBuffers the number of arrays kept by the pool.
+     */
+    public ConcurrentBufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @see net.sf.appia.core.message.BufferPool#acquire(int)
+     */
+    public byte[] acquire(int length) {
+        if (length > bufferSize)
+            return new byte[length];
+        final byte[] buf = free.poll();
+        if (buf == null)
+            return new byte[bufferSize];
+        count.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * @see net.sf.appia.core.message.BufferPool#release(byte[])
+     */
+    public void release(byte[] buf) {
+        if (buf.length != bufferSize)
+            return;
+        if (count.incrementAndGet() > maxBuffers) {
+            count.decrementAndGet();
+            return;
+        }
+        free.offer(buf);
+    }
+
+    /**
+     * Gets the length of the arrays of this pool.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
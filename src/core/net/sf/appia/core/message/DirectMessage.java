@@ -0,0 +1,355 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.nio.ByteBuffer;
+
+import net.sf.appia.core.AppiaConfig;
+
+/**
+ * A message whose payload may be kept in a {@link java.nio.ByteBuffer}, usually
+ * a direct buffer, so it can be written to and read from NIO channels
+ * without being copied to the Java heap.
+ * <br>
+ * The buffer is always the tail of the message. Headers are pushed into heap blocks,
+ * as in {@link Message}, and {@link #toByteBuffers()} returns them followed by the
+ * buffer. Operations that read beyond the heap blocks copy only the requested bytes
+ * from the buffer. Operations that give access to the whole message as arrays
+ * ({@link #getMsgWalk()}, {@link #frag(Message, int)}, ...) first copy the buffer
+ * to the heap.
+ * <br>
+ * The buffer is never written, so it is shared by the clones of the message.
+ * 
+ * @see DirectMessageFactory
+ */
+public class DirectMessage extends Message {
+
+	/* the payload, between position and limit, or null */
+	private ByteBuffer payload = null;
+
+	/**
+	 * Builds a new empty message.
+	 */
+	public DirectMessage() {
+		super();
+	}
+
+	/**
+	 * Builds a new message with initial data, stored in the heap.
+	 * @param data the data to add into the message.
+	 * @param offset the offset of important data
+	 * @param length the length of the data
+	 */
+	public DirectMessage(byte[] data, int offset, int length) {
+		super(data, offset, length);
+	}
+
+	/**
+	 * Builds a new message with the remaining bytes of the given buffer.
+	 * The buffer is not copied and must not be changed afterwards.
+	 * @param data the data of the message.
+	 */
+	public DirectMessage(ByteBuffer data) {
+		super();
+		setByteBuffer(data);
+	}
+
+	/**
+	 * Sets the data of the message to the remaining bytes of the given buffer.
+	 * If the message contained some data, it is discarded.
+	 * The buffer is not copied and must not be changed afterwards.
+	 * @param data the data of the message.
+	 */
+	public void setByteBuffer(ByteBuffer data) {
+		discardAll();
+		if (data.hasRemaining()) {
+			if (AppiaConfig.QUOTA_ON)
+				bind(data.remaining());
+			payload = data.slice();
+		}
+	}
+
+	/**
+	 * Gets the bytes of the message kept in a buffer, which are the last bytes of the message.
+	 * @return a read-only view of the buffer, or null if all the message is in the heap.
+	 */
+	public ByteBuffer getByteBuffer() {
+		return payload == null ? null : payload.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#setByteArray(byte[], int, int)
+	 */
+	public void setByteArray(byte[] data, int offset, int length) {
+		dropPayload();
+		super.setByteArray(data, offset, length);
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#length()
+	 */
+	public int length() {
+		return payload == null ? size : size + payload.remaining();
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#peek(net.sf.appia.core.message.MsgBuffer)
+	 */
+	public void peek(MsgBuffer mbuf) {
+		heap(mbuf.len);
+		super.peek(mbuf);
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#peekReadOnly(net.sf.appia.core.message.MsgBuffer)
+	 */
+	public void peekReadOnly(MsgBuffer mbuf) {
+		heap(mbuf.len);
+		super.peekReadOnly(mbuf);
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#pop(net.sf.appia.core.message.MsgBuffer)
+	 */
+	public void pop(MsgBuffer mbuf) {
+		heap(mbuf.len);
+		super.pop(mbuf);
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#popReadOnly(net.sf.appia.core.message.MsgBuffer)
+	 */
+	public void popReadOnly(MsgBuffer mbuf) {
+		heap(mbuf.len);
+		super.popReadOnly(mbuf);
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#discard(int)
+	 */
+	public int discard(int length) {
+		if (payload == null || length <= size)
+			return super.discard(length);
+
+		int r = super.discard(size);
+		final int skip = Math.min(length - r, payload.remaining());
+		payload.position(payload.position() + skip);
+		if (!payload.hasRemaining())
+			payload = null;
+		if (AppiaConfig.QUOTA_ON)
+			unBind(skip);
+		if (HeaderStats.isEnabled())
+			HeaderStats.popped(skip);
+		return r + skip;
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#discardAll()
+	 */
+	public void discardAll() {
+		dropPayload();
+		super.discardAll();
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#truncate(int)
+	 */
+	public int truncate(int newLength) {
+		if (payload == null || newLength < size) {
+			dropPayload();
+			return super.truncate(newLength);
+		}
+
+		final int remove = size + payload.remaining() - newLength;
+		if (remove <= 0)
+			return 0;
+		payload.limit(payload.limit() - remove);
+		if (!payload.hasRemaining())
+			payload = null;
+		if (AppiaConfig.QUOTA_ON)
+			unBind(remove);
+		return newLength;
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#frag(net.sf.appia.core.message.Message, int)
+	 */
+	public void frag(Message m, int length) {
+		heap(Integer.MAX_VALUE);
+		super.frag(m, length);
+	}
+
+	/**
+	 * Joins two messages, adding message m to the end of the current message.
+	 * If m keeps its payload in a buffer, this message keeps it without copying.
+	 * @param m the message to join with the current message.
+	 */
+	public void join(Message m) {
+		heap(Integer.MAX_VALUE);
+		ByteBuffer aux = null;
+		if (m instanceof DirectMessage) {
+			final DirectMessage dm = (DirectMessage) m;
+			aux = dm.payload;
+			if (aux != null && AppiaConfig.QUOTA_ON)
+				dm.unBind(aux.remaining());
+			dm.payload = null;
+		}
+		super.join(m);
+		if (aux != null) {
+			if (AppiaConfig.QUOTA_ON)
+				bind(aux.remaining());
+			payload = aux;
+		}
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#toByteArray()
+	 */
+	public byte[] toByteArray() {
+		final byte[] head = super.toByteArray();
+		if (payload == null)
+			return head;
+
+		final byte[] array = new byte[head.length + payload.remaining()];
+		System.arraycopy(head, 0, array, 0, head.length);
+		payload.duplicate().get(array, head.length, payload.remaining());
+		return array;
+	}
+
+	/**
+	 * Gets the message as a sequence of buffers without copying it.
+	 * The last buffer is the payload of the message, if it is kept in a buffer.
+	 * @see net.sf.appia.core.message.Message#toByteBuffers()
+	 */
+	public ByteBuffer[] toByteBuffers() {
+		final ByteBuffer[] head = super.toByteBuffers();
+		if (payload == null)
+			return head;
+
+		final ByteBuffer[] buffers = new ByteBuffer[head.length + 1];
+		System.arraycopy(head, 0, buffers, 0, head.length);
+		buffers[head.length] = payload.duplicate();
+		return buffers;
+	}
+
+	/**
+	 * Gets the message as a read-only buffer.
+	 * If all the message is kept in a buffer, it returns a view of that buffer.
+	 * @see net.sf.appia.core.message.Message#asReadOnlyByteBuffer()
+	 */
+	public ByteBuffer asReadOnlyByteBuffer() {
+		if (payload == null)
+			return super.asReadOnlyByteBuffer();
+		if (size == 0)
+			return payload.slice().asReadOnlyBuffer();
+		return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets a message with part of the contents of this message, without copying them.
+	 * If the slice includes bytes kept in a buffer, it returns a DirectMessage that
+	 * shares that buffer.
+	 * @see net.sf.appia.core.message.Message#slice(int, int)
+	 */
+	public Message slice(int offset, int length) {
+		if (payload == null || offset + length <= size)
+			return super.slice(offset, length);
+		if ((offset < 0) || (length < 0) || (offset + length > length()))
+			throw new IndexOutOfBoundsException("Slice ["+offset+","+(offset+length)+"[ of a message with "+
+					length()+" bytes");
+
+		final DirectMessage msg = new DirectMessage();
+		final int inHeap = Math.max(0, size - offset);
+		if (inHeap > 0)
+			sliceBlocks(msg, offset, inHeap);
+		final ByteBuffer aux = payload.duplicate();
+		aux.position(aux.position() + Math.max(0, offset - size));
+		aux.limit(aux.position() + length - inHeap);
+		if (aux.hasRemaining())
+			msg.payload = aux.slice();
+		return msg;
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#getMsgWalk()
+	 */
+	public MsgWalk getMsgWalk() {
+		heap(Integer.MAX_VALUE);
+		return super.getMsgWalk();
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#getMsgWalkReadOnly()
+	 */
+	public MsgWalk getMsgWalkReadOnly() {
+		heap(Integer.MAX_VALUE);
+		return super.getMsgWalkReadOnly();
+	}
+
+	/**
+	 * @see net.sf.appia.core.message.Message#clone()
+	 */
+	public Object clone() throws CloneNotSupportedException {
+		final DirectMessage msg = (DirectMessage) super.clone();
+		if (payload != null)
+			msg.payload = payload.duplicate();
+		return msg;
+	}
+
+	/*
+	 * Copies bytes from the head of the payload to the heap blocks, until they
+	 * have at least n bytes or the payload is empty.
+	 */
+	private void heap(int n) {
+		if (payload == null || n <= size)
+			return;
+
+		final int len = Math.min(n - size, payload.remaining());
+		final byte[] a = new byte[len];
+		payload.get(a);
+		if (!payload.hasRemaining())
+			payload = null;
+
+		// join copies the blocks shared with clones before appending
+		super.join(new Message(a, 0, len));
+		// the bytes were already bound
+		if (AppiaConfig.QUOTA_ON)
+			unBind(len);
+	}
+
+	/*
+	 * Copies all the payload to the heap blocks.
+	 */
+	void toHeap() {
+		heap(Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Discards the payload.
+	 */
+	void dropPayload() {
+		if (payload == null)
+			return;
+		if (AppiaConfig.QUOTA_ON)
+			unBind(payload.remaining());
+		payload = null;
+	}
+}
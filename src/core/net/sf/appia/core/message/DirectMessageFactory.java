@@ -0,0 +1,94 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class defines a DirectMessageFactory. It creates {@link DirectMessage}s and
+ * copies the payloads received by NIO transports into direct buffers.
+ * <br>
+ * The direct buffers of small payloads, up to {@link #SLICE_THRESHOLD} bytes, are
+ * slices of chunks of {@link #CHUNK_SIZE} bytes, allocated when the previous chunk
+ * is full, since allocating direct memory is expensive. A chunk is freed by the
+ * garbage collector when no message uses any of its slices, so the chunks are kept
+ * small: a message that lives long keeps at most one chunk in memory.
+ * Larger payloads get their own buffer.
+ * <br>
+ * It can be used in the XML configuration with the <i>messageFactory</i> attribute
+ * of a channel.
+ */
+public class DirectMessageFactory implements MessageFactory {
+
+    /** Size of the chunks of direct memory. */
+    public static final int CHUNK_SIZE = 64*1024;
+    /** Largest payload stored in a slice of a chunk. */
+    public static final int SLICE_THRESHOLD = CHUNK_SIZE/16;
+
+    private ByteBuffer chunk = null;
+
+    public DirectMessageFactory(){}
+
+    /**
+     * 
+     * @see net.sf.appia.core.message.MessageFactory#newMessage()
+     */
+    public Message newMessage() {
+        return new DirectMessage();
+    }
+
+    /**
+     * The payload is kept in the given array, without copying it.
+     * @see net.sf.appia.core.message.MessageFactory#newMessage(byte[], int, int)
+     */
+    public Message newMessage(byte[] payload, int offset, int length) {
+        return new DirectMessage(payload,offset,length);
+    }
+
+    /**
+     * Creates a message with a copy of the remaining bytes of the given buffer,
+     * stored in direct memory. The position of the buffer is advanced.
+     * @param payload the payload.
+     * @return the new message.
+     */
+    public Message newMessage(ByteBuffer payload) {
+        final ByteBuffer data = allocate(payload.remaining());
+        data.put(payload);
+        data.flip();
+        return new DirectMessage(data);
+    }
+
+    /*
+     * Gets a direct buffer with the given capacity.
+     * It may be called by the threads of several transports.
+     */
+    private synchronized ByteBuffer allocate(int length) {
+        if (length > SLICE_THRESHOLD)
+            return ByteBuffer.allocateDirect(length);
+        if (chunk == null || chunk.remaining() < length)
+            chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        chunk.limit(chunk.position() + length);
+        final ByteBuffer slice = chunk.slice();
+        chunk.position(chunk.limit());
+        chunk.limit(chunk.capacity());
+        return slice;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.message;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.EventScheduler;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counts the header bytes pushed and popped by each layer of a channel.
+ * <br>
+ * When enabled, the bytes pushed, popped or discarded from a {@link Message} are
+ * charged to the session being run by the {@link EventScheduler} of the current
+ * thread, as given by {@link EventScheduler#getHandelingSession()}. Bytes handled
+ * outside a session, for instance by the threads of a transport, are not counted.
+ * <br>
+ * It is disabled by default, and then the only cost is the test of a static field.
+ * It must be enabled before the channels are created, with {@link #setEnabled(boolean)}
+ * or with the <i>appia.headerstats</i> system property.
+ *
+ * @see net.sf.appia.core.Channel#getHeaderStats()
+ */
+public class HeaderStats {
+
+	private static Logger log = Logger.getLogger(HeaderStats.class);
+
+	private static boolean enabled = Boolean.getBoolean("appia.headerstats");
+
+	private static final ThreadLocal<Current> current = new ThreadLocal<Current>() {
+		protected Current initialValue() {
+			return new Current();
+		}
+	};
+
+	private static final Map<Channel,HeaderStats> channels = new ConcurrentHashMap<Channel,HeaderStats>();
+	private static Timer timer = null;
+
+	/*
+	 * Session being run by the scheduler of a thread, and where its bytes are counted.
+	 */
+	private static final class Current {
+		EventScheduler scheduler;
+		Session session;
+		Channel channel;
+		HeaderStats stats;
+		int layer;
+	}
+
+	private final Channel channel;
+	private final Layer[] layers;
+	// written only by the scheduler thread of the channel
+	private final long[] pushed;
+	private final long[] popped;
+
+	/**
+	 * Creates the counters of a channel.
+	 * @param channel the channel
+	 */
+	public HeaderStats(Channel channel) {
+		this.channel = channel;
+		layers = channel.getQoS().getLayers();
+		pushed = new long[layers.length];
+		popped = new long[layers.length];
+	}
+
+	/**
+	 * Tells if the counting is enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables the counting. It only applies to the channels created afterwards.
+	 * @param on true to enable
+	 */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Periodically logs, with level INFO, the counters of all the channels.
+	 * @param period the period in milliseconds, or 0 to stop
+	 */
+	public static synchronized void setLogPeriod(long period) {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+		if (period <= 0)
+			return;
+		timer = new Timer("HeaderStats", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				for (HeaderStats stats : channels.values())
+					log.info(stats);
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Starts logging the counters of a channel.
+	 * @param stats the counters of the channel
+	 */
+	public static void register(HeaderStats stats) {
+		channels.put(stats.channel, stats);
+	}
+
+	/**
+	 * Stops logging the counters of a channel.
+	 * @param stats the counters of the channel
+	 */
+	public static void unregister(HeaderStats stats) {
+		channels.remove(stats.channel);
+	}
+
+	/**
+	 * Sets the scheduler run by the current thread. Called by the scheduler
+	 * before each event when the counting is enabled.
+	 * @param scheduler the scheduler
+	 */
+	public static void setScheduler(EventScheduler scheduler) {
+		current.get().scheduler = scheduler;
+	}
+
+	/**
+	 * Counts bytes pushed into a message.
+	 */
+	static void pushed(int bytes) {
+		final Current c = resolve();
+		if (c != null)
+			c.stats.pushed[c.layer] += bytes;
+	}
+
+	/**
+	 * Counts bytes popped or discarded from a message.
+	 */
+	static void popped(int bytes) {
+		final Current c = resolve();
+		if (c != null)
+			c.stats.popped[c.layer] += bytes;
+	}
+
+	private static Current resolve() {
+		final Current c = current.get();
+		if (c.scheduler == null)
+			return null;
+		final Session session = c.scheduler.getHandelingSession();
+		if (session == null)
+			return null;
+		final Channel channel = c.scheduler.getHandelingChannel();
+		if (session != c.session || channel != c.channel) {
+			final HeaderStats stats = channel.getHeaderStats();
+			if (stats == null)
+				return null;
+			final int layer = stats.indexOf(session.getLayer());
+			if (layer < 0)
+				return null;
+			c.session = session;
+			c.channel = channel;
+			c.stats = stats;
+			c.layer = layer;
+		}
+		return c;
+	}
+
+	private int indexOf(Layer layer) {
+		for (int i = 0; i < layers.length; i++)
+			if (layers[i] == layer)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Gets the total number of bytes pushed by all the layers.
+	 */
+	public long getTotalPushed() {
+		return sum(pushed);
+	}
+
+	/**
+	 * Gets the total number of bytes popped by all the layers.
+	 */
+	public long getTotalPopped() {
+		return sum(popped);
+	}
+
+	private static long sum(long[] a) {
+		long s = 0;
+		for (int i = 0; i < a.length; i++)
+			s += a[i];
+		return s;
+	}
+
+	/**
+	 * Gets the counters of each layer, in the order of the QoS of the channel.
+	 * Each entry has the name of the layer and the bytes pushed and popped.
+	 */
+	public String[] getLayerStats() {
+		final String[] r = new String[layers.length];
+		for (int i = 0; i < layers.length; i++)
+			r[i] = layers[i].getClass().getName()+" pushed="+pushed[i]+" popped="+popped[i];
+		return r;
+	}
+
+	public String toString() {
+		final StringBuffer sb = new StringBuffer("Header bytes of channel ");
+		sb.append(channel.getChannelID()).append(':');
+		final String[] stats = getLayerStats();
+		for (int i = 0; i < stats.length; i++)
+			sb.append("\n  ").append(stats[i]);
+		return sb.toString();
+	}
+}
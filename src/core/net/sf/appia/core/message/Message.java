@@ -55,6 +55,7 @@ import java.io.UTFDataFormatException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import net.sf.appia.core.*;
 import net.sf.appia.core.memoryManager.*;
@@ -80,15 +81,20 @@ public class Message implements Cloneable {
 	private static final int SHORTSIZE = 2;
 	private static final int INTSIZE = 4;
 	private static final int LONGSIZE = 8;
+	private static final int MAX_VARLONGSIZE = 10;
 	private static final int BOOLSIZE = 1;
 	
 	private static final byte GENERIC_OBJECT = 0;
 	private static final byte INET_SOCKET_ADDR = 1;
+	private static final byte REGISTERED_OBJECT = 2;
+	private static final byte SERIALIZABLE_OBJECT = 3;
+	private static final byte NULL_OBJECT = 4;
 	
 	private AuxOutputStream aos = null;
 	private AuxInputStream ais = null;
 	
-	private MsgBuffer mbuf;
+	/* created on first use, so clones do not allocate it */
+	private MsgBuffer mbuf = null;
 	
 	
 	/**
@@ -105,6 +111,10 @@ public class Message implements Cloneable {
 		public int len;
 		public Block next = null;
 		public int refs = 1;
+		/** pool where buf is returned when the block is no longer referenced, or null */
+		public BufferPool pool = null;
+		/* next block emptied by a pop since the last push */
+		Block nextPopped = null;
 		
 		public Block() {}
 		
@@ -125,10 +135,16 @@ public class Message implements Cloneable {
 	protected int ro_len = 0;
 	
 	/* Memory Manager to bind and unbind */
-	private MemoryManager memoryManager=null;
-	private Object mmLock = new Object();
+	private volatile MemoryManager memoryManager=null;
 	protected boolean canBind = true;
 	
+	/* Pool of the arrays used to push headers */
+	private BufferPool bufferPool = null;
+	/* Blocks emptied by the pops since the last push, whose arrays may still be used by the caller */
+	private Block popped = null;
+	/* Blocks referenced by the buffers of the last toByteBuffers() */
+	private Block[] buffersBlocks = null;
+	
 	/**
 	 * Builds a new empty message.
 	 */
@@ -155,7 +171,6 @@ public class Message implements Cloneable {
 	}
 	
 	private void init(){
-		mbuf = new MsgBuffer();
 		if(CHECK)
 		    synchronized (getClass()) {
 		        if (!checked)
@@ -181,6 +196,7 @@ public class Message implements Cloneable {
 		
 		while (first != null) {
 			first.refs--;
+			release(first);
 			first = first.next;
 		}
 		
@@ -193,6 +209,21 @@ public class Message implements Cloneable {
 		ro_off = 0;
 	}
 	
+	/**
+	 * Sets the data of the message to an array taken from a pool.
+	 * If the message contained some data, it is discarded.<br>
+	 * The array is returned to the pool when no message references it, so
+	 * the data must not be used after being popped or discarded.
+	 * @param data the data to add into the message.
+	 * @param offset the offset of important data
+	 * @param length the length of the data
+	 * @param pool the pool where the array is returned.
+	 */
+	public void setByteArray(byte[] data, int offset, int length, BufferPool pool) {
+		setByteArray(data, offset, length);
+		first.pool = pool;
+	}
+	
 	/**
 	 * Gets the length (in bytes) of the message.
 	 * @return the length (in bytes) of the message.
@@ -214,17 +245,16 @@ public class Message implements Cloneable {
 		}
 		
 		if ((ro_mode && (mbuf.len <= ro_len)) || (!ro_mode && (mbuf.len <= first.len))) {
-			if (first.refs > 1) {
-				if (ro_mode)
-					clearReadOnly();
-				else
-					first=copyBlock(first,first.off,first.len);
-			}
+			if (ro_mode)
+				clearReadOnly();
+			
+			if (first.refs > 1)
+				first=copyBlock(first,first.off,first.len);
 			
 			mbuf.data = first.buf;
 			mbuf.off = first.off;
 		} else {
-			pop(mbuf);
+			popBlocks(mbuf);
 			// this is done because pop was called.
 			if (AppiaConfig.QUOTA_ON)
 				bind(mbuf.len);
@@ -247,6 +277,8 @@ public class Message implements Cloneable {
 		
 		int r = length > size ? size : length;
 		int newsize = size - r;
+		if (HeaderStats.isEnabled())
+			HeaderStats.popped(r);
 		
 		while ((size > newsize) && (first != null)) {
 			if (!ro_mode && (first.refs > 1)) {
@@ -259,6 +291,7 @@ public class Message implements Cloneable {
 				if ((size - newsize) >= ro_len) {
 					size -= ro_len;
 					first.refs--;
+					release(first);
 					first = first.next;
 					
 					if (first != null) {
@@ -279,6 +312,8 @@ public class Message implements Cloneable {
 			} else {
 				if ((size - newsize) >= first.len) {
 					size -= first.len;
+					first.refs--;
+					release(first);
 					first = first.next;
 				} else {
 					int remove = size - newsize;
@@ -303,8 +338,11 @@ public class Message implements Cloneable {
 		if (AppiaConfig.QUOTA_ON)
 			unBind(size);	  
 		size = 0;
+		if (popped != null)
+			releasePopped();
 		while(first != null){
 			first.refs--;
+			release(first);
 			first = first.next;
 		}
 		ro_mode = false;
@@ -317,6 +355,12 @@ public class Message implements Cloneable {
 	 * @param mbuf the MessageBuffer to store the poped data.
 	 */
 	public void pop(MsgBuffer mbuf) {
+		popBlocks(mbuf);
+		if (HeaderStats.isEnabled())
+			HeaderStats.popped(mbuf.len);
+	}
+	
+	private void popBlocks(MsgBuffer mbuf) {
 		if (first == null) {
 			mbuf.data = null;
 			mbuf.off = 0;
@@ -339,6 +383,10 @@ public class Message implements Cloneable {
 			
 			if (first.len == 0) {
 				first.refs--;
+				if (first.pool != null) {
+					first.nextPopped = popped;
+					popped = first;
+				}
 				first = first.next;
 			}
 			size -= mbuf.len;
@@ -355,6 +403,7 @@ public class Message implements Cloneable {
 				off += ro_len;
 				
 				first.refs--;
+				release(first);
 				first=first.next;
 				size-=ro_len;
 				
@@ -370,6 +419,7 @@ public class Message implements Cloneable {
 					
 					size -= first.len;
 					first.refs--;
+					release(first);
 					first = first.next;
 				} else {
 					int remove = size - newsize;
@@ -406,12 +456,22 @@ public class Message implements Cloneable {
 		
 		if (ro_mode)
 			clearReadOnly();
+		if (popped != null)
+			releasePopped();
 		
 		int l = mbuf.len;
 		
 		if ((first == null) || (l > (first.off - first.offset)) || (first.refs > 1)) {
-			byte[] a = new byte[l + INCREASE];
-			Block b = new Block(a, 0, a.length, a.length - l);
+			Block b;
+			if (bufferPool == null) {
+				byte[] a = new byte[l + INCREASE];
+				b = new Block(a, 0, a.length, a.length - l);
+			} else {
+				// the size classes of the pool already leave room for the next headers
+				byte[] a = bufferPool.acquire(l);
+				b = new Block(a, 0, a.length, a.length - l);
+				b.pool = bufferPool;
+			}
 			
 			b.next = first;
 			first = b;
@@ -424,6 +484,8 @@ public class Message implements Cloneable {
 		mbuf.off = first.off;
 		
 		size += l;
+		if (HeaderStats.isEnabled())
+			HeaderStats.pushed(l);
 	}
 	
 	/**
@@ -446,6 +508,15 @@ public class Message implements Cloneable {
 		if (ro_mode)
 			clearReadOnly();
 		
+		// the loop below always keeps the first block
+		if (newLength == 0) {
+			while (first != null) {
+				first.refs--;
+				release(first);
+				first = first.next;
+			}
+		}
+		
 		for (b = first;(remain > 0) && (b != null); b = b.next) {
 			if (b.refs > 1) {
 				// TODO: improve
@@ -478,6 +549,9 @@ public class Message implements Cloneable {
 		int remain = length;
 		Block b;
 		
+		if (m instanceof DirectMessage)
+			((DirectMessage) m).dropPayload();
+		
 		if (size <= length) {
 			m.first = null;
 			m.size = 0;
@@ -494,6 +568,14 @@ public class Message implements Cloneable {
 		if (ro_mode)
 			clearReadOnly();
 		
+		if (length == 0) {
+			m.first = first;
+			m.size = size;
+			first = null;
+			size = 0;
+			return;
+		}
+		
 		Block copy=null;
 		Block prev=null;
 		int off=0;
@@ -514,6 +596,8 @@ public class Message implements Cloneable {
 				}
 				
 				m.first = b.next;
+				if (copy == null)
+					b.next = null;
 				remain=0;
 			} else if (b.len > remain) {
 				
@@ -522,12 +606,14 @@ public class Message implements Cloneable {
 					m.first=copyBlock(b,b.off+remain,b.len-remain);
 				} else {
 					m.first =
-						new Block(b.buf,b.off + remain,(b.offset + b.length) - (b.off + remain),b.off + remain);
+						new Block(b.buf,b.off + remain,b.len - remain,b.off + remain);
 					//System.out.println("BLOCK: size total: "+m.first.buf.length+" offset: "+m.first.offset+" length: "+m.first.length+" off: "+m.first.off+" len: "+m.first.len);
 					m.first.next = b.next;
+					// the array is now shared by two blocks
+					b.pool = null;
 					
 					b.next = null;
-					b.length = m.first.offset - first.offset;
+					b.length = m.first.offset - b.offset;
 					b.len = remain;
 				}
 				remain=0;
@@ -553,6 +639,9 @@ public class Message implements Cloneable {
 	 */
 	public void join(Message m) {
 		
+		if (m instanceof DirectMessage)
+			((DirectMessage) m).toHeap();
+		
 		// added on 7-Oct-2003
 		if (AppiaConfig.QUOTA_ON)
 			bind(m.length());
@@ -598,7 +687,14 @@ public class Message implements Cloneable {
 	 * @return a byte array containing the message.
 	 */
 	public byte[] toByteArray() {
-		int len = length();
+		return copyBlocks();
+	}
+	
+	/*
+	 * Copies the contents of the blocks to a new array.
+	 */
+	private byte[] copyBlocks() {
+		int len = size;
 		
 		byte[] array = new byte[len];
 		int off = 0;
@@ -620,6 +716,140 @@ public class Message implements Cloneable {
 		return array;
 	}
 	
+	/**
+	 * Gets the message as a sequence of buffers, one for each block, without copying it.
+	 * <br>
+	 * The blocks become shared, as when the message is cloned, so later changes to this
+	 * message copy them instead of writing over the returned buffers. The same buffers
+	 * may be used, with {@link java.nio.ByteBuffer#duplicate()}, by several senders,
+	 * but their contents must not be modified. When the buffers were written,
+	 * {@link #releaseByteBuffers()} gives the blocks back.
+	 * @return the buffers with the contents of the message.
+	 */
+	public ByteBuffer[] toByteBuffers() {
+		int n = 0;
+		for (Block b = first; b != null; b = b.next)
+			n++;
+		
+		buffersBlocks = new Block[n];
+		n = 0;
+		for (Block b = first; b != null; b = b.next) {
+			b.refs++;
+			buffersBlocks[n++] = b;
+		}
+		
+		final ByteBuffer[] buffers = new ByteBuffer[n];
+		final MsgWalk walk = ro_mode ? new MsgWalk(first, ro_off, ro_len) : new MsgWalk(first);
+		final MsgBuffer aux = new MsgBuffer();
+		for (int i = 0; i < n; i++) {
+			walk.next(aux);
+			buffers[i] = ByteBuffer.wrap(aux.data, aux.off, aux.len);
+		}
+		return buffers;
+	}
+	
+	/**
+	 * Gives back the references to the blocks taken by the last {@link #toByteBuffers()},
+	 * once the buffers are no longer used, so their arrays can return to the pool of the
+	 * message when it is discarded, or now, if the message no longer uses them.
+	 * Other references to the blocks are not changed.
+	 * <br>
+	 * It must be called by the thread that runs the channel of the message, so transports
+	 * that write the buffers in other threads do not call it and leave the arrays to the
+	 * garbage collector.
+	 */
+	public void releaseByteBuffers() {
+		if (buffersBlocks == null)
+			return;
+		for (int i = 0; i < buffersBlocks.length; i++) {
+			buffersBlocks[i].refs--;
+			// a popped array is still valid until the next push
+			if (!isPopped(buffersBlocks[i]))
+				release(buffersBlocks[i]);
+		}
+		buffersBlocks = null;
+	}
+	
+	private boolean isPopped(Block b) {
+		for (Block p = popped; p != null; p = p.nextPopped) {
+			if (p == b)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the message as a read-only buffer.
+	 * <br>
+	 * If the message is kept in a single block, the buffer is a view of that block and
+	 * nothing is copied. Otherwise the blocks are copied to a new array; use
+	 * {@link #toByteBuffers()} to get them without copying.
+	 * @return a read-only buffer with the contents of the message.
+	 */
+	public ByteBuffer asReadOnlyByteBuffer() {
+		if (first == null)
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		if (first.next != null)
+			return ByteBuffer.wrap(copyBlocks()).asReadOnlyBuffer();
+		
+		// the block is now shared with the buffer, as in toByteBuffers()
+		first.refs++;
+		return ByteBuffer.wrap(first.buf, ro_mode ? ro_off : first.off, size).slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Gets a message with part of the contents of this message, without copying them.
+	 * <br>
+	 * Both messages share the arrays of the slice, whose contents must not be changed.
+	 * Pushing or popping headers from one of the messages does not change the other.
+	 * @param offset the position, in this message, of the first byte of the slice.
+	 * @param length the number of bytes of the slice.
+	 * @return a new message with the bytes of the slice.
+	 * @throws IndexOutOfBoundsException if the slice is not inside the message.
+	 */
+	public Message slice(int offset, int length) {
+		if ((offset < 0) || (length < 0) || (offset + length > length()))
+			throw new IndexOutOfBoundsException("Slice ["+offset+","+(offset+length)+"[ of a message with "+
+					length()+" bytes");
+		final Message msg = new Message();
+		sliceBlocks(msg, offset, length);
+		return msg;
+	}
+	
+	/*
+	 * Appends to m new blocks that share the arrays of the bytes [offset,offset+length[ of the blocks of this message.
+	 */
+	void sliceBlocks(Message m, int offset, int length) {
+		Block last = null;
+		for (Block b = first; (b != null) && (length > 0); b = b.next) {
+			int boff = b.off;
+			int blen = b.len;
+			if (ro_mode && (b == first)) {
+				boff = ro_off;
+				blen = ro_len;
+			}
+			if (offset >= blen) {
+				offset -= blen;
+				continue;
+			}
+			
+			final int len = Math.min(blen - offset, length);
+			final Block aux = new Block(b.buf, boff + offset, len, boff + offset);
+			// the array is now shared by two blocks, so both must be copied before being written
+			b.refs++;
+			b.pool = null;
+			aux.refs = 2;
+			if (last == null)
+				m.first = aux;
+			else
+				last.next = aux;
+			last = aux;
+			m.size += len;
+			length -= len;
+			offset = 0;
+		}
+	}
+	
 	/**
 	 * Gets a MessageWalk object, which is used to travel through the message blocks.
 	 * @return a new instance of MessageWalk object. 
@@ -646,9 +876,11 @@ public class Message implements Cloneable {
 		for (Block b=first ; b != null ; b=b.next)
 			b.refs++;
 		
-		msg.mbuf = new MsgBuffer();
-		msg.ais = new AuxInputStream();
-		msg.aos = new AuxOutputStream();
+		msg.mbuf = null;
+		msg.popped = null;
+		msg.buffersBlocks = null;
+		msg.ais = null;
+		msg.aos = null;
 		
 		return msg;
 	}
@@ -722,6 +954,8 @@ public class Message implements Cloneable {
 		
 		if (AppiaConfig.QUOTA_ON)
 			unBind(mbuf.len);
+		if (HeaderStats.isEnabled())
+			HeaderStats.popped(mbuf.len);
 	}
 	
 	/**
@@ -805,6 +1039,38 @@ public class Message implements Cloneable {
 		ro_len = 0;
 	}
 	
+	/*
+	 * Returns the array of a block to its pool, if no message references it.
+	 */
+	private static void release(Block b) {
+		if ((b.refs == 0) && (b.pool != null)) {
+			b.pool.release(b.buf);
+			b.pool = null;
+			b.buf = null;
+		}
+	}
+	
+	/*
+	 * Gets the buffer used by the methods that push and pop values.
+	 */
+	private MsgBuffer msgBuffer() {
+		if (mbuf == null)
+			mbuf = new MsgBuffer();
+		return mbuf;
+	}
+	
+	/*
+	 * Returns the arrays of the blocks emptied by the pops since the last push.
+	 */
+	private void releasePopped() {
+		while (popped != null) {
+			final Block b = popped;
+			popped = b.nextPopped;
+			b.nextPopped = null;
+			release(b);
+		}
+	}
+	
 	/*
 	 * Copies remaining blocks
 	 */
@@ -812,10 +1078,11 @@ public class Message implements Cloneable {
 		if (first == null)
 			return;
 		
-		byte[] a = toByteArray();
+		byte[] a = copyBlocks();
 		Block b = new Block(a, 0, a.length, 0);
 		while (first != null) {
 			first.refs--;
+			release(first);
 			first = first.next;
 		}
 		first = b;
@@ -837,9 +1104,30 @@ public class Message implements Cloneable {
 		
 		return aux;
 	}
-	
-	
-	
+
+	/**
+	 * Gets the pool used to allocate the arrays where headers are pushed.
+	 * @return the pool, or null if the arrays are not pooled.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Changes the pool used to allocate the arrays where headers are pushed.
+	 * Clones of this message use the same pool.<br>
+	 * An array returns to the pool when no message references its block, so the data
+	 * obtained from the message must not be used after the message is discarded, and the
+	 * data of a pop must not be used after the next push.
+	 * Arrays given to {@link #toByteBuffers()} are only returned after {@link #releaseByteBuffers()}.
+	 * @param pool the pool, or null to allocate new arrays.
+	 */
+	public void setBufferPool(BufferPool pool) {
+		bufferPool = pool;
+	}
+
+
+
 	/* Methods added on 9-Jul-2001 */
 	
 	/**
@@ -847,9 +1135,7 @@ public class Message implements Cloneable {
 	 * @return the current memory manager, or null if there are no memory manager.
 	 */
 	public MemoryManager getMemoryManager() {
-		synchronized (mmLock) {
-			return memoryManager;
-		}
+		return memoryManager;
 	}
 	
 	/**
@@ -868,23 +1154,22 @@ public class Message implements Cloneable {
 					+ ((newMM == null) ? "NULL" : newMM.getMemoryManagerID())
 					+ " INIT!!!");
 		
-		synchronized (mmLock) {
-			// from null to not null
-			if (memoryManager == null && newMM != null) {
-				if (!newMM.malloc(size))
-					throw new AppiaOutOfMemory("" + this.getClass().getName() + " : setMemoryManager");
-			}
-			// from not null to null
-			else if (memoryManager != null && newMM == null)
-				memoryManager.free(size);
-			// from a memory manager to another
-			else if (memoryManager != null && newMM != null && memoryManager != newMM) {
-				if (!newMM.malloc(size))
-					throw new AppiaOutOfMemory("" + this.getClass().getName() + " : setMemoryManager");
-				memoryManager.free(size);
-			}
-			memoryManager = newMM;			
+		final MemoryManager oldMM = memoryManager;
+		// from null to not null
+		if (oldMM == null && newMM != null) {
+			if (!newMM.malloc(length()))
+				throw new AppiaOutOfMemory("" + this.getClass().getName() + " : setMemoryManager");
+		}
+		// from not null to null
+		else if (oldMM != null && newMM == null)
+			oldMM.free(length());
+		// from a memory manager to another
+		else if (oldMM != null && newMM != null && oldMM != newMM) {
+			if (!newMM.malloc(length()))
+				throw new AppiaOutOfMemory("" + this.getClass().getName() + " : setMemoryManager");
+			oldMM.free(length());
 		}
+		memoryManager = newMM;
 		// just for debugging
 		if (AppiaConfig.MM_DEBUG_ON && debug != null)
 			debug.println(
@@ -897,10 +1182,9 @@ public class Message implements Cloneable {
 	 * @param nBytes number of bytes to free.
 	 */
 	public void unBind(int nBytes) {
-		synchronized (mmLock) {
-			if (memoryManager != null)
-				memoryManager.free(nBytes);
-		}
+		final MemoryManager mm = memoryManager;
+		if (mm != null)
+			mm.free(nBytes);
 	}
 	
 	/**
@@ -909,11 +1193,10 @@ public class Message implements Cloneable {
 	 * @throws runtime Exception AppiaOutOfMemory.
 	 */
 	public void bind(int nBytes) {
-		synchronized (mmLock) {
-			if ((memoryManager != null) && !memoryManager.malloc(nBytes))
-				throw new AppiaOutOfMemory(
-						"" + this.getClass().getName() + " : bind - " + memoryManager.getMemoryManagerID());
-		}
+		final MemoryManager mm = memoryManager;
+		if ((mm != null) && !mm.malloc(nBytes))
+			throw new AppiaOutOfMemory(
+					"" + this.getClass().getName() + " : bind - " + mm.getMemoryManagerID());
 	}
 	
 	static final boolean debugFull = false;
@@ -989,7 +1272,9 @@ public class Message implements Cloneable {
 	 * Push an {@link java.lang.Object Object} (<i>header</i>) into the head of
 	 * the message.
 	 * <br>
-	 * The Object must implement the
+	 * Objects of classes registered in {@link ObjectSerializers}, and objects that
+	 * implement {@link SerializableObject} and have a public constructor without
+	 * arguments, are pushed field by field. Other objects must implement the
 	 * {@link java.io.Serializable Serializable} interface. Otherwise
 	 * a MessageException is raised.
 	 *
@@ -998,12 +1283,31 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushObject(Object obj) {
+		final MsgBuffer mbuf = msgBuffer();
+		if (obj == null) {
+			pushByte(NULL_OBJECT);
+			return;
+		}
 		if(obj instanceof InetSocketAddress){
 			pushInetSocketAddress((InetSocketAddress) obj);
 			pushByte(INET_SOCKET_ADDR);
 			return;
 		}
 		
+		final Integer tag = ObjectSerializers.getTag(obj.getClass());
+		if (tag != null) {
+			ObjectSerializers.getSerializer(tag.intValue()).push(obj, this);
+			pushInt(tag.intValue());
+			pushByte(REGISTERED_OBJECT);
+			return;
+		}
+		if (ObjectSerializers.isInstantiable(obj.getClass())) {
+			((SerializableObject) obj).pushMySelf(this);
+			pushString(obj.getClass().getName());
+			pushByte(SERIALIZABLE_OBJECT);
+			return;
+		}
+		
 		if (aos == null)
 			aos = new AuxOutputStream();
 		
@@ -1030,6 +1334,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushLong(long l) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = LONGSIZE;
 		push(mbuf);
 		
@@ -1050,6 +1355,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushInt(int i) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = INTSIZE;
 		push(mbuf);
 		
@@ -1066,6 +1372,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushShort(short s) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = SHORTSIZE;
 		push(mbuf);
 		
@@ -1080,6 +1387,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushBoolean(boolean b) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = BOOLSIZE;
 		push(mbuf);
 		
@@ -1113,6 +1421,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushUnsignedInt(long ui) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = INTSIZE;
 		push(mbuf);
 		
@@ -1129,6 +1438,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushUnsignedShort(int us) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = SHORTSIZE;
 		push(mbuf);
 		
@@ -1143,6 +1453,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushByte(byte b) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 1;
 		push(mbuf);
 		
@@ -1156,12 +1467,121 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public void pushUnsignedByte(int ub) {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 1;
 		push(mbuf);
 		
 		mbuf.data[mbuf.off + 0] = (byte)(ub & 0xFF);
 	}
 	
+	/**
+	 * Push a <i>long</i> into the head of the message, using a variable number of bytes.
+	 * <br>
+	 * The value is coded in groups of 7 bits, starting with the least significant,
+	 * so values below 128 take one byte and values below 2^28 take at most four.
+	 * Negative values take ten bytes. Use {@link #pushZigZagLong(long)} for values
+	 * that may be negative.
+	 *
+	 * @param l the value to put in the message
+	 */
+	public void pushVarLong(long l) {
+		final MsgBuffer mbuf = msgBuffer();
+		int n = 1;
+		for (long aux = l >>> 7; aux != 0; aux >>>= 7)
+			n++;
+		mbuf.len = n;
+		push(mbuf);
+		
+		int i = mbuf.off;
+		while ((l & ~0x7FL) != 0) {
+			mbuf.data[i++] = (byte) ((l & 0x7F) | 0x80);
+			l >>>= 7;
+		}
+		mbuf.data[i] = (byte) l;
+	}
+	
+	/**
+	 * Push a <i>int</i> into the head of the message, using a variable number of bytes.
+	 * Negative values take five bytes.
+	 *
+	 * @param i the value to put in the message
+	 * @see #pushVarLong(long)
+	 */
+	public void pushVarInt(int i) {
+		pushVarLong(i & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Push a <i>short</i> into the head of the message, using a variable number of bytes.
+	 * Negative values take three bytes.
+	 *
+	 * @param s the value to put in the message
+	 * @see #pushVarLong(long)
+	 */
+	public void pushVarShort(short s) {
+		pushVarLong(s & 0xFFFFL);
+	}
+	
+	/**
+	 * Push a <i>long</i> into the head of the message, using a variable number of bytes
+	 * that depends on its absolute value.
+	 * <br>
+	 * The value is zig-zag coded (0, -1, 1, -2, ... become 0, 1, 2, 3, ...) and
+	 * pushed with {@link #pushVarLong(long)}.
+	 *
+	 * @param l the value to put in the message
+	 */
+	public void pushZigZagLong(long l) {
+		pushVarLong((l << 1) ^ (l >> 63));
+	}
+	
+	/**
+	 * Push a <i>int</i> into the head of the message, using a variable number of bytes
+	 * that depends on its absolute value.
+	 *
+	 * @param i the value to put in the message
+	 * @see #pushZigZagLong(long)
+	 */
+	public void pushZigZagInt(int i) {
+		pushVarLong(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Pushes an array of <i>longs</i> into the head of the message.
+	 * <br>
+	 * The length is written as an <i>int</i>, followed by the elements. It is the
+	 * same as pushing each element, from the last to the first, and then the length,
+	 * but the space is reserved only once.
+	 * @param longs the array to put in the message
+	 */
+	public void pushLongArray(long[] longs) {
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = INTSIZE + longs.length * LONGSIZE;
+		push(mbuf);
+		
+		final ByteBuffer buf = ByteBuffer.wrap(mbuf.data, mbuf.off, mbuf.len);
+		buf.putInt(longs.length);
+		buf.asLongBuffer().put(longs);
+	}
+	
+	/**
+	 * Pushes an array of <i>ints</i> into the head of the message.
+	 * <br>
+	 * The length is written as an <i>int</i>, followed by the elements. It is the
+	 * same as pushing each element, from the last to the first, and then the length,
+	 * but the space is reserved only once.
+	 * @param ints the array to put in the message
+	 */
+	public void pushIntArray(int[] ints) {
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = INTSIZE + ints.length * INTSIZE;
+		push(mbuf);
+		
+		final ByteBuffer buf = ByteBuffer.wrap(mbuf.data, mbuf.off, mbuf.len);
+		buf.putInt(ints.length);
+		buf.asIntBuffer().put(ints);
+	}
+	
 	/** Pushes the given string into the message.
 	 * <br>
 	 * The string is coded with <I>UTF-8</I>. The implementation is based on {@link java.io.DataOutputStream DataOutputStream} class.
@@ -1169,53 +1589,103 @@ public class Message implements Cloneable {
 	 * @see java.io.DataOutputStream
 	 */
 	public void pushString(String str) {
-		int strlen = str.length();
-		int utflen = 0;
-		char[] charr = new char[strlen];
-		int c, count = 0;
-		
-		str.getChars(0, strlen, charr, 0);
+		final int strlen = str.length();
+		int utflen = strlen;
 		
 		for (int i = 0; i < strlen; i++) {
-			c = charr[i];
-			if ((c >= 0x0001) && (c <= 0x007F)) {
-				utflen++;
-			} else if (c > 0x07FF) {
-				utflen += 3;
-			} else {
-				utflen += 2;
-			}
+			final int c = str.charAt(i);
+			if ((c < 0x0001) || (c > 0x007F))
+				utflen += (c > 0x07FF) ? 2 : 1;
 		}
 		
+		if (utflen > 65535)
+			throw new MessageException("Error writing string to message.",new UTFDataFormatException());
+		
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = utflen + 2;
 		this.push(mbuf);
 		
-		if (utflen > 65535)
-			throw new MessageException("Error writing string to message.",new UTFDataFormatException());
+		final byte[] data = mbuf.data;
+		int count = mbuf.off;
+		data[count++] = (byte) ((utflen >>> 8) & 0xFF);
+		data[count++] = (byte) ((utflen >>> 0) & 0xFF);
+		
+		// only ASCII characters, one byte each
+		if (utflen == strlen) {
+			copyAscii(str, data, count);
+			return;
+		}
 		
-		mbuf.data[mbuf.off + count++] = (byte) ((utflen >>> 8) & 0xFF);
-		mbuf.data[mbuf.off + count++] = (byte) ((utflen >>> 0) & 0xFF);
 		for (int i = 0; i < strlen; i++) {
-			c = charr[i];
+			final int c = str.charAt(i);
 			if ((c >= 0x0001) && (c <= 0x007F)) {
-				mbuf.data[mbuf.off + count++] = (byte) c;
+				data[count++] = (byte) c;
 			} else if (c > 0x07FF) {
-				mbuf.data[mbuf.off + count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
-				mbuf.data[mbuf.off + count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
-				mbuf.data[mbuf.off + count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
+				data[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				data[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				data[count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
 			} else {
-				mbuf.data[mbuf.off + count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
-				mbuf.data[mbuf.off + count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
+				data[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				data[count++] = (byte) (0x80 | ((c >> 0) & 0x3F));
 			}
 		}
 	}
 	
+	@SuppressWarnings("deprecation")
+	private static void copyAscii(String str, byte[] data, int off) {
+		str.getBytes(0, str.length(), data, off);
+	}
+	
+	/**
+	 * Pushes a string as an index in a table of strings.
+	 * <br>
+	 * The table must be pushed, with {@link #pushStringTable(StringTable)}, after all the
+	 * strings that use it, so that it is popped before them.
+	 * @param str the string to push into the message
+	 * @param table the table where the string is added, if it is not there yet
+	 * @see StringTable
+	 */
+	public void pushString(String str, StringTable table) {
+		pushVarInt(table.add(str));
+	}
+	
+	/**
+	 * Pushes a table of strings into the message.
+	 * @param table the table to push into the message
+	 * @see #pushString(String, StringTable)
+	 */
+	public void pushStringTable(StringTable table) {
+		for (int i = table.size() - 1; i >= 0; i--)
+			pushString(table.get(i));
+		pushVarInt(table.size());
+	}
+	
+	/*
+	 * Gets the serializer of a tag read from the message.
+	 */
+	private static ObjectSerializer getSerializer(int tag) {
+		final ObjectSerializer serializer = ObjectSerializers.getSerializer(tag);
+		if (serializer == null)
+			throw new MessageException("Trying to read an object of an unregistered class (tag "+tag+").");
+		return serializer;
+	}
+	
+	/*
+	 * Creates an object whose class name was read from the message.
+	 */
+	private static SerializableObject newSerializableObject(String className) {
+		final SerializableObject obj = ObjectSerializers.newInstance(className);
+		if (obj == null)
+			throw new MessageException("Trying to read an object without a constructor without arguments: "+className);
+		return obj;
+	}
+	
 	/**
 	 * Pushes the given address into the message.
 	 * @param address the address to push
 	 */
 	private void pushInetSocketAddress(InetSocketAddress address){
-		MsgBuffer mbuf = new MsgBuffer();
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 6;
 		push(mbuf);
 		mbuf.data[mbuf.off + 0] = (byte) ((address.getPort() >>> 8) & 0xFF);
@@ -1233,9 +1703,19 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public Object popObject() {
+		final MsgBuffer mbuf = msgBuffer();
 		byte objectType = popByte();
-		if(objectType == INET_SOCKET_ADDR){
+		switch (objectType) {
+		case INET_SOCKET_ADDR:
 			return popInetSocketAddress();
+		case REGISTERED_OBJECT:
+			return getSerializer(popInt()).pop(this);
+		case SERIALIZABLE_OBJECT:
+			final SerializableObject obj = newSerializableObject(popString());
+			obj.popMySelf(this);
+			return obj;
+		case NULL_OBJECT:
+			return null;
 		}
 		// else, is the generic object
 		if (ais == null)
@@ -1267,6 +1747,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public long popLong() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = LONGSIZE;
 		popReadOnly(mbuf);
 		
@@ -1302,6 +1783,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public int popInt() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = INTSIZE;
 		popReadOnly(mbuf);
 		
@@ -1324,6 +1806,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public short popShort() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = SHORTSIZE;
 		popReadOnly(mbuf);
 		
@@ -1344,6 +1827,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public boolean popBoolean() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = BOOLSIZE;
 		popReadOnly(mbuf);
 		
@@ -1389,6 +1873,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public long popUnsignedInt() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = INTSIZE;
 		popReadOnly(mbuf);
 		
@@ -1411,6 +1896,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public int popUnsignedShort() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = SHORTSIZE;
 		popReadOnly(mbuf);
 		
@@ -1428,6 +1914,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public byte popByte() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 1;
 		popReadOnly(mbuf);
 		
@@ -1441,36 +1928,191 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public int popUnsignedByte() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 1;
 		popReadOnly(mbuf);
 		
 		return (mbuf.data[mbuf.off + 0] & 0xFF);
 	}
 	
+	/**
+	 * Pops a <i>long</i> pushed with {@link #pushVarLong(long)}.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public long popVarLong() {
+		return readVarLong(true);
+	}
+	
+	/**
+	 * Pops a <i>int</i> pushed with {@link #pushVarInt(int)}.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public int popVarInt() {
+		return (int) readVarLong(true);
+	}
+	
+	/**
+	 * Pops a <i>short</i> pushed with {@link #pushVarShort(short)}.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public short popVarShort() {
+		return (short) readVarLong(true);
+	}
+	
+	/**
+	 * Pops a <i>long</i> pushed with {@link #pushZigZagLong(long)}.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public long popZigZagLong() {
+		final long l = readVarLong(true);
+		return (l >>> 1) ^ -(l & 1);
+	}
+	
+	/**
+	 * Pops a <i>int</i> pushed with {@link #pushZigZagInt(int)}.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public int popZigZagInt() {
+		final int i = (int) readVarLong(true);
+		return (i >>> 1) ^ -(i & 1);
+	}
+	
+	/**
+	 * Pops an array of <i>longs</i> pushed with {@link #pushLongArray(long[])}.
+	 * @return the array removed from the message
+	 */
+	public long[] popLongArray() {
+		final long[] longs = new long[popInt()];
+		if (longs.length == 0)
+			return longs;
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = longs.length * LONGSIZE;
+		popReadOnly(mbuf);
+		if (mbuf.len < longs.length * LONGSIZE)
+			throw new MessageException("Error reading long array.", new EOFException());
+		
+		ByteBuffer.wrap(mbuf.data, mbuf.off, mbuf.len).asLongBuffer().get(longs);
+		return longs;
+	}
+	
+	/**
+	 * Pops an array of <i>ints</i> pushed with {@link #pushIntArray(int[])}.
+	 * @return the array removed from the message
+	 */
+	public int[] popIntArray() {
+		final int[] ints = new int[popInt()];
+		if (ints.length == 0)
+			return ints;
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = ints.length * INTSIZE;
+		popReadOnly(mbuf);
+		if (mbuf.len < ints.length * INTSIZE)
+			throw new MessageException("Error reading int array.", new EOFException());
+		
+		ByteBuffer.wrap(mbuf.data, mbuf.off, mbuf.len).asIntBuffer().get(ints);
+		return ints;
+	}
+	
+	/*
+	 * Reads a value coded by pushVarLong, removing it from the message if requested.
+	 */
+	private long readVarLong(boolean remove) {
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = Math.min(MAX_VARLONGSIZE, length());
+		peekReadOnly(mbuf);
+		
+		long l = 0;
+		int i = 0;
+		byte b;
+		do {
+			if (i == mbuf.len)
+				throw new MessageException("Error reading variable length value from message.");
+			b = mbuf.data[mbuf.off + i];
+			l |= (long) (b & 0x7F) << (7 * i);
+			i++;
+		} while (b < 0);
+		
+		if (remove)
+			discard(i);
+		return l;
+	}
+	
 	/** Pops a string from the message.
 	 * <br>
 	 * The string is coded with <I>UTF-8</I>. The implementation is based on {@link java.io.DataInputStream DataInputStream} class.
 	 * @return the string removed from the message
 	 */
 	public String popString() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 2;
 		popReadOnly(mbuf);
+		if (mbuf.len < 2)
+			throw new MessageException("Error reading string from message.",new EOFException());
 		
 		int ch1 = mbuf.data[mbuf.off + 0] & 0xFF;
 		int ch2 = mbuf.data[mbuf.off + 1] & 0xFF;
-		if ((ch1 | ch2) < 0)
-			throw new MessageException("Error reading string from message.",new EOFException());
 		int utflen = (ch1 << 8) + (ch2 << 0);
 		
 		mbuf.len = utflen;
-		char str[] = new char[utflen];
 		popReadOnly(mbuf);
-		int c, char2, char3;
+		if (mbuf.len < utflen)
+			throw new MessageException("Error reading string from message.",new EOFException());
+		return readString(mbuf.data, mbuf.off, utflen);
+	}
+	
+	/**
+	 * Pops a string pushed with {@link #pushString(String, StringTable)}.
+	 * @param table the table popped with {@link #popStringTable()}
+	 * @return the string removed from the message
+	 */
+	public String popString(StringTable table) {
+		return table.get(popVarInt());
+	}
+	
+	/**
+	 * Pops a table of strings pushed with {@link #pushStringTable(StringTable)}.
+	 * @return the table removed from the message
+	 */
+	public StringTable popStringTable() {
+		final int n = popVarInt();
+		final StringTable table = new StringTable();
+		for (int i = 0; i < n; i++)
+			table.add(popString());
+		return table;
+	}
+	
+	/*
+	 * Decodes a string coded with UTF-8.
+	 */
+	private static String readString(byte[] data, int off, int utflen) {
+		if (utflen == 0)
+			return "";
 		int count = 0;
+		while ((count < utflen) && (data[off + count] > 0))
+			count++;
+		// only ASCII characters, one byte each
+		if (count == utflen)
+			return asciiString(data, off, utflen);
+		
+		char str[] = new char[utflen];
+		int c, char2, char3;
 		int strlen = 0;
 		
+		for (; strlen < count; strlen++)
+			str[strlen] = (char) data[off + strlen];
+		
 		while (count < utflen) {
-			c = (int) mbuf.data[mbuf.off + count] & 0xff;
+			c = (int) data[off + count] & 0xff;
 			switch (c >> 4) {
 			case 0 :
 			case 1 :
@@ -1488,14 +2130,20 @@ public class Message implements Cloneable {
 			case 13 :
 				/* 110x xxxx   10xx xxxx*/
 				count += 2;
-				char2 = (int) mbuf.data[mbuf.off + count - 1];
+				if (count > utflen)
+					throw new MessageException("Error reading string from message (Wrong string size).",
+							new EOFException());
+				char2 = (int) data[off + count - 1];
 				str[strlen++] = (char) (((c & 0x1F) << 6) | (char2 & 0x3F));
 				break;
 			case 14 :
 				/* 1110 xxxx  10xx xxxx  10xx xxxx */
 				count += 3;
-				char2 = (int) mbuf.data[mbuf.off + count - 2];
-				char3 = (int) mbuf.data[mbuf.off + count - 1];
+				if (count > utflen)
+					throw new MessageException("Error reading string from message (Wrong string size).",
+							new EOFException());
+				char2 = (int) data[off + count - 2];
+				char3 = (int) data[off + count - 1];
 				str[strlen++] =
 					(char) (((c & 0x0F) << 12) | ((char2 & 0x3F) << 6) | ((char3 & 0x3F) << 0));
 				break;
@@ -1507,8 +2155,13 @@ public class Message implements Cloneable {
 		return new String(str, 0, strlen);
 	}
 	
+	@SuppressWarnings("deprecation")
+	private static String asciiString(byte[] data, int off, int len) {
+		return new String(data, 0, off, len);
+	}
+	
 	private InetSocketAddress popInetSocketAddress() {
-		MsgBuffer mbuf = new MsgBuffer();
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 6;
 		pop(mbuf);
 		StringBuilder strBuilder = new StringBuilder();
@@ -1539,14 +2192,34 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public Object peekObject() {
-		if (size <= 0)
+		final MsgBuffer mbuf = msgBuffer();
+		if (length() <= 0)
 			return null;
 		
 		byte objectType = popByte();
-		if(objectType == INET_SOCKET_ADDR){
+		switch (objectType) {
+		case INET_SOCKET_ADDR:
 			InetSocketAddress addr = peekInetSocketAddress();
 			pushByte(objectType);
 			return addr;
+		case REGISTERED_OBJECT:
+			final int tag = popInt();
+			final ObjectSerializer serializer = getSerializer(tag);
+			final Object value = serializer.pop(this);
+			serializer.push(value, this);
+			pushInt(tag);
+			pushByte(objectType);
+			return value;
+		case SERIALIZABLE_OBJECT:
+			final String className = popString();
+			final SerializableObject obj = newSerializableObject(className);
+			obj.peekMySelf(this);
+			pushString(className);
+			pushByte(objectType);
+			return obj;
+		case NULL_OBJECT:
+			pushByte(objectType);
+			return null;
 		}
 		
 		if (ais == null)
@@ -1579,17 +2252,18 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public long peekLong() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = LONGSIZE;
 		peekReadOnly(mbuf);
 		
-		int ch1 = mbuf.data[mbuf.off + 0] & 0xFF;
-		int ch2 = mbuf.data[mbuf.off + 1] & 0xFF;
-		int ch3 = mbuf.data[mbuf.off + 2] & 0xFF;
-		int ch4 = mbuf.data[mbuf.off + 3] & 0xFF;
-		int ch5 = mbuf.data[mbuf.off + 4] & 0xFF;
-		int ch6 = mbuf.data[mbuf.off + 5] & 0xFF;
-		int ch7 = mbuf.data[mbuf.off + 6] & 0xFF;
-		int ch8 = mbuf.data[mbuf.off + 7] & 0xFF;
+		long ch1 = mbuf.data[mbuf.off + 0] & 0xFF;
+		long ch2 = mbuf.data[mbuf.off + 1] & 0xFF;
+		long ch3 = mbuf.data[mbuf.off + 2] & 0xFF;
+		long ch4 = mbuf.data[mbuf.off + 3] & 0xFF;
+		long ch5 = mbuf.data[mbuf.off + 4] & 0xFF;
+		long ch6 = mbuf.data[mbuf.off + 5] & 0xFF;
+		long ch7 = mbuf.data[mbuf.off + 6] & 0xFF;
+		long ch8 = mbuf.data[mbuf.off + 7] & 0xFF;
 		if ((ch1 | ch2 | ch3 | ch4 | ch5 | ch6 | ch7 | ch8) < 0)
 			throw new MessageException("Error peeking value.",new EOFException());
 		return (
@@ -1614,6 +2288,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public int peekInt() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = INTSIZE;
 		peekReadOnly(mbuf);
 		
@@ -1636,6 +2311,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public short peekShort() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = SHORTSIZE;
 		peekReadOnly(mbuf);
 		
@@ -1656,6 +2332,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public boolean peekBoolean() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = BOOLSIZE;
 		peekReadOnly(mbuf);
 		
@@ -1701,6 +2378,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public long peekUnsignedInt() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = INTSIZE;
 		peekReadOnly(mbuf);
 		
@@ -1723,6 +2401,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public int peekUnsignedShort() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = SHORTSIZE;
 		peekReadOnly(mbuf);
 		
@@ -1740,6 +2419,7 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public byte peekByte() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 1;
 		peekReadOnly(mbuf);
 		
@@ -1753,75 +2433,131 @@ public class Message implements Cloneable {
 	 * @see net.sf.appia.core.message.MessageException
 	 */
 	public int peekUnsignedByte() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 1;
 		peekReadOnly(mbuf);
 		
 		return (mbuf.data[mbuf.off + 0] & 0xFF);
 	}
 	
+	/**
+	 * Returns the <i>long</i> pushed with {@link #pushVarLong(long)}, without removing it.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public long peekVarLong() {
+		return readVarLong(false);
+	}
+	
+	/**
+	 * Returns the <i>int</i> pushed with {@link #pushVarInt(int)}, without removing it.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public int peekVarInt() {
+		return (int) readVarLong(false);
+	}
+	
+	/**
+	 * Returns the <i>short</i> pushed with {@link #pushVarShort(short)}, without removing it.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public short peekVarShort() {
+		return (short) readVarLong(false);
+	}
+	
+	/**
+	 * Returns the <i>long</i> pushed with {@link #pushZigZagLong(long)}, without removing it.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public long peekZigZagLong() {
+		final long l = readVarLong(false);
+		return (l >>> 1) ^ -(l & 1);
+	}
+	
+	/**
+	 * Returns the <i>int</i> pushed with {@link #pushZigZagInt(int)}, without removing it.
+	 *
+	 * @return the value at the head of the message
+	 * @see net.sf.appia.core.message.MessageException
+	 */
+	public int peekZigZagInt() {
+		final int i = (int) readVarLong(false);
+		return (i >>> 1) ^ -(i & 1);
+	}
+	
+	/**
+	 * Gets, without removing, an array of <i>longs</i> pushed with {@link #pushLongArray(long[])}.
+	 * @return the array peeked from the message
+	 */
+	public long[] peekLongArray() {
+		final long[] longs = new long[peekInt()];
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = INTSIZE + longs.length * LONGSIZE;
+		peekReadOnly(mbuf);
+		if (mbuf.len < INTSIZE + longs.length * LONGSIZE)
+			throw new MessageException("Error peeking long array.", new EOFException());
+		
+		ByteBuffer.wrap(mbuf.data, mbuf.off + INTSIZE, mbuf.len - INTSIZE).asLongBuffer().get(longs);
+		return longs;
+	}
+	
+	/**
+	 * Gets, without removing, an array of <i>ints</i> pushed with {@link #pushIntArray(int[])}.
+	 * @return the array peeked from the message
+	 */
+	public int[] peekIntArray() {
+		final int[] ints = new int[peekInt()];
+		final MsgBuffer mbuf = msgBuffer();
+		mbuf.len = INTSIZE + ints.length * INTSIZE;
+		peekReadOnly(mbuf);
+		if (mbuf.len < INTSIZE + ints.length * INTSIZE)
+			throw new MessageException("Error peeking int array.", new EOFException());
+		
+		ByteBuffer.wrap(mbuf.data, mbuf.off + INTSIZE, mbuf.len - INTSIZE).asIntBuffer().get(ints);
+		return ints;
+	}
+	
 	/** Get, without removing, a string from the message.
 	 * <br>
 	 * The string is coded with <I>UTF-8</I>. The implementation is based on {@link java.io.DataInputStream DataInputStream} class.
 	 * @return the string peeked from the message
 	 */
 	public String peekString() {
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 2;
-		popReadOnly(mbuf);
+		peekReadOnly(mbuf);
+		if (mbuf.len < 2)
+			throw new MessageException("Error peeking string from message.",new EOFException());
 		
 		int ch1 = mbuf.data[mbuf.off + 0] & 0xFF;
 		int ch2 = mbuf.data[mbuf.off + 1] & 0xFF;
-		if ((ch1 | ch2) < 0)
-			throw new MessageException("Error peeking string from message.",new EOFException());
 		int utflen = (ch1 << 8) + (ch2 << 0);
 		
-		mbuf.len = utflen;
-		char str[] = new char[utflen];
+		mbuf.len = utflen + 2;
 		peekReadOnly(mbuf);
-		int c, char2, char3;
-		int count = 0;
-		int strlen = 0;
-		
-		while (count < utflen) {
-			c = (int) mbuf.data[mbuf.off + count] & 0xff;
-			switch (c >> 4) {
-			case 0 :
-			case 1 :
-			case 2 :
-			case 3 :
-			case 4 :
-			case 5 :
-			case 6 :
-			case 7 :
-				/* 0xxxxxxx*/
-				count++;
-				str[strlen++] = (char) c;
-				break;
-			case 12 :
-			case 13 :
-				/* 110x xxxx   10xx xxxx*/
-				count += 2;
-				char2 = (int) mbuf.data[mbuf.off + count - 1];
-				str[strlen++] = (char) (((c & 0x1F) << 6) | (char2 & 0x3F));
-				break;
-			case 14 :
-				/* 1110 xxxx  10xx xxxx  10xx xxxx */
-				count += 3;
-				char2 = (int) mbuf.data[mbuf.off + count - 2];
-				char3 = (int) mbuf.data[mbuf.off + count - 1];
-				str[strlen++] =
-					(char) (((c & 0x0F) << 12) | ((char2 & 0x3F) << 6) | ((char3 & 0x3F) << 0));
-				break;
-			}
-		}
-		mbuf.len = 2;
-		this.push(mbuf);
-		mbuf.data[mbuf.off + count++] = (byte) ((utflen >>> 8) & 0xFF);
-		mbuf.data[mbuf.off + count++] = (byte) ((utflen >>> 0) & 0xFF);
-		return new String(str, 0, strlen);
+		if (mbuf.len < utflen + 2)
+			throw new MessageException("Error peeking string from message.",new EOFException());
+		return readString(mbuf.data, mbuf.off + 2, utflen);
+	}
+	
+	/**
+	 * Gets, without removing, a string pushed with {@link #pushString(String, StringTable)}.
+	 * @param table the table popped with {@link #popStringTable()}
+	 * @return the string peeked from the message
+	 */
+	public String peekString(StringTable table) {
+		return table.get(peekVarInt());
 	}
 	
 	private InetSocketAddress peekInetSocketAddress() {
-		MsgBuffer mbuf = new MsgBuffer();
+		final MsgBuffer mbuf = msgBuffer();
 		mbuf.len = 6;
 		peek(mbuf);
 		StringBuilder strBuilder = new StringBuilder();
@@ -1920,6 +2656,7 @@ public class Message implements Cloneable {
 	}
 	
 	private void check() {
+		final MsgBuffer mbuf = msgBuffer();
 		if (aos == null)
 			aos=new AuxOutputStream();
 		if (ais == null)
@@ -0,0 +1,46 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+/**
+ * Writes objects of a given class into a message, and reads them back, using the
+ * message primitives instead of Java serialization.
+ * 
+ * @see ObjectSerializers
+ * @see Message#pushObject(Object)
+ */
+public interface ObjectSerializer {
+
+	/**
+	 * Pushes the fields of the object into the message.
+	 * @param obj the object.
+	 * @param m the message.
+	 */
+	public void push(Object obj, Message m);
+
+	/**
+	 * Pops the fields pushed by {@link #push(Object, Message)} and rebuilds the object.
+	 * @param m the message.
+	 * @return the object.
+	 */
+	public Object pop(Message m);
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link ObjectSerializer ObjectSerializers} used by
+ * {@link Message#pushObject(Object)} and {@link Message#popObject()}.
+ * <br>
+ * Registered classes are identified in the message by a tag derived from the hash
+ * code of the class name, so it is the same in every Appia instance, as long as the
+ * class is registered by both the sender and the receiver. Strings and boxed
+ * primitive types are registered by default.
+ * <br>
+ * Classes that implement {@link SerializableObject} and have a public constructor
+ * without arguments do not need to be registered: if they are not, they are
+ * identified by their class name.
+ */
+public final class ObjectSerializers {
+
+	private static final Class[] NO_ARGS = new Class[0];
+
+	private static final ConcurrentHashMap<Class,Integer> tags = new ConcurrentHashMap<Class,Integer>();
+	private static final ConcurrentHashMap<Integer,ObjectSerializer> serializers =
+		new ConcurrentHashMap<Integer,ObjectSerializer>();
+	private static final ConcurrentHashMap<String,Constructor> constructors =
+		new ConcurrentHashMap<String,Constructor>();
+
+	// marks the classes without a suitable constructor
+	private static final Constructor NONE = ObjectSerializers.class.getDeclaredConstructors()[0];
+
+	private ObjectSerializers() {}
+
+	static {
+		register(String.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushString((String) obj); }
+			public Object pop(Message m) { return m.popString(); }
+		});
+		register(Long.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushLong(((Long) obj).longValue()); }
+			public Object pop(Message m) { return Long.valueOf(m.popLong()); }
+		});
+		register(Integer.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushInt(((Integer) obj).intValue()); }
+			public Object pop(Message m) { return Integer.valueOf(m.popInt()); }
+		});
+		register(Short.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushShort(((Short) obj).shortValue()); }
+			public Object pop(Message m) { return Short.valueOf(m.popShort()); }
+		});
+		register(Byte.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushByte(((Byte) obj).byteValue()); }
+			public Object pop(Message m) { return Byte.valueOf(m.popByte()); }
+		});
+		register(Boolean.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushBoolean(((Boolean) obj).booleanValue()); }
+			public Object pop(Message m) { return Boolean.valueOf(m.popBoolean()); }
+		});
+		register(Double.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushDouble(((Double) obj).doubleValue()); }
+			public Object pop(Message m) { return new Double(m.popDouble()); }
+		});
+		register(Float.class, new ObjectSerializer() {
+			public void push(Object obj, Message m) { m.pushFloat(((Float) obj).floatValue()); }
+			public Object pop(Message m) { return new Float(m.popFloat()); }
+		});
+	}
+
+	/**
+	 * Registers the serializer of a class. Subclasses must be registered separately.
+	 * @param c the class.
+	 * @param serializer the serializer.
+	 * @throws IllegalArgumentException if the tag of the class is already used by another class.
+	 */
+	public static void register(Class c, ObjectSerializer serializer) {
+		final Integer tag = new Integer(c.getName().hashCode());
+		final Class old = classOf(tag);
+		if ((old != null) && (old != c))
+			throw new IllegalArgumentException("Tag of "+c.getName()+" is already used by "+old.getName());
+		serializers.put(tag, serializer);
+		tags.put(c, tag);
+	}
+
+	/**
+	 * Registers a class that implements {@link SerializableObject}, and has a public
+	 * constructor without arguments.
+	 * @param c the class.
+	 * @throws IllegalArgumentException if the class has no such constructor, or if its tag
+	 * is already used by another class.
+	 */
+	public static void register(final Class<? extends SerializableObject> c) {
+		final Constructor constructor = getConstructor(c.getName());
+		if (constructor == null)
+			throw new IllegalArgumentException(c.getName()+" has no public constructor without arguments");
+		register(c, new ObjectSerializer() {
+			public void push(Object obj, Message m) {
+				((SerializableObject) obj).pushMySelf(m);
+			}
+			public Object pop(Message m) {
+				final SerializableObject obj = newInstance(constructor);
+				obj.popMySelf(m);
+				return obj;
+			}
+		});
+	}
+
+	/**
+	 * Gets the tag of a registered class.
+	 * @param c the class.
+	 * @return the tag, or null if the class is not registered.
+	 */
+	static Integer getTag(Class c) {
+		return tags.get(c);
+	}
+
+	/**
+	 * Gets the serializer of a tag.
+	 * @param tag the tag.
+	 * @return the serializer, or null if the tag is unknown.
+	 */
+	static ObjectSerializer getSerializer(int tag) {
+		return serializers.get(new Integer(tag));
+	}
+
+	/**
+	 * Creates an instance of a class that implements {@link SerializableObject}.
+	 * @param className the name of the class.
+	 * @return the new object, or null if the class has no public constructor without arguments.
+	 */
+	static SerializableObject newInstance(String className) {
+		final Constructor constructor = getConstructor(className);
+		return constructor == null ? null : newInstance(constructor);
+	}
+
+	/**
+	 * Tests if objects of the given class can be created by {@link #newInstance(String)}.
+	 */
+	static boolean isInstantiable(Class c) {
+		return SerializableObject.class.isAssignableFrom(c) && (getConstructor(c.getName()) != null);
+	}
+
+	private static SerializableObject newInstance(Constructor constructor) {
+		try {
+			return (SerializableObject) constructor.newInstance((Object[]) null);
+		} catch (Exception ex) {
+			throw new MessageException("Error creating "+constructor.getDeclaringClass().getName(), ex);
+		}
+	}
+
+	private static Constructor getConstructor(String className) {
+		Constructor constructor = constructors.get(className);
+		if (constructor == null) {
+			try {
+				final Class c = Class.forName(className);
+				if (SerializableObject.class.isAssignableFrom(c))
+					constructor = c.getConstructor(NO_ARGS);
+				else
+					constructor = NONE;
+			} catch (ClassNotFoundException ex) {
+				throw new MessageException("Trying to read an unknown object from message.", ex);
+			} catch (NoSuchMethodException ex) {
+				constructor = NONE;
+			}
+			constructors.put(className, constructor);
+		}
+		return constructor == NONE ? null : constructor;
+	}
+
+	private static Class classOf(Integer tag) {
+		for (Map.Entry<Class,Integer> e : tags.entrySet())
+			if (e.getValue().equals(tag))
+				return e.getKey();
+		return null;
+	}
+}
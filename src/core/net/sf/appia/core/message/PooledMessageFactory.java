@@ -0,0 +1,78 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+/**
+ * This class defines a PooledMessageFactory. The messages it creates take the arrays
+ * used to push headers from a {@link BufferPool}, and return them when the blocks
+ * are discarded, so a channel that discards the messages it no longer needs
+ * (see {@link Message#discardAll()}) pushes headers without allocating memory.
+ * <br>
+ * It can be used in the XML configuration with the <i>messageFactory</i> attribute
+ * of a channel, in which case it uses a {@link ThreadLocalBufferPool}.
+ */
+public class PooledMessageFactory implements MessageFactory {
+
+    private BufferPool pool;
+
+    /**
+     * Creates a factory that uses a {@link ThreadLocalBufferPool}.
+     */
+    public PooledMessageFactory(){
+        this(new ThreadLocalBufferPool());
+    }
+
+    /**
+     * Creates a factory that uses the given pool.
+     * @param pool the pool of arrays.
+     */
+    public PooledMessageFactory(BufferPool pool){
+        this.pool = pool;
+    }
+
+    /**
+     * 
+     * @see net.sf.appia.core.message.MessageFactory#newMessage()
+     */
+    public Message newMessage() {
+        final Message msg = new Message();
+        msg.setBufferPool(pool);
+        return msg;
+    }
+
+    /**
+     * 
+     * @see net.sf.appia.core.message.MessageFactory#newMessage(byte[], int, int)
+     */
+    public Message newMessage(byte[] payload, int offset, int length) {
+        final Message msg = new Message(payload,offset,length);
+        msg.setBufferPool(pool);
+        return msg;
+    }
+
+    /**
+     * Gets the pool used by this factory.
+     * @return the pool.
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.core.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Table of the strings of a header, so that repeated strings are sent only once.
+ * <br>
+ * The sender pushes each string with {@link Message#pushString(String, StringTable)},
+ * that only writes its index in the table, and then pushes the table itself with
+ * {@link Message#pushStringTable(StringTable)}. The receiver pops the table with
+ * {@link Message#popStringTable()} and then the strings with
+ * {@link Message#popString(StringTable)}.
+ * <br>
+ * The table belongs to a single header, so it does not depend on the order or
+ * on the delivery of other messages.
+ */
+public class StringTable {
+
+	private final HashMap<String,Integer> indexes = new HashMap<String,Integer>();
+	private final ArrayList<String> strings = new ArrayList<String>();
+
+	/**
+	 * Adds a string to the table, if it is not there yet.
+	 * @param str the string
+	 * @return the index of the string in the table
+	 */
+	public int add(String str) {
+		final Integer i = indexes.get(str);
+		if (i != null)
+			return i.intValue();
+		final int index = strings.size();
+		strings.add(str);
+		indexes.put(str, Integer.valueOf(index));
+		return index;
+	}
+
+	/**
+	 * Gets a string of the table.
+	 * @param index the index of the string
+	 * @return the string
+	 * @throws MessageException if the index is not in the table
+	 */
+	public String get(int index) {
+		if (index < 0 || index >= strings.size())
+			throw new MessageException("Index "+index+" is not in the string table.");
+		return strings.get(index);
+	}
+
+	/**
+	 * Gets the number of strings in the table.
+	 */
+	public int size() {
+		return strings.size();
+	}
+}
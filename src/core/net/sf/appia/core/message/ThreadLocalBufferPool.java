@@ -0,0 +1,119 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+
+package net.sf.appia.core.message;
+
+/**
+ * A {@link BufferPool} with size classes that are powers of two, from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes.
+ * <br>
+ * Each thread keeps its own free lists, so the arrays are handed out and
+ * returned without synchronization by the thread of the
+ * {@link net.sf.appia.core.EventScheduler EventScheduler} that runs the channel.
+ * Larger arrays are allocated and left to the garbage collector.
+ */
+public class ThreadLocalBufferPool implements BufferPool {
+
+    /** Smallest size class. */
+    public static final int MIN_SIZE = 512;
+    /** Largest size class. */
+    public static final int MAX_SIZE = 64*1024;
+    /** Default number of arrays kept by each thread, per size class. */
+    public static final int DEFAULT_MAX_BUFFERS = 64;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    /*
+     * Free lists of one thread.
+     */
+    private static class Cache {
+        final byte[][][] free;
+        final int[] count = new int[CLASSES];
+
+        Cache(int maxBuffers) {
+            free = new byte[CLASSES][maxBuffers][];
+        }
+    }
+
+    private final int maxBuffers;
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+        protected Cache initialValue() {
+            return new Cache(maxBuffers);
+        }
+    };
+
+    /**
+     * Creates a pool that keeps up to {@link #DEFAULT_MAX_BUFFERS} arrays per size class.
+     */
+    public ThreadLocalBufferPool() {
+        this(DEFAULT_MAX_BUFFERS);
+    }
+
+    /**
+     * Creates a pool.
+     * @param maxBuffers the number of arrays kept by each thread, per size class.
+     */
+    public ThreadLocalBufferPool(int maxBuffers) {
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @see net.sf.appia.core.message.BufferPool#acquire(int)
+     */
+    public byte[] acquire(int length) {
+        if (length > MAX_SIZE)
+            return new byte[length];
+        final int c = sizeClass(length);
+        final Cache cache = caches.get();
+        final int n = cache.count[c];
+        if (n == 0)
+            return new byte[MIN_SIZE << c];
+        cache.count[c] = n - 1;
+        final byte[] buf = cache.free[c][n - 1];
+        cache.free[c][n - 1] = null;
+        return buf;
+    }
+
+    /**
+     * @see net.sf.appia.core.message.BufferPool#release(byte[])
+     */
+    public void release(byte[] buf) {
+        final int length = buf.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1)
+            return;
+        final int c = Integer.numberOfTrailingZeros(length) - MIN_SHIFT;
+        final Cache cache = caches.get();
+        final int n = cache.count[c];
+        if (n < maxBuffers) {
+            cache.free[c][n] = buf;
+            cache.count[c] = n + 1;
+        }
+    }
+
+    /*
+     * Index of the smallest size class that holds length bytes.
+     */
+    private static int sizeClass(int length) {
+        if (length <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+}
@@ -49,6 +49,7 @@ import javax.management.ReflectionException;
 
 import net.sf.appia.core.Channel;
 import net.sf.appia.core.Session;
+import net.sf.appia.core.message.HeaderStats;
 import net.sf.appia.management.AppiaManagementException;
 import net.sf.appia.management.ManagedSession;
 import net.sf.appia.management.SensorSessionListener;
@@ -68,6 +69,9 @@ implements DynamicMBean, SensorSessionListener {
     private static Logger log = Logger.getLogger(ChannelManager.class);
     
     private static final String LOCALATT_USED_MEMORY = "usedMemory";
+    private static final String LOCALATT_HEADER_BYTES_PUSHED = "headerBytesPushed";
+    private static final String LOCALATT_HEADER_BYTES_POPPED = "headerBytesPopped";
+    private static final String LOCALATT_HEADER_LAYER_STATS = "headerLayerStats";
     
     private class Operation<T extends MBeanFeatureInfo>{
         T operation;
@@ -102,6 +106,14 @@ implements DynamicMBean, SensorSessionListener {
         mbai = new ArrayList<MBeanAttributeInfo>();
         mbai.add(new MBeanAttributeInfo(LOCALATT_USED_MEMORY,"gets the memory used by this channel",
                 this.getClass().getName(),true,false,false));
+        if(channel.getHeaderStats() != null){
+            mbai.add(new MBeanAttributeInfo(LOCALATT_HEADER_BYTES_PUSHED,"gets the header bytes pushed by all layers",
+                    long.class.getName(),true,false,false));
+            mbai.add(new MBeanAttributeInfo(LOCALATT_HEADER_BYTES_POPPED,"gets the header bytes popped by all layers",
+                    long.class.getName(),true,false,false));
+            mbai.add(new MBeanAttributeInfo(LOCALATT_HEADER_LAYER_STATS,"gets the header bytes pushed and popped by each layer",
+                    String[].class.getName(),true,false,false));
+        }
         updateMBeanInfo();
     }
 
@@ -197,6 +209,15 @@ implements DynamicMBean, SensorSessionListener {
             log.debug("GET from DynamicMBean: "+att);
         if(att.equals(LOCALATT_USED_MEMORY))
             return getUsedMemory();
+        final HeaderStats stats = channel.getHeaderStats();
+        if(stats != null){
+            if(att.equals(LOCALATT_HEADER_BYTES_PUSHED))
+                return stats.getTotalPushed();
+            if(att.equals(LOCALATT_HEADER_BYTES_POPPED))
+                return stats.getTotalPopped();
+            if(att.equals(LOCALATT_HEADER_LAYER_STATS))
+                return stats.getLayerStats();
+        }
         
         final Operation<MBeanAttributeInfo> op = attributes.get(att);
         if(op != null && (op.operation.isIs() || op.operation.isReadable())){
@@ -0,0 +1,54 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.batch;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Event that carries a batch of events sent to the same destination.
+ * <br>
+ * The message starts with the number of events, followed by the type,
+ * length and contents of each one.
+ *
+ * @see BatchSession
+ */
+public class BatchEvent extends SendableEvent {
+
+  /**
+   * Empty constructor. Required for event dynamic instantiation.
+   */
+  public BatchEvent() {
+    super();
+  }
+
+  /**
+   * Creates an initialized event.
+   * @param channel the channel
+   * @param dir the direction
+   * @param source the session that creates the event
+   * @throws AppiaEventException
+   */
+  public BatchEvent(Channel channel, int dir, Session source) throws AppiaEventException {
+    super(channel, dir, source);
+  }
+}
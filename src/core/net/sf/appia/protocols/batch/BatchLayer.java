@@ -0,0 +1,86 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.batch;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+
+/**
+ * Layer definition of the batching protocol.
+ * <br>
+ * Packs the small messages sent to the same destination in a single PDU,
+ * up to the PDU size of the transport or until a linger time expires.
+ * It should be placed right above the transport protocol.
+ *
+ * The protocol provides the following events:
+ * <ul>
+ * <li>BatchEvent: carries a batch of events.
+ * <li>BatchTimer: flushes the batches after the linger time.
+ * <li>MaxPDUSizeEvent: queries the transport for the PDU size.
+ * <li>SendableEvent: the events unpacked from the received batches.
+ * </ul>
+ * The protocol accepts the following events:
+ * <ul>
+ * <li>SendableEvent (Require): events to pack, and batches to unpack.
+ * <li>ChannelInit (Require): Initialization procedures.
+ * <li>ChannelClose (Accept): flushes the batches of the channel.
+ * <li>MaxPDUSizeEvent (Accept): learns the PDU size of the transport.
+ * <li>BatchTimer (Accept): flushes the batches of the channel.
+ * </ul>
+ *
+ * @see BatchSession
+ * @see BatchEvent
+ * @see net.sf.appia.protocols.frag.MaxPDUSizeEvent
+ */
+public class BatchLayer extends Layer {
+
+  public BatchLayer() {
+    evProvide = new Class[] {
+        BatchEvent.class,
+        BatchTimer.class,
+        MaxPDUSizeEvent.class,
+        SendableEvent.class,
+    };
+
+    evRequire = new Class[] {
+        SendableEvent.class,
+        ChannelInit.class,
+    };
+
+    evAccept = new Class[] {
+        SendableEvent.class,
+        ChannelInit.class,
+        ChannelClose.class,
+        MaxPDUSizeEvent.class,
+        BatchTimer.class,
+    };
+  }
+
+  /**
+   * @see net.sf.appia.core.Layer#createSession()
+   */
+  public Session createSession() {
+    return new BatchSession(this);
+  }
+}
@@ -0,0 +1,544 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.batch;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanOperationInfo;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.management.AppiaManagementException;
+import net.sf.appia.management.ManagedSession;
+import net.sf.appia.protocols.common.EventTypeRegistry;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Session of the batching protocol.
+ * <br>
+ * Events going down are kept in a batch per destination while they fit in the
+ * PDU size given by the transport, in reply to a {@link MaxPDUSizeEvent}. A batch
+ * is sent in a single {@link BatchEvent} when the next event does not fit, or
+ * when the linger time expires. A batch with a single event is sent as the
+ * original event. Events that do not fit in a PDU are not batched.
+ * <br>
+ * An event whose destinations overlap those of a pending batch, other than its
+ * own, flushes that batch first, so the events sent to each process keep their order.
+ * <br>
+ * Received batches are split, without copying, into the original events.
+ *
+ * @see BatchLayer
+ */
+public class BatchSession extends Session implements InitializableSession, ManagedSession {
+
+  private static Logger log = Logger.getLogger(BatchSession.class);
+
+  public static final long DEFAULT_LINGER_TIME=5;
+
+  public static final String FILL_RATIO = "fill_ratio";
+  public static final String CHANNEL_FILL_RATIOS = "channel_fill_ratios";
+  public static final String LINGER_TIME = "linger_time";
+
+  // the number of events in a batch, as a varint
+  private static final int BATCH_HEADER_SIZE=5;
+
+  private long param_LINGER_TIME=DEFAULT_LINGER_TIME;
+  private int param_BATCH_SIZE=-1;
+
+  private EventTypeRegistry eventTypes=new EventTypeRegistry();
+  private Map<Channel,ChannelState> channels=new HashMap<Channel,ChannelState>();
+  private Map<String,String> jmxFeaturesMap=new Hashtable<String,String>();
+
+  /*
+   * Batches and counters of a channel.
+   */
+  private static final class ChannelState {
+    final Channel channel;
+    int pduSize=-1;
+    // replies to MaxPDUSizeEvents from the layers above, still to come
+    int pendingQueries=0;
+    boolean timerOn=false;
+    final LinkedHashMap<Destination,Batch> batches=new LinkedHashMap<Destination,Batch>();
+
+    long sent=0;
+    long events=0;
+    long bytes=0;
+    long capacity=0;
+
+    ChannelState(Channel channel) {
+      this.channel=channel;
+    }
+
+    float fillRatio() {
+      return (capacity == 0) ? 0F : (float) bytes / (float) capacity;
+    }
+  }
+
+  /*
+   * Events waiting to be sent to a destination.
+   */
+  private static final class Batch {
+    final Object dest;
+    final ArrayList<SendableEvent> events=new ArrayList<SendableEvent>();
+    int size=BATCH_HEADER_SIZE;
+
+    Batch(Object dest) {
+      this.dest=dest;
+    }
+  }
+
+  /*
+   * Destination of an event, comparable by value.
+   */
+  private static final class Destination {
+    final Object address;
+    final Object[] members;
+    // the processes that receive the events, or null if unknown
+    final Set<Object> receivers;
+
+    Destination(Object dest) {
+      if (dest instanceof AppiaMulticast) {
+        final AppiaMulticast m=(AppiaMulticast) dest;
+        address=m.getMulticastAddress();
+        members=m.getDestinations();
+        receivers=(address == null && members != null) ? new HashSet<Object>(Arrays.asList(members)) : null;
+      } else {
+        address=dest;
+        members=null;
+        receivers=(dest instanceof InetSocketAddress && !((InetSocketAddress) dest).getAddress().isMulticastAddress()) ?
+            new HashSet<Object>(Arrays.asList(new Object[]{dest})) : null;
+      }
+    }
+
+    boolean overlaps(Destination other) {
+      if (receivers == null || other.receivers == null)
+        return true;
+      final Set<Object> smaller=(receivers.size() < other.receivers.size()) ? receivers : other.receivers;
+      final Set<Object> larger=(smaller == receivers) ? other.receivers : receivers;
+      for (Object o : smaller)
+        if (larger.contains(o))
+          return true;
+      return false;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Destination))
+        return false;
+      final Destination d=(Destination) o;
+      return ((address == null) ? d.address == null : address.equals(d.address)) &&
+        Arrays.equals(members, d.members);
+    }
+
+    public int hashCode() {
+      return ((address == null) ? 0 : address.hashCode()) ^ Arrays.hashCode(members);
+    }
+  }
+
+  /**
+   * Creates a new BatchSession.
+   * @param layer the layer
+   */
+  public BatchSession(Layer layer) {
+    super(layer);
+  }
+
+  /**
+   * Initializes the session using the parameters given in the XML configuration.
+   * Possible parameters:
+   * <ul>
+   * <li><b>linger_time</b> maximum time an event waits in a batch. (in milliseconds)
+   * <li><b>batch_size</b> maximum size of a batch, used instead of the PDU size of the transport.
+   * </ul>
+   *
+   * @param params The parameters given in the XML configuration.
+   */
+  public void init(SessionProperties params) {
+    if (params.containsKey("linger_time"))
+      param_LINGER_TIME=params.getLong("linger_time");
+    if (params.containsKey("batch_size"))
+      param_BATCH_SIZE=params.getInt("batch_size");
+  }
+
+  public void handle(Event e) {
+    if (e instanceof SendableEvent) {
+      if (e.getDir() == Direction.DOWN)
+        handleDown((SendableEvent) e);
+      else if (e instanceof BatchEvent)
+        handleBatch((BatchEvent) e);
+      else
+        forward(e);
+    } else if (e instanceof BatchTimer)
+      handleTimer((BatchTimer) e);
+    else if (e instanceof MaxPDUSizeEvent)
+      handlePDUSize((MaxPDUSizeEvent) e);
+    else if (e instanceof ChannelInit)
+      handleChannelInit((ChannelInit) e);
+    else if (e instanceof ChannelClose)
+      handleChannelClose((ChannelClose) e);
+    else
+      forward(e);
+  }
+
+  private void forward(Event e) {
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleChannelInit(ChannelInit e) {
+    final ChannelState cs=new ChannelState(e.getChannel());
+    if (param_BATCH_SIZE > 0)
+      cs.pduSize=param_BATCH_SIZE;
+    channels.put(e.getChannel(), cs);
+    try {
+      final MaxPDUSizeEvent max=new MaxPDUSizeEvent(e.getChannel(), Direction.DOWN, this);
+      e.go();
+      max.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleChannelClose(ChannelClose e) {
+    final ChannelState cs=channels.remove(e.getChannel());
+    if (cs != null)
+      flushAll(cs);
+    forward(e);
+  }
+
+  private void handlePDUSize(MaxPDUSizeEvent e) {
+    final ChannelState cs=channels.get(e.getChannel());
+    if (cs == null) {
+      forward(e);
+      return;
+    }
+    if (e.getDir() == Direction.DOWN) {
+      cs.pendingQueries++;
+      forward(e);
+      return;
+    }
+
+    if (param_BATCH_SIZE <= 0)
+      cs.pduSize=e.pduSize;
+    if (log.isDebugEnabled())
+      log.debug("PDU size of channel "+cs.channel.getChannelID()+" is "+cs.pduSize+" bytes");
+    // the reply to our own query stops here
+    if (cs.pendingQueries > 0) {
+      cs.pendingQueries--;
+      forward(e);
+    }
+  }
+
+  private void handleTimer(BatchTimer e) {
+    final ChannelState cs=channels.get(e.getChannel());
+    if (e.getDir() == Direction.DOWN || cs == null) {
+      forward(e);
+      return;
+    }
+    cs.timerOn=false;
+    flushAll(cs);
+  }
+
+  private void handleDown(SendableEvent e) {
+    final ChannelState cs=channels.get(e.getChannel());
+    if (cs == null || cs.pduSize <= 0 || e.dest == null || e.getMessage() == null) {
+      forward(e);
+      return;
+    }
+
+    final Destination dest=new Destination(e.dest);
+    Batch batch=cs.batches.get(dest);
+    flushOverlapping(cs, dest);
+
+    final int size=entrySize(e);
+    if (BATCH_HEADER_SIZE+size > cs.pduSize) {
+      // does not fit in a batch
+      if (batch != null)
+        flush(cs, batch);
+      countSent(cs, 1, e.getMessage().length());
+      forward(e);
+      return;
+    }
+
+    if (batch != null && batch.size+size > cs.pduSize) {
+      flush(cs, batch);
+      batch=null;
+    }
+    if (batch == null) {
+      batch=new Batch(e.dest);
+      cs.batches.put(dest, batch);
+    }
+    batch.events.add(e);
+    batch.size+=size;
+
+    if (!cs.timerOn)
+      startTimer(cs);
+  }
+
+  private void startTimer(ChannelState cs) {
+    try {
+      new BatchTimer(param_LINGER_TIME, cs.channel, this).go();
+      cs.timerOn=true;
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+      flushAll(cs);
+    } catch (AppiaException ex) {
+      ex.printStackTrace();
+      flushAll(cs);
+    }
+  }
+
+  /*
+   * Flushes the batches to other destinations that share processes with the given one.
+   */
+  private void flushOverlapping(ChannelState cs, Destination dest) {
+    if (cs.batches.isEmpty())
+      return;
+    final Iterator<Map.Entry<Destination,Batch>> it=cs.batches.entrySet().iterator();
+    ArrayList<Batch> overlapping=null;
+    while (it.hasNext()) {
+      final Map.Entry<Destination,Batch> entry=it.next();
+      if (!entry.getKey().equals(dest) && entry.getKey().overlaps(dest)) {
+        if (overlapping == null)
+          overlapping=new ArrayList<Batch>();
+        overlapping.add(entry.getValue());
+      }
+    }
+    if (overlapping != null)
+      for (Batch b : overlapping)
+        flush(cs, b);
+  }
+
+  private void flushAll(ChannelState cs) {
+    final ArrayList<Batch> aux=new ArrayList<Batch>(cs.batches.values());
+    for (Batch b : aux)
+      flush(cs, b);
+  }
+
+  /*
+   * Sends a batch in a BatchEvent. A batch with a single event is sent as that event.
+   */
+  private void flush(ChannelState cs, Batch batch) {
+    cs.batches.remove(new Destination(batch.dest));
+    final int n=batch.events.size();
+    if (n == 0)
+      return;
+
+    if (n == 1) {
+      final SendableEvent e=batch.events.get(0);
+      countSent(cs, 1, e.getMessage().length());
+      forward(e);
+      return;
+    }
+
+    Message msg=null;
+    for (int i=0 ; i < n ; i++) {
+      final SendableEvent e=batch.events.get(i);
+      final Message m=e.getMessage();
+      pushEntryHeader(e, m);
+      if (msg == null)
+        msg=m;
+      else
+        msg.join(m);
+    }
+    msg.pushVarInt(n);
+    countSent(cs, n, msg.length());
+
+    try {
+      final BatchEvent be=new BatchEvent(cs.channel, Direction.DOWN, this);
+      be.setMessage(msg);
+      be.source=batch.events.get(0).source;
+      be.dest=batch.dest;
+      be.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void countSent(ChannelState cs, int events, int bytes) {
+    cs.sent++;
+    cs.events+=events;
+    cs.bytes+=bytes;
+    cs.capacity+=cs.pduSize;
+  }
+
+  /*
+   * Bytes taken by an event in a batch: type, length and contents.
+   */
+  private int entrySize(SendableEvent e) {
+    final int length=e.getMessage().length();
+    int size=4+varIntSize(length)+length;
+    if (eventTypes.getTag(e) == EventTypeRegistry.NO_TAG)
+      size+=2+3*e.getClass().getName().length();
+    return size;
+  }
+
+  private static int varIntSize(int value) {
+    int size=1;
+    while ((value & ~0x7F) != 0) {
+      value>>>=7;
+      size++;
+    }
+    return size;
+  }
+
+  /*
+   * Pushes the type and length of an event (int tag, or NO_TAG and class name + varint length).
+   */
+  private void pushEntryHeader(SendableEvent e, Message m) {
+    m.pushVarInt(m.length());
+    final int tag=eventTypes.getTag(e);
+    if (tag == EventTypeRegistry.NO_TAG)
+      m.pushString(e.getClass().getName());
+    m.pushInt(tag);
+  }
+
+  /*
+   * Splits a received batch into the original events.
+   */
+  private void handleBatch(BatchEvent e) {
+    final Channel channel=e.getChannel();
+    Message msg=e.getMessage();
+    try {
+      final int n=msg.popVarInt();
+      for (int i=0 ; i < n ; i++) {
+        final int tag=msg.popInt();
+        final SendableEvent sub;
+        if (tag == EventTypeRegistry.NO_TAG)
+          sub=eventTypes.newEvent(msg.popString());
+        else
+          sub=eventTypes.newEvent(tag, channel.getQoS());
+        final int length=msg.popVarInt();
+        if (sub == null) {
+          log.debug("Unknown event tag "+tag+" in a batch from "+e.source+". Discarding the rest of the batch.");
+          return;
+        }
+
+        final Message rest=channel.getMessageFactory().newMessage();
+        msg.frag(rest, length);
+
+        sub.setMessage(msg);
+        sub.source=e.source;
+        sub.dest=e.dest;
+        sub.setChannel(channel);
+        sub.setDir(Direction.UP);
+        sub.setSourceSession(this);
+        sub.init();
+        sub.go();
+        msg=rest;
+      }
+    } catch (Exception ex) {
+      if (log.isDebugEnabled()) {
+        ex.printStackTrace();
+        log.debug("Exception catched while processing a batch from "+e.source+".");
+      }
+    }
+  }
+
+  /*
+   * Management.
+   */
+
+  private Object getParameter(String parameter) throws AppiaManagementException {
+    if (parameter.equals(FILL_RATIO)) {
+      long bytes=0, capacity=0;
+      for (ChannelState cs : channels.values()) {
+        bytes+=cs.bytes;
+        capacity+=cs.capacity;
+      }
+      return (capacity == 0) ? 0F : (float) bytes / (float) capacity;
+    }
+    if (parameter.equals(CHANNEL_FILL_RATIOS)) {
+      final ArrayList<String> list=new ArrayList<String>();
+      for (ChannelState cs : channels.values())
+        list.add(cs.channel.getChannelID()+" fill_ratio="+cs.fillRatio()+" pdus="+cs.sent+" events="+cs.events);
+      return list.toArray(new String[list.size()]);
+    }
+    if (parameter.equals(LINGER_TIME))
+      return param_LINGER_TIME;
+    throw new AppiaManagementException("Parameter '"+parameter+"' not defined in session "+this.getClass().getName());
+  }
+
+  private void setParameter(String parameter, Object newValue) throws AppiaManagementException {
+    if (parameter.equals(LINGER_TIME)) {
+      param_LINGER_TIME=(Long) newValue;
+      return;
+    }
+    throw new AppiaManagementException("Parameter '"+parameter+"' not defined in session "+this.getClass().getName());
+  }
+
+  public Object attributeGetter(String attribute, MBeanAttributeInfo info) throws AppiaManagementException {
+    return getParameter(jmxFeaturesMap.get(attribute));
+  }
+
+  public void attributeSetter(Attribute attribute, MBeanAttributeInfo info) throws AppiaManagementException {
+    setParameter(jmxFeaturesMap.get(attribute.getName()), attribute.getValue());
+  }
+
+  public MBeanAttributeInfo[] getAttributes(String sid) {
+    jmxFeaturesMap.put(sid+FILL_RATIO, FILL_RATIO);
+    jmxFeaturesMap.put(sid+CHANNEL_FILL_RATIOS, CHANNEL_FILL_RATIOS);
+    jmxFeaturesMap.put(sid+LINGER_TIME, LINGER_TIME);
+    return new MBeanAttributeInfo[]{
+        new MBeanAttributeInfo(sid+FILL_RATIO,"float",
+            "gets the bytes sent divided by the PDU size, in all channels",true,false,false),
+        new MBeanAttributeInfo(sid+CHANNEL_FILL_RATIOS,"[Ljava.lang.String;",
+            "gets the fill ratio, PDUs and events sent in each channel",true,false,false),
+        new MBeanAttributeInfo(sid+LINGER_TIME,"long",
+            "gets and sets the maximum time an event waits in a batch",true,true,false),
+    };
+  }
+
+  public MBeanOperationInfo[] getOperations(String sid) {
+    return null;
+  }
+
+  public Object invoke(String action, MBeanOperationInfo info, Object[] params, String[] signature)
+  throws AppiaManagementException {
+    throw new AppiaManagementException("The Session "+this.getClass().getName()+" does not accept any operation.");
+  }
+}
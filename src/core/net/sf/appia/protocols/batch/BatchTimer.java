@@ -0,0 +1,52 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.batch;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.Timer;
+
+/**
+ * Timer that flushes the batches of a channel after the linger time.
+ *
+ * @see BatchSession
+ */
+public class BatchTimer extends Timer {
+
+  public BatchTimer() {
+    super();
+  }
+
+  /**
+   * Creates an initialized timer.
+   * @param linger the time until the batches are flushed, in milliseconds
+   * @param channel the channel
+   * @param source the session that creates the timer
+   * @throws AppiaEventException
+   * @throws AppiaException
+   */
+  public BatchTimer(long linger, Channel channel, Session source) throws AppiaEventException, AppiaException {
+    super(linger, "BatchSession: "+source, channel, Direction.DOWN, source, EventQualifier.ON);
+  }
+}
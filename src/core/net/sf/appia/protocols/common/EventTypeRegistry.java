@@ -0,0 +1,158 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.common;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.QoSEventRoute;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Maps {@link net.sf.appia.core.events.SendableEvent SendableEvent} classes to the
+ * integer tags used by the transport protocols to identify them on the wire.
+ * <br>
+ * The tag of a class is derived from the hash code of its name, with the sign bit
+ * set, so that it is the same in every Appia instance and is never mistaken for the
+ * length of a class name. Only the classes that have a route in the
+ * {@link net.sf.appia.core.QoS QoS} of the channel are tagged. Events of other
+ * classes, or of classes whose tags collide, are sent with the class name.
+ * <br>
+ * Events are created using cached constructors, both for tags and for names.
+ */
+public class EventTypeRegistry {
+
+  /** Returned by {@link #getTag(SendableEvent)} when the event must be sent with its class name. */
+  public static final int NO_TAG=0;
+
+  private static final int TAG_BIT=0x80000000;
+
+  private static final Class[] NO_ARGS=new Class[0];
+
+  // tables of each QoS. Copied on write.
+  private volatile IdentityHashMap<QoS,Table> tables=new IdentityHashMap<QoS,Table>();
+
+  private final ConcurrentHashMap<String,Constructor<? extends SendableEvent>> byName=
+    new ConcurrentHashMap<String,Constructor<? extends SendableEvent>>();
+
+  /**
+   * Tests if the value read in place of the class name length is a tag.
+   * @param value the value read
+   * @return true if it is a tag
+   */
+  public static boolean isTag(int value) {
+    return value < 0;
+  }
+
+  /**
+   * Gets the tag of an event.
+   * @param e the event, already bound to its channel
+   * @return the tag, or {@link #NO_TAG} if the event must be sent with its class name
+   */
+  public int getTag(SendableEvent e) {
+    final Integer tag=getTable(e.getChannel().getQoS()).tags.get(e.getClass());
+    return tag == null ? NO_TAG : tag.intValue();
+  }
+
+  /**
+   * Creates an event from its tag.
+   * @param tag the tag
+   * @param qos the QoS of the channel where the event will be inserted
+   * @return the new event, or null if the tag is unknown in the given QoS
+   * @throws Exception if the event constructor fails
+   */
+  public SendableEvent newEvent(int tag, QoS qos) throws Exception {
+    final Constructor<? extends SendableEvent> c=getTable(qos).constructors.get(new Integer(tag));
+    if (c == null)
+      return null;
+    return c.newInstance();
+  }
+
+  /**
+   * Creates an event from its class name.
+   * @param className the name of the class
+   * @return the new event
+   * @throws Exception if the class does not exist or can not be instantiated
+   */
+  public SendableEvent newEvent(String className) throws Exception {
+    Constructor<? extends SendableEvent> c=byName.get(className);
+    if (c == null) {
+      c=Class.forName(className).asSubclass(SendableEvent.class).getConstructor(NO_ARGS);
+      byName.put(className,c);
+    }
+    return c.newInstance();
+  }
+
+  private Table getTable(QoS qos) {
+    Table table=tables.get(qos);
+    if (table == null) {
+      synchronized (this) {
+        table=tables.get(qos);
+        if (table == null) {
+          table=new Table(qos);
+          final IdentityHashMap<QoS,Table> aux=new IdentityHashMap<QoS,Table>(tables);
+          aux.put(qos,table);
+          tables=aux;
+        }
+      }
+    }
+    return table;
+  }
+
+  private static class Table {
+    HashMap<Class,Integer> tags=new HashMap<Class,Integer>();
+    HashMap<Integer,Constructor<? extends SendableEvent>> constructors=
+      new HashMap<Integer,Constructor<? extends SendableEvent>>();
+
+    Table(QoS qos) {
+      final HashSet<Integer> collisions=new HashSet<Integer>();
+      final QoSEventRoute[] routes=qos.getEventsRoutes();
+
+      for (int i=0 ; i < routes.length ; i++) {
+        final Class c=routes[i].getEventType();
+        if (!SendableEvent.class.isAssignableFrom(c) || Modifier.isAbstract(c.getModifiers()))
+          continue;
+
+        final Constructor<? extends SendableEvent> constructor;
+        try {
+          constructor=c.asSubclass(SendableEvent.class).getConstructor(NO_ARGS);
+        } catch (NoSuchMethodException ex) {
+          continue;
+        }
+
+        final Integer tag=new Integer(c.getName().hashCode() | TAG_BIT);
+        if (constructors.containsKey(tag) || collisions.contains(tag)) {
+          constructors.remove(tag);
+          collisions.add(tag);
+        } else {
+          constructors.put(tag,constructor);
+        }
+      }
+
+      for (Integer tag : constructors.keySet())
+        tags.put(constructors.get(tag).getDeclaringClass(),tag);
+    }
+  }
+}
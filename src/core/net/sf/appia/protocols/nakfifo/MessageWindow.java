@@ -0,0 +1,172 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.nakfifo;
+
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Messages of a peer indexed by their sequence number.
+ * <br>
+ * The messages are kept in a ring, in the slot given by the low bits of the
+ * sequence number, so storing, finding and removing a message takes constant time
+ * regardless of the number of messages held or of the order they arrive.
+ * The ring covers the sequence numbers from {@link #getBase()} onwards, and it
+ * doubles when a message falls beyond its end, up to a maximum number of slots.
+ *
+ * @author Alexandre Pinto
+ */
+public class MessageWindow {
+
+  /** Initial number of slots. */
+  public static final int INITIAL_CAPACITY=64;
+  /** Default maximum number of slots. */
+  public static final int DEFAULT_MAX_CAPACITY=1 << 20;
+
+  private SendableEvent[] ring=new SendableEvent[INITIAL_CAPACITY];
+  private int mask=INITIAL_CAPACITY-1;
+  private long base;
+  private int size=0;
+  private final int maxCapacity;
+
+  /**
+   * Creates an empty window with the default maximum number of slots.
+   * @param base the first sequence number that may be stored
+   */
+  public MessageWindow(long base) {
+    this(base,DEFAULT_MAX_CAPACITY);
+  }
+
+  /**
+   * Creates an empty window.
+   * @param base the first sequence number that may be stored
+   * @param maxCapacity maximum number of slots, a power of two. Messages further
+   * than this from the base are not stored.
+   */
+  public MessageWindow(long base, int maxCapacity) {
+    this.base=base;
+    this.maxCapacity=maxCapacity;
+  }
+
+  /**
+   * Gets the first sequence number that may be stored.
+   */
+  public long getBase() {
+    return base;
+  }
+
+  /**
+   * Gets the number of messages stored.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Stores a message.
+   * @param seq the sequence number of the message
+   * @param ev the message
+   * @return false if the sequence number is before the base or too far from it,
+   * or if a message with the same sequence number is already stored
+   */
+  public boolean put(long seq, SendableEvent ev) {
+    if ((seq < base) || (seq-base >= maxCapacity))
+      return false;
+    if (seq-base > mask)
+      grow(seq-base+1);
+    final int i=(int)seq & mask;
+    if (ring[i] != null)
+      return false;
+    ring[i]=ev;
+    size++;
+    return true;
+  }
+
+  /**
+   * Gets a message.
+   * @param seq the sequence number of the message
+   * @return the message, or null if it is not stored
+   */
+  public SendableEvent get(long seq) {
+    if ((seq < base) || (seq-base > mask))
+      return null;
+    return ring[(int)seq & mask];
+  }
+
+  /**
+   * Finds the first message stored at or after a given sequence number.
+   * @param seq the sequence number where the search starts
+   * @return the sequence number of the message found, or -1 if there is none
+   */
+  public long next(long seq) {
+    if (seq < base)
+      seq=base;
+    if (size == 0)
+      return -1;
+    for (final long end=base+mask ; seq <= end ; seq++)
+      if (ring[(int)seq & mask] != null)
+        return seq;
+    return -1;
+  }
+
+  /**
+   * Removes the messages before a sequence number, which becomes the new base.
+   * @param seq the new base
+   */
+  public void advance(long seq) {
+    if (seq <= base)
+      return;
+    if ((size > 0) && (seq-base > mask)) {
+      clear(seq);
+      return;
+    }
+    for ( ; (size > 0) && (base < seq) ; base++) {
+      final int i=(int)base & mask;
+      if (ring[i] != null) {
+        ring[i]=null;
+        size--;
+      }
+    }
+    base=seq;
+  }
+
+  /**
+   * Removes all the messages.
+   * @param seq the new base
+   */
+  public void clear(long seq) {
+    if (size > 0) {
+      for (int i=0 ; i < ring.length ; i++)
+        ring[i]=null;
+      size=0;
+    }
+    base=seq;
+  }
+
+  private void grow(long needed) {
+    int capacity=ring.length;
+    while (capacity < needed)
+      capacity<<=1;
+    final SendableEvent[] aux=new SendableEvent[capacity];
+    for (long seq=base ; seq <= base+mask ; seq++)
+      aux[(int)seq & (capacity-1)]=ring[(int)seq & mask];
+    ring=aux;
+    mask=capacity-1;
+  }
+}
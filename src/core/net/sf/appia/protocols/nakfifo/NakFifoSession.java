@@ -22,7 +22,6 @@ package net.sf.appia.protocols.nakfifo;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.ListIterator;
 
 import net.sf.appia.core.AppiaError;
 import net.sf.appia.core.AppiaEventException;
@@ -303,7 +302,7 @@ public class NakFifoSession extends Session implements InitializableSession {
             if (peer.nacked != null) {
                 peer.nacked.rounds++;
                 if (peer.nacked.rounds > param_RESEND_NACK_ROUNDS) {
-                    nack(peer,peer.last_msg_delivered >= peer.nacked.first_msg ? peer.last_msg_delivered+1 : peer.nacked.first_msg, peer.nacked.last_msg, ((SendableEvent)peer.undelivered_msgs.getFirst()).getChannel());
+                    nack(peer,peer.last_msg_delivered >= peer.nacked.first_msg ? peer.last_msg_delivered+1 : peer.nacked.first_msg, peer.nacked.last_msg, undeliveredChannel(peer));
                     peer.nacked.rounds=0;
                 }
             } else {
@@ -314,9 +313,10 @@ public class NakFifoSession extends Session implements InitializableSession {
             }
 
             if ((peer != null) && (peer.rounds_msg_recv > param_MAX_RECV_ROUNDS)) {
-                Iterator msgs=peer.unconfirmed_msgs.iterator();
-                while (msgs.hasNext()) {
-                    sendFIFOUndelivered((SendableEvent)msgs.next(),peer.addr);
+                for (long seq=peer.last_msg_confirmed+1 ; seq <= peer.last_msg_sent ; seq++) {
+                    SendableEvent msg=peer.unconfirmed.get(seq);
+                    if (msg != null)
+                        sendFIFOUndelivered(msg,peer.addr);
                 }
                 peers_iter.remove();
                 peer=null;
@@ -344,7 +344,7 @@ public class NakFifoSession extends Session implements InitializableSession {
             debugPeer(peer,"handleIgnore");
 
         peer.last_msg_delivered=ev.getMessage().popLong();
-        peer.undelivered_msgs.clear();
+        peer.undelivered.clear(peer.last_msg_delivered+1);
         peer.nacked=null;
 
         peer.rounds_msg_recv=0;
@@ -448,19 +448,21 @@ public class NakFifoSession extends Session implements InitializableSession {
             }
 
             peer.last_msg_delivered=seq;
-            if (peer.undelivered_msgs.size() > 0) {
-                long undelivered=deliverUndelivered(peer);
+            peer.undelivered.advance(seq+1);
+            if (peer.undelivered.size() > 0) {
+                deliverUndelivered(peer);
 
                 if (debugFull)
-                    debugPeer(peer,"receive1("+seq+","+undelivered+")");
+                    debugPeer(peer,"receive1("+seq+")");
 
                 if (peer.nacked != null) {
                     if (peer.last_msg_delivered >= peer.nacked.last_msg)
                         peer.nacked=null;
                 }
 
-                if ((peer.nacked == null) && (undelivered >= 0))
-                    nack(peer,peer.last_msg_delivered+1,undelivered-1,ev.getChannel());
+                // the search for the end of the gap is only needed for a new nack
+                if ((peer.nacked == null) && (peer.undelivered.size() > 0))
+                    nack(peer,peer.last_msg_delivered+1,peer.undelivered.next(peer.last_msg_delivered+1)-1,ev.getChannel());
             }
         } else { // Wrong seq number
             if (seq <= peer.last_msg_delivered) {
@@ -515,89 +517,71 @@ public class NakFifoSession extends Session implements InitializableSession {
     }
 
     private void storeUnconfirmed(Peer peer, SendableEvent ev) {
-        peer.unconfirmed_msgs.addLast(ev);
+        if (!peer.unconfirmed.put(peer.last_msg_sent,ev))
+            log.warn("Too many unconfirmed messages to "+peer.addr+". Message "+peer.last_msg_sent+" will not be retransmitted.");
     }
 
     private void removeUnconfirmed(Peer peer, long last) {
-        while (peer.last_msg_confirmed < last) {
-            SendableEvent ev = (SendableEvent) peer.unconfirmed_msgs.removeFirst();
-            peer.last_msg_confirmed++;
-            // FIXME: this cannot be done here
-            //ev.getMessage().discardAll();
-        }
+        peer.unconfirmed.advance(last+1);
+        peer.last_msg_confirmed=last;
+        // FIXME: this cannot be done here
+        //ev.getMessage().discardAll();
     }
 
     private void resend(Peer peer, long first, long last) {
-        ListIterator aux=peer.unconfirmed_msgs.listIterator();
-        long seq=peer.last_msg_confirmed;
-        while (aux.hasNext() && (seq <= last)) {
-            SendableEvent evaux=(SendableEvent)aux.next();
-            seq++;
-            if ((seq >= first) && (seq <= last)) {
-                try {
-                    // Must send a clone because original may be shared among several peers
-                    // due to AppiaMulticast
-                    SendableEvent ev=(SendableEvent)evaux.cloneEvent();
-                    ev.setSourceSession(this);
-                    ev.init();
-
-                    utils.pushSeq(ev.getMessage(),peer.last_msg_delivered);
-                    utils.pushSeq(ev.getMessage(),seq);
-                    ev.getMessage().pushByte(MessageUtils.NOFLAGS);
-                    ev.dest=peer.addr;
-                    ev.go();
-
-                    peer.rounds_msg_sent=0;
-                } catch (AppiaEventException ex1) {
-                    ex1.printStackTrace();
-                } catch (CloneNotSupportedException ex2) {
-                    ex2.printStackTrace();
-                }
+        for (long seq=first ; seq <= last ; seq++) {
+            SendableEvent evaux=peer.unconfirmed.get(seq);
+            if (evaux == null)
+                continue;
+            try {
+                // Must send a clone because original may be shared among several peers
+                // due to AppiaMulticast
+                SendableEvent ev=(SendableEvent)evaux.cloneEvent();
+                ev.setSourceSession(this);
+                ev.init();
+
+                utils.pushSeq(ev.getMessage(),peer.last_msg_delivered);
+                utils.pushSeq(ev.getMessage(),seq);
+                ev.getMessage().pushByte(MessageUtils.NOFLAGS);
+                ev.dest=peer.addr;
+                ev.go();
+
+                peer.rounds_msg_sent=0;
+            } catch (AppiaEventException ex1) {
+                ex1.printStackTrace();
+            } catch (CloneNotSupportedException ex2) {
+                ex2.printStackTrace();
             }
         }
     }
 
     private void storeUndelivered(Peer peer, SendableEvent ev, long seq) {
-        utils.pushSeq(ev.getMessage(),seq);
-        ListIterator aux=peer.undelivered_msgs.listIterator(peer.undelivered_msgs.size());
-        while (aux.hasPrevious()) {
-            SendableEvent evaux=(SendableEvent)aux.previous();
-            long seqaux=utils.popSeq(evaux.getMessage(),peer.last_msg_delivered,true);
-            if (seqaux == seq) {
-                log.debug("Received undelivered message already stored. Discarding new copy.");
-                return;
-            }
-            if (seqaux < seq) {
-                aux.next();
-                aux.add(ev);
-                return;
-            }
+        if (peer.undelivered.get(seq) != null) {
+            log.debug("Received undelivered message already stored. Discarding new copy.");
+            return;
         }
-        peer.undelivered_msgs.addFirst(ev);
+        if (!peer.undelivered.put(seq,ev))
+            log.debug("Received undelivered message "+seq+" too far ahead of "+peer.last_msg_delivered+". Discarding, it will be nacked later.");
     }
 
-    private long deliverUndelivered(Peer peer) {
-        ListIterator aux=peer.undelivered_msgs.listIterator();
-        while (aux.hasNext()) {
-            SendableEvent evaux=(SendableEvent)aux.next();
-            long seqaux=utils.popSeq(evaux.getMessage(),peer.last_msg_delivered,true);
-            if (seqaux == peer.last_msg_delivered+1) {
-                try {
-                    if (!(evaux instanceof PingEvent)) {
-                        evaux.getMessage().discard(MessageUtils.SEQ_SIZE);
-                        evaux.go();
-                    }
-                } catch (AppiaEventException ex) {
-                    ex.printStackTrace();
-                    log.debug("Discarding event "+evaux+". This may lead to incoherence.");
-                }
-                peer.last_msg_delivered=seqaux;
-                aux.remove();
-            } else {
-                return seqaux;
+    private void deliverUndelivered(Peer peer) {
+        SendableEvent evaux;
+        while ((evaux=peer.undelivered.get(peer.last_msg_delivered+1)) != null) {
+            try {
+                if (!(evaux instanceof PingEvent))
+                    evaux.go();
+            } catch (AppiaEventException ex) {
+                ex.printStackTrace();
+                log.debug("Discarding event "+evaux+". This may lead to incoherence.");
             }
+            peer.last_msg_delivered++;
         }
-        return -1;
+        peer.undelivered.advance(peer.last_msg_delivered+1);
+    }
+
+    private Channel undeliveredChannel(Peer peer) {
+        long seq=peer.undelivered.next(peer.last_msg_delivered+1);
+        return seq < 0 ? peer.last_channel : peer.undelivered.get(seq).getChannel();
     }
 
     private Peer createPeer(Object addr, Channel channel) {
@@ -707,12 +691,8 @@ public class NakFifoSession extends Session implements InitializableSession {
 
             int limit=debugListLimit;
             s+="\t Unconfirmed Msgs:"+"\n";
-            ListIterator iter=peer.unconfirmed_msgs.listIterator();
-            long l=peer.last_msg_confirmed;
-            while (iter.hasNext()) {
-                SendableEvent ev=(SendableEvent)iter.next();
-                l++;
-                s+="\t\t "+l+": "+ev+"\n";
+            for (long l=peer.last_msg_confirmed+1 ; l <= peer.last_msg_sent ; l++) {
+                s+="\t\t "+l+": "+peer.unconfirmed.get(l)+"\n";
                 if (--limit <= 0) {
                     s+="\t\t  ..."+"\n";
                     break;
@@ -721,11 +701,8 @@ public class NakFifoSession extends Session implements InitializableSession {
 
             limit=debugListLimit;
             s+="\t Undelivered Msgs:"+"\n";
-            iter=peer.undelivered_msgs.listIterator();
-            while (iter.hasNext()) {
-                SendableEvent ev=(SendableEvent)iter.next();
-                l=utils.popSeq(ev.getMessage(),peer.last_msg_delivered,true);
-                s+="\t\t "+l+": "+ev+"\n";
+            for (long l=peer.undelivered.next(0) ; l >= 0 ; l=peer.undelivered.next(l+1)) {
+                s+="\t\t "+l+": "+peer.undelivered.get(l)+"\n";
                 if (--limit <= 0) {
                     s+="\t\t  ..."+"\n";
                     break;
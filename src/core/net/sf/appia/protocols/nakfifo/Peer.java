@@ -36,6 +36,9 @@ import net.sf.appia.core.TimeProvider;
  */
 public class Peer {
   
+  /** Maximum number of unconfirmed messages kept for NakFifo. */
+  public static final int UNCONFIRMED_CAPACITY=1 << 30;
+  
   public Object addr;
   
   public long first_msg_sent;
@@ -47,6 +50,10 @@ public class Peer {
   // Used only by NakFifoMulticast
   public long last_confirm_sent=0;
   
+  // Used only by NakFifo, indexed by sequence number
+  public MessageWindow unconfirmed;
+  public MessageWindow undelivered=new MessageWindow(last_msg_delivered+1);
+  // Used only by NakFifoMulticast
   public LinkedList unconfirmed_msgs=new LinkedList();
   public LinkedList undelivered_msgs=new LinkedList();
   
@@ -72,6 +79,7 @@ public class Peer {
       last_msg_sent--;
     last_msg_confirmed=last_msg_sent;
     first_msg_sent=last_msg_sent+1;
+    unconfirmed=new MessageWindow(first_msg_sent,UNCONFIRMED_CAPACITY);
   }
   
   public Peer(Object addr, long init) {
@@ -79,5 +87,6 @@ public class Peer {
     
     last_msg_sent=last_msg_confirmed=init;
     first_msg_sent=init+1;
+    unconfirmed=new MessageWindow(first_msg_sent,UNCONFIRMED_CAPACITY);
   }
 }
\ No newline at end of file
@@ -0,0 +1,320 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.slidingfifo;
+
+import java.util.ArrayDeque;
+
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * State of the {@link SlidingFifoSession} for a single peer: the window of
+ * messages sent and not yet acknowledged, and the window of messages received
+ * out of order.
+ * <br>
+ * Both windows are ring buffers with a power of two size, indexed by the
+ * sequence number, so adding, acknowledging and delivering a message take
+ * constant time. Sequence numbers wrap around, and are always compared by
+ * their difference.
+ */
+class Peer {
+
+  /** Address of the peer. */
+  final Object address;
+  /** Channel used last with the peer, where acknowledgments are sent. */
+  Channel channel;
+  /** Last time a message was sent to or received from the peer. */
+  long lastUsed;
+
+  private final int capacity;
+  private final int mask;
+
+  /*
+   * Sending.
+   */
+
+  /** Identifier of the stream of messages sent to the peer. */
+  final int outStream;
+  /** First message not acknowledged. */
+  int base=0;
+  /** Sequence number of the next message. */
+  int next=0;
+  final SendableEvent[] out;
+  final long[] sentAt;
+  final int[] resends;
+  final boolean[] sacked;
+  /** Messages waiting for room in the window. */
+  final ArrayDeque<SendableEvent> pending=new ArrayDeque<SendableEvent>();
+
+  /** Congestion window. */
+  int cwnd;
+  private int ssthresh;
+  private int increment=0;
+  private final int minWindow;
+  /** While recovering from a loss, the window is not reduced again. */
+  private boolean recovering=false;
+  private int recoverUntil;
+
+  private long srtt=-1, rttvar=0;
+  private final long minRto, maxRto;
+  /** Current retransmission timeout, doubled on each timeout. */
+  long rto;
+  private long estimatedRto;
+
+  /*
+   * Receiving.
+   */
+
+  /** Whether a stream was received from the peer. */
+  boolean hasInStream=false;
+  /** Identifier of the stream of messages received from the peer. */
+  int inStream;
+  /** Next sequence number expected. */
+  int nextIn;
+  final SendableEvent[] in;
+  /** Messages received out of order. */
+  int buffered=0;
+  /** Messages delivered and not yet acknowledged. */
+  int unacked=0;
+
+  /**
+   * Creates the state of a peer.
+   * @param address the address of the peer
+   * @param channel the channel used
+   * @param outStream the identifier of the stream to the peer
+   * @param capacity the size of the windows, a power of two
+   * @param initialWindow the initial congestion window
+   * @param minWindow the minimum congestion window
+   * @param minRto the minimum retransmission timeout
+   * @param maxRto the maximum retransmission timeout
+   * @param now the current time
+   */
+  Peer(Object address, Channel channel, int outStream, int capacity, int initialWindow,
+      int minWindow, long minRto, long maxRto, long now) {
+    this.address=address;
+    this.channel=channel;
+    this.outStream=outStream;
+    this.capacity=capacity;
+    this.mask=capacity-1;
+    this.minWindow=minWindow;
+    this.minRto=minRto;
+    this.maxRto=maxRto;
+    cwnd=Math.min(initialWindow,capacity);
+    ssthresh=capacity;
+    rto=estimatedRto=minRto;
+    lastUsed=now;
+    out=new SendableEvent[capacity];
+    sentAt=new long[capacity];
+    resends=new int[capacity];
+    sacked=new boolean[capacity];
+    in=new SendableEvent[capacity];
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  int index(int seq) {
+    return seq & mask;
+  }
+
+  /* ***************
+   *  Sending
+   * *************** */
+
+  /** Messages sent and not acknowledged. */
+  int inFlight() {
+    return next-base;
+  }
+
+  boolean canSend() {
+    return inFlight() < cwnd;
+  }
+
+  boolean isIdle() {
+    return inFlight() == 0 && pending.isEmpty();
+  }
+
+  /**
+   * Keeps a message in the window, returning its sequence number.
+   */
+  int store(SendableEvent e) {
+    final int seq=next++;
+    final int i=seq & mask;
+    out[i]=e;
+    resends[i]=0;
+    sacked[i]=false;
+    return seq;
+  }
+
+  /**
+   * Cumulative acknowledgment of the messages before <i>ack</i>.
+   * @return the number of messages acknowledged now
+   */
+  int acknowledge(int ack, long now) {
+    final int n=ack-base;
+    if (n <= 0 || n > inFlight())
+      return 0;
+
+    // Karn: only messages sent once give a sample
+    final int last=(ack-1) & mask;
+    if (resends[last] == 0)
+      sampleRtt(now-sentAt[last]);
+    // new data was acknowledged, so the timeout is no longer backed off
+    rto=estimatedRto;
+
+    for ( ; base != ack ; base++) {
+      final int i=base & mask;
+      out[i]=null;
+      sacked[i]=false;
+    }
+
+    if (recovering && recoverUntil-base <= 0)
+      recovering=false;
+    if (cwnd < ssthresh)
+      cwnd+=n;
+    else {
+      increment+=n;
+      while (increment >= cwnd) {
+        increment-=cwnd;
+        cwnd++;
+      }
+    }
+    if (cwnd > capacity)
+      cwnd=capacity;
+    return n;
+  }
+
+  /**
+   * Selective acknowledgment: bit i of <i>bits</i> tells that message
+   * <i>ack</i>+1+i was received.
+   * @return the sequence number after the last message received
+   */
+  int selectiveAck(int ack, long bits) {
+    int end=ack;
+    for (int i=0 ; bits != 0 ; i++, bits>>>=1) {
+      final int seq=ack+1+i;
+      if (seq-next >= 0)
+        break;
+      if ((bits & 1) != 0 && seq-base >= 0) {
+        sacked[seq & mask]=true;
+        end=seq+1;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * A loss was detected. The window is halved once for each window of messages.
+   */
+  void lost() {
+    if (recovering)
+      return;
+    recovering=true;
+    recoverUntil=next;
+    ssthresh=Math.max(minWindow,cwnd/2);
+    cwnd=ssthresh;
+    increment=0;
+  }
+
+  /**
+   * The retransmission timeout expired. The window is reduced to the minimum.
+   */
+  void timeout() {
+    ssthresh=Math.max(minWindow,cwnd/2);
+    cwnd=minWindow;
+    increment=0;
+    recovering=true;
+    recoverUntil=next;
+    rto=Math.min(maxRto,rto*2);
+  }
+
+  private void sampleRtt(long sample) {
+    if (srtt < 0) {
+      srtt=sample;
+      rttvar=sample/2;
+    } else {
+      rttvar+=(Math.abs(sample-srtt)-rttvar)/4;
+      srtt+=(sample-srtt)/8;
+    }
+    estimatedRto=Math.max(minRto,Math.min(maxRto,srtt+4*rttvar));
+  }
+
+  /* ***************
+   *  Receiving
+   * *************** */
+
+  /**
+   * Starts receiving a new stream from the peer. Messages of the previous one
+   * still waiting are discarded.
+   */
+  void resetIncoming(int stream, int first) {
+    for (int i=0 ; i < in.length ; i++)
+      in[i]=null;
+    hasInStream=true;
+    inStream=stream;
+    nextIn=first;
+    buffered=0;
+    unacked=0;
+  }
+
+  /**
+   * Keeps a message received out of order.
+   */
+  void storeIncoming(int seq, SendableEvent e) {
+    final int i=seq & mask;
+    if (in[i] == null) {
+      in[i]=e;
+      buffered++;
+    }
+  }
+
+  /**
+   * Removes the next message expected from the receive window, if it already arrived.
+   */
+  SendableEvent nextIncoming() {
+    if (buffered == 0)
+      return null;
+    final int i=nextIn & mask;
+    final SendableEvent e=in[i];
+    if (e != null) {
+      in[i]=null;
+      buffered--;
+      nextIn++;
+    }
+    return e;
+  }
+
+  /**
+   * Bit map of the 64 messages after the next one expected that were received.
+   */
+  long sackBits() {
+    long bits=0;
+    final int n=Math.min(64,capacity-1);
+    for (int i=0 ; i < n ; i++)
+      if (in[(nextIn+1+i) & mask] != null)
+        bits|=1L << i;
+    return bits;
+  }
+
+  public String toString() {
+    return "[SlidingFifo peer: "+address+" inFlight="+inFlight()+" pending="+pending.size()+" cwnd="+cwnd+"]";
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.slidingfifo;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+
+/**
+ * Explicit acknowledgment of the {@link SlidingFifoSession}.
+ * <br>
+ * The message carries the stream being acknowledged, the next sequence number
+ * expected, and a bit map of the following 64 messages already received.
+ */
+public class SlidingAckEvent extends SendableEvent {
+
+  /**
+   * Creates and initializes an acknowledgment going down.
+   * @param channel the channel
+   * @param source the session creating the event
+   * @param dest destination of the acknowledgment
+   * @param from source of the acknowledgment
+   */
+  public SlidingAckEvent(Channel channel, Session source, Object dest, Object from)
+  throws AppiaEventException {
+    super(channel,Direction.DOWN,source);
+    this.dest=dest;
+    this.source=from;
+  }
+
+  /**
+   * The empty constructor. Required for dynamic creation of instances.
+   */
+  public SlidingAckEvent() {}
+}
@@ -0,0 +1,78 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.slidingfifo;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticastSupport;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.common.FIFOUndeliveredEvent;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+
+/**
+ * Layer of the protocol that provides reliable FIFO order for point to point
+ * messages, using a sliding window for each peer.
+ * <br>
+ * It offers <i>AppiaMulticast</i> support by sending a different message to each
+ * destination.
+ *
+ * @see SlidingFifoSession
+ */
+public class SlidingFifoLayer extends Layer implements AppiaMulticastSupport {
+
+  /**
+   * Creates a new SlidingFifoLayer.
+   */
+  public SlidingFifoLayer() {
+    evProvide=new Class[]{
+        SendableEvent.class,
+        SlidingAckEvent.class,
+        SlidingFifoTimer.class,
+        FIFOUndeliveredEvent.class,
+    };
+
+    evRequire=new Class[]{
+        SendableEvent.class,
+        ChannelInit.class,
+    };
+
+    evAccept=new Class[]{
+        SendableEvent.class,
+        SlidingAckEvent.class,
+        SlidingFifoTimer.class,
+        ChannelInit.class,
+        ChannelClose.class,
+        RegisterSocketEvent.class,
+        SendableNotDeliveredEvent.class,
+        MaxPDUSizeEvent.class,
+    };
+  }
+
+  /**
+   * Creates a new SlidingFifoSession.
+   */
+  public Session createSession() {
+    return new SlidingFifoSession(this);
+  }
+}
@@ -0,0 +1,532 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.slidingfifo;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.TimeProvider;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.FIFOUndeliveredEvent;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Session of the protocol that provides reliable FIFO order for point to point
+ * messages, using a sliding window for each peer.
+ * <br>
+ * It offers <i>AppiaMulticast</i> support by sending a different message to each
+ * destination.
+ * <br>
+ * Each message carries the identifier of the stream, its sequence number, the
+ * first message of the stream not yet acknowledged, a piggybacked
+ * acknowledgment of the stream in the opposite direction, and whether an
+ * acknowledgment is requested. Explicit acknowledgments are {@link SlidingAckEvent}s,
+ * sent every <i>ack_every</i> messages, when requested by the sender because its
+ * window is full or it has nothing more to send, when a message arrives out of
+ * order, and on each timer while messages are unacknowledged or missing.
+ * <br>
+ * At most <i>cwnd</i> messages are in transit to each peer. The window grows
+ * with each acknowledgment, is halved when a selective acknowledgment shows a
+ * loss, and falls to the minimum when the retransmission timeout, computed from
+ * the round trip time, expires. The other messages wait in a queue.
+ * <br>
+ * A peer to which a message could not be delivered after <i>num_resends</i>
+ * retransmissions is discarded, and a {@link FIFOUndeliveredEvent} is sent up
+ * for each message still waiting.
+ *
+ * @see SlidingFifoLayer
+ */
+public class SlidingFifoSession extends Session implements InitializableSession {
+
+  private static Logger log = Logger.getLogger(SlidingFifoSession.class);
+
+  /** Default maximum number of messages in transit to a peer. */
+  public static final int DEFAULT_WINDOW=256;
+  /** Default initial number of messages in transit to a peer. */
+  public static final int DEFAULT_INITIAL_WINDOW=16;
+  /** Default minimum number of messages in transit to a peer. */
+  public static final int DEFAULT_MIN_WINDOW=2;
+  /** Default period of the timer, and minimum retransmission timeout, in milliseconds. */
+  public static final long DEFAULT_TIMER_PERIOD=100;
+  /** Default number of retransmissions before giving up on a peer. */
+  public static final int DEFAULT_NUM_RESENDS=10;
+  /** Default number of messages received before an explicit acknowledgment. */
+  public static final int DEFAULT_ACK_EVERY=8;
+  /** Default time, in milliseconds, after which an idle peer is discarded. */
+  public static final long DEFAULT_PEER_INACTIVITY_TIME=60000;
+
+  /** Size of the header: stream, sequence number, first unacknowledged, acknowledged stream, acknowledgment and flag. */
+  public static final int HEADER_SIZE=21;
+
+  private int param_WINDOW=DEFAULT_WINDOW;
+  private int param_INITIAL_WINDOW=DEFAULT_INITIAL_WINDOW;
+  private int param_MIN_WINDOW=DEFAULT_MIN_WINDOW;
+  private long param_TIMER_PERIOD=DEFAULT_TIMER_PERIOD;
+  private int param_NUM_RESENDS=DEFAULT_NUM_RESENDS;
+  private int param_ACK_EVERY=DEFAULT_ACK_EVERY;
+  private long param_PEER_INACTIVITY_TIME=DEFAULT_PEER_INACTIVITY_TIME;
+
+  private HashMap<Object,Peer> peers=new HashMap<Object,Peer>();
+  private LinkedList<Channel> channels=new LinkedList<Channel>();
+  private Channel timerChannel=null;
+  private TimeProvider timeProvider=null;
+  private Object myAddr=null;
+  // identifiers of new streams increase, so the newest stream from a peer is known
+  private int nextStream=0;
+
+  /**
+   * Creates a new SlidingFifoSession.
+   * @param layer the layer
+   */
+  public SlidingFifoSession(Layer layer) {
+    super(layer);
+  }
+
+  /**
+   * Initializes the session using the parameters given in the XML configuration.
+   * Possible parameters:
+   * <ul>
+   * <li><b>window</b> maximum number of messages in transit to a peer, rounded up to a power of two.
+   * <li><b>initial_window</b> initial number of messages in transit to a peer.
+   * <li><b>min_window</b> minimum number of messages in transit to a peer.
+   * <li><b>timer_period</b> the period of the internal timer, also the minimum retransmission timeout. (in milliseconds)
+   * <li><b>num_resends</b> number of retransmissions of a message before giving up on the peer.
+   * <li><b>ack_every</b> number of messages received before sending an acknowledgment.
+   * <li><b>peer_inactivity_time</b> time after which an idle peer is discarded. (in milliseconds)
+   * </ul>
+   *
+   * @param params The parameters given in the XML configuration.
+   */
+  public void init(SessionProperties params) {
+    if (params.containsKey("window"))
+      param_WINDOW=params.getInt("window");
+    if (params.containsKey("initial_window"))
+      param_INITIAL_WINDOW=params.getInt("initial_window");
+    if (params.containsKey("min_window"))
+      param_MIN_WINDOW=params.getInt("min_window");
+    if (params.containsKey("timer_period"))
+      param_TIMER_PERIOD=params.getLong("timer_period");
+    if (params.containsKey("num_resends"))
+      param_NUM_RESENDS=params.getInt("num_resends");
+    if (params.containsKey("ack_every"))
+      param_ACK_EVERY=params.getInt("ack_every");
+    if (params.containsKey("peer_inactivity_time"))
+      param_PEER_INACTIVITY_TIME=params.getLong("peer_inactivity_time");
+
+    int capacity=2;
+    while (capacity < param_WINDOW)
+      capacity<<=1;
+    param_WINDOW=capacity;
+    param_MIN_WINDOW=Math.max(1,Math.min(param_MIN_WINDOW,param_WINDOW));
+    param_INITIAL_WINDOW=Math.max(param_MIN_WINDOW,param_INITIAL_WINDOW);
+  }
+
+  /**
+   * Main event handler.
+   * @param e the event
+   */
+  public void handle(Event e) {
+    if (e instanceof SlidingAckEvent)
+      handleAck((SlidingAckEvent) e);
+    else if (e instanceof SendableEvent)
+      handleSendable((SendableEvent) e);
+    else if (e instanceof SlidingFifoTimer)
+      handleTimer((SlidingFifoTimer) e);
+    else if (e instanceof ChannelInit)
+      handleChannelInit((ChannelInit) e);
+    else if (e instanceof ChannelClose)
+      handleChannelClose((ChannelClose) e);
+    else if (e instanceof RegisterSocketEvent)
+      handleRegisterSocket((RegisterSocketEvent) e);
+    else if (e instanceof SendableNotDeliveredEvent)
+      handleSendableNotDelivered((SendableNotDeliveredEvent) e);
+    else if (e instanceof MaxPDUSizeEvent)
+      handleMaxPDUSize((MaxPDUSizeEvent) e);
+    else {
+      log.warn("Unwanted event (\""+e.getClass().getName()+"\") received. Continued...");
+      forward(e);
+    }
+  }
+
+  private void forward(Event e) {
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleChannelInit(ChannelInit e) {
+    timeProvider=e.getChannel().getTimeProvider();
+    if (nextStream == 0)
+      nextStream=(int) timeProvider.currentTimeMillis();
+    forward(e);
+
+    if (channels.isEmpty())
+      requestTimer(e.getChannel());
+    channels.add(e.getChannel());
+  }
+
+  private void handleChannelClose(ChannelClose e) {
+    channels.remove(e.getChannel());
+    if (e.getChannel() == timerChannel) {
+      timerChannel=null;
+      if (!channels.isEmpty())
+        requestTimer(channels.getFirst());
+    }
+    for (Peer p : peers.values())
+      if (p.channel == e.getChannel())
+        p.channel=channels.isEmpty() ? null : channels.getFirst();
+    forward(e);
+  }
+
+  private void handleMaxPDUSize(MaxPDUSizeEvent e) {
+    if (e.getDir() == Direction.UP)
+      e.pduSize-=HEADER_SIZE;
+    forward(e);
+  }
+
+  private void handleRegisterSocket(RegisterSocketEvent e) {
+    if (e.getDir() == Direction.UP && !e.error)
+      myAddr=new InetSocketAddress(e.localHost,e.port);
+    forward(e);
+  }
+
+  private void handleSendableNotDelivered(SendableNotDeliveredEvent e) {
+    if (e.getEvent().dest == null)
+      return;
+    final Peer p=peers.get(e.getEvent().dest);
+    if (p != null)
+      giveup(p);
+  }
+
+  private void handleSendable(SendableEvent e) {
+    if (e.getDir() == Direction.DOWN)
+      processOutgoing(e);
+    else
+      processIncoming(e);
+  }
+
+  /* ***************
+   *  Sending
+   * *************** */
+
+  private void processOutgoing(SendableEvent e) {
+    final long now=timeProvider.currentTimeMillis();
+    if (e.dest instanceof AppiaMulticast) {
+      final Object[] dests=((AppiaMulticast) e.dest).getDestinations();
+      for (int i=0 ; i < dests.length ; i++)
+        send(getPeer(dests[i],e.getChannel(),now),e,now);
+    } else
+      send(getPeer(e.dest,e.getChannel(),now),e,now);
+  }
+
+  private Peer getPeer(Object address, Channel channel, long now) {
+    Peer p=peers.get(address);
+    if (p == null) {
+      if (++nextStream == 0)
+        nextStream++;
+      p=new Peer(address,channel,nextStream,param_WINDOW,param_INITIAL_WINDOW,param_MIN_WINDOW,
+          param_TIMER_PERIOD,32*param_TIMER_PERIOD,now);
+      peers.put(address,p);
+      if (log.isDebugEnabled())
+        log.debug("New peer "+p);
+    }
+    return p;
+  }
+
+  private void send(Peer p, SendableEvent e, long now) {
+    p.channel=e.getChannel();
+    p.lastUsed=now;
+    if (p.pending.isEmpty() && p.canSend())
+      transmit(p,p.store(e),now);
+    else
+      p.pending.addLast(e);
+  }
+
+  /*
+   * Sends the messages waiting for room in the window.
+   */
+  private void sendPending(Peer p, long now) {
+    while (!p.pending.isEmpty() && p.canSend())
+      transmit(p,p.store(p.pending.removeFirst()),now);
+  }
+
+  /*
+   * Sends a copy of a message in the window, with the header
+   * (stream, seq, base, acknowledged stream, acknowledgment, acknowledgment requested).
+   * The acknowledgment is requested when no other message will follow soon.
+   */
+  private void transmit(Peer p, int seq, long now) {
+    final int i=p.index(seq);
+    p.sentAt[i]=now;
+    try {
+      final SendableEvent clone=(SendableEvent) p.out[i].cloneEvent();
+      clone.dest=p.address;
+      final Message m=clone.getMessage();
+      m.pushBoolean(p.resends[i] > 0 || !p.canSend() || p.pending.isEmpty());
+      if (p.hasInStream) {
+        m.pushInt(p.nextIn);
+        m.pushInt(p.inStream);
+        p.unacked=0;
+      } else {
+        m.pushInt(0);
+        m.pushInt(0);
+      }
+      m.pushInt(p.base);
+      m.pushInt(seq);
+      m.pushInt(p.outStream);
+      clone.setSourceSession(this);
+      clone.init();
+      clone.go();
+    } catch (CloneNotSupportedException ex) {
+      ex.printStackTrace();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /*
+   * Processes an acknowledgment, cumulative and, if bits is not 0, selective.
+   */
+  private void acknowledged(Peer p, int stream, int ack, long bits, long now) {
+    if (stream != p.outStream)
+      return;
+    final int n=p.acknowledge(ack,now);
+    // a stale or reordered acknowledgment says nothing about the current holes
+    if (bits != 0 && ack-p.base >= 0) {
+      final int end=p.selectiveAck(ack,bits);
+      // fast retransmission of the holes, once
+      boolean lost=false;
+      for (int seq=(ack-p.base > 0 ? ack : p.base) ; seq-end < 0 ; seq++) {
+        final int i=p.index(seq);
+        if (!p.sacked[i] && p.resends[i] == 0) {
+          p.resends[i]++;
+          transmit(p,seq,now);
+          lost=true;
+        }
+      }
+      if (lost)
+        p.lost();
+    }
+    if (n > 0) {
+      p.lastUsed=now;
+      sendPending(p,now);
+    }
+  }
+
+  private void handleAck(SlidingAckEvent e) {
+    if (e.getDir() == Direction.DOWN) {
+      forward(e);
+      return;
+    }
+    final Peer p=peers.get(e.source);
+    if (p == null)
+      return;
+    final Message m=e.getMessage();
+    final int stream=m.popInt();
+    final int ack=m.popInt();
+    final long bits=m.popLong();
+    acknowledged(p,stream,ack,bits,timeProvider.currentTimeMillis());
+  }
+
+  /* ***************
+   *  Receiving
+   * *************** */
+
+  private void processIncoming(SendableEvent e) {
+    final long now=timeProvider.currentTimeMillis();
+    final Message m=e.getMessage();
+    final int stream=m.popInt();
+    final int seq=m.popInt();
+    final int base=m.popInt();
+    final int ackStream=m.popInt();
+    final int ack=m.popInt();
+    final boolean ackRequested=m.popBoolean();
+
+    final Peer p=getPeer(e.source,e.getChannel(),now);
+    p.channel=e.getChannel();
+    p.lastUsed=now;
+    if (ackStream != 0)
+      acknowledged(p,ackStream,ack,0,now);
+
+    if (!p.hasInStream || stream-p.inStream > 0) {
+      if (log.isDebugEnabled())
+        log.debug("New stream "+stream+" from "+e.source+" starting at "+base);
+      p.resetIncoming(stream,base);
+    } else if (stream != p.inStream)
+      return;
+
+    final int distance=seq-p.nextIn;
+    if (distance < 0) {
+      // duplicate: the acknowledgment was lost
+      sendAck(p);
+      return;
+    }
+    if (distance >= p.capacity())
+      return;
+    if (distance > 0) {
+      p.storeIncoming(seq,e);
+      sendAck(p);
+      return;
+    }
+
+    p.nextIn++;
+    deliver(e);
+    int delivered=1;
+    SendableEvent next;
+    while ((next=p.nextIncoming()) != null) {
+      deliver(next);
+      delivered++;
+    }
+    p.unacked+=delivered;
+    if (ackRequested || p.unacked >= param_ACK_EVERY)
+      sendAck(p);
+  }
+
+  private void deliver(SendableEvent e) {
+    forward(e);
+  }
+
+  private void sendAck(Peer p) {
+    if (p.channel == null || !p.hasInStream)
+      return;
+    try {
+      final SlidingAckEvent ack=new SlidingAckEvent(p.channel,this,p.address,myAddr);
+      final Message m=ack.getMessage();
+      m.pushLong(p.sackBits());
+      m.pushInt(p.nextIn);
+      m.pushInt(p.inStream);
+      ack.go();
+      p.unacked=0;
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /* ***************
+   *  Timer
+   * *************** */
+
+  private void requestTimer(Channel channel) {
+    try {
+      new SlidingFifoTimer(param_TIMER_PERIOD,channel,this).go();
+      timerChannel=channel;
+    } catch (AppiaException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /*
+   * Retransmits the messages whose timeout expired, sends the pending
+   * acknowledgments and discards idle peers.
+   */
+  private void handleTimer(SlidingFifoTimer e) {
+    forward(e);
+    final long now=timeProvider.currentTimeMillis();
+
+    final ArrayList<Peer> aux=new ArrayList<Peer>(peers.values());
+    for (Peer p : aux) {
+      if (p.inFlight() > 0 && now-p.sentAt[p.index(p.base)] >= p.rto) {
+        if (!retransmit(p,now))
+          continue;
+      }
+      // the acknowledgments are repeated while there are messages missing
+      if (p.unacked > 0 || p.buffered > 0)
+        sendAck(p);
+      if (p.isIdle() && now-p.lastUsed >= param_PEER_INACTIVITY_TIME) {
+        peers.remove(p.address);
+        if (log.isDebugEnabled())
+          log.debug("Discarding idle peer "+p);
+      }
+    }
+  }
+
+  /*
+   * Retransmits the messages not acknowledged for longer than the timeout.
+   * Returns false if the peer was discarded.
+   */
+  private boolean retransmit(Peer p, long now) {
+    final long rto=p.rto;
+    p.timeout();
+    for (int seq=p.base ; seq-p.next < 0 ; seq++) {
+      final int i=p.index(seq);
+      if (p.sacked[i] || now-p.sentAt[i] < rto)
+        continue;
+      if (++p.resends[i] > param_NUM_RESENDS) {
+        log.debug("Giving up sending messages to "+p.address);
+        giveup(p);
+        return false;
+      }
+      transmit(p,seq,now);
+    }
+    return true;
+  }
+
+  /*
+   * Discards a peer, sending up a FIFOUndeliveredEvent for each message
+   * still waiting to be delivered to it.
+   */
+  private void giveup(Peer p) {
+    if (peers.get(p.address) == p)
+      peers.remove(p.address);
+    for (int seq=p.base ; seq-p.next < 0 ; seq++)
+      undelivered(p,p.out[p.index(seq)]);
+    for (SendableEvent e : p.pending)
+      undelivered(p,e);
+    p.base=p.next;
+    p.pending.clear();
+  }
+
+  private void undelivered(Peer p, SendableEvent e) {
+    try {
+      SendableEvent undelivered=e;
+      if (e.dest instanceof AppiaMulticast) {
+        undelivered=(SendableEvent) e.cloneEvent();
+        undelivered.dest=p.address;
+      }
+      new FIFOUndeliveredEvent(e.getChannel(),this,undelivered).go();
+    } catch (CloneNotSupportedException ex) {
+      ex.printStackTrace();
+    } catch (AppiaEventException ex) {
+      if (ex.type != AppiaEventException.UNWANTEDEVENT)
+        ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.slidingfifo;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.PeriodicTimer;
+
+/**
+ * Periodic timer of the {@link SlidingFifoSession}, used to retransmit
+ * messages and to send acknowledgments.
+ */
+public class SlidingFifoTimer extends PeriodicTimer {
+
+  /**
+   * Creates and initializes a new SlidingFifoTimer.
+   * @param period the period in milliseconds
+   * @param channel the channel of the timer
+   * @param source the session that requested the timer
+   */
+  public SlidingFifoTimer(long period, Channel channel, Session source)
+  throws AppiaEventException, AppiaException {
+    super("SlidingFifoTimer",period,channel,Direction.DOWN,source,EventQualifier.ON);
+  }
+}
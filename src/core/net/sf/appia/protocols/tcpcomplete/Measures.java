@@ -22,6 +22,7 @@ package net.sf.appia.protocols.tcpcomplete;
 
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
@@ -44,6 +45,11 @@ public class Measures {
     public static final String THRPUT_BYTES_PER_SECOND_DOWN = "bytes_per_second_down";
     public static final String REFRESH_INTERVAL = "refresh_interval";
     public static final String QUEUE_SIZE = "queue_size";
+    public static final String BATCH_MESSAGES_HISTOGRAM = "batch_messages_histogram";
+    public static final String BATCH_BYTES_HISTOGRAM = "batch_bytes_histogram";
+    
+    /** Number of buckets of the batch histograms. Bucket i counts the batches with size in [2^i, 2^(i+1)[. */
+    public static final int HISTOGRAM_BUCKETS = 32;
 
     private static final float MINIMUM_VALUE = 0.05F;
     private static final long DEFAULT_REFRESH_INTERVAL = 5000;
@@ -53,6 +59,9 @@ public class Measures {
 
     private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
     
+    private AtomicLongArray batchMessages = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private AtomicLongArray batchBytes = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    
     private TcpCompleteSession session;
 
     /**
@@ -149,6 +158,27 @@ public class Measures {
         bytesPerSecondDown.add(count);
     }
     
+    /**
+     * Counts a batch written to a socket.
+     * @param messages the number of messages in the batch
+     * @param bytes the number of bytes in the batch
+     */
+    public void countBatch(int messages, int bytes){
+        batchMessages.incrementAndGet(bucket(messages));
+        batchBytes.incrementAndGet(bucket(bytes));
+    }
+    
+    private static int bucket(int value){
+        return value <= 0 ? 0 : 31 - Integer.numberOfLeadingZeros(value);
+    }
+    
+    private static long[] snapshot(AtomicLongArray histogram){
+        final long[] result = new long[histogram.length()];
+        for(int i=0; i<result.length; i++)
+            result[i] = histogram.get(i);
+        return result;
+    }
+    
     private Object getParameter(String parameter) throws AppiaManagementException {
         if(parameter.equals(THRPUT_MSG_PER_SECOND_UP))
             return msgPerSecondUp.get();
@@ -162,6 +192,10 @@ public class Measures {
             return refreshInterval;
         if(parameter.equals(QUEUE_SIZE))
             return session.getGlobalQueueSize();
+        if(parameter.equals(BATCH_MESSAGES_HISTOGRAM))
+            return snapshot(batchMessages);
+        if(parameter.equals(BATCH_BYTES_HISTOGRAM))
+            return snapshot(batchBytes);
         throw new AppiaManagementException("Parameter '"+parameter+"' not defined in session "+this.getClass().getName());
     }
 
@@ -186,6 +220,8 @@ public class Measures {
         jmxFeaturesMap.put(sid+THRPUT_MSG_PER_SECOND_UP,THRPUT_MSG_PER_SECOND_UP);
         jmxFeaturesMap.put(sid+REFRESH_INTERVAL,REFRESH_INTERVAL);
         jmxFeaturesMap.put(sid+QUEUE_SIZE,QUEUE_SIZE);
+        jmxFeaturesMap.put(sid+BATCH_MESSAGES_HISTOGRAM,BATCH_MESSAGES_HISTOGRAM);
+        jmxFeaturesMap.put(sid+BATCH_BYTES_HISTOGRAM,BATCH_BYTES_HISTOGRAM);
         return new MBeanAttributeInfo[]{
                 new MBeanAttributeInfo(sid+THRPUT_BYTES_PER_SECOND_DOWN,
                         "float","gets the throughput value",
@@ -205,6 +241,12 @@ public class Measures {
                                                         new MBeanAttributeInfo(sid+QUEUE_SIZE,
                                                                 "long","gets the queue size of sending messages",
                                                                 true,false,false),
+                                                                new MBeanAttributeInfo(sid+BATCH_MESSAGES_HISTOGRAM,
+                                                                        "[J","gets the number of batches written with 2^i to 2^(i+1)-1 messages",
+                                                                        true,false,false),
+                                                                new MBeanAttributeInfo(sid+BATCH_BYTES_HISTOGRAM,
+                                                                        "[J","gets the number of batches written with 2^i to 2^(i+1)-1 bytes",
+                                                                        true,false,false),
         };
     }
 
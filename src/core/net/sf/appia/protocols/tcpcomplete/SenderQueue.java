@@ -79,6 +79,40 @@ public class SenderQueue<T> {
 		}
 	}
 	
+	/**
+	 * Removes the next item, waiting at most the given time for one to be added.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return the item, or null if none was added in time
+	 */
+	public T removeNext(long timeout, TimeUnit unit){
+		T item=mailbox.poll();
+		if (item != null || timeout <= 0)
+			return item;
+		lock.lock();
+		try{
+			long nanos=unit.toNanos(timeout);
+			while(mailbox.isEmpty() && nanos > 0)
+				try {
+					nanos=isEmpty.awaitNanos(nanos);
+				} catch (InterruptedException e) {
+					return null;
+				}
+			return mailbox.poll();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the next item, without waiting.
+	 * @return the item, or null if the queue is empty
+	 */
+	public T poll(){
+		return mailbox.poll();
+	}
+	
 	public int getSize(){
 		return mailbox.size();
 	}
@@ -20,13 +20,19 @@
  package net.sf.appia.protocols.tcpcomplete;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
@@ -48,6 +54,7 @@ import net.sf.appia.core.message.Message;
 import net.sf.appia.core.message.MsgBuffer;
 import net.sf.appia.management.AppiaManagementException;
 import net.sf.appia.management.ManagedSession;
+import net.sf.appia.protocols.common.EventTypeRegistry;
 import net.sf.appia.protocols.common.RegisterSocketEvent;
 import net.sf.appia.protocols.utils.HostUtils;
 import net.sf.appia.protocols.utils.ParseUtils;
@@ -76,13 +83,23 @@ public class TcpCompleteSession extends Session
   private static final int DEST_TIMEOUT=150000; // 2,5 minutes
   private static final int MAX_INACTIVITY=2;
   private static final int SOTIMEOUT=5000;
+  private static final int MAX_BATCH_BYTES=64*1024;
+  private static final int MAX_LINGER_MICROS=0;
   
   protected int param_DEST_TIMEOUT=DEST_TIMEOUT, param_MAX_INACTIVITY=MAX_INACTIVITY, 
   	param_SOTIMEOUT=SOTIMEOUT;
+  protected int param_MAX_BATCH_BYTES=MAX_BATCH_BYTES;
+  protected long param_MAX_LINGER_MICROS=MAX_LINGER_MICROS;
   protected boolean param_CLOSE_INACTIVE_SOCKETS=true;
+  protected boolean param_COMPACT_EVENT_TYPES=false;
   
   //Channels
   protected Hashtable<String,Channel> channels;
+  //Channels by hash code of the channel ID, used on the wire
+  protected Hashtable<Integer,Channel> channelHashes;
+  
+  //Tags of the events on the wire
+  protected EventTypeRegistry eventTypes;
   
   //Open Sockets created by this node
 //  protected HashMap ourSockets;
@@ -100,6 +117,12 @@ public class TcpCompleteSession extends Session
   protected Object socketLock;
   protected Object channelLock;
   
+  //Destinations of each AppiaMulticast, with their sockets.
+  //AppiaMulticast does not redefine equals, so the keys are compared by identity
+  private Map<AppiaMulticast,FanOut> fanOuts=new WeakHashMap<AppiaMulticast,FanOut>();
+  //Incremented when a socket is added or removed, making the sockets in fanOuts stale
+  private volatile int socketsVersion=0;
+  
 //  private Benchmark bench=null;
   
   private Channel timerChannel=null;
@@ -115,6 +138,8 @@ public class TcpCompleteSession extends Session
     
     //init all
     channels = new Hashtable<String,Channel>();
+    channelHashes = new Hashtable<Integer,Channel>();
+    eventTypes = new EventTypeRegistry();
 //    ourSockets = new HashMap();
     ourReaders = new Hashtable<InetSocketAddress,SocketInfoContainer>();
 //    otherSockets = new HashMap();
@@ -132,7 +157,11 @@ public class TcpCompleteSession extends Session
    * <li><b>dest_timeout</b> time between unused open connections verification. (in milliseconds);
    * <li><b>max_inactivity</b> number of times that the dest_timeout expires without closing the connection;
    * <li><b>reader_sotimeout</b> the timeout of the threads that listen on TCP sockets. (in milliseconds);
-   * <li><b>close_inactive_sockets</b> boolean that defines if inactive sockets should be closed or not.
+   * <li><b>close_inactive_sockets</b> boolean that defines if inactive sockets should be closed or not;
+   * <li><b>max_batch_bytes</b> maximum number of bytes written to a socket at once;
+   * <li><b>max_linger_micros</b> maximum time the sender waits for more messages to fill a batch. (in microseconds);
+   * <li><b>compact_event_types</b> sends the tag of the event class and the hash of the channel ID instead of their names.
+   * All nodes must use the same value. The default is false, which keeps the format of previous versions.
    * </ul>
    * 
    * @param params The parameters given in the XML configuration.
@@ -147,6 +176,12 @@ public class TcpCompleteSession extends Session
           param_MAX_INACTIVITY=params.getInt("max_inactivity");
       if (params.containsKey("close_inactive_sockets"))
           param_CLOSE_INACTIVE_SOCKETS=params.getBoolean("close_inactive_sockets");
+      if (params.containsKey("max_batch_bytes"))
+          param_MAX_BATCH_BYTES=params.getInt("max_batch_bytes");
+      if (params.containsKey("max_linger_micros"))
+          param_MAX_LINGER_MICROS=params.getLong("max_linger_micros");
+      if (params.containsKey("compact_event_types"))
+          param_COMPACT_EVENT_TYPES=params.getBoolean("compact_event_types");
   }
 
   public void handle(Event e){
@@ -180,16 +215,10 @@ public class TcpCompleteSession extends Session
     if(log.isDebugEnabled())
       log.debug("preparing to send ::"+e+" CHANNEL: "+e.getChannel().getChannelID());
     
-    byte[] data=format(e);
+    ByteBuffer[] data=format(e);
     
     if (e.dest instanceof AppiaMulticast) {
-      Object[] dests=((AppiaMulticast)e.dest).getDestinations();
-      for (int i=0 ; i < dests.length ; i++) {
-        if (dests[i] instanceof InetSocketAddress)
-          send(data, (InetSocketAddress)dests[i], e.getChannel());
-        else
-          sendUndelivered(e.getChannel(),(InetSocketAddress) dests[i]);
-      }
+      send(data, resolve((AppiaMulticast)e.dest), e.getChannel());
     } else if (e.dest instanceof InetSocketAddress) {
       send(data, (InetSocketAddress)e.dest, e.getChannel());
     } else {
@@ -286,6 +315,7 @@ public class TcpCompleteSession extends Session
   
   private void handleCloseSocket(CloseTcpSocket e) {
       InetSocketAddress dest = (InetSocketAddress) e.getAddress();
+      socketsVersion++;
       if(existsSocket(otherReaders,dest)){
           otherReaders.remove(dest).close();
           if(log.isDebugEnabled())
@@ -363,6 +393,7 @@ public class TcpCompleteSession extends Session
 	        if(reader.sumInactiveCounter() > param_MAX_INACTIVITY){
 	            reader.setRunning(false);
 	            it.remove();
+	            socketsVersion++;
 	        }
 	    }
 	    it = otherReaders.values().iterator();
@@ -371,12 +402,67 @@ public class TcpCompleteSession extends Session
 	        if(reader.sumInactiveCounter() > param_MAX_INACTIVITY){
 	            reader.setRunning(false);
 	            it.remove();
+	            socketsVersion++;
 	        }
 	    }
     }
   }
   
-  protected void send(byte[] data, InetSocketAddress dest, Channel channel) {
+  /*
+   * Gets the destinations of an AppiaMulticast, checking them only the first
+   * time it is used.
+   */
+  private FanOut resolve(AppiaMulticast multicast) {
+    FanOut fanOut=fanOuts.get(multicast);
+    if (fanOut == null) {
+      final Object[] dests=multicast.getDestinations();
+      int n=0;
+      for (int i=0 ; i < dests.length ; i++) {
+        if (dests[i] instanceof InetSocketAddress)
+          n++;
+        else
+          log.error("Wrong destination address type: "+dests[i]);
+      }
+      fanOut=new FanOut(n);
+      n=0;
+      for (int i=0 ; i < dests.length ; i++)
+        if (dests[i] instanceof InetSocketAddress)
+          fanOut.dests[n++]=(InetSocketAddress)dests[i];
+      fanOuts.put(multicast,fanOut);
+    }
+    return fanOut;
+  }
+  
+  /*
+   * Sends the same data to all the destinations of a FanOut. The sockets are
+   * looked up once, and again only after a socket is added or removed.
+   */
+  private void send(ByteBuffer[] data, FanOut fanOut, Channel channel) {
+    final int version=socketsVersion;
+    if (fanOut.version != version) {
+      Arrays.fill(fanOut.containers,null);
+      fanOut.version=version;
+    }
+    int length=0;
+    for (int i=0 ; i < data.length ; i++)
+      length+=data[i].remaining();
+    
+    for (int i=0 ; i < fanOut.dests.length ; i++) {
+      if (fanOut.containers[i] == null)
+        fanOut.containers[i]=send(data, fanOut.dests[i], channel);
+      else {
+        measures.countBytesDown(length);
+        measures.countMessagesDown(1);
+        fanOut.containers[i].sender.getQueue().add(new MessageContainer(data,length,fanOut.dests[i],channel));
+      }
+    }
+  }
+  
+  /*
+   * Sends data to a destination, opening a socket to it if needed.
+   * Returns the socket, or null if it could not be opened.
+   */
+  protected SocketInfoContainer send(ByteBuffer[] data, InetSocketAddress dest, Channel channel) {
     SocketInfoContainer container = null;
     try {
       //check if the socket exist int the opensockets created by us
@@ -402,15 +488,17 @@ public class TcpCompleteSession extends Session
       //send event by the chosen socket -> formatAndSend()
       if (log.isDebugEnabled())
         log.debug("Adding to socket Queue of "+container.sender+" Queue has now #Items: "+container.sender.getQueue().getSize());
-      measures.countBytesDown(data.length);
+      final MessageContainer message = new MessageContainer(data,dest,channel);
+      measures.countBytesDown(message.length);
       measures.countMessagesDown(1);      
-      container.sender.getQueue().add(new MessageContainer(data,dest,channel));
+      container.sender.getQueue().add(message);
     } catch (IOException ex) {
       if(log.isDebugEnabled()) {
         ex.printStackTrace();
         log.debug("Node "+dest+" failed.");
       }
     }
+    return container;
   }
   
   protected boolean existsSocket(Hashtable<InetSocketAddress,SocketInfoContainer> hr, InetSocketAddress iwp){
@@ -465,12 +553,14 @@ public class TcpCompleteSession extends Session
       ts.setName("TCP sender thread ["+iwp+"]");
       ts.start();
       hr.put(iwp,container);
+      socketsVersion++;
       return container;
     }
   }
   
   protected void removeSocket(InetSocketAddress iwp){
     synchronized(socketLock){
+      socketsVersion++;
       if(existsSocket(ourReaders,iwp))
         ourReaders.remove(iwp).close();
       else if(existsSocket(otherReaders,iwp))
@@ -488,47 +578,72 @@ public class TcpCompleteSession extends Session
     }
   }
   
+  protected Channel getChannel(int channelHash){
+    return channelHashes.get(new Integer(channelHash));
+  }
+  
   protected void putChannel(Channel channel) {
     synchronized(channelLock){
       channels.put(channel.getChannelID(),channel);
+      channelHashes.put(new Integer(channel.getChannelID().hashCode()),channel);
     }
   }
   
   protected void removeChannel(Channel channel) {
     synchronized(channelLock){
       channels.remove(channel.getChannelID());
+      channelHashes.remove(new Integer(channel.getChannelID().hashCode()));
     }
   }
   
-  protected byte[] format(SendableEvent e) {
+  /*
+   * Event serialization (int total+int length+className+int length+channelName+message).
+   * With compact_event_types (int total+int tag+int channelHash+message),
+   * and events without a tag are sent with their class name (int total+int length+className+int channelHash+message).
+   */
+  protected ByteBuffer[] format(SendableEvent e) {
     MsgBuffer mbuf = new MsgBuffer();
     Message msg = e.getMessage();
     
-    byte[] eventType = e.getClass().getName().getBytes();
-    byte[] channelID = e.getChannel().getChannelID().getBytes();
-    
-    
-    mbuf.len = channelID.length;
-    msg.push(mbuf);
-    System.arraycopy(channelID, 0, mbuf.data, mbuf.off, mbuf.len);
-    
-    mbuf.len = 4;
-    msg.push(mbuf);
-    ParseUtils.intToByteArray(channelID.length, mbuf.data, mbuf.off);
+    final int tag = param_COMPACT_EVENT_TYPES ? eventTypes.getTag(e) : EventTypeRegistry.NO_TAG;
     
-    mbuf.len = eventType.length;
-    msg.push(mbuf);
-    System.arraycopy(eventType, 0, mbuf.data, mbuf.off, mbuf.len);
+    if (param_COMPACT_EVENT_TYPES) {
+        mbuf.len = 4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(e.getChannel().getChannelID().hashCode(), mbuf.data, mbuf.off);
+    } else {
+        final byte[] channelID = e.getChannel().getChannelID().getBytes();
+        
+        mbuf.len = channelID.length;
+        msg.push(mbuf);
+        System.arraycopy(channelID, 0, mbuf.data, mbuf.off, mbuf.len);
+        
+        mbuf.len = 4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(channelID.length, mbuf.data, mbuf.off);
+    }
     
-    mbuf.len = 4;
-    msg.push(mbuf);
-    ParseUtils.intToByteArray(eventType.length, mbuf.data, mbuf.off);
+    if (tag == EventTypeRegistry.NO_TAG) {
+        final byte[] eventType = e.getClass().getName().getBytes();
+        
+        mbuf.len = eventType.length;
+        msg.push(mbuf);
+        System.arraycopy(eventType, 0, mbuf.data, mbuf.off, mbuf.len);
+        
+        mbuf.len = 4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(eventType.length, mbuf.data, mbuf.off);
+    } else {
+        mbuf.len = 4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(tag, mbuf.data, mbuf.off);
+    }
     
     mbuf.len = 4;
     msg.push(mbuf);
     ParseUtils.intToByteArray(msg.length()-4,mbuf.data,mbuf.off);
     
-    return msg.toByteArray();
+    return msg.toByteBuffers();
   }
   
   protected void sendASyncUndelivered(Channel channel, InetSocketAddress who) {
@@ -563,7 +678,11 @@ public class TcpCompleteSession extends Session
   }
 
   /**
-   * This class defines a TcpSender
+   * This class defines a TcpSender.
+   * <br>
+   * Each write drains the messages available in the queue, waiting at most
+   * max_linger_micros for more, and copies them to a buffer that is written at once,
+   * up to max_batch_bytes.
    * 
    * @author <a href="mailto:nunomrc@di.fc.ul.pt">Nuno Carvalho</a>
    * @version 1.0
@@ -572,33 +691,67 @@ public class TcpCompleteSession extends Session
       private Socket socket;
       private SenderQueue<MessageContainer> queue;
       private boolean running=true;
+      private byte[] batch;
       TcpSender(Socket s, SenderQueue<MessageContainer> sq){
           socket = s;
           queue = sq;
+          batch = new byte[param_MAX_BATCH_BYTES];
       }
       public void run() {
           MessageContainer container = null;
+          MessageContainer last = null;
           while(isRunning()){
               container = queue.removeNext();
               if(container == null)
                   continue;
               try {
+                  final OutputStream out = socket.getOutputStream();
+                  final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(param_MAX_LINGER_MICROS);
+                  int buffered = 0, messages = 0, bytes = 0;
+                  do {
+                      last = container;
+                      if (buffered > 0 && buffered + container.length > batch.length) {
+                          out.write(batch, 0, buffered);
+                          buffered = 0;
+                      }
+                      for (int i=0; i < container.data.length; i++) {
+                          final ByteBuffer b = container.data[i];
+                          if (container.length > batch.length)
+                              write(out, b);
+                          else if (b.hasArray()) {
+                              System.arraycopy(b.array(), b.arrayOffset()+b.position(), batch, buffered, b.remaining());
+                              buffered += b.remaining();
+                          } else {
+                              // the same buffers may be sent to other destinations, so the position is kept
+                              b.duplicate().get(batch, buffered, b.remaining());
+                              buffered += b.remaining();
+                          }
+                      }
+                      messages++;
+                      bytes += container.length;
+                      if (bytes >= batch.length)
+                          break;
+                      container = queue.removeNext(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                  } while (container != null);
+                  
                   if (log.isDebugEnabled())
-                      log.debug("Sending message to the socket for "+container.who+" with "+container.data.length+" bytes");
-                  socket.getOutputStream().write(container.data);
-                  if (log.isDebugEnabled())
-                      log.debug("Flushing data...");
-                  socket.getOutputStream().flush();
-                  if (log.isDebugEnabled())
-                      log.debug("Flushing done...");
+                      log.debug("Sending "+messages+" messages to the socket for "+last.who+" with "+bytes+" bytes");
+                  if (buffered > 0)
+                      out.write(batch, 0, buffered);
+                  out.flush();
+                  measures.countBatch(messages, bytes);
               } catch (IOException e) {
                   if(isRunning()){
-                      sendASyncUndelivered(container.channel, container.who);
+                      sendASyncUndelivered(last.channel, last.who);
                       if(log.isDebugEnabled()){
                           log.debug("Exception when send ASyncUndelivered:\n");
                           e.printStackTrace();                          
                       }
                   }
+              } catch (RuntimeException e) {
+                  // the thread keeps serving the socket, and the message is reported as undelivered
+                  log.error("Unable to send message to "+last.who+": "+e);
+                  sendASyncUndelivered(last.channel, last.who);
               }
           }
           try {
@@ -610,6 +763,23 @@ public class TcpCompleteSession extends Session
         }
       }
       
+      /*
+       * Writes a buffer that does not fit in the batch.
+       * Buffers without an array, such as the payload of a DirectMessage, are copied through the batch.
+       */
+      private void write(OutputStream out, ByteBuffer b) throws IOException {
+          if (b.hasArray()) {
+              out.write(b.array(), b.arrayOffset()+b.position(), b.remaining());
+              return;
+          }
+          final ByteBuffer aux = b.duplicate();
+          while (aux.hasRemaining()) {
+              final int len = Math.min(aux.remaining(), batch.length);
+              aux.get(batch, 0, len);
+              out.write(batch, 0, len);
+          }
+      }
+      
       SenderQueue<MessageContainer> getQueue(){
           return queue;
       }
@@ -638,14 +808,36 @@ public class TcpCompleteSession extends Session
    * @version 1.0
    */
   class MessageContainer {
-      byte[] data;
+      ByteBuffer[] data;
+      int length;
       InetSocketAddress who;
       Channel channel;
-      MessageContainer(byte[] b, InetSocketAddress sa, Channel c){
+      MessageContainer(ByteBuffer[] b, InetSocketAddress sa, Channel c){
           data = b;
+          for (int i=0; i < b.length; i++)
+              length += b[i].remaining();
           who = sa;
           channel = c;
       }
+      MessageContainer(ByteBuffer[] b, int l, InetSocketAddress sa, Channel c){
+          data = b;
+          length = l;
+          who = sa;
+          channel = c;
+      }
+  }
+  
+  /*
+   * The destinations of an AppiaMulticast and, once known, their sockets.
+   */
+  static class FanOut {
+      final InetSocketAddress[] dests;
+      final SocketInfoContainer[] containers;
+      int version=-1;
+      FanOut(int n){
+          dests = new InetSocketAddress[n];
+          containers = new SocketInfoContainer[n];
+      }
   }
 
   public Object attributeGetter(String attribute, MBeanAttributeInfo info) throws AppiaManagementException {
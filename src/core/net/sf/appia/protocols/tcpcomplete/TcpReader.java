@@ -28,6 +28,7 @@ import java.net.SocketTimeoutException;
 
 import net.sf.appia.core.*;
 import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.protocols.common.EventTypeRegistry;
 import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
 import net.sf.appia.protocols.utils.ParseUtils;
 
@@ -166,29 +167,38 @@ public class TcpReader implements Runnable {
 			receive_n(data,total);
 			int curPos = 0;
 			
-			/* Extract event class name */
-			//size of class name
-			int sLength=ParseUtils.byteArrayToInt(data, curPos);
-			//the class name
-		    String className=new String(data,curPos+4,sLength);
+			/* Extract event tag, or size of class name */
+			int tag=ParseUtils.byteArrayToInt(data, curPos);
+			int sLength=EventTypeRegistry.isTag(tag) ? 0 : tag;
+			curPos += sLength + 4;
 
-		        //updating curPos
-		        curPos += sLength + 4;
-
-		        /* Create event */
-		        e = (SendableEvent)Class.forName(className).newInstance();
-
-		        /* Extract channel name and put event in it*/
-		        sLength = ParseUtils.byteArrayToInt(data, curPos);
-		        String channelName=new String(data,curPos+4,sLength);
-
-			Channel msgChannel = parentSession.getChannel(channelName);
+			/* Extract channel hash, or channel name */
+			Channel msgChannel;
+			if (parentSession.param_COMPACT_EVENT_TYPES) {
+			    int channelHash=ParseUtils.byteArrayToInt(data, curPos);
+			    curPos += 4;
+			    msgChannel = parentSession.getChannel(channelHash);
+			} else {
+			    int cLength=ParseUtils.byteArrayToInt(data, curPos);
+			    msgChannel = parentSession.getChannel(new String(data,curPos+4,cLength));
+			    curPos += cLength + 4;
+			}
 			
 			if(msgChannel == null)
 				return null;
 			
+			/* Create event */
+			if (EventTypeRegistry.isTag(tag)) {
+			    e = parentSession.eventTypes.newEvent(tag, msgChannel.getQoS());
+			    if (e == null) {
+			        if (log.isDebugEnabled())
+			            log.debug("Unknown event tag "+tag+" in channel "+msgChannel.getChannelID()+". Discarding message.");
+			        return null;
+			    }
+			} else
+			    e = parentSession.eventTypes.newEvent(new String(data,4,sLength));
+			
 			e.setChannel(msgChannel);
-		        curPos += sLength + 4;
 
 		        /* Extract the addresses and put them on the event */
 
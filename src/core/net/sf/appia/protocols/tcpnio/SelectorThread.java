@@ -0,0 +1,153 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.tcpnio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread that handles the I/O of a set of connections, and possibly of the
+ * listening socket, using a {@link java.nio.channels.Selector Selector}.
+ * <br>
+ * Channels are registered, and interest operations changed, by tasks that are
+ * executed in this thread, so the selector is never used by other threads.
+ */
+public class SelectorThread implements Runnable {
+
+  private static Logger log = Logger.getLogger(SelectorThread.class);
+
+  private TcpNioSession session;
+  private Selector selector;
+  private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private volatile boolean running = true;
+
+  public SelectorThread(TcpNioSession session) throws IOException {
+    this.session = session;
+    selector = Selector.open();
+  }
+
+  /**
+   * Executes a task in this thread.
+   * @param task the task
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Registers a channel in the selector. Must be called in this thread.
+   */
+  SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws ClosedChannelException {
+    return channel.register(selector, ops, attachment);
+  }
+
+  /**
+   * Stops the thread and closes all the channels registered in it.
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  public void run() {
+    while (running) {
+      try {
+        selector.select();
+      } catch (IOException ex) {
+        log.debug("Exception in select: "+ex);
+      }
+
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException ex) {
+          // the key of a connection closed by another thread may be cancelled
+          if (log.isDebugEnabled())
+            log.debug("Exception in selector task: "+ex);
+        }
+      }
+
+      final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        final SelectionKey key = it.next();
+        it.remove();
+        if (!key.isValid())
+          continue;
+
+        if (key.attachment() == null) {
+          try {
+            if (key.isAcceptable())
+              session.accept((ServerSocketChannel) key.channel());
+          } catch (RuntimeException ex) {
+            log.warn("Unexpected exception accepting a connection: "+ex);
+          }
+          continue;
+        }
+
+        // a failure only closes the connection of this key
+        final TcpNioConnection conn = (TcpNioConnection) key.attachment();
+        try {
+          if (key.isConnectable())
+            conn.finishConnect();
+          if (key.isValid() && key.isReadable())
+            conn.read();
+          if (key.isValid() && key.isWritable())
+            conn.write();
+        } catch (IOException ex) {
+          if (log.isDebugEnabled())
+            log.debug("Connection to "+conn.getAddress()+" failed: "+ex.getMessage());
+          session.connectionFailed(conn);
+        } catch (CancelledKeyException ex) {
+          // closed by another thread
+          session.connectionFailed(conn);
+        } catch (RuntimeException ex) {
+          log.warn("Unexpected exception in connection to "+conn.getAddress()+": "+ex);
+          session.connectionFailed(conn);
+        }
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException ex) {
+        if (log.isDebugEnabled())
+          ex.printStackTrace();
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException ex) {
+      if (log.isDebugEnabled())
+        ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.tcpnio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.appia.core.Channel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A TCP connection handled by a {@link SelectorThread}.
+ * <br>
+ * Frames to send are queued by the Appia threads and written by the selector
+ * thread, with gathering writes of up to {@link #MAX_GATHER} buffers. Received
+ * frames are extracted from a per-connection direct buffer and handed to the session.
+ * <br>
+ * The first 4 bytes sent by the side that opens the connection are the port
+ * where it accepts connections.
+ */
+public class TcpNioConnection {
+
+  private static Logger log = Logger.getLogger(TcpNioConnection.class);
+
+  /** Maximum number of buffers written by a single gathering write. */
+  public static final int MAX_GATHER = 64;
+
+  private static final int READ_BUFFER_SIZE = 16*1024;
+  private static final int INT_SIZE = 4;
+
+  private TcpNioSession session;
+  private SocketChannel socket;
+  private SelectorThread selector;
+  private SelectionKey key = null;
+  private Channel channel;
+
+  // remote address where the peer accepts connections
+  private volatile InetSocketAddress address;
+  private boolean handshaken;
+
+  private ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+  private AtomicInteger queuedBytes = new AtomicInteger(0);
+  private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+  private ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+  // time when the queue went above its limit, or 0
+  private long fullSince = 0;
+
+  private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  private int inactiveCounter = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a connection.
+   * @param session the session
+   * @param socket the socket, in non-blocking mode
+   * @param selector the selector thread that handles the connection
+   * @param address the address of the peer, or null if it is still unknown
+   * @param channel the channel used to notify failures
+   */
+  public TcpNioConnection(TcpNioSession session, SocketChannel socket, SelectorThread selector,
+      InetSocketAddress address, Channel channel) {
+    this.session = session;
+    this.socket = socket;
+    this.selector = selector;
+    this.address = address;
+    this.channel = channel;
+    // the side that knows the address opened the connection
+    handshaken = address != null;
+  }
+
+  /**
+   * Registers the connection in its selector thread.
+   * @param ops the initial interest operations
+   */
+  void register(final int ops) {
+    selector.execute(new Runnable() {
+      public void run() {
+        try {
+          key = selector.register(socket, ops, TcpNioConnection.this);
+          if (ops != SelectionKey.OP_CONNECT && writeScheduled.get())
+            key.interestOps(ops | SelectionKey.OP_WRITE);
+        } catch (ClosedChannelException ex) {
+          session.connectionFailed(TcpNioConnection.this);
+        }
+      }
+    });
+  }
+
+  /**
+   * Queues a frame to be sent.
+   * <br>
+   * The buffers may be shared with other connections. Their position is not changed.
+   * @param frame the buffers of the frame
+   */
+  public void send(ByteBuffer[] frame) {
+    int bytes = 0;
+    // the buffers of concurrent frames must not be interleaved
+    synchronized (writeQueue) {
+      for (int i = 0; i < frame.length; i++) {
+        final ByteBuffer b = frame[i].duplicate();
+        bytes += b.remaining();
+        writeQueue.add(b);
+      }
+    }
+    queuedBytes.addAndGet(bytes);
+    if (writeScheduled.compareAndSet(false, true)) {
+      selector.execute(new Runnable() {
+        public void run() {
+          if (key != null && key.isValid() && socket.isConnected())
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      });
+    }
+  }
+
+  /**
+   * Tells since when the number of queued bytes is above the given limit.
+   * It never waits, so it can be called by the Appia thread.
+   * @param limit the limit
+   * @return the time, in milliseconds, when the queue went above the limit,
+   * or 0 if it is not above the limit
+   */
+  public long fullSince(int limit) {
+    if (queuedBytes.get() <= limit)
+      fullSince = 0;
+    else if (fullSince == 0)
+      fullSince = System.currentTimeMillis();
+    return fullSince;
+  }
+
+  /**
+   * Completes the connection. Called by the selector thread.
+   */
+  void finishConnect() throws IOException {
+    if (socket.finishConnect()) {
+      socket.socket().setTcpNoDelay(true);
+      key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Writes as many queued frames as the socket accepts. Called by the selector thread.
+   */
+  void write() throws IOException {
+    while (true) {
+      int n = 0;
+      final Iterator<ByteBuffer> it = writeQueue.iterator();
+      while (n < gather.length && it.hasNext())
+        gather[n++] = it.next();
+      if (n == 0)
+        break;
+
+      final long written = socket.write(gather, 0, n);
+      for (int i = 0; i < n; i++) {
+        if (gather[i].hasRemaining())
+          break;
+        writeQueue.poll();
+      }
+      for (int i = 0; i < n; i++)
+        gather[i] = null;
+      if (written > 0)
+        queuedBytes.addAndGet((int) -written);
+      else
+        return;
+    }
+
+    key.interestOps(SelectionKey.OP_READ);
+    writeScheduled.set(false);
+    if (!writeQueue.isEmpty() && writeScheduled.compareAndSet(false, true))
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+  }
+
+  /**
+   * Reads all the available frames. Called by the selector thread.
+   */
+  void read() throws IOException {
+    if (socket.read(readBuffer) < 0)
+      throw new IOException("Received EOF in the socket.");
+    readBuffer.flip();
+
+    if (!handshaken) {
+      if (readBuffer.remaining() < INT_SIZE) {
+        readBuffer.compact();
+        return;
+      }
+      final int port = readBuffer.getInt();
+      address = new InetSocketAddress(socket.socket().getInetAddress(), port);
+      handshaken = true;
+      session.connectionAccepted(this);
+      if (log.isDebugEnabled())
+        log.debug("received remote port:: "+port);
+    }
+
+    while (readBuffer.remaining() >= INT_SIZE) {
+      final int total = readBuffer.getInt(readBuffer.position());
+      if (readBuffer.remaining() < INT_SIZE + total) {
+        if (readBuffer.capacity() < INT_SIZE + total) {
+          final ByteBuffer aux = ByteBuffer.allocateDirect(INT_SIZE + total);
+          aux.put(readBuffer);
+          readBuffer = aux;
+          clearInactiveCounter();
+          return;
+        }
+        break;
+      }
+      readBuffer.getInt();
+      final int limit = readBuffer.limit();
+      final int end = readBuffer.position() + total;
+      readBuffer.limit(end);
+      session.deliver(this, readBuffer);
+      readBuffer.limit(limit);
+      readBuffer.position(end);
+    }
+
+    if (readBuffer.capacity() > READ_BUFFER_SIZE && readBuffer.remaining() <= READ_BUFFER_SIZE) {
+      final ByteBuffer aux = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+      aux.put(readBuffer);
+      readBuffer = aux;
+    } else
+      readBuffer.compact();
+    clearInactiveCounter();
+  }
+
+  /**
+   * Closes the connection.
+   * @return false if it was already closed
+   */
+  public synchronized boolean close() {
+    if (closed)
+      return false;
+    closed = true;
+    try {
+      socket.close();
+    } catch (IOException ex) {
+      if (log.isDebugEnabled())
+        ex.printStackTrace();
+    }
+    selector.execute(new Runnable() {
+      public void run() {
+        if (key != null)
+          key.cancel();
+      }
+    });
+    return true;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  public Channel getChannel() {
+    return channel;
+  }
+
+  public SocketChannel getSocket() {
+    return socket;
+  }
+
+  public int getQueuedBytes() {
+    return queuedBytes.get();
+  }
+
+  public synchronized int sumInactiveCounter() {
+    return (++this.inactiveCounter);
+  }
+
+  public synchronized void clearInactiveCounter() {
+    this.inactiveCounter = 0;
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.tcpnio;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticastSupport;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.protocols.tcpcomplete.CloseTcpSocket;
+import net.sf.appia.protocols.tcpcomplete.TcpTimer;
+import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
+
+/**
+ * Layer definition of the NIO TCP protocol.
+ * <br>
+ * It provides the same service, and uses the same wire format, as
+ * {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteLayer TcpCompleteLayer},
+ * but all the connections are handled by a small pool of selector threads.
+ * Both must use the same value of the <b>compact_event_types</b> parameter.
+ *
+ * The protocol provides the following events:
+ * <ul>
+ * <li>SendableEvent: or subclasses of it, depending on the messages received from
+ * the network.
+ * <li>TcpUndeliveredEvent: to notify upper protocols that a connection failed.
+ * <li>SendableNotDeliveredEvent: to notify upper protocols that a message was not sent
+ * because the queue of its destination is full.
+ * <li>TcpTimer: used to close inactive connections.
+ * </ul>
+ * The protocol accepts the following events:
+ * <ul>
+ * <li>RegisterSocketEvent (Require): binds the listening socket.
+ * <li>SendableEvent (Require): sends SendableEvents to the network.
+ * <li>ChannelInit (Require): Initialization procedures.
+ * <li>ChannelClose (Accept): closing procedures.
+ * <li>CloseTcpSocket (Accept): closes the connection to a given address.
+ * <li>MaxPDUSizeEvent (Accept): if requested, replies with the maximum message size.
+ * </ul>
+ *
+ * @see TcpNioSession
+ * @see net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent
+ * @see net.sf.appia.protocols.common.SendableNotDeliveredEvent
+ * @see net.sf.appia.protocols.tcpcomplete.CloseTcpSocket
+ * @see net.sf.appia.protocols.common.RegisterSocketEvent
+ * @see net.sf.appia.protocols.frag.MaxPDUSizeEvent
+ */
+public class TcpNioLayer extends Layer implements AppiaMulticastSupport {
+
+  public TcpNioLayer() {
+    evProvide = new Class[] {
+        TcpUndeliveredEvent.class,
+        SendableNotDeliveredEvent.class,
+        SendableEvent.class,
+        TcpTimer.class,
+    };
+
+    evAccept = new Class[] {
+        RegisterSocketEvent.class,
+        SendableEvent.class,
+        ChannelInit.class,
+        ChannelClose.class,
+        TcpTimer.class,
+        CloseTcpSocket.class,
+        MaxPDUSizeEvent.class,
+    };
+
+    evRequire = new Class[] {
+        RegisterSocketEvent.class,
+        SendableEvent.class,
+        ChannelInit.class,
+    };
+  }
+
+  /**
+   * @see net.sf.appia.core.Layer#createSession()
+   */
+  public Session createSession() {
+    return new TcpNioSession(this);
+  }
+}
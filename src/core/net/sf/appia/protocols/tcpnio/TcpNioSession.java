@@ -0,0 +1,687 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.tcpnio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.DirectMessageFactory;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageFactory;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.protocols.common.EventTypeRegistry;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.protocols.tcpcomplete.CloseTcpSocket;
+import net.sf.appia.protocols.tcpcomplete.TcpTimer;
+import net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent;
+import net.sf.appia.protocols.utils.HostUtils;
+import net.sf.appia.protocols.utils.ParseUtils;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Uses non-blocking TCP sockets to send/receive events to/from other Appia instances.<br>
+ * TCP connections are established automatically when required and
+ * terminated after an inactivity period. All connections, and the listening
+ * socket, are handled by a small pool of {@link SelectorThread selector threads}.
+ * <br>
+ * Each connection has a bounded queue of bytes waiting to be written. The Appia
+ * thread never waits for it: while it is full, messages to that peer are not sent
+ * and a {@link SendableNotDeliveredEvent} is sent up. If it does not drain within
+ * the write timeout, the connection is closed and a
+ * {@link net.sf.appia.protocols.tcpcomplete.TcpUndeliveredEvent TcpUndeliveredEvent}
+ * is sent up.
+ * <br>
+ * The wire format is the same of
+ * {@link net.sf.appia.protocols.tcpcomplete.TcpCompleteSession TcpCompleteSession},
+ * as long as both use the same value of the <b>compact_event_types</b> parameter.
+ *
+ * @see TcpNioLayer
+ */
+public class TcpNioSession extends Session implements InitializableSession {
+
+  private static Logger log = Logger.getLogger(TcpNioSession.class);
+
+  private static final int DEST_TIMEOUT=150000; // 2,5 minutes
+  private static final int MAX_INACTIVITY=2;
+  private static final int MAX_QUEUED_BYTES=4*1024*1024;
+  private static final int WRITE_TIMEOUT=10000;
+  private static final int MAX_MESSAGE_SIZE=64*1024;
+  private static final int MAX_TCP_HEADERS=80+12;
+
+  protected int param_DEST_TIMEOUT=DEST_TIMEOUT, param_MAX_INACTIVITY=MAX_INACTIVITY;
+  protected boolean param_CLOSE_INACTIVE_SOCKETS=true;
+  protected int param_SELECTOR_THREADS=Math.min(4,Runtime.getRuntime().availableProcessors());
+  protected int param_MAX_QUEUED_BYTES=MAX_QUEUED_BYTES;
+  protected long param_WRITE_TIMEOUT=WRITE_TIMEOUT;
+  protected int param_MAX_MESSAGE_SIZE=MAX_MESSAGE_SIZE;
+  protected boolean param_COMPACT_EVENT_TYPES=false;
+
+  //Channels by name and by hash code of the channel ID
+  protected Hashtable<String,Channel> channels=new Hashtable<String,Channel>();
+  protected Hashtable<Integer,Channel> channelHashes=new Hashtable<Integer,Channel>();
+
+  //Tags of the events on the wire
+  protected EventTypeRegistry eventTypes=new EventTypeRegistry();
+
+  //Connections used to send, by address of the peer
+  protected ConcurrentHashMap<InetSocketAddress,TcpNioConnection> connections=
+    new ConcurrentHashMap<InetSocketAddress,TcpNioConnection>();
+  //All open connections
+  protected ConcurrentHashMap<TcpNioConnection,TcpNioConnection> openConnections=
+    new ConcurrentHashMap<TcpNioConnection,TcpNioConnection>();
+
+  private SelectorThread[] selectors=null;
+  private int nextSelector=0;
+  private ServerSocketChannel serverSocket=null;
+  private Channel acceptChannel=null;
+
+  protected int ourPort=-1;
+
+  private Object connectLock=new Object();
+  private Channel timerChannel=null;
+
+  /**
+   * Constructor for TcpNioSession.
+   * @param layer
+   */
+  public TcpNioSession(Layer layer) {
+    super(layer);
+  }
+
+  /**
+   * Initializes the session using the parameters given in the XML configuration.
+   * Possible parameters:
+   * <ul>
+   * <li><b>dest_timeout</b> time between unused open connections verification. (in milliseconds);
+   * <li><b>max_inactivity</b> number of times that the dest_timeout expires without closing the connection;
+   * <li><b>close_inactive_sockets</b> boolean that defines if inactive sockets should be closed or not;
+   * <li><b>selector_threads</b> number of threads that handle the sockets;
+   * <li><b>max_queued_bytes</b> maximum number of bytes waiting to be written in each connection;
+   * <li><b>write_timeout</b> maximum time a queue may stay full before the connection is closed. (in milliseconds);
+   * <li><b>max_message_size</b> maximum message size replied to MaxPDUSizeEvent;
+   * <li><b>compact_event_types</b> sends the tag of the event class and the hash of the channel ID instead of their names,
+   * as the parameter of the same name of TcpCompleteSession. The default is false.
+   * </ul>
+   *
+   * @param params The parameters given in the XML configuration.
+   * @see net.sf.appia.xml.interfaces.InitializableSession#init(SessionProperties)
+   */
+  public void init(SessionProperties params) {
+    if (params.containsKey("dest_timeout"))
+      param_DEST_TIMEOUT=params.getInt("dest_timeout");
+    if (params.containsKey("max_inactivity"))
+      param_MAX_INACTIVITY=params.getInt("max_inactivity");
+    if (params.containsKey("close_inactive_sockets"))
+      param_CLOSE_INACTIVE_SOCKETS=params.getBoolean("close_inactive_sockets");
+    if (params.containsKey("selector_threads"))
+      param_SELECTOR_THREADS=Math.max(1,params.getInt("selector_threads"));
+    if (params.containsKey("max_queued_bytes"))
+      param_MAX_QUEUED_BYTES=params.getInt("max_queued_bytes");
+    if (params.containsKey("write_timeout"))
+      param_WRITE_TIMEOUT=params.getLong("write_timeout");
+    if (params.containsKey("max_message_size"))
+      param_MAX_MESSAGE_SIZE=params.getInt("max_message_size");
+    if (params.containsKey("compact_event_types"))
+      param_COMPACT_EVENT_TYPES=params.getBoolean("compact_event_types");
+  }
+
+  public void handle(Event e) {
+    if (e instanceof SendableEvent)
+      handleSendable((SendableEvent)e);
+    else if (e instanceof RegisterSocketEvent)
+      handleRegisterSocket((RegisterSocketEvent)e);
+    else if (e instanceof ChannelInit)
+      handleChannelInit((ChannelInit)e);
+    else if (e instanceof ChannelClose)
+      handleChannelClose((ChannelClose)e);
+    else if (e instanceof TcpTimer)
+      handleTcpTimer((TcpTimer)e);
+    else if (e instanceof CloseTcpSocket)
+      handleCloseSocket((CloseTcpSocket)e);
+    else if (e instanceof MaxPDUSizeEvent)
+      handlePDUSize((MaxPDUSizeEvent)e);
+  }
+
+  private void handleSendable(SendableEvent e) {
+    if (e.getDir() == Direction.UP) {
+      if (e.getChannel().isStarted()) {
+        try {
+          e.go();
+        } catch (AppiaEventException ex) {
+          ex.printStackTrace();
+        }
+      }
+      return;
+    }
+
+    if (log.isDebugEnabled())
+      log.debug("preparing to send ::"+e+" CHANNEL: "+e.getChannel().getChannelID());
+
+    final ByteBuffer[] data=format(e);
+
+    if (e.dest instanceof AppiaMulticast) {
+      final Object[] dests=((AppiaMulticast)e.dest).getDestinations();
+      for (int i=0 ; i < dests.length ; i++) {
+        if (dests[i] instanceof InetSocketAddress)
+          send(data, (InetSocketAddress)dests[i], e);
+        else
+          sendUndelivered(e.getChannel(), dests[i]);
+      }
+    } else if (e.dest instanceof InetSocketAddress) {
+      send(data, (InetSocketAddress)e.dest, e);
+    } else {
+      sendUndelivered(e.getChannel(), e.dest);
+    }
+
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleRegisterSocket(RegisterSocketEvent e) {
+    if (log.isDebugEnabled())
+      log.debug("TCP NIO Session received RegisterSocketEvent to register a socket in port "+e.port);
+
+    if (e.localHost == null)
+      e.localHost=HostUtils.getLocalAddress();
+
+    ServerSocketChannel ss=null;
+    if (serverSocket == null) {
+      if (e.port == RegisterSocketEvent.FIRST_AVAILABLE) {
+        ss=bind(0, e);
+      } else if (e.port == RegisterSocketEvent.RANDOMLY_AVAILABLE) {
+        final Random rand=new Random();
+        while (ss == null)
+          ss=bind(rand.nextInt(Short.MAX_VALUE), e);
+      } else {
+        ss=bind(e.port, e);
+      }
+    }
+
+    if (ss != null) {
+      try {
+        startSelectors(e.getChannel().getThreadFactory());
+        serverSocket=ss;
+        acceptChannel=e.getChannel();
+        ourPort=ss.socket().getLocalPort();
+        if (log.isDebugEnabled())
+          log.debug("TCP NIO Session registered a socket in port "+ourPort);
+
+        final SelectorThread selector=selectors[0];
+        selector.execute(new Runnable() {
+          public void run() {
+            try {
+              selector.register(serverSocket, SelectionKey.OP_ACCEPT, null);
+            } catch (IOException ex) {
+              log.warn("Could not register the server socket: "+ex);
+            }
+          }
+        });
+
+        e.localHost=ss.socket().getInetAddress();
+        e.port=ourPort;
+        e.error=false;
+      } catch (IOException ex) {
+        log.debug("Exception when trying to start the selector threads: "+ex);
+        try {
+          ss.close();
+        } catch (IOException ex1) {}
+        e.error=true;
+        e.setErrorCode(RegisterSocketEvent.RESOURCE_BUSY_ERROR);
+        e.setErrorDescription("Could not start the selector threads.");
+      }
+    } else {
+      e.error=true;
+      if (serverSocket != null && serverSocket.socket().getLocalPort() == e.port) {
+        e.setErrorCode(RegisterSocketEvent.RESOURCE_ALREADY_BOUND_ERROR);
+        e.setErrorDescription("Socket already bound in port "+e.port);
+      } else {
+        e.setErrorCode(RegisterSocketEvent.RESOURCE_BUSY_ERROR);
+        e.setErrorDescription("Could not create socket. Resource is busy.");
+      }
+    }
+
+    e.setDir(Direction.invert(e.getDir()));
+    e.setSourceSession(this);
+    try {
+      e.init();
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private ServerSocketChannel bind(int port, RegisterSocketEvent e) {
+    ServerSocketChannel ss=null;
+    try {
+      ss=ServerSocketChannel.open();
+      ss.socket().bind(new InetSocketAddress(e.localHost, port), 50);
+      ss.configureBlocking(false);
+      return ss;
+    } catch (IllegalArgumentException ex) {
+      log.debug("Exception when trying to create a server socket in port "+port+": "+ex);
+    } catch (IOException ex) {
+      log.debug("Exception when trying to create a server socket in port "+port+": "+ex);
+    }
+    if (ss != null) {
+      try {
+        ss.close();
+      } catch (IOException ex) {}
+    }
+    return null;
+  }
+
+  private void handlePDUSize(MaxPDUSizeEvent e) {
+    try {
+      e.pduSize=param_MAX_MESSAGE_SIZE-MAX_TCP_HEADERS;
+      e.setDir(Direction.invert(e.getDir()));
+      e.setSourceSession(this);
+      e.init();
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleCloseSocket(CloseTcpSocket e) {
+    final TcpNioConnection conn=connections.remove(e.getAddress());
+    if (conn != null) {
+      openConnections.remove(conn);
+      conn.close();
+      if (log.isDebugEnabled())
+        log.debug("Closing TCP socket for destination: "+e.getAddress());
+    } else
+      log.debug("Requested to close socket "+e.getAddress()+" but the socket does not exist.");
+  }
+
+  private void handleChannelInit(ChannelInit e) {
+    channels.put(e.getChannel().getChannelID(), e.getChannel());
+    channelHashes.put(new Integer(e.getChannel().getChannelID().hashCode()), e.getChannel());
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+
+    if (timerChannel == null && param_CLOSE_INACTIVE_SOCKETS) {
+      try {
+        final TcpTimer timer=new TcpTimer(param_DEST_TIMEOUT, e.getChannel(), this, EventQualifier.ON);
+        timer.go();
+        timerChannel=timer.getChannel();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      } catch (AppiaException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private void handleChannelClose(ChannelClose e) {
+    channels.remove(e.getChannel().getChannelID());
+    channelHashes.remove(new Integer(e.getChannel().getChannelID().hashCode()));
+
+    if (channels.size() == 0) {
+      log.warn("No more channels. Cleaning sockets.");
+      for (TcpNioConnection conn : openConnections.keySet())
+        conn.close();
+      openConnections.clear();
+      connections.clear();
+      if (selectors != null) {
+        for (int i=0 ; i < selectors.length ; i++)
+          selectors[i].shutdown();
+        selectors=null;
+      }
+      serverSocket=null;
+      timerChannel=null;
+    } else if (timerChannel != null && e.getChannel() == timerChannel) {
+      try {
+        timerChannel=channels.values().iterator().next();
+        final TcpTimer timer=new TcpTimer(param_DEST_TIMEOUT, timerChannel, this, EventQualifier.ON);
+        timer.go();
+      } catch (Exception ex) {
+        timerChannel=null;
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private void handleTcpTimer(TcpTimer e) {
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+
+    final Iterator<TcpNioConnection> it=openConnections.keySet().iterator();
+    while (it.hasNext()) {
+      final TcpNioConnection conn=it.next();
+      if (conn.sumInactiveCounter() > param_MAX_INACTIVITY) {
+        it.remove();
+        if (conn.getAddress() != null)
+          connections.remove(conn.getAddress(), conn);
+        conn.close();
+      }
+    }
+  }
+
+  private void startSelectors(ThreadFactory threadFactory) throws IOException {
+    if (selectors != null)
+      return;
+
+    final SelectorThread[] aux=new SelectorThread[param_SELECTOR_THREADS];
+    for (int i=0 ; i < aux.length ; i++) {
+      aux[i]=new SelectorThread(this);
+      final Thread t=threadFactory.newThread(aux[i]);
+      t.setName("TCP NIO selector thread "+i);
+      t.setDaemon(true);
+      t.start();
+    }
+    selectors=aux;
+  }
+
+  private synchronized SelectorThread nextSelector() {
+    final SelectorThread[] aux=selectors;
+    nextSelector=(nextSelector+1) % aux.length;
+    return aux[nextSelector];
+  }
+
+  protected void send(ByteBuffer[] data, InetSocketAddress dest, SendableEvent e) {
+    final Channel channel=e.getChannel();
+    TcpNioConnection conn=connections.get(dest);
+    try {
+      if (conn == null)
+        conn=connect(dest, channel);
+    } catch (IOException ex) {
+      if (log.isDebugEnabled())
+        log.debug("Node "+dest+" failed: "+ex);
+      sendUndelivered(channel, dest);
+      return;
+    }
+
+    final long full=conn.fullSince(param_MAX_QUEUED_BYTES);
+    if (full != 0) {
+      if (System.currentTimeMillis() - full > param_WRITE_TIMEOUT) {
+        log.debug("Write queue of "+dest+" did not drain. Closing connection.");
+        if (!conn.isClosed())
+          removeConnection(conn);
+        sendUndelivered(channel, dest);
+      } else
+        sendNotDelivered(e, dest);
+      return;
+    }
+    conn.send(data);
+  }
+
+  private TcpNioConnection connect(InetSocketAddress dest, Channel channel) throws IOException {
+    synchronized (connectLock) {
+      TcpNioConnection conn=connections.get(dest);
+      if (conn != null)
+        return conn;
+
+      startSelectors(channel.getThreadFactory());
+      final SocketChannel socket=SocketChannel.open();
+      try {
+        socket.configureBlocking(false);
+        socket.connect(dest);
+      } catch (IOException ex) {
+        socket.close();
+        throw ex;
+      }
+      conn=new TcpNioConnection(this, socket, nextSelector(), dest, channel);
+
+      final ByteBuffer port=ByteBuffer.allocate(4);
+      port.putInt(ourPort).flip();
+      conn.send(new ByteBuffer[]{port});
+      if (log.isDebugEnabled())
+        log.debug("Sending our original port "+ourPort);
+
+      connections.put(dest, conn);
+      openConnections.put(conn, conn);
+      conn.register(SelectionKey.OP_CONNECT);
+      return conn;
+    }
+  }
+
+  /**
+   * Accepts a new connection. Called by the selector thread of the listening socket.
+   */
+  void accept(ServerSocketChannel ss) {
+    try {
+      final SocketChannel socket=ss.accept();
+      if (socket == null)
+        return;
+      socket.configureBlocking(false);
+      socket.socket().setTcpNoDelay(true);
+      final TcpNioConnection conn=new TcpNioConnection(this, socket, nextSelector(), null, acceptChannel);
+      openConnections.put(conn, conn);
+      conn.register(SelectionKey.OP_READ);
+      if (log.isDebugEnabled())
+        log.debug("new connection from "+socket.socket().getRemoteSocketAddress());
+    } catch (IOException ex) {
+      log.debug("error accepting connection: "+ex);
+    }
+  }
+
+  /**
+   * Called by the selector thread when an accepted connection receives the port of the peer.
+   */
+  void connectionAccepted(TcpNioConnection conn) {
+    connections.putIfAbsent(conn.getAddress(), conn);
+  }
+
+  /**
+   * Called by the selector thread when a connection fails.
+   */
+  void connectionFailed(TcpNioConnection conn) {
+    if (conn.isClosed())
+      return;
+    removeConnection(conn);
+    if (conn.getAddress() != null) {
+      try {
+        new TcpUndeliveredEvent(conn.getAddress()).asyncGo(conn.getChannel(), Direction.UP);
+      } catch (AppiaEventException ex) {
+        log.debug("Could not insert event: "+ex);
+      }
+    }
+  }
+
+  private void removeConnection(TcpNioConnection conn) {
+    openConnections.remove(conn);
+    if (conn.getAddress() != null)
+      connections.remove(conn.getAddress(), conn);
+    conn.close();
+  }
+
+  /**
+   * Event deserialization. Called by the selector thread for each received frame.
+   */
+  void deliver(TcpNioConnection conn, ByteBuffer frame) throws IOException {
+    SendableEvent e=null;
+    try {
+      /* Extract event tag, or class name */
+      final int tag=frame.getInt();
+      String className=null;
+      if (!EventTypeRegistry.isTag(tag)) {
+        final byte[] name=new byte[tag];
+        frame.get(name);
+        className=new String(name);
+      }
+
+      /* Extract channel hash, or channel name */
+      final Channel msgChannel;
+      if (param_COMPACT_EVENT_TYPES)
+        msgChannel=channelHashes.get(new Integer(frame.getInt()));
+      else {
+        final byte[] name=new byte[frame.getInt()];
+        frame.get(name);
+        msgChannel=channels.get(new String(name));
+      }
+      if (msgChannel == null)
+        return;
+
+      /* Create event */
+      if (EventTypeRegistry.isTag(tag)) {
+        e=eventTypes.newEvent(tag, msgChannel.getQoS());
+        if (e == null) {
+          if (log.isDebugEnabled())
+            log.debug("Unknown event tag "+tag+" in channel "+msgChannel.getChannelID()+". Discarding message.");
+          return;
+        }
+      } else
+        e=eventTypes.newEvent(className);
+
+      e.setChannel(msgChannel);
+      e.source=conn.getAddress();
+      e.dest=new InetSocketAddress(conn.getSocket().socket().getLocalAddress(), ourPort);
+      /* The direct factory keeps the payload off the heap */
+      final MessageFactory factory=msgChannel.getMessageFactory();
+      if (factory instanceof DirectMessageFactory)
+        e.setMessage(((DirectMessageFactory) factory).newMessage(frame));
+      else {
+        final byte[] data=new byte[frame.remaining()];
+        frame.get(data);
+        e.setMessage(factory.newMessage(data, 0, data.length));
+      }
+
+      if (log.isDebugEnabled())
+        log.debug("received an event. sending it to the appia stack: "+e+" Channel: "+msgChannel);
+      e.asyncGo(msgChannel, Direction.UP);
+    } catch (AppiaEventException ex) {
+      log.debug("Could not insert event: "+ex);
+    } catch (Exception ex) {
+      if (log.isDebugEnabled()) {
+        ex.printStackTrace();
+        log.debug("Exception catched while processing message from "+conn.getAddress()+".");
+      }
+      throw new IOException(ex.toString());
+    }
+  }
+
+  /*
+   * Event serialization (int total+int length+className+int length+channelName+message).
+   * With compact_event_types (int total+int tag+int channelHash+message),
+   * and events without a tag are sent with their class name (int total+int length+className+int channelHash+message).
+   */
+  protected ByteBuffer[] format(SendableEvent e) {
+    final MsgBuffer mbuf=new MsgBuffer();
+    final Message msg=e.getMessage();
+
+    final int tag=param_COMPACT_EVENT_TYPES ? eventTypes.getTag(e) : EventTypeRegistry.NO_TAG;
+
+    if (param_COMPACT_EVENT_TYPES) {
+      mbuf.len=4;
+      msg.push(mbuf);
+      ParseUtils.intToByteArray(e.getChannel().getChannelID().hashCode(), mbuf.data, mbuf.off);
+    } else {
+      final byte[] channelID=e.getChannel().getChannelID().getBytes();
+
+      mbuf.len=channelID.length;
+      msg.push(mbuf);
+      System.arraycopy(channelID, 0, mbuf.data, mbuf.off, mbuf.len);
+
+      mbuf.len=4;
+      msg.push(mbuf);
+      ParseUtils.intToByteArray(channelID.length, mbuf.data, mbuf.off);
+    }
+
+    if (tag == EventTypeRegistry.NO_TAG) {
+      final byte[] eventType=e.getClass().getName().getBytes();
+
+      mbuf.len=eventType.length;
+      msg.push(mbuf);
+      System.arraycopy(eventType, 0, mbuf.data, mbuf.off, mbuf.len);
+
+      mbuf.len=4;
+      msg.push(mbuf);
+      ParseUtils.intToByteArray(eventType.length, mbuf.data, mbuf.off);
+    } else {
+      mbuf.len=4;
+      msg.push(mbuf);
+      ParseUtils.intToByteArray(tag, mbuf.data, mbuf.off);
+    }
+
+    mbuf.len=4;
+    msg.push(mbuf);
+    ParseUtils.intToByteArray(msg.length()-4, mbuf.data, mbuf.off);
+
+    return msg.toByteBuffers();
+  }
+
+  /*
+   * The message was not sent to the given destination because its queue is full.
+   */
+  private void sendNotDelivered(SendableEvent e, InetSocketAddress dest) {
+    if (log.isDebugEnabled())
+      log.debug("Write queue of "+dest+" is full. Message not sent.");
+    try {
+      final SendableNotDeliveredEvent snd=new SendableNotDeliveredEvent(e.getChannel(), this, e);
+      snd.setFailedAddress(dest);
+      snd.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  protected void sendUndelivered(Channel channel, Object who) {
+    try {
+      new TcpUndeliveredEvent(channel, Direction.UP, this, who).go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * Gets the number of bytes waiting to be written in all connections.
+   */
+  protected int getGlobalQueueSize() {
+    int sum=0;
+    for (TcpNioConnection conn : openConnections.keySet())
+      sum += conn.getQueuedBytes();
+    return sum;
+  }
+}
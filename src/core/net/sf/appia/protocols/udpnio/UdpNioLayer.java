@@ -0,0 +1,92 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.udpnio;
+
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticastSupport;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.Debug;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.protocols.udpsimple.MulticastInitEvent;
+
+/**
+ * Layer definition of the NIO UDP protocol.
+ * <br>
+ * It provides the same service, and uses the same wire format, as
+ * {@link net.sf.appia.protocols.udpsimple.UdpSimpleLayer UdpSimpleLayer},
+ * but the point-to-point socket and all the multicast groups are read by a
+ * single selector thread.
+ *
+ * The protocol provides the following events:
+ * <ul>
+ * <li>SendableEvent: or subclasses of it, depending on the messages received from
+ * the network.
+ * <li>SendableNotDeliveredEvent: to notify upper protocols that the message could not
+ * be sent.
+ * </ul>
+ * The protocol accepts the following events:
+ * <ul>
+ * <li>RegisterSocketEvent (Accept): binds the point-to-point socket.
+ * <li>SendableEvent (Accept): sends SendableEvents to the network.
+ * <li>ChannelInit (Accept): Initialization procedures.
+ * <li>ChannelClose (Accept): closing procedures.
+ * <li>Debug (Accept): Dumping status information.
+ * <li>MaxPDUSizeEvent (Accept): if requested, replies with the maximum datagram size.
+ * <li>MulticastInitEvent (Accept): joins a multicast group.
+ * </ul>
+ *
+ * @see UdpNioSession
+ * @see net.sf.appia.protocols.common.RegisterSocketEvent
+ * @see net.sf.appia.protocols.udpsimple.MulticastInitEvent
+ * @see net.sf.appia.protocols.frag.MaxPDUSizeEvent
+ */
+public class UdpNioLayer extends Layer implements AppiaMulticastSupport {
+
+  public UdpNioLayer() {
+    evProvide = new Class[] {
+        SendableEvent.class,
+        SendableNotDeliveredEvent.class,
+    };
+
+    evRequire = new Class[0];
+
+    evAccept = new Class[] {
+        SendableEvent.class,
+        ChannelInit.class,
+        RegisterSocketEvent.class,
+        ChannelClose.class,
+        MaxPDUSizeEvent.class,
+        MulticastInitEvent.class,
+        Debug.class,
+    };
+  }
+
+  /**
+   * @see net.sf.appia.core.Layer#createSession()
+   */
+  public Session createSession() {
+    return new UdpNioSession(this);
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.udpnio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.sf.appia.core.AsyncEventBatch;
+import net.sf.appia.core.message.BufferPool;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread that reads the point-to-point socket and all the multicast sockets
+ * of a {@link UdpNioSession}, using a {@link java.nio.channels.Selector Selector}.
+ * <br>
+ * Datagrams are received into arrays taken from a pool, which become the
+ * payload of the messages without being copied. On each wakeup up to
+ * <i>maxBatch</i> datagrams are read from each socket, and the resulting events
+ * are inserted in the channels together with an {@link AsyncEventBatch}.
+ */
+public class UdpNioSelector implements Runnable {
+
+  private static Logger log = Logger.getLogger(UdpNioSelector.class);
+
+  /*
+   * A socket read by this thread.
+   */
+  static final class Endpoint {
+    final DatagramChannel socket;
+    // address given as destination of the received events
+    final InetSocketAddress dest;
+    // datagrams from this address are ignored, if not null
+    final InetSocketAddress ignoreSource;
+
+    Endpoint(DatagramChannel socket, InetSocketAddress dest, InetSocketAddress ignoreSource) {
+      this.socket = socket;
+      this.dest = dest;
+      this.ignoreSource = ignoreSource;
+    }
+  }
+
+  private UdpNioSession session;
+  private Selector selector;
+  private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+  private volatile boolean running = true;
+
+  private BufferPool pool;
+  private int packetSize;
+  private int maxBatch;
+  private AsyncEventBatch batch;
+  // array of the next datagram, taken from the pool
+  private byte[] spare = null;
+
+  /**
+   * Creates the thread.
+   * @param session the session
+   * @param pool the pool of arrays where datagrams are received, or null to allocate them
+   * @param maxDatagram the largest datagram accepted
+   * @param maxBatch the maximum number of datagrams read from a socket on each wakeup
+   */
+  public UdpNioSelector(UdpNioSession session, BufferPool pool, int maxDatagram, int maxBatch) throws IOException {
+    this.session = session;
+    this.pool = pool;
+    // one more byte tells truncated datagrams apart
+    this.packetSize = maxDatagram + 1;
+    this.maxBatch = Math.max(1, maxBatch);
+    batch = new AsyncEventBatch(this.maxBatch);
+    selector = Selector.open();
+  }
+
+  /**
+   * Starts reading a socket.
+   * @param socket the socket, in non-blocking mode
+   * @param dest address given as destination of the received events
+   * @param ignoreSource datagrams from this address are ignored, if not null
+   */
+  public void add(final DatagramChannel socket, InetSocketAddress dest, InetSocketAddress ignoreSource) {
+    final Endpoint endpoint = new Endpoint(socket, dest, ignoreSource);
+    execute(new Runnable() {
+      public void run() {
+        try {
+          socket.register(selector, SelectionKey.OP_READ, endpoint);
+        } catch (ClosedChannelException ex) {
+          log.debug("Socket closed before being registered: "+ex);
+        }
+      }
+    });
+  }
+
+  private void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Stops the thread and closes all the sockets registered in it.
+   */
+  public void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  public void run() {
+    while (running) {
+      try {
+        selector.select();
+      } catch (IOException ex) {
+        log.debug("Exception in select: "+ex);
+      }
+
+      Runnable task;
+      while ((task = tasks.poll()) != null)
+        task.run();
+
+      final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        final SelectionKey key = it.next();
+        it.remove();
+        if (key.isValid() && key.isReadable())
+          read((Endpoint) key.attachment());
+      }
+      batch.flush();
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException ex) {
+        if (log.isDebugEnabled())
+          ex.printStackTrace();
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException ex) {
+      if (log.isDebugEnabled())
+        ex.printStackTrace();
+    }
+  }
+
+  /*
+   * Reads up to maxBatch datagrams from a socket.
+   */
+  private void read(Endpoint endpoint) {
+    for (int i = 0; i < maxBatch; i++) {
+      if (spare == null)
+        spare = (pool == null) ? new byte[packetSize] : pool.acquire(packetSize);
+      final ByteBuffer buffer = ByteBuffer.wrap(spare, 0, packetSize);
+
+      final InetSocketAddress source;
+      try {
+        source = (InetSocketAddress) endpoint.socket.receive(buffer);
+      } catch (IOException ex) {
+        log.debug("Exception receiving from "+endpoint.dest+": "+ex);
+        return;
+      }
+      if (source == null)
+        return;
+
+      final int length = buffer.position();
+      if (length == packetSize) {
+        log.debug("Discarding datagram from "+source+" larger than "+(packetSize-1)+" bytes.");
+        continue;
+      }
+      if ((endpoint.ignoreSource != null) && endpoint.ignoreSource.equals(source))
+        continue;
+
+      if (session.receive(spare, length, source, endpoint.dest, batch))
+        spare = null;
+    }
+  }
+}
@@ -0,0 +1,597 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.protocols.udpnio;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.AsyncEventBatch;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.AppiaMulticast;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.events.channel.Debug;
+import net.sf.appia.core.message.BufferPool;
+import net.sf.appia.core.message.ConcurrentBufferPool;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.protocols.common.EventTypeRegistry;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
+import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
+import net.sf.appia.protocols.udpsimple.MulticastInitEvent;
+import net.sf.appia.protocols.utils.HostUtils;
+import net.sf.appia.protocols.utils.ParseUtils;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Uses non-blocking UDP sockets to send/receive events to/from other Appia instances.
+ * <br>
+ * The point-to-point socket and the sockets of all the multicast groups joined
+ * with {@link MulticastInitEvent} are read by a single {@link UdpNioSelector}
+ * thread. Received datagrams become the payload of the messages without being
+ * copied, and the events are inserted in the channels in batches.
+ * <br>
+ * Sending is done by the thread that handles the event. If the send buffer of
+ * the socket is full, it waits up to <i>send_timeout</i> for room. A datagram
+ * that could not be sent is notified with a {@link SendableNotDeliveredEvent}.
+ * <br>
+ * The wire format is the same of
+ * {@link net.sf.appia.protocols.udpsimple.UdpSimpleSession UdpSimpleSession}.
+ * Multicast groups require Java 7 datagram channels.
+ *
+ * @see UdpNioLayer
+ */
+public class UdpNioSession extends Session implements InitializableSession {
+
+  private static Logger log = Logger.getLogger(UdpNioSession.class);
+
+  public static final int DEFAULT_MAX_UDPMSG_SIZE=8192;
+  public static final int DEFAULT_MAX_BATCH=32;
+  public static final int DEFAULT_SEND_TIMEOUT=1000;
+  private static final int MAX_UDP_HEADERS=80+8;
+
+  private InetAddress param_LOCAL_ADDRESS=null;
+  private int param_MAX_UDPMSG_SIZE=DEFAULT_MAX_UDPMSG_SIZE;
+  private int param_MAX_BATCH=DEFAULT_MAX_BATCH;
+  private boolean param_POOL_PACKETS=true;
+  private long param_SEND_TIMEOUT=DEFAULT_SEND_TIMEOUT;
+
+  private DatagramChannel sock=null; // point-to-point socket
+  private Map<SocketAddress,DatagramChannel> multicastSockets=new ConcurrentHashMap<SocketAddress,DatagramChannel>();
+  protected Map<Integer,Channel> channels=new ConcurrentHashMap<Integer,Channel>(); // known channels
+  protected EventTypeRegistry eventTypes=new EventTypeRegistry(); // tags of the events
+
+  private UdpNioSelector selector=null;
+  private Selector writeSelector=null;
+  private BufferPool pool=null;
+  private InetSocketAddress myAddress=null;
+
+  /**
+   * Session standard constructor.
+   *
+   * @param l The UdpNioLayer creating the session.
+   */
+  public UdpNioSession(Layer l) {
+    super(l);
+  }
+
+  /**
+   * Initializes the session using the parameters given in the XML configuration.
+   * Possible parameters:
+   * <ul>
+   * <li><b>local_address</b> the address to which the UDP socket is bound.
+   * <li><b>max_udp_message_size</b> the maximum size of an underlying UDP message payload.
+   * <li><b>max_batch</b> the maximum number of datagrams read from a socket on each wakeup.
+   * <li><b>pool_packets</b> boolean that defines if the arrays of the received datagrams
+   * are reused after the messages are discarded.
+   * <li><b>send_timeout</b> maximum time a sender waits for room in the send buffer. (in milliseconds)
+   * </ul>
+   *
+   * @param params The parameters given in the XML configuration.
+   */
+  public void init(SessionProperties params) {
+    if (params.containsKey("local_address")) {
+      try {
+        param_LOCAL_ADDRESS=InetAddress.getByName(params.getString("local_address"));
+      } catch (UnknownHostException e) {
+        log.warn("Unknown host \""+params.getString("local_address")+"\". Using default.");
+        param_LOCAL_ADDRESS=null;
+      }
+    }
+    if (params.containsKey("max_udp_message_size"))
+      param_MAX_UDPMSG_SIZE=params.getInt("max_udp_message_size");
+    if (params.containsKey("max_batch"))
+      param_MAX_BATCH=params.getInt("max_batch");
+    if (params.containsKey("pool_packets"))
+      param_POOL_PACKETS=params.getBoolean("pool_packets");
+    if (params.containsKey("send_timeout"))
+      param_SEND_TIMEOUT=params.getLong("send_timeout");
+  }
+
+  public void handle(Event e) {
+    if (e instanceof SendableEvent)
+      handleSendable((SendableEvent) e);
+    else if (e instanceof RegisterSocketEvent)
+      handleRegisterSocket((RegisterSocketEvent) e);
+    else if (e instanceof ChannelInit)
+      handleChannelInit((ChannelInit) e);
+    else if (e instanceof ChannelClose)
+      handleChannelClose((ChannelClose) e);
+    else if (e instanceof Debug)
+      handleDebug((Debug) e);
+    else if (e instanceof MaxPDUSizeEvent)
+      handlePDUSize((MaxPDUSizeEvent) e);
+    else if (e instanceof MulticastInitEvent)
+      handleMulticastInit((MulticastInitEvent) e);
+    else {
+      log.warn("Unexpected event "+e+". Forwarding it...");
+      try {
+        e.go();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private void handlePDUSize(MaxPDUSizeEvent e) {
+    try {
+      e.pduSize=param_MAX_UDPMSG_SIZE-MAX_UDP_HEADERS;
+      e.setDir(Direction.invert(e.getDir()));
+      e.setSourceSession(this);
+      e.init();
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleDebug(Debug e) {
+    if (e.getQualifierMode() == EventQualifier.NOTIFY) {
+      final PrintStream out=new PrintStream(e.getOutput());
+      out.println("UdpNioSession state dumping:");
+      if (myAddress != null)
+        out.println("Local UDP address: "+myAddress);
+      for (SocketAddress addr : multicastSockets.keySet())
+        out.println("Local Multicast address: "+addr);
+      out.println("Currently connected channels: "+channels.size());
+      for (Channel c : channels.values())
+        out.println("Channel name: "+c.getChannelID()+" QoS: "+c.getQoS().getQoSID());
+    }
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleRegisterSocket(RegisterSocketEvent e) {
+    if (sock != null) {
+      reverseRegister(e, myAddress.getPort(), myAddress.getAddress(), true);
+      return;
+    }
+
+    // Checks if address given is a local address
+    if ((e.localHost != null) && !HostUtils.isLocalAddress(e.localHost)) {
+      reverseRegister(e, e.port, null, true);
+      return;
+    }
+
+    if (newSock(e.port, e.localHost, e.getChannel().getThreadFactory()))
+      reverseRegister(e, myAddress.getPort(), myAddress.getAddress(), false);
+    else
+      reverseRegister(e, e.port, null, true);
+  }
+
+  private void handleMulticastInit(MulticastInitEvent e) {
+    final InetSocketAddress group=(InetSocketAddress) e.ipMulticast;
+    e.error=false;
+
+    if (!multicastSockets.containsKey(group)) {
+      DatagramChannel msock=null;
+      try {
+        startSelector(e.getChannel().getThreadFactory());
+        final InetAddress local=(myAddress != null) ? myAddress.getAddress() : localAddress(null);
+        NetworkInterface ni=NetworkInterface.getByInetAddress(local);
+        if (ni == null)
+          ni=NetworkInterface.getByIndex(0);
+
+        msock=DatagramChannel.open(group.getAddress() instanceof java.net.Inet6Address ?
+            StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        msock.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+        msock.bind(new InetSocketAddress(group.getPort()));
+        if (ni != null)
+          msock.join(group.getAddress(), ni);
+        else
+          throw new IOException("No network interface to join "+group);
+        msock.configureBlocking(false);
+
+        multicastSockets.put(group, msock);
+        selector.add(msock, group, e.fullDuplex ? null : myAddress);
+        if (log.isDebugEnabled())
+          log.debug("Joined multicast group "+group+" on "+ni.getName());
+      } catch (IOException ex) {
+        log.error("Error creating/joining the multicast socket", ex);
+        if (msock != null) {
+          try {
+            msock.close();
+          } catch (IOException ex1) {}
+        }
+        e.error=true;
+      }
+    } else
+      log.debug("Requested multicast socket already existed.");
+
+    try {
+      e.setDir(Direction.invert(e.getDir()));
+      e.setSourceSession(this);
+      e.init();
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleSendable(SendableEvent e) {
+    if (e.getDir() == Direction.DOWN)
+      formatAndSend(e);
+
+    if (e.getChannel().isStarted()) {
+      try {
+        e.go();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private void handleChannelInit(ChannelInit e) {
+    channels.put(new Integer(e.getChannel().getChannelID().hashCode()), e.getChannel());
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+
+  private void handleChannelClose(ChannelClose e) {
+    channels.remove(new Integer(e.getChannel().getChannelID().hashCode()));
+    try {
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+
+    if (channels.isEmpty() && selector != null) {
+      // the selector closes all the sockets
+      selector.shutdown();
+      selector=null;
+      synchronized (this) {
+        if (writeSelector != null) {
+          try {
+            writeSelector.close();
+          } catch (IOException ex) {}
+          writeSelector=null;
+        }
+      }
+      sock=null;
+      multicastSockets.clear();
+    }
+  }
+
+  private InetAddress localAddress(InetAddress addr) {
+    if (addr != null)
+      return addr;
+    if (param_LOCAL_ADDRESS != null)
+      return param_LOCAL_ADDRESS;
+    return HostUtils.getLocalAddress();
+  }
+
+  private boolean newSock(int port, InetAddress addr, ThreadFactory threadFactory) {
+    addr=localAddress(addr);
+
+    DatagramChannel aux=null;
+    try {
+      if (port == RegisterSocketEvent.FIRST_AVAILABLE) {
+        aux=bind(0, addr);
+      } else if (port == RegisterSocketEvent.RANDOMLY_AVAILABLE) {
+        final Random random=new Random();
+        while (aux == null)
+          aux=bind(random.nextInt(Short.MAX_VALUE), addr);
+      } else
+        aux=bind(port, addr);
+      if (aux == null)
+        return false;
+
+      startSelector(threadFactory);
+    } catch (IOException ex) {
+      ex.printStackTrace();
+      if (aux != null) {
+        try {
+          aux.close();
+        } catch (IOException ex1) {}
+      }
+      return false;
+    }
+
+    sock=aux;
+    myAddress=new InetSocketAddress(sock.socket().getLocalAddress(), sock.socket().getLocalPort());
+    selector.add(sock, myAddress, null);
+    return true;
+  }
+
+  private DatagramChannel bind(int port, InetAddress addr) {
+    DatagramChannel ch=null;
+    try {
+      ch=DatagramChannel.open();
+      ch.socket().bind(new InetSocketAddress(addr, port));
+      ch.configureBlocking(false);
+      return ch;
+    } catch (IOException ex) {
+      log.debug("Exception when trying to create a UDP socket in port "+port+": "+ex);
+    } catch (IllegalArgumentException ex) {
+      log.debug("Exception when trying to create a UDP socket in port "+port+": "+ex);
+    }
+    if (ch != null) {
+      try {
+        ch.close();
+      } catch (IOException ex) {}
+    }
+    return null;
+  }
+
+  private void startSelector(ThreadFactory threadFactory) throws IOException {
+    if (selector != null)
+      return;
+    if (param_POOL_PACKETS && pool == null)
+      pool=new ConcurrentBufferPool(param_MAX_UDPMSG_SIZE+1);
+    final UdpNioSelector aux=new UdpNioSelector(this, pool, param_MAX_UDPMSG_SIZE, param_MAX_BATCH);
+    final Thread t=threadFactory.newThread(aux);
+    t.setName("UDP NIO selector thread");
+    t.setDaemon(true);
+    t.start();
+    selector=aux;
+  }
+
+  /*
+   * Event serialization and sending it to socket (int tag+int channelHash+message).
+   * Events without a tag are sent with their class name (int+className+int channelHash+message).
+   */
+  private void formatAndSend(SendableEvent e) {
+    try {
+      if (sock == null) {
+        if (!newSock(RegisterSocketEvent.FIRST_AVAILABLE, null, e.getChannel().getThreadFactory()))
+          throw new IOException("Impossible to create new socket.");
+      }
+
+      final Message msg=e.getMessage();
+      final MsgBuffer mbuf=new MsgBuffer();
+      final int tag=eventTypes.getTag(e);
+
+      mbuf.len=4;
+      msg.push(mbuf);
+      ParseUtils.intToByteArray(e.getChannel().getChannelID().hashCode(), mbuf.data, mbuf.off);
+
+      if (tag == EventTypeRegistry.NO_TAG) {
+        final byte[] eventType=e.getClass().getName().getBytes("ISO-8859-1");
+
+        mbuf.len=eventType.length;
+        msg.push(mbuf);
+        System.arraycopy(eventType, 0, mbuf.data, mbuf.off, mbuf.len);
+
+        mbuf.len=4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(eventType.length, mbuf.data, mbuf.off);
+      } else {
+        mbuf.len=4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(tag, mbuf.data, mbuf.off);
+      }
+
+      if (msg.length() > param_MAX_UDPMSG_SIZE)
+        throw new IOException("Message length to great, may be truncated");
+
+      final ByteBuffer data=datagram(msg);
+
+      try {
+        if ((e.dest instanceof AppiaMulticast) && (((AppiaMulticast) e.dest).getMulticastAddress() == null)) {
+          final Object[] dests=((AppiaMulticast) e.dest).getDestinations();
+          if (dests == null) {
+            log.error("Destinations field of AppiaMulticast empty. Not sending event "+e);
+            return;
+          }
+          for (int i=0 ; i < dests.length ; i++) {
+            if (dests[i] instanceof InetSocketAddress)
+              send(data, (InetSocketAddress) dests[i]);
+            else
+              log.error("Wrong destination address type in event "+e);
+          }
+        } else {
+          InetSocketAddress dest=null;
+          if (e.dest instanceof InetSocketAddress) {
+            dest=(InetSocketAddress) e.dest;
+          } else if (e.dest instanceof AppiaMulticast) {
+            final Object aux=((AppiaMulticast) e.dest).getMulticastAddress();
+            if (!(aux instanceof InetSocketAddress) || !((InetSocketAddress) aux).getAddress().isMulticastAddress()) {
+              log.error("Not a multicast address in AppiaMulticast of event "+e);
+              return;
+            }
+            dest=(InetSocketAddress) aux;
+          } else {
+            log.error("Wrong destination address type in event "+e);
+            return;
+          }
+          send(data, dest);
+        }
+      } finally {
+        // the datagram was sent
+        msg.releaseByteBuffers();
+      }
+    } catch (IOException ex) {
+      if (log.isDebugEnabled())
+        ex.printStackTrace();
+      try {
+        new SendableNotDeliveredEvent(e.getChannel(), this, e).go();
+      } catch (AppiaEventException ex1) {
+        ex1.printStackTrace();
+      }
+    }
+  }
+
+  private void send(ByteBuffer data, InetSocketAddress dest) throws IOException {
+    // the buffer is shared by all destinations
+    data.mark();
+    int sent=sock.send(data, dest);
+    if (sent == 0)
+      sent=sendWhenWritable(data, dest);
+    data.reset();
+    if (sent == 0)
+      throw new IOException("Send buffer full, datagram to "+dest+" not sent.");
+  }
+
+  /*
+   * Waits until the socket has room in its send buffer, like a blocking socket.
+   * The socket is registered in a selector of its own, used only by senders.
+   */
+  private synchronized int sendWhenWritable(ByteBuffer data, InetSocketAddress dest) throws IOException {
+    if (writeSelector == null) {
+      writeSelector=Selector.open();
+      sock.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+    final long deadline=System.currentTimeMillis()+param_SEND_TIMEOUT;
+    int sent=0;
+    long remaining=param_SEND_TIMEOUT;
+    while (sent == 0 && remaining > 0) {
+      writeSelector.select(remaining);
+      writeSelector.selectedKeys().clear();
+      sent=sock.send(data, dest);
+      remaining=deadline-System.currentTimeMillis();
+    }
+    return sent;
+  }
+
+  /*
+   * Gets the contents of the message in a single buffer.
+   * If the message has a single block, it is used without copying it.
+   */
+  private ByteBuffer datagram(Message msg) {
+    final ByteBuffer[] buffers=msg.toByteBuffers();
+    if (buffers.length == 1)
+      return buffers[0];
+
+    final ByteBuffer aux=ByteBuffer.allocate(msg.length());
+    for (int i=0 ; i < buffers.length ; i++)
+      aux.put(buffers[i]);
+    aux.flip();
+    return aux;
+  }
+
+  /**
+   * Event deserialization. Called by the selector thread for each received datagram.
+   * @return true if the array is used by the message of the event
+   */
+  boolean receive(byte[] data, int length, InetSocketAddress source, InetSocketAddress dest, AsyncEventBatch batch) {
+    try {
+      /* Extract event tag, or size of class name */
+      final int tag=ParseUtils.byteArrayToInt(data, 0);
+      final int sLength=EventTypeRegistry.isTag(tag) ? 0 : tag;
+      if ((sLength < 0) || (8+sLength > length))
+        return false;
+
+      /* Extract channel hash */
+      final int channelHash=ParseUtils.byteArrayToInt(data, 4+sLength);
+      final Channel msgChannel=channels.get(new Integer(channelHash));
+      if (msgChannel == null)
+        return false;
+
+      /* Create event */
+      final SendableEvent e;
+      if (EventTypeRegistry.isTag(tag)) {
+        e=eventTypes.newEvent(tag, msgChannel.getQoS());
+        if (e == null) {
+          if (log.isDebugEnabled())
+            log.debug("Unknown event tag "+tag+" in channel "+msgChannel.getChannelID()+". Discarding message.");
+          return false;
+        }
+      } else
+        e=eventTypes.newEvent(new String(data, 4, sLength, "ISO-8859-1"));
+
+      final Message msg=msgChannel.getMessageFactory().newMessage();
+      if (pool != null)
+        msg.setByteArray(data, 8+sLength, length-(8+sLength), pool);
+      else
+        msg.setByteArray(data, 8+sLength, length-(8+sLength));
+      e.setMessage(msg);
+      e.source=source;
+      e.dest=dest;
+
+      batch.add(e, msgChannel, Direction.UP);
+      return true;
+    } catch (AppiaEventException ex) {
+      log.debug("Could not insert event: "+ex);
+      return true;
+    } catch (Exception ex) {
+      if (log.isDebugEnabled()) {
+        ex.printStackTrace();
+        log.debug("Exception catched while processing message from "+source+". Continued operation.");
+      }
+      return false;
+    }
+  }
+
+  private void reverseRegister(RegisterSocketEvent e, int port, InetAddress localHost, boolean error) {
+    try {
+      e.setSourceSession(this);
+      e.setDir(Direction.invert(e.getDir()));
+      e.port=port;
+      e.localHost=localHost;
+      e.error=error;
+      e.init();
+      e.go();
+    } catch (AppiaEventException ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -30,9 +30,16 @@ import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.appia.core.AppiaEventException;
 import net.sf.appia.core.Channel;
@@ -48,6 +55,7 @@ import net.sf.appia.core.events.channel.ChannelInit;
 import net.sf.appia.core.events.channel.Debug;
 import net.sf.appia.core.message.Message;
 import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.protocols.common.EventTypeRegistry;
 import net.sf.appia.protocols.common.RegisterSocketEvent;
 import net.sf.appia.protocols.common.SendableNotDeliveredEvent;
 import net.sf.appia.protocols.frag.MaxPDUSizeEvent;
@@ -86,6 +94,7 @@ public class UdpSimpleSession extends Session implements InitializableSession {
   private UdpSimpleReader sockReader = null; //point-to-point reader
   private HashMap<SocketAddress,UdpSimpleReader> multicastReaders = new HashMap<SocketAddress, UdpSimpleReader>(); //multicast readers
   protected HashMap<Integer,Channel> channels = new HashMap<Integer, Channel>(); // known channels
+  protected EventTypeRegistry eventTypes = new EventTypeRegistry(); // tags of the events
   
   private InetAddress param_LOCAL_ADDRESS=null;
   private int param_MAX_UDPMSG_SIZE=DEFAULT_MAX_UDPMSG_SIZE;
@@ -93,6 +102,14 @@ public class UdpSimpleSession extends Session implements InitializableSession {
   public static final int DEFAULT_MAX_UDPMSG_SIZE=8192;
   public static final int DEFAULT_SOTIMEOUT=5000;
   private int param_SOTIMEOUT=DEFAULT_SOTIMEOUT;
+  public static final int DEFAULT_FANOUT_THRESHOLD=4;
+  private int param_FANOUT_THRESHOLD=DEFAULT_FANOUT_THRESHOLD;
+  private boolean param_COMPACT_EVENT_TYPES=false;
+  
+  // destinations of each emulated multicast, resolved once.
+  // AppiaMulticast does not redefine equals, so the keys are compared by identity
+  private Map<AppiaMulticast,InetSocketAddress[]> fanOuts = new WeakHashMap<AppiaMulticast,InetSocketAddress[]>();
+  private UdpSimpleSender sender = null;
   
   private InetSocketAddress myAddress = null;
   private InetSocketAddress ipMulticast = null;
@@ -118,6 +135,10 @@ public class UdpSimpleSession extends Session implements InitializableSession {
    * <li><b>local_address</b> the address to which the UDP socket is bound.
    * <li><b>max_udp_message_size</b> the maximum size of an underlying UDP message payload.
    * <li><b>reader_sotimeout</b> the timeout of the threads that listen on UDP sockets. (in milliseconds)
+   * <li><b>fanout_threshold</b> the number of destinations from which an emulated multicast
+   * is sent by a separate thread, or 0 to always send it in the Appia thread.
+   * <li><b>compact_event_types</b> sends the tag of the event class instead of its name.
+   * Received messages are accepted in both formats. The default is false, which keeps the format of previous versions.
    * </ul>
    * 
    * @param params The parameters given in the XML configuration.
@@ -135,6 +156,10 @@ public class UdpSimpleSession extends Session implements InitializableSession {
       param_MAX_UDPMSG_SIZE=params.getInt("max_udp_message_size");
     if (params.containsKey("reader_sotimeout"))
         param_SOTIMEOUT=params.getInt("reader_sotimeout");
+    if (params.containsKey("fanout_threshold"))
+        param_FANOUT_THRESHOLD=params.getInt("fanout_threshold");
+    if (params.containsKey("compact_event_types"))
+        param_COMPACT_EVENT_TYPES=params.getBoolean("compact_event_types");
   }
 
   /**
@@ -379,6 +404,11 @@ public class UdpSimpleSession extends Session implements InitializableSession {
     if (channels.isEmpty()) {
       // Terminating 
       sockReader.terminate();
+      // the datagrams already queued are still sent
+      if (sender != null) {
+        sender.terminate();
+        sender = null;
+      }
       
       for(UdpSimpleReader _reader : multicastReaders.values())
         _reader.terminate();
@@ -456,7 +486,8 @@ public class UdpSimpleSession extends Session implements InitializableSession {
   }
   
   /*
-   * Event serialization and sending it to socket (int+className+int+channelName+message)
+   * Event serialization and sending it to socket (int+className+int channelHash+message).
+   * With compact_event_types (int tag+int channelHash+message), unless the event has no tag.
    */
   
   private void formatAndSend(SendableEvent e) {
@@ -471,82 +502,79 @@ public class UdpSimpleSession extends Session implements InitializableSession {
       Message msg = e.getMessage();
       MsgBuffer mbuf = new MsgBuffer();
       
-      byte[] eventType = e.getClass().getName().getBytes("ISO-8859-1");
+      int tag = param_COMPACT_EVENT_TYPES ? eventTypes.getTag(e) : EventTypeRegistry.NO_TAG;
       int channelHash = e.getChannel().getChannelID().hashCode();
       
       mbuf.len = 4;
       msg.push(mbuf);
       ParseUtils.intToByteArray(channelHash, mbuf.data, mbuf.off);
       
-      mbuf.len = eventType.length;
-      msg.push(mbuf);
-      System.arraycopy(eventType, 0, mbuf.data, mbuf.off, mbuf.len);
-      
-      mbuf.len = 4;
-      msg.push(mbuf);
-      ParseUtils.intToByteArray(eventType.length, mbuf.data, mbuf.off);
+      if (tag == EventTypeRegistry.NO_TAG) {
+        byte[] eventType = e.getClass().getName().getBytes("ISO-8859-1");
+        
+        mbuf.len = eventType.length;
+        msg.push(mbuf);
+        System.arraycopy(eventType, 0, mbuf.data, mbuf.off, mbuf.len);
+        
+        mbuf.len = 4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(eventType.length, mbuf.data, mbuf.off);
+      } else {
+        mbuf.len = 4;
+        msg.push(mbuf);
+        ParseUtils.intToByteArray(tag, mbuf.data, mbuf.off);
+      }
       
       if (msg.length() > param_MAX_UDPMSG_SIZE)
         throw new IOException("Message length to great, may be truncated");
       
-      /* Create the packet and send it */
-      byte[] bytes = msg.toByteArray();
+      /* Create the packet and send it. The single packet is shared by all destinations */
+      final DatagramPacket dp = newPacket(msg);
       
-      if ((e.dest instanceof AppiaMulticast)
-          && (((AppiaMulticast) e.dest).getMulticastAddress() == null)) {
-        
-        Object[] dests = ((AppiaMulticast) e.dest).getDestinations();
-        
-        if (dests == null) {
-          System.err.println(
-          "UdpSimpleSession: Destinations field of AppiaMulticast empty. Not sending event " + e);
-          return;
-        }
+      try {
+        if ((e.dest instanceof AppiaMulticast)
+            && (((AppiaMulticast) e.dest).getMulticastAddress() == null)) {
         
-        DatagramPacket dp = new DatagramPacket(bytes, bytes.length);
+          final InetSocketAddress[] dests = resolve((AppiaMulticast) e.dest, e);
+          if (dests == null)
+            return;
         
-        for (int i = 0; i < dests.length; i++) {
-          if (dests[i] instanceof InetSocketAddress) {
-            
-            dp.setAddress(((InetSocketAddress) dests[i]).getAddress());
-            dp.setPort(((InetSocketAddress) dests[i]).getPort());
-            sock.send(dp);
-            
-            if (debugFull)
-              log.debug(":formatAndSend: Multicast emulation: " + dp.getLength() 
-                  + " bytes datagram sent to " + dp.getAddress().getHostAddress() 
-                  + " (port " + dp.getPort() + ")");
-          } else
-            log.error("UdpSimpleSession: Wrong destination address type in event " + e);
-        }
-      } else {
-        InetSocketAddress dest = null;
-        if (e.dest instanceof InetSocketAddress) {
-          dest = (InetSocketAddress) e.dest;
-        } else if (e.dest instanceof AppiaMulticast) {
-          Object aux=((AppiaMulticast) e.dest).getMulticastAddress();
-          if (aux instanceof InetSocketAddress) {
-            dest = (InetSocketAddress)aux;
-            if (!dest.getAddress().isMulticastAddress()) {
-              System.err.println("UdpSimpleSession: Not a multicast address in AppiaMulticast of event " + e);
+          if ((param_FANOUT_THRESHOLD > 0) && (dests.length >= param_FANOUT_THRESHOLD))
+            sender(e.getChannel()).add(new FanOut(detach(dp), dests, e));
+          else if ((sender != null) && sender.isBusy())
+            sender.add(new FanOut(detach(dp), dests, e));
+          else
+            send(dp, dests);
+        } else {
+          InetSocketAddress dest = null;
+          if (e.dest instanceof InetSocketAddress) {
+            dest = (InetSocketAddress) e.dest;
+          } else if (e.dest instanceof AppiaMulticast) {
+            Object aux=((AppiaMulticast) e.dest).getMulticastAddress();
+            if (aux instanceof InetSocketAddress) {
+              dest = (InetSocketAddress)aux;
+              if (!dest.getAddress().isMulticastAddress()) {
+                System.err.println("UdpSimpleSession: Not a multicast address in AppiaMulticast of event " + e);
+                return;
+              }
+            } else {
+              System.err.println("UdpSimpleSession: Wrong multicast address type in event " + e);
               return;
             }
           } else {
-            System.err.println("UdpSimpleSession: Wrong multicast address type in event " + e);
+            System.err.println("UdpSimpleSession: Wrong destination address type in event " + e);
             return;
           }
-        } else {
-          System.err.println("UdpSimpleSession: Wrong destination address type in event " + e);
-          return;
-        }
-        
-        DatagramPacket dp = new DatagramPacket(bytes, bytes.length, dest.getAddress(), dest.getPort());
-        
-        sock.send(dp);
         
-        if (debugFull)
-          log.debug(":formatAndSend: "+dp.getLength()+" bytes datagram sent to "
-              + dp.getAddress().getHostAddress() + " (port " + dp.getPort() + ")");
+          // datagrams still queued in the sender go first
+          if ((sender != null) && sender.isBusy())
+            sender.add(new FanOut(detach(dp), new InetSocketAddress[]{dest}, e));
+          else
+            send(dp, new InetSocketAddress[]{dest});
+        }
+      } finally {
+        // the packet was sent, or copied for the sender thread
+        msg.releaseByteBuffers();
       }
     } catch (IOException ex) {
       if (log.isDebugEnabled())
@@ -563,6 +591,167 @@ public class UdpSimpleSession extends Session implements InitializableSession {
       }
     }
   }
+  /*
+   * Gets the destinations of an emulated multicast, checking them only the first
+   * time the AppiaMulticast is used.
+   */
+  private InetSocketAddress[] resolve(AppiaMulticast multicast, SendableEvent e) {
+    InetSocketAddress[] dests = fanOuts.get(multicast);
+    if (dests != null)
+      return dests;
+    
+    final Object[] aux = multicast.getDestinations();
+    if (aux == null) {
+      log.error("Destinations field of AppiaMulticast empty. Not sending event " + e);
+      return null;
+    }
+    
+    dests = new InetSocketAddress[aux.length];
+    int n = 0;
+    for (int i = 0; i < aux.length; i++) {
+      if (aux[i] instanceof InetSocketAddress)
+        dests[n++] = (InetSocketAddress) aux[i];
+      else
+        log.error("Wrong destination address type in event " + e);
+    }
+    if (n < dests.length)
+      dests = Arrays.copyOf(dests, n);
+    fanOuts.put(multicast, dests);
+    return dests;
+  }
+  
+  /*
+   * Sends a datagram to each destination. The single packet is shared by all of them.
+   */
+  private void send(DatagramPacket dp, InetSocketAddress[] dests) throws IOException {
+    for (int i = 0; i < dests.length; i++) {
+      dp.setSocketAddress(dests[i]);
+      sock.send(dp);
+      
+      if (debugFull)
+        log.debug(":send: " + dp.getLength() 
+            + " bytes datagram sent to " + dp.getAddress().getHostAddress() 
+            + " (port " + dp.getPort() + ")");
+    }
+  }
+  
+  /*
+   * Copies the contents of a packet, that may be the buffer of the message,
+   * before it is handed to the sender thread.
+   */
+  private DatagramPacket detach(DatagramPacket dp) {
+    final byte[] bytes = Arrays.copyOfRange(dp.getData(), dp.getOffset(), dp.getOffset()+dp.getLength());
+    return new DatagramPacket(bytes, bytes.length);
+  }
+  
+  private UdpSimpleSender sender(Channel channel) {
+    if (sender == null) {
+      sender = new UdpSimpleSender();
+      final Thread thread = channel.getThreadFactory().newThread(sender);
+      thread.setName("UdpSimpleSender ["+myAddress+"]");
+      thread.start();
+    }
+    return sender;
+  }
+  
+  /*
+   * Creates a packet with the contents of the message.
+   * If the message has a single block with an array, it is used without copying it.
+   */
+  private DatagramPacket newPacket(Message msg) {
+    final ByteBuffer[] buffers = msg.toByteBuffers();
+    if (buffers.length == 1 && buffers[0].hasArray())
+      return new DatagramPacket(buffers[0].array(), buffers[0].arrayOffset()+buffers[0].position(), buffers[0].remaining());
+    
+    final byte[] bytes = new byte[msg.length()];
+    int off = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      final int len = buffers[i].remaining();
+      buffers[i].get(bytes, off, len);
+      off += len;
+    }
+    return new DatagramPacket(bytes, bytes.length);
+  }
+  
+  /*
+   * A datagram waiting to be sent by the UdpSimpleSender.
+   */
+  static class FanOut {
+    final DatagramPacket packet;
+    final InetSocketAddress[] dests;
+    final SendableEvent event;
+    
+    FanOut(DatagramPacket packet, InetSocketAddress[] dests, SendableEvent event) {
+      this.packet = packet;
+      this.dests = dests;
+      this.event = event;
+    }
+  }
+  
+  /*
+   * Auxiliary class.
+   *
+   * Sends, in its own thread, the datagrams of the emulated multicasts with
+   * at least fanout_threshold destinations, so the Appia thread does not wait
+   * for each send. While it has datagrams to send, the Appia thread gives it
+   * every datagram, keeping the order of the datagrams sent to each destination.
+   * When terminated, it sends the datagrams still queued before it stops.
+   */
+  class UdpSimpleSender implements Runnable {
+    private final LinkedBlockingQueue<FanOut> queue = new LinkedBlockingQueue<FanOut>();
+    // datagrams added and not yet sent
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private volatile boolean terminate = false;
+    
+    public void add(FanOut f) {
+      pending.incrementAndGet();
+      queue.add(f);
+    }
+    
+    public boolean isBusy() {
+      return pending.get() > 0;
+    }
+    
+    public void terminate() {
+      terminate = true;
+    }
+    
+    public void run() {
+      while (!terminate) {
+        final FanOut f;
+        try {
+          f = queue.poll(param_SOTIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+          continue;
+        }
+        if (f != null)
+          send(f);
+      }
+      
+      FanOut f;
+      while ((f = queue.poll()) != null)
+        send(f);
+    }
+    
+    private void send(FanOut f) {
+      try {
+        UdpSimpleSession.this.send(f.packet, f.dests);
+      } catch (IOException ex) {
+        if (log.isDebugEnabled())
+          ex.printStackTrace();
+        final Channel channel = f.event.getChannel();
+        try {
+          new SendableNotDeliveredEvent(channel, UdpSimpleSession.this, f.event).asyncGo(channel, Direction.UP);
+        } catch (AppiaEventException ex1) {
+          // the channel is already closed
+          log.warn("Unable to send datagram of event " + f.event + ": " + ex.getMessage());
+        }
+      } finally {
+        pending.decrementAndGet();
+      }
+    }
+  }
+  
         /* Auxiliary class.
          *
          * This is the class responsible for blocking on a socket waiting for
@@ -662,17 +851,9 @@ public class UdpSimpleSession extends Session implements InitializableSession {
       Message msg = null;
       
       try {
-        /* Extract event class name */
-        //size of class name
-        int sLength = ParseUtils.byteArrayToInt(data, 0);
-        //the class name
-        String className = new String(data, 4, sLength, "ISO-8859-1");
-        
-        /* Create event */
-        Class<?> c = Class.forName(className);
-        if (debugFull) {
-          logReader.debug(":receiveAndFormat: Reader, creating "+className+" event.");
-        }
+        /* Extract event tag, or size of class name */
+        int tag = ParseUtils.byteArrayToInt(data, 0);
+        int sLength = EventTypeRegistry.isTag(tag) ? 0 : tag;
         
         /* Extract channel hash and put event in it*/
         
@@ -688,7 +869,21 @@ public class UdpSimpleSession extends Session implements InitializableSession {
         	return;
         }
         
-        e = (SendableEvent) c.newInstance();
+        /* Create event */
+        if (EventTypeRegistry.isTag(tag)) {
+          e = parentSession.eventTypes.newEvent(tag, msgChannel.getQoS());
+          if (e == null) {
+            if (debugFull)
+              logReader.debug(":receiveAndFormat: unknown event tag "+tag+". message will be discarded.");
+            return;
+          }
+        } else {
+          e = parentSession.eventTypes.newEvent(new String(data, 4, sLength, "ISO-8859-1"));
+        }
+        if (debugFull) {
+          logReader.debug(":receiveAndFormat: Reader, creating "+e.getClass().getName()+" event.");
+        }
+        
         e.setMessage(msgChannel.getMessageFactory().newMessage());
         msg = e.getMessage();
         msg.setByteArray(data, 8 + sLength, data.length - (8 + sLength));
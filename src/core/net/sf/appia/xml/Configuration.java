@@ -166,6 +166,28 @@ public class Configuration {
 			globalEventScheduler = null;
 	}
 	
+	/**
+	 * <p>Runs the EventSchedulers in several threads.</p>
+	 * <p>Multi-threading implies the use of multiple schedulers. Channels that
+	 * share sessions keep sharing the same scheduler, and thus the same thread.</p>
+	 * 
+	 * @param multiThreaded true if each EventScheduler should run in its own thread.
+	 * @param nThreads maximum number of threads, or 0 for one thread per EventScheduler.
+	 * @see Appia#instanceSetMultiThreaded(boolean)
+	 */
+	public void useMultiThreading(boolean multiThreaded, int nThreads) {
+		if (multiThreaded)
+			useMultiSchedulers(true);
+		if (appia == null) {
+			Appia.setMultiThreaded(multiThreaded);
+			Appia.setSchedulerThreads(nThreads);
+		}
+		else {
+			appia.instanceSetMultiThreaded(multiThreaded);
+			appia.instanceSetSchedulerThreads(nThreads);
+		}
+	}
+	
 	/**
 	 * Tests if configuration is using a global EventScheduler.
 	 * 
@@ -27,6 +27,7 @@ import java.lang.reflect.InvocationTargetException;
 
 import net.sf.appia.core.AppiaConfig;
 import net.sf.appia.core.AppiaError;
+import net.sf.appia.core.Direction;
 import net.sf.appia.core.memoryManager.MemoryManager;
 import net.sf.appia.xml.utils.ChannelProperties;
 import net.sf.appia.xml.utils.SessionProperties;
@@ -65,7 +66,7 @@ public class XMLFileHandler extends DefaultHandler {
 	private ChannelProperties params;
 	private SessionProperties currentParams;
 	//Memory management related attributes
-	private String mmSize, mmUPThreshold, mmDOWNThreshold;
+	private String mmSize, mmUPThreshold, mmDOWNThreshold, mmUPLowThreshold, mmDOWNLowThreshold;
 	private MemoryManager memoryManager = null;
     //JMX Management variables
     private String namingHost,namingPort,local;
@@ -130,6 +131,14 @@ public class XMLFileHandler extends DefaultHandler {
 			String att = attributes.getValue("multischedulers");
 			if (att != null && att.equals("yes"))
 				config.useMultiSchedulers(true);
+			att = attributes.getValue("multithreaded");
+			if (att != null && att.equals("yes")) {
+				int nThreads = 0;
+				final String threads = attributes.getValue("schedulerthreads");
+				if (threads != null && !threads.equals(""))
+					nThreads = Integer.parseInt(threads);
+				config.useMultiThreading(true,nThreads);
+			}
             att = attributes.getValue("threadFactory");
             if(att != null && !att.equals("")){
                 try {
@@ -195,6 +204,8 @@ public class XMLFileHandler extends DefaultHandler {
 			mmSize = attributes.getValue("size");
 			mmUPThreshold = attributes.getValue("up_threshold");
 			mmDOWNThreshold = attributes.getValue("down_threshold");
+			mmUPLowThreshold = attributes.getValue("up_low_threshold");
+			mmDOWNLowThreshold = attributes.getValue("down_low_threshold");
 		}
         else if (qName.equals("management")) {
             namingHost = attributes.getValue("naming_host");
@@ -251,6 +262,12 @@ public class XMLFileHandler extends DefaultHandler {
 					Integer.parseInt(mmSize),
 					Integer.parseInt(mmUPThreshold),
 					Integer.parseInt(mmDOWNThreshold));
+			if (mmUPLowThreshold != null)
+				memoryManager.setWatermarks(Integer.parseInt(mmUPThreshold),
+						Integer.parseInt(mmUPLowThreshold), Direction.UP);
+			if (mmDOWNLowThreshold != null)
+				memoryManager.setWatermarks(Integer.parseInt(mmDOWNThreshold),
+						Integer.parseInt(mmDOWNLowThreshold), Direction.DOWN);
 		}
         else if (qName.equals("management")) {
             if(namingHost != null)
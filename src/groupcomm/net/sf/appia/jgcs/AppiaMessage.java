@@ -29,6 +29,7 @@
 package net.sf.appia.jgcs;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 import net.sf.appia.core.message.Message;
 
@@ -52,6 +53,27 @@ public class AppiaMessage extends Message implements net.sf.jgcs.Message, Clonea
 		return this.toByteArray();
 	}
 
+	/**
+	 * Gets the payload without copying it, if it is kept in a single block.
+	 * @return a read-only view of the payload
+	 * @see net.sf.appia.core.message.Message#asReadOnlyByteBuffer()
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		return this.asReadOnlyByteBuffer();
+	}
+
+	/**
+	 * Gets the payload as a sequence of read-only buffers, without copying it.
+	 * @return read-only views of the blocks of the payload
+	 * @see net.sf.appia.core.message.Message#toByteBuffers()
+	 */
+	public ByteBuffer[] getPayloadBuffers() {
+		final ByteBuffer[] buffers = this.toByteBuffers();
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = buffers[i].asReadOnlyBuffer();
+		return buffers;
+	}
+
 	public SocketAddress getSenderAddress() {
 		return senderAddress;
 	}
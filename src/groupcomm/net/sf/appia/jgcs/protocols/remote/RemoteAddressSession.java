@@ -31,7 +31,6 @@ import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanOperationInfo;
 
-import net.sf.appia.core.Appia;
 import net.sf.appia.core.AppiaEventException;
 import net.sf.appia.core.AppiaException;
 import net.sf.appia.core.Channel;
@@ -237,7 +236,7 @@ public class RemoteAddressSession extends Session implements
 	    }
 	    if(channel != null){
             try {
-                if(Appia.getAppiaThread() == Thread.currentThread()){
+                if(channel.getEventScheduler().getSchedulerThread() == Thread.currentThread()){
                     new RemoteViewEvent(channel,Direction.DOWN,this,new Group(groupID)).go();
                 }
                 else{
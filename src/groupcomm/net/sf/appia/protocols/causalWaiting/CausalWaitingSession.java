@@ -30,12 +30,15 @@ import net.sf.appia.core.Event;
 import net.sf.appia.core.Layer;
 import net.sf.appia.core.Session;
 import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.group.ArrayOptimized;
 import net.sf.appia.protocols.group.LocalState;
 import net.sf.appia.protocols.group.ViewState;
 import net.sf.appia.protocols.group.events.GroupSendableEvent;
 import net.sf.appia.protocols.group.events.Send;
 import net.sf.appia.protocols.group.intra.View;
 import net.sf.appia.protocols.group.leave.LeaveEvent;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
 
 import org.apache.log4j.Logger;
 
@@ -49,7 +52,7 @@ import org.apache.log4j.Logger;
  * @see EventContainer
  * @author Jose Mocito
  */
-public class CausalWaitingSession extends Session {
+public class CausalWaitingSession extends Session implements InitializableSession {
 
     private static Logger log = Logger.getLogger(CausalWaitingSession.class);
     private static final boolean debugOn = true;
@@ -67,6 +70,11 @@ public class CausalWaitingSession extends Session {
 	 */
 	private LinkedList<EventContainer> pending = new LinkedList<EventContainer>();
 	
+	/**
+	 * Send the VC with a variable number of bytes per entry.
+	 */
+	private boolean compactHeaders = false;
+	
 	/**
 	 * Constructs a new waiting causal order protocol session.
 	 * 
@@ -76,6 +84,21 @@ public class CausalWaitingSession extends Session {
 		super(layer);
 	}
 	
+	/**
+	 * Initializes the session using the parameters given in the XML configuration.
+	 * Possible parameters:
+	 * <ul>
+	 * <li><b>compact_headers</b> sends the VC as differences between consecutive entries,
+	 * with a variable number of bytes. Must be the same in all members.
+	 * </ul>
+	 * 
+	 * @param params The parameters given in the XML configuration.
+	 */
+	public void init(SessionProperties params) {
+		if (params.containsKey("compact_headers"))
+			compactHeaders = params.getBoolean("compact_headers");
+	}
+	
 	/**
 	 * This is the protocol's main event handler.
 	 * It accepts the following events:
@@ -137,8 +160,11 @@ public class CausalWaitingSession extends Session {
         if (!(event instanceof Send)) {
             if (event.getDir() == Direction.DOWN) {
                 Message omsg = event.getMessage();
-                for (int i = 0; i < VC.length; i++)
-                    omsg.pushLong(VC[i]);
+                if (compactHeaders)
+                    ArrayOptimized.pushArrayLongDelta(VC, omsg);
+                else
+                    for (int i = 0; i < VC.length; i++)
+                        omsg.pushLong(VC[i]);
                 try {
                     event.go();
                 } catch (AppiaEventException e) {
@@ -177,6 +203,11 @@ public class CausalWaitingSession extends Session {
 	 * @param VCm array where the values of the VC for the given message will be stored.
 	 */
 	private void extractVCm(Message omsg, long[] VCm) {
+		if (compactHeaders) {
+			final long[] aux = ArrayOptimized.popArrayLongDelta(omsg);
+			System.arraycopy(aux, 0, VCm, 0, VCm.length);
+			return;
+		}
 		for (int i = VCm.length - 1; i >= 0; i--)
 			VCm[i] = omsg.popLong();
 	}
@@ -187,6 +218,10 @@ public class CausalWaitingSession extends Session {
 	 * @param omsg the message whose header will be cleared.
 	 */
 	private void clearVC(Message omsg) {
+		if (compactHeaders) {
+			ArrayOptimized.popArrayLongDelta(omsg);
+			return;
+		}
 		for (int i = 0; i < VC.length; i++)
 			omsg.popLong();
 	}
@@ -188,53 +188,66 @@ public class ArrayOptimized {
 
     public static void pushArrayInt(int[] ints,Message message)
     {
-        for (int i=ints.length-1;i>-1;i--)
-        {
-            message.pushInt(ints[i]);
-        }
-        message.pushInt(ints.length);
+        message.pushIntArray(ints);
     }
 
     public static int[] popArrayInt(Message message)
     {
-        int[] ints=new int[message.popInt()];
-        for (int i=0;i<ints.length;i++)
-        {
-            ints[i]=message.popInt();
-        }
-        return ints;
+        return message.popIntArray();
     }
 
     public static int[] peekArrayInt(Message message)
     {
-        int[] ints=ArrayOptimized.popArrayInt(message);
-        ArrayOptimized.pushArrayInt(ints,message);
-        return ints;
+        return message.peekIntArray();
     }
 
     public static void pushArrayLong(long[] longs,Message message)
     {
-        for (int i=longs.length-1;i>-1;i--)
+        message.pushLongArray(longs);
+    }
+
+    public static long[] popArrayLong(Message message)
+    {
+        return message.popLongArray();
+    }
+
+    public static long[] peekArrayLong(Message message)
+    {
+        return message.peekLongArray();
+    }
+
+    /**
+     * Pushes an array of longs, each coded as the difference to the previous one,
+     * with a variable number of bytes. Arrays of close values, such as sequence
+     * numbers or vector clocks, take a few bytes per element.
+     */
+    public static void pushArrayLongDelta(long[] longs,Message message)
+    {
+        for (int i=longs.length-1;i>0;i--)
         {
-            message.pushLong(longs[i]);
+            message.pushZigZagLong(longs[i]-longs[i-1]);
         }
-        message.pushInt(longs.length);
+        if (longs.length > 0)
+            message.pushZigZagLong(longs[0]);
+        message.pushVarInt(longs.length);
     }
 
-    public static long[] popArrayLong(Message message)
+    public static long[] popArrayLongDelta(Message message)
     {
-        long[] longs=new long[message.popInt()];
+        long[] longs=new long[message.popVarInt()];
+        long prev=0;
         for (int i=0;i<longs.length;i++)
         {
-            longs[i]=message.popLong();
+            longs[i]=prev+message.popZigZagLong();
+            prev=longs[i];
         }
         return longs;
     }
 
-    public static long[] peekArrayLong(Message message)
+    public static long[] peekArrayLongDelta(Message message)
     {
-        long[] longs=ArrayOptimized.popArrayLong(message);
-        ArrayOptimized.pushArrayLong(longs,message);
+        long[] longs=ArrayOptimized.popArrayLongDelta(message);
+        ArrayOptimized.pushArrayLongDelta(longs,message);
         return longs;
     }
 
@@ -29,6 +29,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.ObjectSerializer;
+import net.sf.appia.core.message.ObjectSerializers;
 
 /**
  * <i>Endpt</i> represents a group member, <i>endpoint</i>.
@@ -43,6 +45,14 @@ public class Endpt implements Externalizable {
 
   private static final long serialVersionUID = -3355596169573334939L;
 
+  // pushObject/popObject write the fields instead of using Java serialization
+  static {
+    ObjectSerializers.register(Endpt.class, new ObjectSerializer() {
+      public void push(Object obj, Message m) { Endpt.push((Endpt) obj, m); }
+      public Object pop(Message m) { return Endpt.pop(m); }
+    });
+  }
+
   /**
    * The endpoint identifier.
    */
@@ -28,6 +28,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.ObjectSerializer;
+import net.sf.appia.core.message.ObjectSerializers;
 
 
 /**
@@ -42,6 +44,14 @@ public class Group implements Externalizable {
 
   private static final long serialVersionUID = -379704347167008367L;
 
+  // pushObject/popObject write the fields instead of using Java serialization
+  static {
+    ObjectSerializers.register(Group.class, new ObjectSerializer() {
+      public void push(Object obj, Message m) { Group.push((Group) obj, m); }
+      public Object pop(Message m) { return Group.pop(m); }
+    });
+  }
+
   /**
    * The group identifier.
    */
@@ -27,6 +27,8 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
 import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.ObjectSerializer;
+import net.sf.appia.core.message.ObjectSerializers;
 
 /**
  * The unique identifier of a {@link net.sf.appia.protocols.group.ViewState ViewState}.
@@ -44,6 +46,14 @@ public class ViewID implements Externalizable {
 
   private static final long serialVersionUID = -7452984900144476889L;
 
+  // pushObject/popObject write the fields instead of using Java serialization
+  static {
+    ObjectSerializers.register(ViewID.class, new ObjectSerializer() {
+      public void push(Object obj, Message m) { ViewID.push((ViewID) obj, m); }
+      public Object pop(Message m) { return ViewID.pop(m); }
+    });
+  }
+
   /**
    * The logical time of the view.
    */
@@ -33,6 +33,7 @@ import java.util.ListIterator;
 
 import net.sf.appia.core.message.Message;
 import net.sf.appia.core.message.MessageException;
+import net.sf.appia.core.message.StringTable;
 
 /**
  * A <i>view</i>.
@@ -420,6 +421,65 @@ public class ViewState implements Externalizable {
 	    return vs;
 	}
 	
+	/**
+	 * Pushes the view state with each endpoint, group and version string written only once.
+	 * <br>
+	 * The endpoints of the view usually also appear as coordinators of the view
+	 * identifiers. It must be popped with {@link #popCompact(Message)}.
+	 * 
+	 * @param vs the view state
+	 * @param message the message
+	 */
+	public static void pushCompact(ViewState vs, Message message) {
+		final StringTable table = new StringTable();
+		ArrayOptimized.pushArrayInetWithPort(vs.addresses,message);
+		for (int i=vs.view.length-1 ; i >= 0 ; i--)
+			message.pushString(vs.view[i].id,table);
+		message.pushVarInt(vs.view.length);
+		for (int i=vs.previous.length-1 ; i >= 0 ; i--)
+			pushViewID(vs.previous[i],message,table);
+		message.pushVarInt(vs.previous.length);
+		pushViewID(vs.id,message,table);
+		message.pushString(vs.group.id,table);
+		message.pushString(vs.version,table);
+		message.pushStringTable(table);
+	}
+	
+	/**
+	 * Pops a view state pushed with {@link #pushCompact(ViewState, Message)}.
+	 * 
+	 * @param message the message
+	 * @return the view state
+	 */
+	public static ViewState popCompact(Message message) {
+		final StringTable table = message.popStringTable();
+		final String version = message.popString(table);
+		final Group group = new Group(message.popString(table));
+		final ViewID id = popViewID(message,table);
+		final ViewID[] previous = new ViewID[message.popVarInt()];
+		for (int i=0 ; i < previous.length ; i++)
+			previous[i]=popViewID(message,table);
+		final Endpt[] view = new Endpt[message.popVarInt()];
+		for (int i=0 ; i < view.length ; i++)
+			view[i]=new Endpt(message.popString(table));
+		try {
+			return new ViewState(version,group,id,previous,view,
+					ArrayOptimized.popArrayInetWithPort(message));
+		} catch (AppiaGroupException ex) {
+			throw new MessageException("Error poping view state.",ex);
+		}
+	}
+	
+	private static void pushViewID(ViewID viewid, Message message, StringTable table) {
+		message.pushString(viewid.coord.id,table);
+		message.pushVarLong(viewid.ltime);
+	}
+	
+	private static ViewID popViewID(Message message, StringTable table) {
+		final long ltime = message.popVarLong();
+		return new ViewID(ltime,new Endpt(message.popString(table)));
+	}
+	
 	public void writeExternal(ObjectOutput out) throws IOException {
 //		public String version;
 		byte[] bytes = version.getBytes();
@@ -30,6 +30,8 @@ import net.sf.appia.core.message.*;
 import net.sf.appia.protocols.group.*;
 import net.sf.appia.protocols.group.events.*;
 import net.sf.appia.protocols.group.intra.View;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
 
 import org.apache.log4j.Logger;
 
@@ -41,15 +43,39 @@ import org.apache.log4j.Logger;
  * <br>
  * It also filters events that don't belong to the current view.
  */
-public class GroupBottomSession extends Session {
+public class GroupBottomSession extends Session implements InitializableSession {
     private static Logger log = Logger.getLogger(GroupBottomSession.class);
 
     public static final int BUFFER_SIZE=100;
 
+    private boolean compact_headers=false;
+
     public GroupBottomSession(Layer layer) {
         super(layer);
     }
 
+    /**
+     * Initializes the session using the parameters given in the XML configuration.
+     * Possible parameters:
+     * <ul>
+     * <li><b>compact_headers</b> sends the rank of the sender and the number of previous
+     * views with a variable number of bytes. Must be the same in all members.
+     * </ul>
+     * 
+     * @param params The parameters given in the XML configuration.
+     */
+    public void init(SessionProperties params) {
+        if (params.containsKey("compact_headers"))
+            compact_headers=params.getBoolean("compact_headers");
+    }
+
+    private void pushPrevs(Message omsg, short nprevs) {
+        if (compact_headers)
+            omsg.pushVarShort(nprevs);
+        else
+            omsg.pushShort(nprevs);
+    }
+
     public void handle(Event event) {
 
         // GroupSendableEvent
@@ -117,7 +143,7 @@ public class GroupBottomSession extends Session {
             }
 
             int viewHash=omsg.popInt();
-            short nprevs=omsg.popShort();
+            short nprevs=compact_headers ? omsg.popVarShort() : omsg.popShort();
 
             if (viewHash != viewHashCode) {
                 // check if event belongs to the next view
@@ -133,7 +159,7 @@ public class GroupBottomSession extends Session {
                 if (isNext) {
                     if (debugFull)
                         log.debug("buffering event from possible next view (hash="+viewHash+").");
-                    omsg.pushShort((short)0);
+                    pushPrevs(omsg, (short)0);
                     omsg.pushInt(viewHash);
                     omsg.pushInt(groupHash);
                     buffer.put(ev);
@@ -159,7 +185,7 @@ public class GroupBottomSession extends Session {
                 omsg.discard(nprevs*4);
             }
 
-            ev.orig=omsg.popInt();
+            ev.orig=compact_headers ? omsg.popVarInt() : omsg.popInt();
 
             if ((ev.orig < 0) || (ev.orig >= vs.view.length) || (ev.orig == ls.my_rank)) {
                 log.debug("Event discarded due to bad origin "+ev.orig);
@@ -224,14 +250,17 @@ public class GroupBottomSession extends Session {
             }
         }
 
-        omsg.pushInt(ls.my_rank);
+        if (compact_headers)
+            omsg.pushVarInt(ls.my_rank);
+        else
+            omsg.pushInt(ls.my_rank);
 
         if (send_prevs) {
             for (int i=0 ; i < vs.previous.length ; i++)
                 omsg.pushInt(vs.previous[i].hashCode());
-            omsg.pushShort((short)vs.previous.length);
+            pushPrevs(omsg, (short)vs.previous.length);
         } else {
-            omsg.pushShort((short)0);
+            pushPrevs(omsg, (short)0);
         }
 
         omsg.pushInt(viewHashCode);
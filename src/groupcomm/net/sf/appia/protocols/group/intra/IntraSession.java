@@ -43,10 +43,13 @@ import net.sf.appia.protocols.group.ViewState;
 import net.sf.appia.protocols.group.events.GroupInit;
 import net.sf.appia.protocols.group.suspect.Fail;
 
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
+
 import org.apache.log4j.Logger;
 
 
-public class IntraSession extends Session {
+public class IntraSession extends Session implements InitializableSession {
     private static Logger log = Logger.getLogger(IntraSession.class);
     
 	/**
@@ -59,10 +62,27 @@ public class IntraSession extends Session {
 	 */
   public static final int K=2;
 
+  private boolean compactHeaders=false;
+
   public IntraSession(Layer layer) {
     super(layer);
   }
 
+  /**
+   * Initializes the session using the parameters given in the XML configuration.
+   * Possible parameters:
+   * <ul>
+   * <li><b>compact_headers</b> sends the view state with each endpoint name written only once.
+   * Must be the same in all members.
+   * </ul>
+   * 
+   * @param params The parameters given in the XML configuration.
+   */
+  public void init(SessionProperties params) {
+    if (params.containsKey("compact_headers"))
+      compactHeaders=params.getBoolean("compact_headers");
+  }
+
   public void handle(Event event) {
 
     // InstallView
@@ -142,7 +162,7 @@ public class IntraSession extends Session {
 
     int k=ev.getMessage().popInt();
 
-    ViewState new_vs=ViewState.pop(ev.getMessage());
+    ViewState new_vs=compactHeaders ? ViewState.popCompact(ev.getMessage()) : ViewState.pop(ev.getMessage());
 
     // see if i am not a member of the new view
     if (new_vs.getRank(my_endpt) < 0) {
@@ -155,7 +175,7 @@ public class IntraSession extends Session {
     // resend InstallView
     if (new_ls.my_rank < k) {
       try {
-        ViewState.push(new_vs,ev.getMessage());
+        pushViewState(new_vs,ev);
         ev.getMessage().pushInt(k);
         ev.setDir(Direction.DOWN);
         ev.setSourceSession(this);
@@ -243,7 +263,7 @@ public class IntraSession extends Session {
   private void sendInstallView(Channel channel, ViewState new_vs, int k) {
     try {
       InstallView ev=new InstallView(channel,Direction.DOWN,this,vs.group,vs.id);
-      ViewState.push(new_vs,ev.getMessage());
+      pushViewState(new_vs,ev);
       ev.getMessage().pushInt(k);
       ev.go();
     } catch (AppiaEventException ex) {
@@ -252,6 +272,13 @@ public class IntraSession extends Session {
     }
   }
 
+  private void pushViewState(ViewState new_vs, InstallView ev) {
+    if (compactHeaders)
+      ViewState.pushCompact(new_vs,ev.getMessage());
+    else
+      ViewState.push(new_vs,ev.getMessage());
+  }
+
   // DEBUG
   public static final boolean debugFull=true;
 }
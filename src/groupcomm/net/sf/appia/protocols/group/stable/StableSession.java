@@ -47,10 +47,12 @@ import net.sf.appia.protocols.group.intra.View;
 import net.sf.appia.protocols.group.suspect.Fail;
 import net.sf.appia.protocols.group.suspect.Suspect;
 import net.sf.appia.protocols.group.suspect.SuspectedMemberEvent;
+import net.sf.appia.xml.interfaces.InitializableSession;
+import net.sf.appia.xml.utils.SessionProperties;
 
 import org.apache.log4j.Logger;
 
-public class StableSession extends Session {
+public class StableSession extends Session implements InitializableSession {
     private static Logger log = Logger.getLogger(StableSession.class);
 
     /**
@@ -61,11 +63,27 @@ public class StableSession extends Session {
 
     private long gossip_interval=DEFAULT_GOSSIP_INTERVAL;
     private long gossip_time=DEFAULT_GOSSIP_TIME;
+    private boolean compact_headers=false;
 
     public StableSession(Layer layer) {
         super(layer);
     }
 
+    /**
+     * Initializes the session using the parameters given in the XML configuration.
+     * Possible parameters:
+     * <ul>
+     * <li><b>compact_headers</b> sends sequence numbers with a variable number of bytes.
+     * Must be the same in all members.
+     * </ul>
+     * 
+     * @param params The parameters given in the XML configuration.
+     */
+    public void init(SessionProperties params) {
+        if (params.containsKey("compact_headers"))
+            compact_headers=params.getBoolean("compact_headers");
+    }
+
     public void handle(Event event) {
 
         // StableGossip
@@ -422,11 +440,16 @@ public class StableSession extends Session {
     private static final long ADD_MASK=((long)1) << 32;
     private static final long CLEAR_MASK=(((long)0xFFFF) << 48) | (((long)0xFFFF) << 32);
 
-    private static void pushSeq(Message emsg, long seq) {
-        emsg.pushUnsignedInt(seq);
+    private void pushSeq(Message emsg, long seq) {
+        if (compact_headers)
+            emsg.pushVarLong(seq);
+        else
+            emsg.pushUnsignedInt(seq);
     }
 
-    private static long popSeq(Message emsg, long base) {
+    private long popSeq(Message emsg, long base) {
+        if (compact_headers)
+            return emsg.popVarLong();
         long l=emsg.popUnsignedInt();
         if (((l & MASK) == 0) && ((base & MASK) != 0))
             l = ((base & CLEAR_MASK) + ADD_MASK) | l;
@@ -98,6 +98,7 @@ public class SETOSession extends Session implements InitializableSession {
 	private long uniformInfoPeriod=DEFAULT_UNIFORM_INFO_PERIOD;
 	private boolean utSet; // Uniform timer is set?
 	private boolean newUniformInfo = false;
+	private boolean compactHeaders = false;
 	
     List<GroupSendableEvent> pendingMessages=new ArrayList<GroupSendableEvent>();
     
@@ -117,6 +118,9 @@ public class SETOSession extends Session implements InitializableSession {
        * Possible parameters:
        * <ul>
        * <li><b>alfa</b> is used to tune the protocol and is a value between 0 and 1.
+       * <li><b>uniform_info_period</b> period, in milliseconds, to send uniformity information.
+       * <li><b>compact_headers</b> sends headers with a variable number of bytes per field.
+       * Must be the same in all members.
        * </ul>
        * 
        * @param params The parameters given in the XML configuration.
@@ -129,6 +133,9 @@ public class SETOSession extends Session implements InitializableSession {
 	    if(params.containsKey("uniform_info_period")){
 	        uniformInfoPeriod = params.getLong("uniform_info_period");
 	    }
+	    if(params.containsKey("compact_headers")){
+	        compactHeaders = params.getBoolean("compact_headers");
+	    }
 
 	    log.info("Initializing static parameter alfa. Set to "+alfa);
 	}
@@ -363,10 +370,8 @@ public class SETOSession extends Session implements InitializableSession {
 	 */
 	private void reliableDATAMulticast(GroupSendableEvent event, long msgDelay) {
 		DATAHeader header = new DATAHeader(ls.my_rank, sendingLocalSN++, msgDelay);
-		DATAHeader.push(header,event.getMessage());
-		Message msg = event.getMessage();
-		for (int i = 0; i < lastOrderList.length; i++)
-			msg.pushLong(lastOrderList[i]);
+		DATAHeader.push(header,event.getMessage(),compactHeaders);
+		pushUniformInfo(event.getMessage());
 		log.debug("Sending DATA message from appl. Rank="+ls.my_rank+" SN="+sendingLocalSN+" Delay="+msgDelay);
 		try {
 			event.go();
@@ -382,12 +387,8 @@ public class SETOSession extends Session implements InitializableSession {
 	 * @param event the event received from the network.
 	 */
 	private void reliableDATADeliver(GroupSendableEvent event){
-		Message msg = event.getMessage();
-		long[] uniformInfo = new long[vs.view.length];
-		for (int i = uniformInfo.length; i > 0; i--)
-			uniformInfo[i-1] = msg.popLong();
-		mergeUniformInfo(uniformInfo);
-		DATAHeader header = DATAHeader.pop(event.getMessage());
+		mergeUniformInfo(popUniformInfo(event.getMessage()));
+		DATAHeader header = DATAHeader.pop(event.getMessage(),compactHeaders);
 		log.debug("Received DATA message: "+header.id+":"+header.sn+" timestpamp is "+timeProvider.currentTimeMillis());
 		header.setTime(delay[header.id]+timeProvider.currentTimeMillis());
 		ListContainer container = new ListContainer(event, header);
@@ -453,10 +454,8 @@ public class SETOSession extends Session implements InitializableSession {
 		SeqOrderEvent event;
 		try {
 			event = new SeqOrderEvent(container.event.getChannel(),Direction.DOWN,this,vs.group,vs.id);
-			SEQHeader.push(header,event.getMessage());
-			Message msg = event.getMessage();
-			for (int i = 0; i < lastOrderList.length; i++)
-				msg.pushLong(lastOrderList[i]);
+			SEQHeader.push(header,event.getMessage(),compactHeaders);
+			pushUniformInfo(event.getMessage());
 			log.debug("Sending SEQ message. Rank="+ls.my_rank+" Header: "+header);
 			event.go();
 		} catch (AppiaEventException e2) {
@@ -480,12 +479,8 @@ public class SETOSession extends Session implements InitializableSession {
 	 * Deliver a SEQUENCER message received from the network.
 	 */
 	private void reliableSEQDeliver(SeqOrderEvent event) {
-		Message msg = event.getMessage();
-		long[] uniformInfo = new long[vs.view.length];
-		for (int i = uniformInfo.length; i > 0; i--)
-			uniformInfo[i-1] = msg.popLong();
-		mergeUniformInfo(uniformInfo);
-		SEQHeader header = SEQHeader.pop(event.getMessage());
+		mergeUniformInfo(popUniformInfo(event.getMessage()));
+		SEQHeader header = SEQHeader.pop(event.getMessage(),compactHeaders);
 		log.debug("["+ls.my_rank+"] Received SEQ message "+header.id+":"+header.sn+" timestamp is "+timeProvider.currentTimeMillis());
 		lastOrderList[ls.my_rank] = header.order;
 		newUniformInfo = true;
@@ -570,14 +565,33 @@ public class SETOSession extends Session implements InitializableSession {
 		}
 	}
 	
+	/**
+	 * Pushes the uniformity information table into a message.
+	 */
+	private void pushUniformInfo(Message msg) {
+		for (int i = 0; i < lastOrderList.length; i++) {
+			if (compactHeaders)
+				msg.pushVarLong(lastOrderList[i]);
+			else
+				msg.pushLong(lastOrderList[i]);
+		}
+	}
+	
+	/**
+	 * Pops the uniformity information table from a message.
+	 */
+	private long[] popUniformInfo(Message msg) {
+		long[] uniformInfo = new long[vs.view.length];
+		for (int i = uniformInfo.length; i > 0; i--)
+			uniformInfo[i-1] = compactHeaders ? msg.popVarLong() : msg.popLong();
+		return uniformInfo;
+	}
+	
 	private void sendUniformInfo(Channel channel) {
 	    if (!isBlocked) {
 	        try {
 	            UniformInfoEvent event = new UniformInfoEvent(channel,Direction.DOWN,this,vs.group,vs.id);
-	            Message msg = event.getMessage();
-	            for (int i = 0; i < lastOrderList.length; i++)
-	                msg.pushLong(lastOrderList[i]);
-
+	            pushUniformInfo(event.getMessage());
 	            event.go();
 	        } catch (AppiaEventException e) {
 	            e.printStackTrace();
@@ -587,11 +601,7 @@ public class SETOSession extends Session implements InitializableSession {
 	
 	private void handleUniformInfo(UniformInfoEvent event) {
 		log.debug("Received UniformInfo from "+event.orig+". Uniformity information table now is: ");
-		Message msg = event.getMessage();
-		long[] uniformInfo = new long[vs.view.length];
-		for (int i = uniformInfo.length; i > 0; i--)
-			uniformInfo[i-1] = msg.popLong();
-		mergeUniformInfo(uniformInfo);
+		mergeUniformInfo(popUniformInfo(event.getMessage()));
 		if (log.isDebugEnabled())
 			for (int i = 0; i < lastOrderList.length; i++)
 				log.debug("RANK :"+i+" | LAST_ORDER: "+lastOrderList[i]);
@@ -950,9 +960,26 @@ class SEQHeader extends Header {
 	 * @param message message to put the header
 	 */
 	public static void push(SEQHeader header, Message message){
-		message.pushInt(header.id);
-		message.pushLong(header.sn);
-		message.pushLong(header.order);
+		push(header,message,false);
+	}
+	
+	/**
+	 * Push all parameters of a Header into a Appia Message.
+	 * @param header header to push into the message
+	 * @param message message to put the header
+	 * @param compact if the fields are written with a variable number of bytes
+	 */
+	public static void push(SEQHeader header, Message message, boolean compact){
+		if (compact) {
+			message.pushVarInt(header.id);
+			message.pushVarLong(header.sn);
+			message.pushVarLong(header.order);
+		}
+		else {
+			message.pushInt(header.id);
+			message.pushLong(header.sn);
+			message.pushLong(header.order);
+		}
 	}
 	
 	
@@ -962,10 +989,27 @@ class SEQHeader extends Header {
 	 * @return a header builted from the values of contained by the message
 	 */
 	public static SEQHeader pop(Message message){
+		return pop(message,false);
+	}
+	
+	/**
+	 * Pops a header from a message. Creates a new Header from the values contained by the message.
+	 * @param message message that contains the info to build the header
+	 * @param compact if the fields were written with a variable number of bytes
+	 * @return a header builted from the values of contained by the message
+	 */
+	public static SEQHeader pop(Message message, boolean compact){
 		SEQHeader header = new SEQHeader();
-		header.order = message.popLong();
-		header.sn = message.popLong();
-		header.id = message.popInt();
+		if (compact) {
+			header.order = message.popVarLong();
+			header.sn = message.popVarLong();
+			header.id = message.popVarInt();
+		}
+		else {
+			header.order = message.popLong();
+			header.sn = message.popLong();
+			header.id = message.popInt();
+		}
 		return header;
 	}
 
@@ -1068,9 +1112,26 @@ class DATAHeader extends Header {
 	 * @param message message to put the header
 	 */
 	public static void push(DATAHeader header, Message message){
-		message.pushInt(header.id);
-		message.pushLong(header.sn);
-		message.pushLong(header.delay);
+		push(header,message,false);
+	}
+	
+	/**
+	 * Push all parameters of a Header into a Appia Message.
+	 * @param header header to push into the message
+	 * @param message message to put the header
+	 * @param compact if the fields are written with a variable number of bytes
+	 */
+	public static void push(DATAHeader header, Message message, boolean compact){
+		if (compact) {
+			message.pushVarInt(header.id);
+			message.pushVarLong(header.sn);
+			message.pushZigZagLong(header.delay);
+		}
+		else {
+			message.pushInt(header.id);
+			message.pushLong(header.sn);
+			message.pushLong(header.delay);
+		}
 	}
 	
 	
@@ -1080,10 +1141,27 @@ class DATAHeader extends Header {
 	 * @return a header builted from the values of contained by the message
 	 */
 	public static DATAHeader pop(Message message){
+		return pop(message,false);
+	}
+	
+	/**
+	 * Pops a header from a message. Creates a new Header from the values contained by the message.
+	 * @param message message that contains the info to build the header
+	 * @param compact if the fields were written with a variable number of bytes
+	 * @return a header builted from the values of contained by the message
+	 */
+	public static DATAHeader pop(Message message, boolean compact){
 		DATAHeader header = new DATAHeader(-1,-1);
-		header.delay = message.popLong();
-		header.sn = message.popLong();
-		header.id = message.popInt();
+		if (compact) {
+			header.delay = message.popZigZagLong();
+			header.sn = message.popVarLong();
+			header.id = message.popVarInt();
+		}
+		else {
+			header.delay = message.popLong();
+			header.sn = message.popLong();
+			header.id = message.popInt();
+		}
 		return header;
 	}
 	
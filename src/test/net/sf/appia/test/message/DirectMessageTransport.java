@@ -0,0 +1,213 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.message;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.core.message.DirectMessage;
+import net.sf.appia.core.message.DirectMessageFactory;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.tcpcomplete.TcpCompleteLayer;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+
+/**
+ * Sends {@link DirectMessage}s, whose payload is in a direct buffer, over the
+ * tcpcomplete and udpsimple transports, and checks the received contents.
+ * <br>
+ * Two channels of each transport use a {@link DirectMessageFactory}. One of them
+ * sends messages with a header and a direct payload, of several sizes, some of
+ * them larger than the batch of tcpcomplete, and the other checks them.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.message.DirectMessageTransport [timeout in seconds]</code>
+ */
+public class DirectMessageTransport {
+
+  private static final int[] TCP_SIZES={0,1,1000,60000,100000,300000};
+  // below the maximum size of an UDP message, with the headers of the transport
+  private static final int[] UDP_SIZES={0,1,1000,4000,8000};
+
+  public static void main(String[] args) throws Exception {
+    final long timeout=(args.length > 0) ? Long.parseLong(args[0])*1000 : 20000;
+
+    final Thread appia=new Thread("Appia") {
+      public void run() {
+        Appia.run();
+      }
+    };
+    appia.setDaemon(true);
+
+    final Check tcp=new Check("tcpcomplete",TCP_SIZES);
+    final Check udp=new Check("udpsimple",UDP_SIZES);
+    tcp.start(new TcpCompleteLayer(),new TcpCompleteLayer());
+    udp.start(new UdpSimpleLayer(),new UdpSimpleLayer());
+    appia.start();
+
+    final boolean ok=tcp.run(timeout) & udp.run(timeout);
+    System.out.println(ok ? "OK" : "FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+  /*
+   * A pair of channels of a transport.
+   */
+  private static class Check {
+    final String name;
+    final int[] sizes;
+    final TestSession[] sessions=new TestSession[2];
+    final Channel[] channels=new Channel[2];
+
+    Check(String name, int[] sizes) {
+      this.name=name;
+      this.sizes=sizes;
+    }
+
+    void start(Layer transport0, Layer transport1) throws Exception {
+      final Layer[] transports={transport0, transport1};
+      for (int i=0 ; i < 2 ; i++) {
+        final TestLayer layer=new TestLayer();
+        final QoS qos=new QoS(name+" "+i,new Layer[] {transports[i], layer});
+        channels[i]=qos.createUnboundChannel(name);
+        channels[i].setMessageFactory(new DirectMessageFactory());
+        channels[i].start();
+        sessions[i]=layer.session;
+      }
+    }
+
+    boolean run(long timeout) throws Exception {
+      final long deadline=System.currentTimeMillis()+timeout;
+      while ((sessions[0].address == null || sessions[1].address == null) && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+      if (sessions[0].address == null || sessions[1].address == null) {
+        System.out.println(name+": the sockets were not registered");
+        return false;
+      }
+
+      final DirectMessageFactory factory=new DirectMessageFactory();
+      for (int i=0 ; i < sizes.length ; i++) {
+        final ByteBuffer payload=ByteBuffer.allocateDirect(sizes[i]);
+        payload.put(contents(sizes[i]));
+        payload.flip();
+        final Message msg=factory.newMessage(payload);
+        msg.pushInt(sizes[i]);
+        final SendableEvent ev=new SendableEvent(msg);
+        ev.source=sessions[0].address;
+        ev.dest=sessions[1].address;
+        ev.asyncGo(channels[0],Direction.DOWN);
+        // one at a time, so udpsimple does not drop them
+        while (sessions[1].received <= i && sessions[1].error == null && System.currentTimeMillis() < deadline)
+          Thread.sleep(10);
+      }
+
+      if (sessions[1].error != null) {
+        System.out.println(name+": "+sessions[1].error);
+        return false;
+      }
+      if (sessions[1].received != sizes.length) {
+        System.out.println(name+": received "+sessions[1].received+" of "+sizes.length+" messages");
+        return false;
+      }
+      System.out.println(name+": received "+sizes.length+" messages");
+      return true;
+    }
+  }
+
+  static byte[] contents(int size) {
+    final byte[] bytes=new byte[size];
+    for (int i=0 ; i < size ; i++)
+      bytes[i]=(byte) (i*31+size);
+    return bytes;
+  }
+
+  private static class TestLayer extends Layer {
+    TestSession session;
+
+    public TestLayer() {
+      evProvide=new Class[] {
+          RegisterSocketEvent.class,
+          SendableEvent.class,
+      };
+      evRequire=new Class[] {};
+      evAccept=new Class[] {
+          RegisterSocketEvent.class,
+          SendableEvent.class,
+          ChannelInit.class,
+          ChannelClose.class,
+      };
+    }
+
+    public Session createSession() {
+      session=new TestSession(this);
+      return session;
+    }
+  }
+
+  private static class TestSession extends Session {
+    volatile InetSocketAddress address=null;
+    volatile int received=0;
+    volatile String error=null;
+
+    public TestSession(Layer layer) {
+      super(layer);
+    }
+
+    public void handle(Event e) {
+      try {
+        if (e instanceof ChannelInit) {
+          e.go();
+          new RegisterSocketEvent(e.getChannel(),Direction.DOWN,this).go();
+        } else if (e instanceof RegisterSocketEvent) {
+          final RegisterSocketEvent ev=(RegisterSocketEvent) e;
+          if (ev.error)
+            error="unable to register socket";
+          else
+            address=new InetSocketAddress(ev.localHost,ev.port);
+        } else if ((e instanceof SendableEvent) && (e.getDir() == Direction.UP)) {
+          check(((SendableEvent) e).getMessage());
+        } else
+          e.go();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+
+    private void check(Message msg) {
+      final int size=msg.popInt();
+      if (size != msg.length())
+        error="message "+received+" has "+msg.length()+" bytes instead of "+size;
+      else if (!Arrays.equals(msg.toByteArray(),contents(size)))
+        error="message "+received+" with "+size+" bytes has wrong contents";
+      received++;
+    }
+  }
+}
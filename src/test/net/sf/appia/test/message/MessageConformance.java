@@ -0,0 +1,404 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.message;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.appia.core.message.BufferPool;
+import net.sf.appia.core.message.DirectMessage;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MsgBuffer;
+
+/**
+ * Checks that {@link Message} and {@link DirectMessage} behave the same.
+ * <br>
+ * A random sequence of operations (push, pop, peek, their read-only versions,
+ * discard, truncate, clone, frag, join, slice, toByteBuffers and typed headers)
+ * is applied to a Message, to a DirectMessage whose payload is a direct buffer,
+ * and to a byte array that models the contents of both. After each operation
+ * the bytes returned and the contents of the messages must match the model.
+ * <br>
+ * Before that, it checks when the arrays of a message with a {@link BufferPool}
+ * return to the pool: the arrays of popped headers not before the next push,
+ * and after {@link Message#releaseByteBuffers()}, as soon as nothing uses them.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.message.MessageConformance [operations] [seed]</code>
+ */
+public class MessageConformance {
+
+  private static final int MAX_LENGTH=4096;
+
+  private final Random random;
+  private final MsgBuffer mbuf=new MsgBuffer();
+
+  private byte[] model;
+  private Message heap;
+  private Message direct;
+  private int step=0;
+  private String operation;
+
+  public MessageConformance(long seed) {
+    random=new Random(seed);
+    reset();
+  }
+
+  public static void main(String[] args) {
+    final int operations=(args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    final long seed=(args.length > 1) ? Long.parseLong(args[1]) : System.currentTimeMillis();
+
+    final MessageConformance test=new MessageConformance(seed);
+    try {
+      pooledArrays();
+      for (int i=0 ; i < operations ; i++)
+        test.step();
+    } catch (RuntimeException ex) {
+      System.out.println("FAILED with seed "+seed+" at operation "+test.step+" ("+test.operation+"): "+ex.getMessage());
+      ex.printStackTrace();
+      System.exit(1);
+    }
+    System.out.println("OK: "+operations+" operations with seed "+seed);
+  }
+
+  /*
+   * Headers pushed with a pool that gives arrays of the exact size, so each one is in its own block.
+   */
+  private static void pooledArrays() {
+    final CountingPool pool=new CountingPool();
+    final Message msg=new Message();
+    msg.setBufferPool(pool);
+
+    msg.pushInt(1);
+    msg.pushInt(2);
+    equal(msg.popInt(),2,"first pooled pop");
+    equal(msg.popInt(),1,"second pooled pop");
+    equal(pool.released,0,"arrays released by pops");
+    msg.pushInt(3);
+    equal(pool.released,2,"arrays released by the push after the pops");
+    msg.discardAll();
+    equal(pool.released,3,"arrays released by discardAll");
+
+    msg.pushInt(4);
+    msg.pushInt(5);
+    msg.toByteBuffers();
+    final Message clone=copy(msg);
+    msg.popInt();
+    msg.popInt();
+    msg.releaseByteBuffers();
+    msg.pushInt(6);
+    clone.discardAll();
+    equal(pool.released,5,"arrays released after releaseByteBuffers");
+    msg.releaseByteBuffers();
+    msg.discardAll();
+    equal(pool.released,6,"arrays released after a second releaseByteBuffers");
+    equal(pool.acquired,pool.released,"arrays acquired and released");
+  }
+
+  private static class CountingPool implements BufferPool {
+    int acquired=0, released=0;
+
+    public byte[] acquire(int length) {
+      acquired++;
+      return new byte[length];
+    }
+
+    public void release(byte[] buf) {
+      released++;
+    }
+  }
+
+  /*
+   * New messages, with a payload of random length.
+   */
+  private void reset() {
+    model=randomBytes(random.nextInt(512));
+    heap=new Message(model.clone(),0,model.length);
+    final ByteBuffer payload=ByteBuffer.allocateDirect(model.length);
+    payload.put(model).flip();
+    direct=new DirectMessage(payload);
+  }
+
+  private void step() {
+    step++;
+    if (model.length > MAX_LENGTH)
+      reset();
+
+    switch (random.nextInt(16)) {
+    case 0: case 1: case 2:
+      push();
+      break;
+    case 3: case 4:
+      pop(false);
+      break;
+    case 5:
+      pop(true);
+      break;
+    case 6:
+      peek(false);
+      break;
+    case 7:
+      peek(true);
+      break;
+    case 8:
+      discard();
+      break;
+    case 9:
+      truncate();
+      break;
+    case 10:
+      cloneMessages();
+      break;
+    case 11:
+      fragAndJoin();
+      break;
+    case 12:
+      slice();
+      break;
+    case 13:
+      byteBuffers();
+      break;
+    case 14:
+      typed();
+      break;
+    default:
+      if (random.nextInt(20) == 0) {
+        operation="reset";
+        reset();
+      } else
+        push();
+    }
+    check(heap,"Message");
+    check(direct,"DirectMessage");
+  }
+
+  private void push() {
+    final byte[] bytes=randomBytes(random.nextInt(random.nextBoolean() ? 16 : 700));
+    operation="push "+bytes.length;
+    push(heap,bytes);
+    push(direct,bytes);
+    model=concat(bytes,model);
+  }
+
+  private void push(Message m, byte[] bytes) {
+    mbuf.len=bytes.length;
+    m.push(mbuf);
+    System.arraycopy(bytes,0,mbuf.data,mbuf.off,bytes.length);
+  }
+
+  private void pop(boolean readOnly) {
+    final int n=random.nextInt(model.length+1);
+    operation=(readOnly ? "popReadOnly " : "pop ")+n;
+    expect(take(heap,n,readOnly,true),0,n,"Message");
+    expect(take(direct,n,readOnly,true),0,n,"DirectMessage");
+    model=Arrays.copyOfRange(model,n,model.length);
+  }
+
+  private void peek(boolean readOnly) {
+    final int n=random.nextInt(model.length+1);
+    operation=(readOnly ? "peekReadOnly " : "peek ")+n;
+    expect(take(heap,n,readOnly,false),0,n,"Message");
+    expect(take(direct,n,readOnly,false),0,n,"DirectMessage");
+  }
+
+  private byte[] take(Message m, int n, boolean readOnly, boolean remove) {
+    mbuf.len=n;
+    if (remove) {
+      if (readOnly)
+        m.popReadOnly(mbuf);
+      else
+        m.pop(mbuf);
+    } else {
+      if (readOnly)
+        m.peekReadOnly(mbuf);
+      else
+        m.peek(mbuf);
+    }
+    if (n == 0)
+      return new byte[0];
+    return Arrays.copyOfRange(mbuf.data,mbuf.off,mbuf.off+mbuf.len);
+  }
+
+  private void discard() {
+    final int n=random.nextInt(model.length+1);
+    operation="discard "+n;
+    equal(heap.discard(n),n,"Message discard");
+    equal(direct.discard(n),n,"DirectMessage discard");
+    model=Arrays.copyOfRange(model,n,model.length);
+  }
+
+  private void truncate() {
+    final int n=random.nextInt(model.length+1);
+    operation="truncate "+n;
+    equal(direct.truncate(n),heap.truncate(n),"DirectMessage truncate");
+    model=Arrays.copyOf(model,n);
+  }
+
+  /*
+   * Continues with the clones, after changing the originals, which must not affect them.
+   */
+  private void cloneMessages() {
+    operation="clone";
+    final Message heapClone=copy(heap);
+    final Message directClone=copy(direct);
+    final byte[] bytes=randomBytes(1+random.nextInt(32));
+    push(heap,bytes);
+    push(direct,bytes);
+    if (model.length > 0) {
+      mbuf.len=bytes.length+1;
+      heap.pop(mbuf);
+      mbuf.len=bytes.length+1;
+      direct.pop(mbuf);
+    }
+    heap=heapClone;
+    direct=directClone;
+  }
+
+  private static Message copy(Message m) {
+    try {
+      return (Message) m.clone();
+    } catch (CloneNotSupportedException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private void fragAndJoin() {
+    final int n=random.nextInt(model.length+1);
+    operation="frag "+n+" and join";
+    final Message heapTail=new Message();
+    final Message directTail=new DirectMessage();
+    heap.frag(heapTail,n);
+    direct.frag(directTail,n);
+    expect(heapTail.toByteArray(),n,model.length-n,"Message frag tail");
+    expect(directTail.toByteArray(),n,model.length-n,"DirectMessage frag tail");
+    expect(heap.toByteArray(),0,n,"Message frag head");
+    expect(direct.toByteArray(),0,n,"DirectMessage frag head");
+    heap.join(heapTail);
+    direct.join(directTail);
+  }
+
+  private void slice() {
+    final int off=random.nextInt(model.length+1);
+    final int len=random.nextInt(model.length-off+1);
+    operation="slice "+off+","+len;
+    final Message heapSlice=heap.slice(off,len);
+    final Message directSlice=direct.slice(off,len);
+    expect(heapSlice.toByteArray(),off,len,"Message slice");
+    expect(directSlice.toByteArray(),off,len,"DirectMessage slice");
+    // the slices must not change the messages
+    push(heapSlice,new byte[]{1,2,3});
+    push(directSlice,new byte[]{1,2,3});
+    if (random.nextBoolean()) {
+      heap=heapSlice;
+      direct=directSlice;
+      model=concat(new byte[]{1,2,3},Arrays.copyOfRange(model,off,off+len));
+    }
+  }
+
+  private void byteBuffers() {
+    operation="toByteBuffers";
+    expect(gather(heap.toByteBuffers()),0,model.length,"Message toByteBuffers");
+    expect(gather(direct.toByteBuffers()),0,model.length,"DirectMessage toByteBuffers");
+    expect(gather(new ByteBuffer[]{heap.asReadOnlyByteBuffer()}),0,model.length,"Message asReadOnlyByteBuffer");
+    expect(gather(new ByteBuffer[]{direct.asReadOnlyByteBuffer()}),0,model.length,"DirectMessage asReadOnlyByteBuffer");
+    if (random.nextBoolean()) {
+      heap.releaseByteBuffers();
+      direct.releaseByteBuffers();
+    }
+  }
+
+  private byte[] gather(ByteBuffer[] buffers) {
+    int length=0;
+    for (int i=0 ; i < buffers.length ; i++)
+      length+=buffers[i].remaining();
+    final byte[] bytes=new byte[length];
+    int off=0;
+    for (int i=0 ; i < buffers.length ; i++) {
+      final ByteBuffer b=buffers[i].duplicate();
+      final int len=b.remaining();
+      b.get(bytes,off,len);
+      off+=len;
+    }
+    return bytes;
+  }
+
+  /*
+   * Typed headers, pushed and popped in the same step, with the contents below crossing into the payload.
+   */
+  private void typed() {
+    final long l=random.nextLong();
+    final int i=random.nextInt();
+    final char[] chars=new char[random.nextInt(20)];
+    for (int k=0 ; k < chars.length ; k++)
+      chars[k]=(char) random.nextInt(0x800);
+    final String s=new String(chars);
+    operation="typed headers";
+    final Message[] messages={heap,direct};
+    for (int k=0 ; k < messages.length ; k++) {
+      final Message m=messages[k];
+      m.pushVarLong(l);
+      m.pushInt(i);
+      m.pushString(s);
+      m.pushLong(l);
+      equal(m.peekLong(),l,"peekLong");
+      equal(m.popLong(),l,"popLong");
+      if (!s.equals(m.popString()))
+        throw new RuntimeException("popString");
+      equal(m.popInt(),i,"popInt");
+      equal(m.popVarLong(),l,"popVarLong");
+    }
+    if (model.length >= 8) {
+      final long expected=ByteBuffer.wrap(model).getLong();
+      equal(heap.peekLong(),expected,"Message peekLong of the contents");
+      equal(direct.peekLong(),expected,"DirectMessage peekLong of the contents");
+    }
+  }
+
+  private void check(Message m, String name) {
+    equal(m.length(),model.length,name+" length");
+    expect(m.toByteArray(),0,model.length,name+" contents");
+  }
+
+  private void expect(byte[] actual, int off, int len, String what) {
+    if (actual.length != len)
+      throw new RuntimeException(what+": "+actual.length+" bytes instead of "+len);
+    for (int i=0 ; i < len ; i++)
+      if (actual[i] != model[off+i])
+        throw new RuntimeException(what+": wrong byte at "+i);
+  }
+
+  private static void equal(long actual, long expected, String what) {
+    if (actual != expected)
+      throw new RuntimeException(what+": "+actual+" instead of "+expected);
+  }
+
+  private byte[] randomBytes(int length) {
+    final byte[] bytes=new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    final byte[] r=new byte[a.length+b.length];
+    System.arraycopy(a,0,r,0,a.length);
+    System.arraycopy(b,0,r,a.length,b.length);
+    return r;
+  }
+}
@@ -0,0 +1,225 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.appia.core.message.DirectMessage;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageException;
+import net.sf.appia.core.message.MsgBuffer;
+
+/**
+ * Checks the string headers of {@link Message} against {@link DataOutputStream#writeUTF(String)}.
+ * <br>
+ * For each string, the bytes pushed by {@link Message#pushString(String)} must be
+ * the ones written by <code>writeUTF</code>, and {@link Message#peekString()} and
+ * {@link Message#popString()} must return the string, with the bytes in one block
+ * or split between two, in a Message and in a DirectMessage. The strings have
+ * ASCII, 2 byte and 3 byte characters, surrogates, NUL, and lengths up to the
+ * 65535 bytes limit, beyond which both must refuse the string.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.message.StringHeaderConformance [random strings] [seed]</code>
+ */
+public class StringHeaderConformance {
+
+  private static final int MAX_UTF_LENGTH=65535;
+
+  private static int checked=0;
+
+  public static void main(String[] args) {
+    final int strings=(args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+    final long seed=(args.length > 1) ? Long.parseLong(args[1]) : System.currentTimeMillis();
+
+    try {
+      check("");
+      check("appia");
+      check("\u00e9t\u00e9");                          // 2 bytes
+      check("\u0080\u07ff");                           // 2 bytes, limits
+      check("\u20ac 10");                               // 3 bytes
+      check("\u0800\uffff\ufeff");                     // 3 bytes, limits
+      check("\u0000");                                  // NUL takes 2 bytes
+      check("a\u0000b\u0000");
+      check("\ud83d\ude00");                           // surrogate pair
+      check("x\ud800");                                 // unpaired surrogates
+      check("\udc00y");
+      check("channel \u00e7\u20ac\ud834\udd1e\u0000end");
+      check(repeat('a',MAX_UTF_LENGTH));                // limit, 1 byte each
+      check(repeat('\u00e9',MAX_UTF_LENGTH/2)+"a");    // limit, 2 bytes each
+      check(repeat('\u20ac',MAX_UTF_LENGTH/3));        // limit, 3 bytes each
+      check(repeat('\u0000',MAX_UTF_LENGTH/2)+"a");
+      tooLong(repeat('a',MAX_UTF_LENGTH+1));
+      tooLong(repeat('\u00e9',MAX_UTF_LENGTH/2+1));
+      tooLong(repeat('\u20ac',MAX_UTF_LENGTH/3)+"a");
+
+      final Random random=new Random(seed);
+      for (int i=0 ; i < strings ; i++)
+        check(randomString(random));
+    } catch (RuntimeException ex) {
+      System.out.println("FAILED with seed "+seed+": "+ex.getMessage());
+      ex.printStackTrace();
+      System.exit(1);
+    }
+    System.out.println("OK: "+checked+" strings with seed "+seed);
+  }
+
+  private static void check(String str) {
+    final byte[] expected=writeUTF(str);
+    if (expected == null)
+      throw new RuntimeException("writeUTF refused a string of "+str.length()+" chars");
+    if (!str.equals(readUTF(expected)))
+      throw new RuntimeException("readUTF did not return the string");
+
+    final Message[] messages={new Message(), new DirectMessage(), payload(new Message()), payload(new DirectMessage())};
+    for (int i=0 ; i < messages.length ; i++) {
+      final Message m=messages[i];
+      final int length=m.length();
+      m.pushString(str);
+      expect(m,expected,"pushString");
+      expect(m.peekString(),str,"peekString");
+      expect(m.popString(),str,"popString");
+      if (m.length() != length)
+        throw new RuntimeException("popString left "+(m.length()-length)+" bytes");
+    }
+
+    // the bytes of the string in two blocks
+    final int cut=new Random(expected.length).nextInt(expected.length+1);
+    final Message[] split={new Message(), new DirectMessage()};
+    for (int i=0 ; i < split.length ; i++) {
+      final Message m=split[i];
+      push(m,Arrays.copyOfRange(expected,cut,expected.length));
+      push(m,Arrays.copyOfRange(expected,0,cut));
+      expect(m.peekString(),str,"peekString split at "+cut);
+      expect(m.popString(),str,"popString split at "+cut);
+    }
+    checked++;
+  }
+
+  private static void tooLong(String str) {
+    if (writeUTF(str) != null)
+      throw new RuntimeException("writeUTF accepted a string of "+str.length()+" chars");
+    final Message m=new Message();
+    try {
+      m.pushString(str);
+    } catch (MessageException ex) {
+      if (m.length() != 0)
+        throw new RuntimeException("pushString refused the string but left "+m.length()+" bytes");
+      checked++;
+      return;
+    }
+    throw new RuntimeException("pushString accepted a string of "+str.length()+" chars");
+  }
+
+  private static void expect(Message m, byte[] expected, String what) {
+    final byte[] actual=m.toByteArray();
+    if ((actual.length < expected.length) ||
+        !Arrays.equals(Arrays.copyOf(actual,expected.length),expected))
+      throw new RuntimeException(what+": bytes differ from writeUTF");
+  }
+
+  private static void expect(String actual, String expected, String what) {
+    if (!expected.equals(actual))
+      throw new RuntimeException(what+": wrong string of "+actual.length()+" chars instead of "+expected.length());
+  }
+
+  private static void push(Message m, byte[] bytes) {
+    final MsgBuffer mbuf=new MsgBuffer();
+    mbuf.len=bytes.length;
+    m.push(mbuf);
+    System.arraycopy(bytes,0,mbuf.data,mbuf.off,bytes.length);
+  }
+
+  /*
+   * Some bytes below the string, so it is not alone in the message.
+   */
+  private static Message payload(Message m) {
+    if (m instanceof DirectMessage) {
+      final ByteBuffer payload=ByteBuffer.allocateDirect(7);
+      payload.put(new byte[]{1,2,3,4,5,6,7}).flip();
+      return new DirectMessage(payload);
+    }
+    push(m,new byte[]{1,2,3,4,5,6,7});
+    return m;
+  }
+
+  private static byte[] writeUTF(String str) {
+    try {
+      final ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+      final DataOutputStream out=new DataOutputStream(bytes);
+      out.writeUTF(str);
+      out.close();
+      return bytes.toByteArray();
+    } catch (UTFDataFormatException ex) {
+      return null;
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  private static String readUTF(byte[] bytes) {
+    try {
+      return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /*
+   * Mostly short strings, mixing the classes of characters, some of them long.
+   */
+  private static String randomString(Random random) {
+    final int length=(random.nextInt(50) == 0) ? random.nextInt(MAX_UTF_LENGTH/3) : random.nextInt(40);
+    final int kinds=1+random.nextInt(5);
+    final char[] chars=new char[length];
+    for (int i=0 ; i < length ; i++) {
+      switch (random.nextInt(kinds)) {
+      case 0:
+        chars[i]=(char) (0x20+random.nextInt(0x5f));
+        break;
+      case 1:
+        chars[i]=(char) (0x80+random.nextInt(0x780));
+        break;
+      case 2:
+        chars[i]=(char) (0x800+random.nextInt(0xf800));
+        break;
+      case 3:
+        chars[i]=(char) (0xd800+random.nextInt(0x800));
+        break;
+      default:
+        chars[i]=(char) random.nextInt(0x20);
+      }
+    }
+    return new String(chars);
+  }
+
+  private static String repeat(char c, int n) {
+    final char[] chars=new char[n];
+    Arrays.fill(chars,c);
+    return new String(chars);
+  }
+}
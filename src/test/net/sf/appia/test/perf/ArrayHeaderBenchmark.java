@@ -0,0 +1,84 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import net.sf.appia.core.message.Message;
+
+/**
+ * Compares pushing and popping arrays of longs element by element with
+ * {@link Message#pushLongArray(long[])} and {@link Message#popLongArray()}.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.ArrayHeaderBenchmark [iterations]</code>
+ */
+public class ArrayHeaderBenchmark {
+
+  private static final int[] SIZES={16,128,1024};
+
+  private static long sink=0;
+
+  public static void main(String[] args) {
+    final int iterations=(args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+    for (int i=0 ; i < SIZES.length ; i++) {
+      final long[] longs=new long[SIZES[i]];
+      for (int j=0 ; j < longs.length ; j++)
+        longs[j]=j*1000003L;
+
+      // warm up
+      perElement(longs,iterations/10);
+      bulk(longs,iterations/10);
+
+      final long t1=perElement(longs,iterations);
+      final long t2=bulk(longs,iterations);
+      System.out.println("N="+longs.length+
+          " per element: "+(t1/iterations)+" ns"+
+          " bulk: "+(t2/iterations)+" ns");
+    }
+    if (sink == 42)
+      System.out.println();
+  }
+
+  private static long perElement(long[] longs, int iterations) {
+    final long start=System.nanoTime();
+    for (int k=0 ; k < iterations ; k++) {
+      final Message msg=new Message();
+      for (int i=longs.length-1 ; i >= 0 ; i--)
+        msg.pushLong(longs[i]);
+      msg.pushInt(longs.length);
+
+      final long[] aux=new long[msg.popInt()];
+      for (int i=0 ; i < aux.length ; i++)
+        aux[i]=msg.popLong();
+      sink+=aux[aux.length-1];
+    }
+    return System.nanoTime()-start;
+  }
+
+  private static long bulk(long[] longs, int iterations) {
+    final long start=System.nanoTime();
+    for (int k=0 ; k < iterations ; k++) {
+      final Message msg=new Message();
+      msg.pushLongArray(longs);
+      final long[] aux=msg.popLongArray();
+      sink+=aux[aux.length-1];
+    }
+    return System.nanoTime()-start;
+  }
+}
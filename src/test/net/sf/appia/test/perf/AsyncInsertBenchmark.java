@@ -0,0 +1,161 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.EventScheduler;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+
+/**
+ * Measures the throughput of events inserted with {@link Event#asyncGo(Channel, int)}
+ * by several threads and consumed by the <i>Appia</i> thread, which is the path of
+ * the events of socket readers, timers and applications into the {@link EventScheduler}.
+ * <br>
+ * The channel has a single layer that counts the events. Each producer thread
+ * inserts its share of the events, and the time goes from the start of the
+ * producers to the consumption of the last event.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.AsyncInsertBenchmark [events] [producers...]</code>
+ */
+public class AsyncInsertBenchmark {
+
+  private static final int[] PRODUCERS={1,4,16};
+
+  private static volatile boolean ready=false;
+  private static volatile int consumed=0;
+
+  public static void main(String[] args) throws Exception {
+    final int events=(args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+    int[] producers=PRODUCERS;
+    if (args.length > 1) {
+      producers=new int[args.length-1];
+      for (int i=0 ; i < producers.length ; i++)
+        producers[i]=Integer.parseInt(args[i+1]);
+    }
+
+    final QoS qos=new QoS("insert",new Layer[] {new CountLayer()});
+    final Channel channel=qos.createUnboundChannel("insert");
+    channel.start();
+
+    final Thread appia=new Thread("Appia") {
+      public void run() {
+        Appia.run();
+      }
+    };
+    appia.setDaemon(true);
+    appia.start();
+    while (!ready)
+      Thread.sleep(10);
+
+    // warm up
+    run(channel,events/10,1);
+
+    for (int i=0 ; i < producers.length ; i++) {
+      final long time=run(channel,events,producers[i]);
+      System.out.println("producers="+producers[i]+" events="+events+
+          " time: "+(time/1000000)+" ms "+(time/events)+" ns/event "+
+          ((long) events*1000000000L/time)+" events/s");
+    }
+    System.exit(0);
+  }
+
+  private static long run(final Channel channel, int events, int producers) throws InterruptedException {
+    consumed=0;
+    final int share=events/producers;
+    final int total=share*producers;
+    final Thread[] threads=new Thread[producers];
+    for (int i=0 ; i < producers ; i++) {
+      threads[i]=new Thread("Producer "+i) {
+        public void run() {
+          try {
+            for (int k=0 ; k < share ; k++)
+              new CountEvent().asyncGo(channel,Direction.UP);
+          } catch (AppiaEventException ex) {
+            ex.printStackTrace();
+          }
+        }
+      };
+    }
+
+    final long start=System.nanoTime();
+    for (int i=0 ; i < producers ; i++)
+      threads[i].start();
+    while (consumed < total)
+      Thread.yield();
+    final long time=System.nanoTime()-start;
+    for (int i=0 ; i < producers ; i++)
+      threads[i].join();
+    return time*events/total;
+  }
+
+  /**
+   * The event inserted by the producers.
+   */
+  public static class CountEvent extends Event {
+    public CountEvent() {
+      super();
+    }
+  }
+
+  private static class CountLayer extends Layer {
+    public CountLayer() {
+      evProvide=new Class[] {};
+      evRequire=new Class[] {};
+      evAccept=new Class[] {
+          CountEvent.class,
+          ChannelInit.class,
+          ChannelClose.class,
+      };
+    }
+
+    public Session createSession() {
+      return new CountSession(this);
+    }
+  }
+
+  private static class CountSession extends Session {
+    public CountSession(Layer layer) {
+      super(layer);
+    }
+
+    public void handle(Event e) {
+      if (e instanceof CountEvent) {
+        // only the Appia thread writes it
+        consumed++;
+        return;
+      }
+      try {
+        e.go();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+      if (e instanceof ChannelInit)
+        ready=true;
+    }
+  }
+}
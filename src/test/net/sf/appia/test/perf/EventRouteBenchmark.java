@@ -0,0 +1,279 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.fifo.FifoLayer;
+import net.sf.appia.protocols.frag.FragLayer;
+import net.sf.appia.protocols.group.bottom.GroupBottomLayer;
+import net.sf.appia.protocols.group.heal.GossipOutLayer;
+import net.sf.appia.protocols.group.heal.HealLayer;
+import net.sf.appia.protocols.group.inter.InterLayer;
+import net.sf.appia.protocols.group.intra.IntraLayer;
+import net.sf.appia.protocols.group.leave.LeaveLayer;
+import net.sf.appia.protocols.group.stable.StableLayer;
+import net.sf.appia.protocols.group.suspect.SuspectLayer;
+import net.sf.appia.protocols.group.sync.VSyncLayer;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+
+/**
+ * Measures the cost of {@link Event#init()} and {@link Event#go()} in the 12 layer
+ * group stack of the "Perf Udp+Fifo Template" of <code>config/demo/perf.xml</code>.
+ * <br>
+ * The top layer, in the place of {@link PerfLayer}, runs on the <i>Appia</i> thread:
+ * <ul>
+ * <li>init of a {@link PerfCastEvent}, whose route goes through the group layers;</li>
+ * <li>init and go of an event that goes from the top layer to an extra layer at the
+ * bottom, past the other 12, which is counted when delivered.</li>
+ * </ul>
+ * The events are sent in batches, and the next batch starts when the bottom layer
+ * receives the last event of the previous one.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.EventRouteBenchmark [events] [batch]</code>
+ */
+public class EventRouteBenchmark {
+
+  private static volatile boolean ready=false;
+  private static volatile boolean done=false;
+
+  private static long initTime=0;
+  private static long goTime=0;
+  private static long start=0;
+  private static volatile long totalTime=0;
+
+  public static void main(String[] args) throws Exception {
+    final int events=(args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+    final int batch=(args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+
+    final QoS qos=new QoS("route",new Layer[] {
+        new BottomLayer(),
+        new UdpSimpleLayer(),
+        new FifoLayer(),
+        new FragLayer(),
+        new GroupBottomLayer(),
+        new GossipOutLayer(),
+        new SuspectLayer(),
+        new IntraLayer(),
+        new InterLayer(),
+        new HealLayer(),
+        new StableLayer(),
+        new LeaveLayer(),
+        new VSyncLayer(),
+        new TopLayer(),
+    });
+    final Channel channel=qos.createUnboundChannel("route");
+    channel.start();
+
+    final Thread appia=new Thread("Appia") {
+      public void run() {
+        Appia.run();
+      }
+    };
+    appia.setDaemon(true);
+    appia.start();
+    while (!ready)
+      Thread.sleep(10);
+
+    // the first round warms up
+    for (int round=0 ; round < 2 ; round++) {
+      final int n=(round == 0) ? events/10 : events;
+      done=false;
+      new RoundEvent(n,batch).asyncGo(channel,Direction.DOWN);
+      while (!done)
+        Thread.sleep(1);
+      if (round == 1) {
+        System.out.println("events="+n+
+            " init of PerfCastEvent: "+(initTime/n)+" ns/event"+
+            " init+go: "+(goTime/n)+" ns/event"+
+            " init+go+delivery: "+(totalTime/n)+" ns/event");
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Starts a batch of events in the top layer.
+   */
+  public static class RoundEvent extends Event {
+    int remaining;
+    int batch;
+
+    public RoundEvent() {
+      super();
+    }
+
+    RoundEvent(int remaining, int batch) {
+      this.remaining=remaining;
+      this.batch=batch;
+    }
+  }
+
+  /**
+   * Goes from the top layer to the bottom layer.
+   */
+  public static class RouteEvent extends Event {
+    // set in the last event of a batch
+    RoundEvent next;
+    boolean last;
+
+    public RouteEvent() {
+      super();
+    }
+  }
+
+  private static class TopLayer extends PerfLayer {
+    public TopLayer() {
+      super();
+      evProvide=append(evProvide,RouteEvent.class);
+      evAccept=append(evAccept,RoundEvent.class);
+    }
+
+    public Session createSession() {
+      return new TopSession(this);
+    }
+  }
+
+  private static class TopSession extends Session {
+    private PerfCastEvent[] casts=null;
+
+    public TopSession(Layer layer) {
+      super(layer);
+    }
+
+    public void handle(Event e) {
+      try {
+        if (e instanceof RoundEvent) {
+          sendBatch((RoundEvent) e);
+          return;
+        }
+        e.go();
+        if (e instanceof ChannelInit)
+          ready=true;
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+
+    private void sendBatch(RoundEvent round) throws AppiaEventException {
+      final Channel channel=round.getChannel();
+      if (round.getDir() == Direction.DOWN) {
+        // first batch of the round
+        initTime=goTime=0;
+        start=System.nanoTime();
+      }
+      final int n=Math.min(round.batch,round.remaining);
+
+      // the same events are initialized again, since their messages are expensive to create
+      if ((casts == null) || (casts.length < n)) {
+        casts=new PerfCastEvent[n];
+        for (int i=0 ; i < n ; i++)
+          casts[i]=new PerfCastEvent();
+      }
+      long time=System.nanoTime();
+      for (int i=0 ; i < n ; i++) {
+        casts[i].setChannel(channel);
+        casts[i].setDir(Direction.DOWN);
+        casts[i].setSourceSession(this);
+        casts[i].init();
+      }
+      initTime+=System.nanoTime()-time;
+
+      time=System.nanoTime();
+      RouteEvent ev=null;
+      for (int i=0 ; i < n ; i++) {
+        ev=new RouteEvent();
+        ev.setChannel(channel);
+        ev.setDir(Direction.DOWN);
+        ev.setSourceSession(this);
+        ev.init();
+        ev.go();
+      }
+      goTime+=System.nanoTime()-time;
+
+      if (round.remaining > n)
+        ev.next=new RoundEvent(round.remaining-n,round.batch);
+      else
+        ev.last=true;
+    }
+  }
+
+  private static class BottomLayer extends Layer {
+    public BottomLayer() {
+      evProvide=new Class[] {
+          RoundEvent.class,
+      };
+      evRequire=new Class[] {};
+      evAccept=new Class[] {
+          RouteEvent.class,
+          RoundEvent.class,
+          ChannelInit.class,
+          ChannelClose.class,
+      };
+    }
+
+    public Session createSession() {
+      return new BottomSession(this);
+    }
+  }
+
+  private static class BottomSession extends Session {
+    public BottomSession(Layer layer) {
+      super(layer);
+    }
+
+    public void handle(Event e) {
+      try {
+        if (e instanceof RouteEvent) {
+          final RouteEvent ev=(RouteEvent) e;
+          if (ev.next != null) {
+            ev.next.setChannel(ev.getChannel());
+            ev.next.setDir(Direction.UP);
+            ev.next.setSourceSession(this);
+            ev.next.init();
+            ev.next.go();
+          } else if (ev.last) {
+            totalTime=System.nanoTime()-start;
+            done=true;
+          }
+          return;
+        }
+        e.go();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private static Class[] append(Class[] classes, Class c) {
+    final Class[] aux=new Class[classes.length+1];
+    System.arraycopy(classes,0,aux,0,classes.length);
+    aux[classes.length]=c;
+    return aux;
+  }
+}
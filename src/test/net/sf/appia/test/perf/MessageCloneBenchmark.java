@@ -0,0 +1,78 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import java.lang.management.ManagementFactory;
+
+import net.sf.appia.core.message.Message;
+
+/**
+ * Measures the bytes allocated per clone, and the time, of {@link Message#clone()}.
+ * <br>
+ * The message has a payload and the headers of three layers. Each clone is either
+ * kept as it is, like the copies stored for retransmission, or gets a header, like
+ * the copies sent to each destination.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.MessageCloneBenchmark [iterations]</code>
+ */
+public class MessageCloneBenchmark {
+
+  private static long sink=0;
+
+  public static void main(String[] args) throws CloneNotSupportedException {
+    final int iterations=(args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+
+    final com.sun.management.ThreadMXBean threads=
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long thread=Thread.currentThread().getId();
+
+    final Message msg=new Message(new byte[1000],0,1000);
+    msg.pushLong(1);
+    msg.pushInt(2);
+    msg.pushString("header");
+
+    final boolean[] header={false, true};
+    final String[] names={"clone", "clone and push a header"};
+
+    for (int i=0 ; i < header.length ; i++) {
+      // warm up
+      run(msg,header[i],iterations/10);
+
+      final long bytes=threads.getThreadAllocatedBytes(thread);
+      final long start=System.nanoTime();
+      run(msg,header[i],iterations);
+      final long time=System.nanoTime()-start;
+      final long allocated=threads.getThreadAllocatedBytes(thread)-bytes;
+      System.out.println(names[i]+": "+(allocated/iterations)+" bytes/clone "+(time/iterations)+" ns/clone");
+    }
+    if (sink == 42)
+      System.out.println();
+  }
+
+  private static void run(Message msg, boolean header, int iterations) throws CloneNotSupportedException {
+    for (int k=0 ; k < iterations ; k++) {
+      final Message clone=(Message) msg.clone();
+      if (header)
+        clone.pushInt(k);
+      sink+=clone.length();
+      clone.discardAll();
+    }
+  }
+}
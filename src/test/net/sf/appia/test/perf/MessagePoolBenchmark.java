@@ -0,0 +1,91 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import net.sf.appia.core.message.DefaultMessageFactory;
+import net.sf.appia.core.message.Message;
+import net.sf.appia.core.message.MessageFactory;
+import net.sf.appia.core.message.MsgBuffer;
+import net.sf.appia.core.message.PooledMessageFactory;
+
+/**
+ * Measures the bytes allocated per message, and the time, of the send path of
+ * a message: the headers of three layers are pushed, a transport gets the
+ * message with {@link Message#toByteBuffers()}, and the message is discarded.
+ * <br>
+ * It compares the {@link DefaultMessageFactory} with the {@link PooledMessageFactory},
+ * with and without {@link Message#releaseByteBuffers()} after the buffers are used.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.MessagePoolBenchmark [iterations]</code>
+ */
+public class MessagePoolBenchmark {
+
+  private static final byte[] HEADER=new byte[24];
+
+  private static long sink=0;
+
+  public static void main(String[] args) {
+    final int iterations=(args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+    final com.sun.management.ThreadMXBean threads=
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long thread=Thread.currentThread().getId();
+
+    final MessageFactory[] factories={
+        new DefaultMessageFactory(), new PooledMessageFactory(), new PooledMessageFactory()};
+    final boolean[] release={true, false, true};
+    final String[] names={"default", "pooled, buffers kept", "pooled, buffers released"};
+
+    for (int i=0 ; i < factories.length ; i++) {
+      // warm up
+      run(factories[i],release[i],iterations/10);
+
+      final long bytes=threads.getThreadAllocatedBytes(thread);
+      final long start=System.nanoTime();
+      run(factories[i],release[i],iterations);
+      final long time=System.nanoTime()-start;
+      final long allocated=threads.getThreadAllocatedBytes(thread)-bytes;
+      System.out.println(names[i]+": "+(allocated/iterations)+" bytes/message "+(time/iterations)+" ns/message");
+    }
+    if (sink == 42)
+      System.out.println();
+  }
+
+  private static void run(MessageFactory factory, boolean release, int iterations) {
+    final MsgBuffer mbuf=new MsgBuffer();
+    for (int k=0 ; k < iterations ; k++) {
+      final Message msg=factory.newMessage();
+      msg.pushLong(k);
+      msg.pushInt(k);
+      mbuf.len=HEADER.length;
+      msg.push(mbuf);
+      System.arraycopy(HEADER,0,mbuf.data,mbuf.off,mbuf.len);
+
+      final ByteBuffer[] buffers=msg.toByteBuffers();
+      sink+=buffers[0].remaining();
+      if (release)
+        msg.releaseByteBuffers();
+      msg.discardAll();
+    }
+  }
+}
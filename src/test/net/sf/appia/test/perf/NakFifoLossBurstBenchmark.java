@@ -0,0 +1,243 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import java.net.InetSocketAddress;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.AppiaEventException;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.ChannelCursor;
+import net.sf.appia.core.Direction;
+import net.sf.appia.core.Event;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.core.Session;
+import net.sf.appia.core.events.SendableEvent;
+import net.sf.appia.core.events.channel.ChannelClose;
+import net.sf.appia.core.events.channel.ChannelInit;
+import net.sf.appia.protocols.common.RegisterSocketEvent;
+import net.sf.appia.protocols.drop.DropLayer;
+import net.sf.appia.protocols.drop.DropSession;
+import net.sf.appia.protocols.nakfifo.NakFifoLayer;
+import net.sf.appia.protocols.nakfifo.NakFifoSession;
+import net.sf.appia.protocols.udpsimple.UdpSimpleLayer;
+import net.sf.appia.xml.utils.SessionProperties;
+
+/**
+ * Measures how long {@link NakFifoSession} takes to recover from a burst of
+ * losses, as a function of the number of messages in the burst.
+ * <br>
+ * A sender channel (UdpSimple, Drop, NakFifo) sends a backlog of messages to
+ * a receiver channel (UdpSimple, NakFifo). While the backlog is being sent,
+ * {@link DropSession} drops each transmission with the given probability, so
+ * the receiver holds most of the backlog out of order while the holes are
+ * retransmitted. Afterwards nothing is dropped. The recovery time goes from
+ * the last transmission of the burst to the delivery of the whole backlog.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.NakFifoLossBurstBenchmark [loss] [backlog...]</code>
+ */
+public class NakFifoLossBurstBenchmark {
+
+  private static final int[] BACKLOGS={1000,4000,16000,64000};
+  private static final long TIMEOUT=120000;
+
+  private static volatile InetSocketAddress senderAddr=null;
+  private static volatile InetSocketAddress receiverAddr=null;
+
+  private static volatile int received=0;
+  private static volatile long receivedTime=0;
+
+  private static volatile int burst=0;
+  private static volatile int passed=0;
+  private static volatile long burstEndTime=0;
+
+  public static void main(String[] args) throws Exception {
+    final double loss=(args.length > 0) ? Double.parseDouble(args[0]) : 0.1;
+    int[] backlogs=BACKLOGS;
+    if (args.length > 1) {
+      backlogs=new int[args.length-1];
+      for (int i=0 ; i < backlogs.length ; i++)
+        backlogs[i]=Integer.parseInt(args[i+1]);
+    }
+
+    final Channel sender=createChannel("sender",new Layer[] {
+        new UdpSimpleLayer(), new BurstDropLayer(), new NakFifoLayer(), new BenchLayer(true)});
+    final Channel receiver=createChannel("receiver",new Layer[] {
+        new UdpSimpleLayer(), new NakFifoLayer(), new BenchLayer(false)});
+
+    final Thread appia=new Thread("Appia") {
+      public void run() {
+        Appia.run();
+      }
+    };
+    appia.setDaemon(true);
+    appia.start();
+    while ((senderAddr == null) || (receiverAddr == null))
+      Thread.sleep(10);
+
+    DropSession.dropRate=loss;
+
+    // first message opens the communication between the peers
+    run(sender,1,0);
+
+    for (int i=0 ; i < backlogs.length ; i++) {
+      final long start=System.nanoTime();
+      if (!run(sender,backlogs[i],backlogs[i])) {
+        System.out.println("backlog="+backlogs[i]+" timed out with "+received+" delivered");
+        break;
+      }
+      System.out.println("backlog="+backlogs[i]+" loss="+loss+
+          " total: "+((receivedTime-start)/1000000)+" ms"+
+          " recovery: "+((receivedTime-burstEndTime)/1000000)+" ms");
+    }
+    System.exit(0);
+  }
+
+  private static boolean run(Channel channel, int messages, int lossy) throws Exception {
+    received=0;
+    passed=0;
+    burst=lossy;
+    for (int i=0 ; i < messages ; i++) {
+      final SendableEvent ev=new SendableEvent();
+      ev.getMessage().pushInt(i);
+      ev.source=senderAddr;
+      ev.dest=receiverAddr;
+      ev.asyncGo(channel,Direction.DOWN);
+    }
+    final long deadline=System.currentTimeMillis()+TIMEOUT;
+    while ((received < messages) && (System.currentTimeMillis() < deadline))
+      Thread.sleep(1);
+    return received == messages;
+  }
+
+  private static Channel createChannel(String name, Layer[] layers) throws Exception {
+    final QoS qos=new QoS(name,layers);
+    // both ends must have the same channel name
+    final Channel channel=qos.createUnboundChannel("burst");
+
+    final SessionProperties params=new SessionProperties();
+    params.put("timer_period","50");
+    params.put("resend_nack_time","100");
+    // the other times are kept, they are counted in rounds of the timer
+    params.put("max_appl_time",Long.toString(NakFifoSession.DEFAULT_MAX_APPL_TIME));
+    params.put("max_recv_time",Long.toString(NakFifoSession.DEFAULT_MAX_RECV_TIME));
+    params.put("max_sent_time",Long.toString(NakFifoSession.DEFAULT_MAX_SENT_TIME));
+    final ChannelCursor cursor=channel.getCursor();
+    cursor.bottom();
+    for (int i=0 ; i < layers.length ; i++) {
+      if (layers[i] instanceof NakFifoLayer) {
+        final NakFifoSession session=(NakFifoSession)layers[i].createSession();
+        session.init(params);
+        cursor.setSession(session);
+      }
+      cursor.up();
+    }
+
+    channel.start();
+    return channel;
+  }
+
+  /*
+   * Drops with DropSession only the first transmissions of the burst.
+   */
+  private static class BurstDropLayer extends DropLayer {
+    public Session createSession() {
+      return new BurstDropSession(this);
+    }
+  }
+
+  private static class BurstDropSession extends DropSession {
+    public BurstDropSession(DropLayer layer) {
+      super(layer);
+    }
+
+    public void handle(Event e) {
+      if ((e instanceof SendableEvent) && (e.getDir() == Direction.DOWN) && (passed < burst)) {
+        if (++passed == burst)
+          burstEndTime=System.nanoTime();
+        super.handle(e);
+        return;
+      }
+      try {
+        e.go();
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+
+  private static class BenchLayer extends Layer {
+    private final boolean isSender;
+
+    public BenchLayer(boolean isSender) {
+      this.isSender=isSender;
+      evProvide=new Class[] {
+          RegisterSocketEvent.class,
+      };
+      evRequire=new Class[] {};
+      evAccept=new Class[] {
+          RegisterSocketEvent.class,
+          SendableEvent.class,
+          ChannelInit.class,
+          ChannelClose.class,
+      };
+    }
+
+    public Session createSession() {
+      return new BenchSession(this,isSender);
+    }
+  }
+
+  private static class BenchSession extends Session {
+    private final boolean isSender;
+
+    public BenchSession(Layer layer, boolean isSender) {
+      super(layer);
+      this.isSender=isSender;
+    }
+
+    public void handle(Event e) {
+      try {
+        if (e instanceof ChannelInit) {
+          e.go();
+          new RegisterSocketEvent(e.getChannel(),Direction.DOWN,this,RegisterSocketEvent.FIRST_AVAILABLE).go();
+        } else if (e instanceof RegisterSocketEvent) {
+          final RegisterSocketEvent ev=(RegisterSocketEvent)e;
+          final InetSocketAddress addr=new InetSocketAddress(ev.localHost,ev.port);
+          if (isSender)
+            senderAddr=addr;
+          else
+            receiverAddr=addr;
+        } else if ((e instanceof SendableEvent) && (e.getDir() == Direction.UP)) {
+          final int i=((SendableEvent)e).getMessage().popInt();
+          if (i != received)
+            System.out.println("Out of order: expected "+received+" received "+i);
+          received++;
+          receivedTime=System.nanoTime();
+        } else {
+          e.go();
+        }
+      } catch (AppiaEventException ex) {
+        ex.printStackTrace();
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import java.util.Random;
+
+import net.sf.appia.core.AppiaException;
+import net.sf.appia.core.EventQualifier;
+import net.sf.appia.core.TimerManager;
+import net.sf.appia.core.TimingWheelTimerManager;
+import net.sf.appia.core.events.channel.Timer;
+import net.sf.appia.protocols.common.AppiaThreadFactory;
+
+/**
+ * Measures the time to cancel a timer and request it again, the usual handling
+ * of a retransmission timer, with a given number of pending timers.
+ * <br>
+ * It compares the list kept by {@link TimerManager} with the wheel of
+ * {@link TimingWheelTimerManager}, cancelling by timer ID and with the requested
+ * timer itself, with a different ID for each timer and with the same ID for all
+ * of them. The managers are not started, so no timer expires.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.TimerManagerBenchmark [operations] [pending...]</code>
+ */
+public class TimerManagerBenchmark {
+
+  private static final int[] PENDING={10,100,1000,10000};
+  /** Timeouts are up to this, in milliseconds. */
+  private static final int MAX_TIMEOUT=10000;
+
+  public static void main(String[] args) throws AppiaException {
+    final int operations=(args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    int[] pending=PENDING;
+    if (args.length > 1) {
+      pending=new int[args.length-1];
+      for (int i=0 ; i < pending.length ; i++)
+        pending[i]=Integer.parseInt(args[i+1]);
+    }
+
+    for (int s=0 ; s < 2 ; s++) {
+      final boolean sameId=(s == 1);
+      for (int i=0 ; i < pending.length ; i++) {
+        final long list=run(new TimerManager(new AppiaThreadFactory()),pending[i],operations,sameId,false);
+        final long wheelId=run(new TimingWheelTimerManager(new AppiaThreadFactory()),pending[i],operations,sameId,false);
+        final long wheelHandle=run(new TimingWheelTimerManager(new AppiaThreadFactory()),pending[i],operations,sameId,true);
+        System.out.println((sameId ? "same ID" : "different IDs")+" pending="+pending[i]+
+            " list: "+list+" ns/op"+
+            " wheel by ID: "+wheelId+" ns/op"+
+            " wheel by timer: "+wheelHandle+" ns/op");
+      }
+    }
+  }
+
+  /*
+   * Returns the time of a cancel followed by a request, in nanoseconds.
+   */
+  private static long run(TimerManager manager, int pending, int operations, boolean sameId, boolean byHandle)
+  throws AppiaException {
+    final Random random=new Random(pending);
+    final Timer[] timers=new Timer[pending];
+    for (int i=0 ; i < pending ; i++) {
+      timers[i]=newTimer(sameId ? "timer" : "timer "+i,random);
+      manager.handleTimerRequest(timers[i]);
+    }
+
+    // the first round warms up
+    long time=0;
+    for (int round=0 ; round < 2 ; round++) {
+      final int n=(round == 0) ? operations/10 : operations;
+      final long start=System.nanoTime();
+      for (int k=0 ; k < n ; k++) {
+        final int i=random.nextInt(pending);
+        final Timer cancel=byHandle ? timers[i] : newTimer(timers[i].timerID,random);
+        cancel.setQualifierMode(EventQualifier.OFF);
+        manager.handleTimerRequest(cancel);
+
+        timers[i]=newTimer(timers[i].timerID,random);
+        manager.handleTimerRequest(timers[i]);
+      }
+      time=System.nanoTime()-start;
+    }
+    return time/operations;
+  }
+
+  private static Timer newTimer(String id, Random random) throws AppiaException {
+    final Timer timer=new Timer();
+    timer.timerID=id;
+    timer.setTimeout(1+random.nextInt(MAX_TIMEOUT));
+    timer.setQualifierMode(EventQualifier.ON);
+    return timer;
+  }
+}
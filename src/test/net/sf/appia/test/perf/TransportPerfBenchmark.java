@@ -0,0 +1,207 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import net.sf.appia.core.Appia;
+import net.sf.appia.core.Channel;
+import net.sf.appia.core.ChannelCursor;
+import net.sf.appia.core.Layer;
+import net.sf.appia.core.QoS;
+import net.sf.appia.protocols.group.bottom.GroupBottomLayer;
+import net.sf.appia.protocols.group.heal.GossipOutLayer;
+import net.sf.appia.protocols.group.heal.HealLayer;
+import net.sf.appia.protocols.group.inter.InterLayer;
+import net.sf.appia.protocols.group.intra.IntraLayer;
+import net.sf.appia.protocols.group.leave.LeaveLayer;
+import net.sf.appia.protocols.group.stable.StableLayer;
+import net.sf.appia.protocols.group.suspect.SuspectLayer;
+import net.sf.appia.protocols.group.sync.VSyncLayer;
+import net.sf.appia.protocols.utils.HostUtils;
+import net.sf.appia.xml.utils.SessionProperties;
+
+/**
+ * Compares the throughput and latency of the tcpcomplete and tcpnio transports
+ * with the ring test of {@link PerfSession}, over the loopback, for groups of
+ * 2 to 64 members.
+ * <br>
+ * The stack is the one of the "Perf Tcp Template" of <code>config/demo/perf.xml</code>,
+ * with each transport at the bottom. Each run starts a new JVM with all the members
+ * of the group, so they share the <i>Appia</i> thread. The members know the addresses
+ * of each other, so no gossip server is needed. The run reports the averages of the
+ * results printed by the members, and the peak number of threads of the JVM.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.TransportPerfBenchmark [rounds] [members...]</code>
+ */
+public class TransportPerfBenchmark {
+
+  private static final int[] MEMBERS={2,4,8,16,32,64};
+  private static final String[] TRANSPORTS={
+    "net.sf.appia.protocols.tcpcomplete.TcpCompleteLayer",
+    "net.sf.appia.protocols.tcpnio.TcpNioLayer",
+  };
+  private static final String[] NAMES={"tcpcomplete", "tcpnio"};
+  // messages of each member in each round, and their size
+  private static final int MESSAGES=10;
+  private static final int SIZE=1000;
+  // maximum time of a run, in seconds
+  private static final long TIMEOUT=300;
+
+  public static void main(String[] args) throws Exception {
+    if ((args.length > 0) && args[0].equals("-run")) {
+      run(args[1],Integer.parseInt(args[2]),Integer.parseInt(args[3]));
+      return;
+    }
+
+    final int rounds=(args.length > 0) ? Integer.parseInt(args[0]) : 200;
+    int[] members=MEMBERS;
+    if (args.length > 1) {
+      members=new int[args.length-1];
+      for (int i=0 ; i < members.length ; i++)
+        members[i]=Integer.parseInt(args[i+1]);
+    }
+
+    for (int i=0 ; i < members.length ; i++) {
+      final StringBuffer line=new StringBuffer("members="+members[i]);
+      for (int t=0 ; t < TRANSPORTS.length ; t++)
+        line.append(" ").append(NAMES[t]).append(": ").append(launch(TRANSPORTS[t],members[i],rounds));
+      System.out.println(line);
+    }
+  }
+
+  /*
+   * Runs the group in a new JVM and summarizes its results.
+   */
+  private static String launch(String transport, int members, int rounds) throws IOException, InterruptedException {
+    final String java=System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+    final ProcessBuilder builder=new ProcessBuilder(java,"-cp",System.getProperty("java.class.path"),
+        TransportPerfBenchmark.class.getName(),"-run",transport,Integer.toString(members),Integer.toString(rounds));
+    final String log4j=System.getProperty("log4j.configuration");
+    if (log4j != null)
+      builder.command().add(1,"-Dlog4j.configuration="+log4j);
+    builder.redirectErrorStream(true);
+    final Process process=builder.start();
+
+    final long deadline=System.currentTimeMillis()+TIMEOUT*1000;
+    final Thread killer=new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(Math.max(1,deadline-System.currentTimeMillis()));
+          process.destroyForcibly();
+        } catch (InterruptedException ex) {
+          // finished in time
+        }
+      }
+    };
+    killer.setDaemon(true);
+    killer.start();
+
+    double latency=0, throughput=0;
+    int results=0, threads=0;
+    final BufferedReader in=new BufferedReader(new InputStreamReader(process.getInputStream()));
+    try {
+      String s;
+      while ((s=in.readLine()) != null) {
+        if (s.startsWith("latency: "))
+          latency+=Double.parseDouble(s.substring(9));
+        else if (s.startsWith("msgs/sec: ")) {
+          throughput+=Double.parseDouble(s.substring(10));
+          results++;
+        } else if (s.startsWith("threads: "))
+          threads=Integer.parseInt(s.substring(9));
+      }
+    } catch (IOException e) {
+      // the stream is closed when the run is killed
+    }
+    process.waitFor();
+    killer.interrupt();
+
+    if (results < members)
+      return "failed ("+results+" of "+members+" members finished, exit code "+process.exitValue()+", "+threads+" threads)";
+    return ((long) (latency/results*1000000))+" us/round "+((long) (throughput/results))+" msgs/s "+threads+" threads";
+  }
+
+  /*
+   * Runs all the members of a group in this JVM. PerfSession exits when all finish.
+   */
+  private static void run(String transport, int members, int rounds) throws Exception {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        System.out.println("threads: "+ManagementFactory.getThreadMXBean().getPeakThreadCount());
+      }
+    });
+
+    final InetAddress host=HostUtils.getLocalAddress();
+    final int[] ports=new int[members];
+    final StringBuffer addrs=new StringBuffer();
+    for (int i=0 ; i < members ; i++) {
+      final ServerSocket ss=new ServerSocket(0,50,host);
+      ports[i]=ss.getLocalPort();
+      ss.close();
+      if (i > 0)
+        addrs.append(",");
+      addrs.append(host.getHostAddress()).append(":").append(ports[i]);
+    }
+
+    PerfSession.instances(members);
+    for (int i=0 ; i < members ; i++) {
+      final PerfLayer perf=new PerfLayer();
+      final QoS qos=new QoS("perf "+i,new Layer[] {
+          (Layer) Class.forName(transport).newInstance(),
+          new GroupBottomLayer(),
+          new GossipOutLayer(),
+          new SuspectLayer(),
+          new IntraLayer(),
+          new InterLayer(),
+          new HealLayer(),
+          new StableLayer(),
+          new LeaveLayer(),
+          new VSyncLayer(),
+          perf,
+      });
+      final Channel channel=qos.createUnboundChannel("Perf Channel");
+
+      final SessionProperties params=new SessionProperties();
+      params.put("lo","false");
+      params.put("n",Integer.toString(members));
+      params.put("k",Integer.toString(MESSAGES));
+      params.put("r",Integer.toString(rounds));
+      params.put("m",Integer.toString(SIZE));
+      params.put("port",Integer.toString(ports[i]));
+      params.put("addrs",addrs.toString());
+      params.put("shutdown","0");
+      final PerfSession session=(PerfSession) perf.createSession();
+      session.init(params);
+      final ChannelCursor cursor=channel.getCursor();
+      cursor.top();
+      cursor.setSession(session);
+
+      channel.start();
+    }
+    Appia.run();
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Appia: Group communication and protocol composition framework library
+ * Copyright 2006 University of Lisbon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Initial developer(s): Alexandre Pinto and Hugo Miranda.
+ * Contributor(s): See Appia web page for a list of contributors.
+ */
+package net.sf.appia.test.perf;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import net.sf.appia.core.message.Message;
+import net.sf.appia.protocols.group.AppiaGroupException;
+import net.sf.appia.protocols.group.Endpt;
+import net.sf.appia.protocols.group.Group;
+import net.sf.appia.protocols.group.ViewID;
+import net.sf.appia.protocols.group.ViewState;
+
+/**
+ * Measures the time to push and pop a view, and the size of its header, as a
+ * function of the number of members.
+ * <br>
+ * The view is written with {@link ViewState#push(ViewState, Message)}, with
+ * {@link ViewState#pushCompact(ViewState, Message)}, with
+ * {@link Message#pushObject(Object)} of its members, identifier and group, as
+ * some group layers do, and with {@link Message#pushObject(Object)} of the whole view.
+ * <br>
+ * Usage: <code>java net.sf.appia.test.perf.ViewStateBenchmark [iterations] [members...]</code>
+ */
+public class ViewStateBenchmark {
+
+  private static final int[] MEMBERS={3,10,50};
+
+  private static final String[] NAMES={
+    "ViewState.push/pop",
+    "ViewState.pushCompact/popCompact",
+    "pushObject/popObject of the fields",
+    "pushObject/popObject of the view",
+  };
+
+  private static long sink=0;
+
+  public static void main(String[] args) throws AppiaGroupException {
+    final int iterations=(args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+    int[] members=MEMBERS;
+    if (args.length > 1) {
+      members=new int[args.length-1];
+      for (int i=0 ; i < members.length ; i++)
+        members[i]=Integer.parseInt(args[i+1]);
+    }
+
+    // the first pass warms up
+    for (int pass=0 ; pass < 2 ; pass++) {
+      for (int i=0 ; i < members.length ; i++) {
+        final ViewState vs=newView(members[i]);
+        for (int mode=0 ; mode < NAMES.length ; mode++) {
+          // the serialization of the whole view is much slower
+          int n=(mode == 3) ? iterations/10 : iterations;
+          if (pass == 0)
+            n/=10;
+          final long start=System.nanoTime();
+          final int bytes=run(vs,mode,n);
+          final long time=System.nanoTime()-start;
+          if (pass == 1)
+            System.out.println("members="+members[i]+" "+NAMES[mode]+": "+(time/n)+" ns "+bytes+" bytes");
+        }
+      }
+    }
+    if (sink == 42)
+      System.out.println();
+  }
+
+  /*
+   * Returns the size of the header.
+   */
+  private static int run(ViewState vs, int mode, int iterations) {
+    int bytes=0;
+    for (int k=0 ; k < iterations ; k++) {
+      final Message msg=new Message();
+      switch (mode) {
+      case 0:
+        ViewState.push(vs,msg);
+        bytes=msg.length();
+        sink+=ViewState.pop(msg).view.length;
+        break;
+      case 1:
+        ViewState.pushCompact(vs,msg);
+        bytes=msg.length();
+        sink+=ViewState.popCompact(msg).view.length;
+        break;
+      case 2:
+        for (int i=vs.view.length-1 ; i >= 0 ; i--)
+          msg.pushObject(vs.view[i]);
+        msg.pushObject(vs.id);
+        msg.pushObject(vs.group);
+        bytes=msg.length();
+        sink+=((Group) msg.popObject()).id.length();
+        sink+=((ViewID) msg.popObject()).ltime;
+        for (int i=0 ; i < vs.view.length ; i++)
+          sink+=((Endpt) msg.popObject()).id.length();
+        break;
+      default:
+        msg.pushObject(vs);
+        bytes=msg.length();
+        sink+=((ViewState) msg.popObject()).view.length;
+      }
+    }
+    return bytes;
+  }
+
+  private static ViewState newView(int members) throws AppiaGroupException {
+    final Endpt[] view=new Endpt[members];
+    final SocketAddress[] addresses=new SocketAddress[members];
+    for (int i=0 ; i < members ; i++) {
+      view[i]=new Endpt("member "+i+"@10.0.0."+(i+1)+":"+(5000+i));
+      addresses[i]=new InetSocketAddress("10.0.0."+(i+1),5000+i);
+    }
+    final ViewID[] previous={new ViewID(6,view[0]), new ViewID(3,view[members-1])};
+    return new ViewState("3.0",new Group("perf group"),new ViewID(7,view[0]),previous,view,addresses);
+  }
+}